@@ -0,0 +1,197 @@
+package aggregationserver;
+
+import common.PayloadArena;
+import common.RequestEvents;
+import common.WeatherDataSerializer;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.stream.Collectors;
+
+/**
+ * What every StationStore engine shares: the applied record of each station, kept on the heap or in an
+ * off-heap arena, the listeners told of every change, and the striped per-station locks that publishing
+ * and removing a station are done under. An engine decides when writes are applied and what else a write
+ * or removal touches (such as a station's file), and calls publish and unpublish while holding the
+ * station's lock so a station is never removed between being checked and its record being published.
+ */
+abstract class AbstractStationStore implements StationStore {
+
+    private static final int LOCK_STRIPES = 64;
+
+    protected final ConcurrentHashMap<String, Long> lastUpdateTimestamps; // To track last update time
+    private final ConcurrentHashMap<String, AppliedRecord> appliedRecords; // Latest applied data, to merge patches onto
+    private final Object[] stationLocks; // Striped by station ID, held while a station is changed
+    private final List<StationUpdateListener> listeners;
+    private PayloadArena arena; // Holds applied data off-heap when set
+
+    // A station's latest applied data, either on the heap or as a handle to its bytes in the arena
+    private record AppliedRecord(long version, StationRecord record, long payload) {
+    }
+
+    protected AbstractStationStore() {
+        this.lastUpdateTimestamps = new ConcurrentHashMap<>();
+        this.appliedRecords = new ConcurrentHashMap<>();
+        this.stationLocks = new Object[LOCK_STRIPES];
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            stationLocks[i] = new Object();
+        }
+        this.listeners = new CopyOnWriteArrayList<>();
+    }
+
+    /**
+     * @param listener StationUpdateListener - notified of every applied write and every removed station.
+     */
+    @Override
+    public void addListener(StationUpdateListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Holds applied station data in an off-heap arena instead of on the heap, so the heap only keeps a
+     * handle per station. Data that does not fit in the arena stays on the heap. Must be called before start.
+     *
+     * @param arena PayloadArena - the arena to hold station data in.
+     */
+    @Override
+    public void setPayloadArena(PayloadArena arena) {
+        this.arena = arena;
+    }
+
+    /**
+     * @param stationId String - the station to look up.
+     * @return StationRecord - the data and version last applied for the station, or null if none.
+     */
+    @Override
+    public StationRecord getStationRecord(String stationId) {
+        RequestEvents.ReadEvent event = new RequestEvents.ReadEvent();
+        event.begin();
+        StationRecord record = readStationRecord(stationId);
+        if (event.shouldCommit()) {
+            event.stationId = stationId;
+            event.lamportTimestamp = record != null ? record.version() : RequestEvents.NO_TIMESTAMP;
+            event.commit();
+        }
+        return record;
+    }
+
+    /**
+     * @return StationRecord - the data and version of the most recently updated station, or null if none.
+     */
+    @Override
+    public StationRecord getMostRecentRecord() {
+        String stationId = getMostRecentStationId();
+        return stationId != null ? getStationRecord(stationId) : null;
+    }
+
+    /**
+     * @return String - the ID of the most recently updated station, or null if none.
+     */
+    @Override
+    public String getMostRecentStationId() {
+        return lastUpdateTimestamps.entrySet()
+                .stream()
+                .max(Map.Entry.comparingByValue())
+                .map(Map.Entry::getKey)
+                .orElse(null);
+    }
+
+    /**
+     * @param prefix String - the station ID prefix to match, empty for every station.
+     * @return List - the sorted IDs of stations with applied data that start with the prefix.
+     */
+    @Override
+    public List<String> getStationIds(String prefix) {
+        return appliedRecords.keySet()
+                .stream()
+                .filter(stationId -> stationId.startsWith(prefix))
+                .sorted()
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * @param stationId String - the station ID.
+     * @return Object - the lock to hold while publishing or removing the station.
+     */
+    protected Object lockFor(String stationId) {
+        return stationLocks[Math.floorMod(stationId.hashCode(), LOCK_STRIPES)];
+    }
+
+    /**
+     * @param stationId String - the station ID.
+     * @return boolean - whether the station has applied data.
+     */
+    protected boolean hasAppliedRecord(String stationId) {
+        return appliedRecords.containsKey(stationId);
+    }
+
+    /**
+     * @param stationId String - the station ID.
+     * @return long - the version of the station's applied data, or WriteRequest.NO_BASE_VERSION if none.
+     */
+    protected long appliedVersion(String stationId) {
+        AppliedRecord applied = appliedRecords.get(stationId);
+        return applied != null ? applied.version() : WriteRequest.NO_BASE_VERSION;
+    }
+
+    /**
+     * Makes a station's record the one served and tells the listeners. Must be called while holding the
+     * station's lock.
+     *
+     * @param stationId String - the station ID.
+     * @param record StationRecord - the station's full data at its new version.
+     */
+    protected void publish(String stationId, StationRecord record) {
+        AppliedRecord applied = new AppliedRecord(record.version(), record, PayloadArena.NO_HANDLE);
+        if (arena != null) {
+            long payload = arena.allocate(record.data().toBytes());
+            if (payload != PayloadArena.NO_HANDLE) {
+                applied = new AppliedRecord(record.version(), null, payload);
+            }
+        }
+        release(appliedRecords.put(stationId, applied));
+        for (StationUpdateListener listener : listeners) {
+            listener.onStationUpdated(stationId, record);
+        }
+    }
+
+    /**
+     * Stops tracking a station, frees its record and tells the listeners. Must be called while holding the
+     * station's lock.
+     *
+     * @param stationId String - the station ID.
+     */
+    protected void unpublish(String stationId) {
+        lastUpdateTimestamps.remove(stationId);
+        release(appliedRecords.remove(stationId));
+        for (StationUpdateListener listener : listeners) {
+            listener.onStationRemoved(stationId);
+        }
+    }
+
+    private StationRecord readStationRecord(String stationId) {
+        while (true) {
+            AppliedRecord applied = appliedRecords.get(stationId);
+            if (applied == null) {
+                return null;
+            }
+            if (applied.record() != null) {
+                return applied.record();
+            }
+            byte[] payload = arena.read(applied.payload());
+            if (payload != null) {
+                return new StationRecord(applied.version(), WeatherDataSerializer.fromBytes(payload));
+            }
+            // Replaced or removed while it was read, so look the station up again
+        }
+    }
+
+    // Frees the arena block of a record that was replaced or removed
+    private void release(AppliedRecord applied) {
+        if (applied != null && applied.record() == null) {
+            arena.free(applied.payload());
+        }
+    }
+}
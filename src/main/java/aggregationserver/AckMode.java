@@ -0,0 +1,32 @@
+package aggregationserver;
+
+import java.util.Locale;
+
+/**
+ * When a PUT is acknowledged, chosen per request with the Ack-Mode header or for the whole server.
+ * Later modes answer more slowly but promise more about the write.
+ */
+public enum AckMode {
+
+    ENQUEUE, // Once the write is queued, the fastest, but a GET straight afterwards may not see it yet
+    APPLIED, // Once the write is applied, so it is visible to every later GET
+    DURABLE; // Once the write is applied and its file is synced to disk
+
+    public static final String HEADER = "Ack-Mode";
+
+    /**
+     * @param value String - "enqueue", "applied" or "durable", in any case.
+     * @return AckMode - the mode named.
+     * @throws IllegalArgumentException if the value names no mode.
+     */
+    public static AckMode parse(String value) {
+        return valueOf(value.trim().toUpperCase(Locale.ROOT));
+    }
+
+    /**
+     * @return String - the mode as sent in the Ack-Mode header.
+     */
+    public String headerValue() {
+        return name().toLowerCase(Locale.ROOT);
+    }
+}
@@ -2,56 +2,382 @@ package aggregationserver;
 
 import common.*;
 import java.io.*;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.util.ArrayList;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLongArray;
 import java.util.logging.*;
+import java.util.regex.Pattern;
 
 public class AggregationServer implements NetworkNode, Runnable {
 
   private static final Logger logger = Logger.getLogger(AggregationServer.class.getName());
+  public static final String BATCH_CONTENT_TYPE = "application/x-ndjson";
+  public static final String PROMOTE_PATH = "/promote";
+  // A waiting PUT is answered 202 Accepted after this, before the 5 second timeout of content servers and peers
+  public static final long DEFAULT_ACK_TIMEOUT = 3 * 1000;
+  // Station IDs become file names, so batch records may not use path separators
+  private static final Pattern STATION_ID_PATTERN = Pattern.compile("[A-Za-z0-9_\\-]+");
 
   private final String serverAddress;
   private final int port;
   private final LamportClock lamportClock;
   private boolean isRunning;
-  private ServerSocket serverSocket;
-  private final FileManager fileManager;
+  private final List<ServerSocket> serverSockets = new CopyOnWriteArrayList<>();
+  private final CountDownLatch listening = new CountDownLatch(1); // Released once the server sockets are bound
+  private int acceptors = 1;
+  private AtomicLongArray acceptedConnections = new AtomicLongArray(1); // Per acceptor thread
+  private final StationStore stationStore;
+  private final SubscriptionManager subscriptionManager;
+  private final EncodedResponseCache responseCache;
+  private final StationHistory history;
+  private final StateAggregates aggregates;
+  private final SpatialIndex spatialIndex;
+  private final AttributeIndex attributeIndex;
+  private final Object roleLock = new Object();
+  private volatile boolean backup; // A backup applies the primary's replicated writes and only serves reads
+  private List<String> replicas = List.of(); // Backups this server replicates to while it is the primary
+  private ReplicationManager replicationManager;
+  private long failoverTimeout; // Promote a backup after this long without hearing from the primary, 0 to disable
+  private volatile long lastReplicationMillis;
+  private ClusterRouter clusterRouter; // Null unless stations are partitioned across a cluster
+  private boolean joinCluster;
+  private AckMode ackMode = AckMode.ENQUEUE; // For PUTs without an Ack-Mode header
+  private long ackTimeout = DEFAULT_ACK_TIMEOUT;
+  private final Map<AckMode, LatencyRecorder> ackLatencies = new EnumMap<>(AckMode.class);
+  private final RateLimiter rateLimiter = new RateLimiter(); // Limits nothing until a limit is set
+  // Answers PUTs waiting for their write to be applied, so the writer thread never does socket I/O
+  private final ExecutorService acknowledger = Executors.newCachedThreadPool(runnable -> {
+    Thread thread = new Thread(runnable, "put-acknowledger");
+    thread.setDaemon(true);
+    return thread;
+  });
 
   /**
    * Constructor for AggregationServer
-   * Initializes the server with a specified address and port. Sets up LamportClock and FileManager.
+   * Initializes the server with a specified address and port. Sets up LamportClock and a FileManager store.
    *
    * @param serverAddress The IP address where the server will be running.
    * @param port The port number to listen for incoming connections.
    */
   public AggregationServer(String serverAddress, int port) {
+    this(serverAddress, port, StationStore.DEFAULT_MAX_ENTRIES);
+  }
+
+  /**
+   * Constructor for AggregationServer with a custom station limit.
+   *
+   * @param serverAddress The IP address where the server will be running.
+   * @param port The port number to listen for incoming connections.
+   * @param maxStations The number of stations kept before the least recently updated is evicted.
+   */
+  public AggregationServer(String serverAddress, int port, int maxStations) {
+    this(serverAddress, port, maxStations, "data/AggregationServerData");
+  }
+
+  /**
+   * Constructor for AggregationServer with a custom station limit and data directory, so several
+   * servers (such as a primary and its backups) can run on one machine.
+   *
+   * @param serverAddress The IP address where the server will be running.
+   * @param port The port number to listen for incoming connections.
+   * @param maxStations The number of stations kept before the least recently updated is evicted.
+   * @param storagePath The directory station files are written to.
+   */
+  public AggregationServer(String serverAddress, int port, int maxStations, String storagePath) {
+    this(serverAddress, port, new FileManager(storagePath, maxStations));
+  }
+
+  /**
+   * Constructor for AggregationServer with a chosen storage engine, such as a MemoryStationStore for
+   * deployments that do not need station data written to disk.
+   *
+   * @param serverAddress The IP address where the server will be running.
+   * @param port The port number to listen for incoming connections.
+   * @param stationStore The store station data is kept in, not yet started.
+   */
+  public AggregationServer(String serverAddress, int port, StationStore stationStore) {
     this.serverAddress = serverAddress;
     this.port = port;
     this.lamportClock = new LamportClock();
     this.isRunning = false;
-    this.fileManager = new FileManager("data/AggregationServerData"); // Initialize the file manager
+    this.stationStore = stationStore;
+    this.responseCache = new EncodedResponseCache();
+    this.history = new StationHistory();
+    this.aggregates = new StateAggregates();
+    this.spatialIndex = new SpatialIndex();
+    this.attributeIndex = new AttributeIndex();
+    this.subscriptionManager = new SubscriptionManager(this, stationStore);
+    for (AckMode mode : AckMode.values()) {
+      ackLatencies.put(mode, new LatencyRecorder());
+    }
+    // The cache is notified first, so pushed long-poll responses find the new version already encoded
+    stationStore.addListener(responseCache);
+    stationStore.addListener(history);
+    stationStore.addListener(aggregates);
+    stationStore.addListener(spatialIndex);
+    stationStore.addListener(attributeIndex);
+    stationStore.addListener(subscriptionManager);
     LoggerSetup.setupLogger(logger, "logs/aggregation-server.log");
   }
 
 
+  /**
+   * Sets the backup servers this server replicates its applied writes to while it is the primary.
+   * Must be called before startup.
+   *
+   * @param replicas List - "host:port" addresses of the backup servers.
+   */
+  public void setReplicas(List<String> replicas) {
+    this.replicas = replicas;
+  }
+
+  /**
+   * Starts this server as a backup: it applies the write stream replicated from a primary, serves GETs,
+   * and rejects writes from Content Servers until it is promoted. Must be called before startup.
+   *
+   * @param failoverTimeout long - milliseconds without hearing from the primary before promoting
+   *                        automatically, 0 to only promote on request.
+   */
+  public void enableBackupMode(long failoverTimeout) {
+    this.backup = true;
+    this.failoverTimeout = failoverTimeout;
+  }
+
+  public boolean isBackup() {
+    return backup;
+  }
+
+  /**
+   * Sets how many past observations are kept per station for history queries. Must be called before startup.
+   * History is compressed and takes bufferBytes of off-heap memory per station held, or more for a station whose
+   * last depth observations do not fit in it.
+   *
+   * @param depth int - the number of observations kept per station, 0 to disable history.
+   * @param bufferBytes int - the off-heap bytes each station starts with for compressed observations.
+   * @param retention long - milliseconds an observation stays queryable, 0 for as long as it is held.
+   */
+  public void setHistory(int depth, int bufferBytes, long retention) {
+    history.configure(depth, bufferBytes, retention);
+  }
+
+  /**
+   * Sets the sliding time windows per-state aggregates are kept for. Must be called before startup.
+   *
+   * @param windows List - the window lengths in milliseconds.
+   */
+  public void setAggregateWindows(List<Long> windows) {
+    aggregates.setWindows(windows);
+  }
+
+  /**
+   * Holds station data and cached response bodies in an off-heap arena, so the heap only keeps a small
+   * handle per station and garbage collection pauses stay flat however many stations are held. Reads copy
+   * a station out of the arena and decode it. Must be called before startup.
+   *
+   * @param maxBytes long - the most off-heap memory to take; data beyond it stays on the heap.
+   */
+  public void setOffHeap(long maxBytes) {
+    PayloadArena arena = new PayloadArena(maxBytes);
+    stationStore.setPayloadArena(arena);
+    responseCache.setPayloadArena(arena);
+  }
+
+  /**
+   * Bounds the PUTs waiting to be written. Once that many are queued, PUTs are answered with
+   * 503 Service Unavailable and a Retry-After estimate until the writer catches up, instead of the
+   * queue growing until the heap runs out. Must be called before startup.
+   *
+   * @param maxQueuedWrites int - the most writes queued at once.
+   */
+  public void setMaxQueuedWrites(int maxQueuedWrites) {
+    stationStore.setMaxQueuedWrites(maxQueuedWrites);
+  }
+
+  /**
+   * Sets when PUTs without an Ack-Mode header are acknowledged: on enqueue (the default and fastest),
+   * once applied so a following GET sees the write, or once the station file is synced to disk.
+   *
+   * @param ackMode AckMode - the default acknowledgement mode.
+   */
+  public void setAckMode(AckMode ackMode) {
+    this.ackMode = ackMode;
+  }
+
+  /**
+   * Sets how long an applied or durable PUT waits for its write before it is answered 202 Accepted instead.
+   * It should stay below the timeout of the clients sending PUTs, so they get an answer rather than giving up
+   * and sending the write again.
+   *
+   * @param ackTimeout long - the wait in milliseconds.
+   */
+  public void setAckTimeout(long ackTimeout) {
+    if (ackTimeout <= 0) {
+      throw new IllegalArgumentException("Ack timeout must be positive");
+    }
+    this.ackTimeout = ackTimeout;
+  }
+
+  /**
+   * Accepts connections on several threads instead of one, so bursts of new connections are not limited by
+   * a single acceptor. Where the platform supports SO_REUSEPORT (Linux) each acceptor binds its own socket
+   * to the port and the kernel spreads new connections across them; elsewhere the acceptors share one
+   * socket. Must be called before run.
+   *
+   * @param acceptors int - the number of acceptor threads.
+   */
+  public void setAcceptors(int acceptors) {
+    this.acceptors = Math.max(1, acceptors);
+    this.acceptedConnections = new AtomicLongArray(this.acceptors);
+  }
+  /**
+   * Limits the PUTs each Content Server can send, keyed by its Content-Server-Id, to a token bucket of
+   * burst PUTs refilled at rate PUTs per second. A PUT beyond the limit is answered 429 Too Many Requests
+   * with a Retry-After header before its body is read. Must be called before startup.
+   *
+   * @param rate double - PUTs per second each Content Server can sustain.
+   * @param burst int - PUTs a Content Server can send at once after being idle.
+   */
+  public void setRateLimit(double rate, int burst) {
+    rateLimiter.setDefaultLimit(RateLimiter.Limit.of(rate, burst));
+  }
+
+  /**
+   * Gives one Content Server its own PUT rate limit in place of the one set by setRateLimit, or a limit
+   * when no other Content Server is limited. Must be called before startup.
+   *
+   * @param contentServerId String - the Content-Server-Id to limit.
+   * @param rate double - PUTs per second it can sustain.
+   * @param burst int - PUTs it can send at once after being idle.
+   */
+  public void setRateLimitOverride(String contentServerId, double rate, int burst) {
+    rateLimiter.setOverride(contentServerId, RateLimiter.Limit.of(rate, burst));
+  }
+
+
+  /**
+   * Sets the fields indexed for filtered GETs. Must be called before startup.
+   *
+   * @param hashFields List - categorical fields, filtered by equality.
+   * @param sortedFields List - numeric fields, filtered by equality or range.
+   */
+  public void setIndexedFields(List<String> hashFields, List<String> sortedFields) {
+    attributeIndex.setFields(hashFields, sortedFields);
+  }
+
+  /**
+   * Partitions stations across a cluster of AggregationServers by a consistent-hash ring on station ID.
+   * Requests for stations owned by another node are forwarded to it. Must be called before startup.
+   *
+   * @param self String - this node's "host:port", as it appears in the member list.
+   * @param members List - every node's "host:port", including this node.
+   * @param join boolean - true to announce the member list to the other nodes on startup, so they hand
+   *             this node the stations it now owns.
+   */
+  public void enableClusterMode(String self, List<String> members, boolean join) {
+    this.clusterRouter = new ClusterRouter(self, members, stationStore, lamportClock);
+    this.joinCluster = join;
+  }
+
   @Override
   public boolean startup() {
     isRunning = true;
-    fileManager.start();
-    logger.info("Aggregation Server started on " + serverAddress + ":" + port);
+    stationStore.start();
+    if (backup) {
+      if (failoverTimeout > 0) {
+        Thread watchdog = new Thread(this::watchPrimary, "failover-watchdog");
+        watchdog.setDaemon(true);
+        watchdog.start();
+      }
+    } else {
+      startReplication();
+    }
+    logger.info("Aggregation Server started on " + serverAddress + ":" + port + (backup ? " as a backup" : ""));
+    return true;
+  }
+
+  private void startReplication() {
+    if (!replicas.isEmpty()) {
+      replicationManager = new ReplicationManager(stationStore, lamportClock, replicas);
+      stationStore.addListener(replicationManager);
+      replicationManager.start();
+    }
+  }
+
+  /**
+   * Promotes a backup to primary: it accepts writes from Content Servers, continuing from the versions
+   * it replicated, and starts replicating to its own replicas.
+   *
+   * @return boolean - false if the server already was the primary.
+   */
+  public boolean promote() {
+    synchronized (roleLock) {
+      if (!backup) {
+        return false;
+      }
+      backup = false;
+      startReplication();
+    }
+    logger.warning("Promoted to primary at Lamport time " + lamportClock.getTime());
     return true;
   }
 
+  // Promotes this backup once the primary has been silent for the failover timeout
+  private void watchPrimary() {
+    while (isRunning && backup) {
+      try {
+        Thread.sleep(ReplicationManager.HEARTBEAT_PERIOD);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+      // Never promote before the primary has been heard from, it may simply not have started yet
+      long lastContact = lastReplicationMillis;
+      if (lastContact > 0 && System.currentTimeMillis() - lastContact > failoverTimeout) {
+        logger.warning("No replication from the primary for " + failoverTimeout + " ms");
+        promote();
+      }
+    }
+  }
+
 
   @Override
   public boolean shutdown() {
     isRunning = false;
     try {
-      // Close the server socket to unblock the accept() call
-      if (serverSocket != null && !serverSocket.isClosed()) {
+      // Close the server sockets to unblock the accept() calls
+      for (ServerSocket serverSocket : serverSockets) {
         serverSocket.close();
       }
-      fileManager.shutdown();
+      stationStore.shutdown();
+      if (clusterRouter != null) {
+        leaveCluster(); // After the store has applied every queued write, so all of them are handed off
+      }
+      subscriptionManager.shutdown();
+      if (replicationManager != null) {
+        replicationManager.shutdown();
+      }
       logger.info("Aggregation Server shutting down.");
     } catch (IOException e) {
       logger.log(Level.SEVERE, "Error while shutting down the server socket", e);
@@ -60,11 +386,34 @@ public class AggregationServer implements NetworkNode, Runnable {
     return true;
   }
 
+  // Hands every station to the remaining nodes, so they stay available after this node stops
+  private void leaveCluster() {
+    List<String> remaining = new ArrayList<>(clusterRouter.getMembers());
+    remaining.remove(clusterRouter.getSelf());
+    if (!remaining.isEmpty()) {
+      clusterRouter.propagateMembers(remaining);
+      clusterRouter.setMembers(remaining);
+    }
+    clusterRouter.shutdown();
+  }
+
   @Override
   public boolean isRunning() {
     return this.isRunning;
   }
 
+  /**
+   * Waits for the server sockets to be bound, so a client started alongside the server can connect
+   * without retrying.
+   *
+   * @param timeoutMillis long - the longest to wait in milliseconds.
+   * @return boolean - false if the sockets were not bound in time.
+   * @throws InterruptedException if interrupted while waiting.
+   */
+  public boolean awaitListening(long timeoutMillis) throws InterruptedException {
+    return listening.await(timeoutMillis, TimeUnit.MILLISECONDS);
+  }
+
   @Override
   public String getServerAddress() {
     return this.serverAddress;
@@ -80,39 +429,476 @@ public class AggregationServer implements NetworkNode, Runnable {
     return this.lamportClock;
   }
 
+  /**
+   * Takes a token from the rate limit of the Content Server sending a PUT, before the PUT's body is read or
+   * parsed. PUTs without a Content-Server-Id are not limited, nor are PUTs forwarded by another cluster
+   * member, which were already charged by the node that received them. A batch PUT takes a single token
+   * however many records it holds, since its records are only counted as its body is read.
+   *
+   * @param request HttpReader - the incoming PUT, with its body still unread.
+   * @param out PrintWriter - the output stream writer to send responses.
+   * @return boolean - false if the PUT was refused with 429 and a Retry-After header, its body left unread.
+   */
+  public boolean admitPut(HttpReader request, PrintWriter out) {
+    String contentServerId = request.getHeader("Content-Server-Id");
+    if (contentServerId == null || isForwardedByMember(request)) {
+      return true;
+    }
+    long waitNanos = rateLimiter.tryAcquire(contentServerId);
+    if (waitNanos == 0) {
+      return true;
+    }
+    logger.fine("Rate limited PUT from Content Server ID: " + contentServerId);
+    int status = StatusCodes.TOO_MANY_REQUESTS;
+    long retryAfter = Math.max(1, (waitNanos + 999_999_999) / 1_000_000_000);
+    sendResponse(out, status, StatusCodes.getStatusText(status), StatusCodes.getStatusMessage(status),
+            Map.of("Retry-After", String.valueOf(retryAfter)));
+    return false;
+  }
+
+  // Whether the request was forwarded by another node of this server's cluster
+  private boolean isForwardedByMember(HttpReader request) {
+    String forwardedBy = request.getHeader(ClusterRouter.FORWARDED_HEADER);
+    return clusterRouter != null && forwardedBy != null && clusterRouter.getMembers().contains(forwardedBy);
+  }
+
   /**
    * Handles an incoming PUT request.
    * Extracts the Lamport timestamp and weather data from the request, updates the LamportClock,
-   * and stores the data using the FileManager.
+   * and stores the data in the StationStore. The updated clock value becomes the station's version,
+   * returned in the Station-Version header. A request carrying a Base-Version header is a patch
+   * containing only changed fields, merged onto the stored data if that version is still current.
+   * If the write queue is full the PUT is refused with 503 and a Retry-After header.
+   *
+   * The PUT is acknowledged as set by its Ack-Mode header, or else the server's ack mode. In the applied
+   * and durable modes the response is sent once the writer thread completes the write, and no thread waits
+   * for it meanwhile: the returned future is incomplete and the caller must not use the connection until it
+   * completes. A write still not applied after the ack timeout is answered 202 Accepted.
    *
    * @param request HttpReader - the incoming HTTP request with the PUT data.
    * @param in BufferedReader - the input stream reader to read data.
    * @param out PrintWriter - the output stream writer to send responses.
-   * @return int - the HTTP status code.
+   * @return CompletableFuture - the HTTP status code, completed once the response has been sent.
    */
-  public int handlePutRequest(HttpReader request, BufferedReader in, PrintWriter out) {
-    // Extract data from request
-    int requestLamportTimestamp = Integer.parseInt(request.getHeader("Lamport-Timestamp"));
-    WeatherDataSerializer dataFromJson = WeatherDataSerializer.extractDataFromJson(request.getBody());
+  public CompletableFuture<Integer> handlePutRequest(HttpReader request, BufferedReader in, PrintWriter out) {
+    long started = System.nanoTime();
+    if (backup) {
+      return CompletableFuture.completedFuture(sendStatus(out, StatusCodes.SERVICE_UNAVAILABLE));
+    }
+    AckMode mode;
+    WeatherDataSerializer dataFromJson;
+    int requestLamportTimestamp;
+    long baseVersion;
+    try {
+      mode = request.getHeader(AckMode.HEADER) != null ? AckMode.parse(request.getHeader(AckMode.HEADER)) : ackMode;
+      // JSON unless the client sent the binary wire format
+      dataFromJson = request.getWeatherData();
+      requestLamportTimestamp = parseLamportTimestamp(request);
+      String baseVersionHeader = request.getHeader("Base-Version");
+      baseVersion = baseVersionHeader == null ? WriteRequest.NO_BASE_VERSION : Long.parseLong(baseVersionHeader.trim());
+      if (baseVersion < 0 && baseVersion != WriteRequest.NO_BASE_VERSION) {
+        throw new NumberFormatException("Negative Base-Version: " + baseVersionHeader);
+      }
+    } catch (IOException | IllegalArgumentException e) {
+      logger.log(Level.WARNING, "Malformed PUT request", e);
+      return CompletableFuture.completedFuture(sendStatus(out, StatusCodes.BAD_REQUEST));
+    }
 
     // Update lamport clock
-    lamportClock.processEvent(requestLamportTimestamp);
+    int version = lamportClock.processEvent(requestLamportTimestamp);
 
     String contentServerId = request.getHeader("Content-Server-Id");
-    WriteRequest writeRequest = new WriteRequest(requestLamportTimestamp, contentServerId, dataFromJson);
-    fileManager.addWriteRequest(writeRequest); // Add the request to the FileManager
+    WriteRequest writeRequest = new WriteRequest(version, contentServerId, dataFromJson, baseVersion, mode == AckMode.DURABLE);
 
-    String statusText = StatusCodes.getStatusText(200);
-    String statusMessage = StatusCodes.getStatusMessage(200);
-    sendResponse(out, 200, statusText, statusMessage);
+    // Add the request to the StationStore
+    StationStore.WriteResult result = stationStore.addWriteRequest(writeRequest);
+    if (result == StationStore.WriteResult.QUEUE_FULL) {
+      return CompletableFuture.completedFuture(sendQueueFull(out));
+    }
+    if (result == StationStore.WriteResult.STALE_BASE) {
+      int status = StatusCodes.PRECONDITION_FAILED;
+      sendResponse(out, status, StatusCodes.getStatusText(status), StatusCodes.getStatusMessage(status));
+      return CompletableFuture.completedFuture(status);
+    }
 
-    // Check is first entry for status codes
-    return 200;
+    CompletableFuture<Void> completion = writeRequest.completion();
+    // A store that applies writes as it accepts them has already completed the write, so nothing is parked
+    if (mode == AckMode.ENQUEUE || (completion.isDone() && !completion.isCompletedExceptionally())) {
+      return CompletableFuture.completedFuture(sendPutAcknowledgement(out, StatusCodes.OK, version, mode, started));
+    }
+    // A copy, so the timeout does not fail the write's own future
+    return completion.copy()
+            .orTimeout(ackTimeout, TimeUnit.MILLISECONDS)
+            .handleAsync((applied, error) -> {
+              Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+              if (cause == null) {
+                return sendPutAcknowledgement(out, StatusCodes.OK, version, mode, started);
+              }
+              if (cause instanceof TimeoutException) {
+                logger.warning("Write for station ID " + contentServerId + " not applied within " + ackTimeout + " ms");
+                return sendPutAcknowledgement(out, StatusCodes.ACCEPTED, version, mode, started);
+              }
+              return sendStatus(out, StatusCodes.INTERNAL_SERVER_ERROR);
+            }, acknowledger);
+  }
+
+  /**
+   * @param request HttpReader - a request that must carry a Lamport-Timestamp header.
+   * @return int - the sender's Lamport timestamp.
+   * @throws NumberFormatException if the header is missing, not a number or negative.
+   */
+  private static int parseLamportTimestamp(HttpReader request) {
+    String header = request.getHeader("Lamport-Timestamp");
+    if (header == null) {
+      throw new NumberFormatException("Missing Lamport-Timestamp header");
+    }
+    int timestamp = Integer.parseInt(header.trim());
+    if (timestamp < 0) {
+      throw new NumberFormatException("Negative Lamport-Timestamp: " + header);
+    }
+    return timestamp;
+  }
+
+  // Sends a PUT's success response and records its latency under its ack mode
+  private int sendPutAcknowledgement(PrintWriter out, int status, int version, AckMode mode, long started) {
+    sendResponse(out, status, StatusCodes.getStatusText(status), StatusCodes.getStatusMessage(status),
+            Map.of("Station-Version", String.valueOf(version), AckMode.HEADER, mode.headerValue()));
+    ackLatencies.get(mode).recordValue((System.nanoTime() - started) / 1000);
+    return status;
+  }
+
+  /**
+   * Handles a GET for the PUT acknowledgement latencies, selected by an "ack-latency" query parameter.
+   * The response is one JSON line per ack mode with the number of PUTs acknowledged in that mode and
+   * their p50, p90, p99 and maximum latency in microseconds, from the PUT being read to its response.
+   *
+   * @param out PrintWriter - the output stream writer to send responses.
+   * @return int - the HTTP status code.
+   */
+  public int handleAckLatencyRequest(PrintWriter out) {
+    StringBuilder body = new StringBuilder();
+    for (Map.Entry<AckMode, LatencyRecorder> entry : ackLatencies.entrySet()) {
+      LatencyRecorder latencies = entry.getValue();
+      WeatherDataSerializer line = new WeatherDataSerializer();
+      line.getData().put("mode", entry.getKey().headerValue());
+      line.getData().put("count", String.valueOf(latencies.getTotalCount()));
+      line.getData().put("p50_us", String.valueOf(latencies.getValueAtPercentile(50)));
+      line.getData().put("p90_us", String.valueOf(latencies.getValueAtPercentile(90)));
+      line.getData().put("p99_us", String.valueOf(latencies.getValueAtPercentile(99)));
+      line.getData().put("max_us", String.valueOf(latencies.getMaxValue()));
+      body.append(line.toCompactJson()).append("\n");
+    }
+    sendResponse(out, StatusCodes.OK, StatusCodes.getStatusText(StatusCodes.OK), body.toString());
+    return StatusCodes.OK;
+  }
+
+  /**
+   * Resumes serving a connection whose PUT was answered after its handler thread let it go, on a new
+   * thread as for a new connection.
+   *
+   * @param clientHandler ClientHandler - the handler holding the connection.
+   */
+  void resumeConnection(ClientHandler clientHandler) {
+    new Thread(clientHandler).start();
+  }
+
+  /**
+   * Handles a batch PUT whose body is newline-delimited JSON, one station record per line.
+   * Each record is keyed by its "id" field. The body is parsed line by line as it is read from the
+   * connection, and all valid records are queued in the StationStore as one unit. The response body
+   * holds one status line per record, in request order. Records are only given versions once the store has
+   * accepted the batch. A batch with more records than the store's getMaxBatchSize could never be accepted,
+   * so it is refused with 413 instead of the 503 a client would retry.
+   *
+   * @param request HttpReader - the incoming HTTP request, with its body not yet read.
+   * @param in BufferedReader - the input stream reader to read data.
+   * @param out PrintWriter - the output stream writer to send responses.
+   * @return int - the HTTP status code.
+   */
+  public int handleBatchPutRequest(HttpReader request, BufferedReader in, PrintWriter out) {
+    if (backup) {
+      return sendStatus(out, StatusCodes.SERVICE_UNAVAILABLE);
+    }
+    try {
+      lamportClock.processEvent(parseLamportTimestamp(request));
+    } catch (NumberFormatException e) {
+      logger.log(Level.WARNING, "Malformed batch PUT request", e);
+      return sendStatus(out, StatusCodes.BAD_REQUEST);
+    }
+
+    int maxBatchSize = stationStore.getMaxBatchSize();
+    List<StationStore.BatchWrite> batch = new ArrayList<>();
+    List<WeatherDataSerializer> batchStatuses = new ArrayList<>(); // Completed with versions once accepted
+    Map<Integer, String> statuses = new TreeMap<>(); // By line number, so forwarded records keep their place
+    // Records owned by other cluster nodes, by owner, with their line numbers in this batch
+    boolean partition = clusterRouter != null && request.getHeader(ClusterRouter.FORWARDED_HEADER) == null;
+    Map<String, List<String>> remoteRecords = new LinkedHashMap<>();
+    Map<String, List<Integer>> remoteLines = new LinkedHashMap<>();
+    try {
+      BufferedReader body = request.getBodyReader();
+      String line;
+      int lineNumber = 0;
+      while ((line = body.readLine()) != null) {
+        lineNumber++;
+        if (line.isBlank()) {
+          continue;
+        }
+        WeatherDataSerializer record = WeatherDataSerializer.extractDataFromJson(line);
+        String stationId = record.getData().get("id");
+
+        if (partition && stationId != null && !clusterRouter.isLocal(stationId)) {
+          String owner = clusterRouter.ownerOf(stationId);
+          remoteRecords.computeIfAbsent(owner, node -> new ArrayList<>()).add(line);
+          remoteLines.computeIfAbsent(owner, node -> new ArrayList<>()).add(lineNumber);
+          continue;
+        }
+
+        WeatherDataSerializer status = new WeatherDataSerializer();
+        status.getData().put("line", String.valueOf(lineNumber));
+        if (stationId == null || !STATION_ID_PATTERN.matcher(stationId).matches()) {
+          status.getData().put("status", String.valueOf(StatusCodes.BAD_REQUEST));
+          statuses.put(lineNumber, status.toCompactJson());
+        } else if (batch.size() == maxBatchSize) {
+          logger.warning("Refused batch of more than " + maxBatchSize + " records");
+          int refused = StatusCodes.PAYLOAD_TOO_LARGE;
+          sendResponse(out, refused, StatusCodes.getStatusText(refused), StatusCodes.getStatusMessage(refused),
+                  Map.of("Max-Batch-Records", String.valueOf(maxBatchSize)));
+          return refused;
+        } else {
+          batch.add(new StationStore.BatchWrite(stationId, record));
+          status.getData().put("id", stationId);
+          status.getData().put("status", String.valueOf(StatusCodes.OK));
+          batchStatuses.add(status);
+        }
+      }
+    } catch (IOException e) {
+      logger.log(Level.SEVERE, "Error reading batch body", e);
+      int status = StatusCodes.BAD_REQUEST;
+      sendResponse(out, status, StatusCodes.getStatusText(status), StatusCodes.getStatusMessage(status));
+      return status;
+    }
+
+    // Every record is its own write event, so each station gets a distinct version
+    List<WriteRequest> accepted = stationStore.addWriteRequests(batch, lamportClock::processEvent);
+    if (accepted == null) {
+      return sendQueueFull(out);
+    }
+    for (int i = 0; i < accepted.size(); i++) {
+      WeatherDataSerializer status = batchStatuses.get(i);
+      status.getData().put("version", String.valueOf(accepted.get(i).timestamp()));
+      statuses.put(Integer.parseInt(status.getData().get("line")), status.toCompactJson());
+    }
+    for (Map.Entry<String, List<String>> remote : remoteRecords.entrySet()) {
+      forwardBatch(remote.getKey(), remote.getValue(), remoteLines.get(remote.getKey()), statuses);
+    }
+    StringBuilder body = new StringBuilder();
+    for (String status : statuses.values()) {
+      body.append(status).append("\n");
+    }
+    sendResponse(out, StatusCodes.OK, StatusCodes.getStatusText(StatusCodes.OK), body.toString());
+    return StatusCodes.OK;
+  }
+
+  // Refuses a write while the write queue is full, telling the client how long it should take to drain
+  private int sendQueueFull(PrintWriter out) {
+    int status = StatusCodes.SERVICE_UNAVAILABLE;
+    sendResponse(out, status, StatusCodes.getStatusText(status), "Service Unavailable - Write queue full, retry later",
+            Map.of("Retry-After", String.valueOf(stationStore.getRetryAfterSeconds())));
+    return status;
+  }
+
+  // Sends one owner its share of a batch, and appends its statuses renumbered to the original lines
+  private void forwardBatch(String owner, List<String> records, List<Integer> lineNumbers,
+                            Map<Integer, String> statuses) {
+    List<WeatherDataSerializer> ownerStatuses = new ArrayList<>();
+    try {
+      HttpReader response = clusterRouter.send(owner, new HttpWriter()
+              .setMethod("PUT")
+              .setPath("/weather.json")
+              .setHttpVersion("HTTP/1.1")
+              .addHeader("Lamport-Timestamp", String.valueOf(lamportClock.getTime()))
+              .setBody(String.join("\n", records) + "\n")
+              .addHeader("Content-Type", BATCH_CONTENT_TYPE));
+      if (response.getStatusCode() == StatusCodes.OK) {
+        for (String line : response.getBody().split("\n")) {
+          if (!line.isBlank()) {
+            ownerStatuses.add(WeatherDataSerializer.extractDataFromJson(line));
+          }
+        }
+      }
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Could not forward " + records.size() + " batch records to " + owner, e);
+    }
+    for (int i = 0; i < lineNumbers.size(); i++) {
+      WeatherDataSerializer status = i < ownerStatuses.size() ? ownerStatuses.get(i) : new WeatherDataSerializer();
+      status.getData().putIfAbsent("status", String.valueOf(StatusCodes.BAD_GATEWAY));
+      status.getData().put("line", String.valueOf(lineNumbers.get(i)));
+      statuses.put(lineNumbers.get(i), status.toCompactJson());
+    }
+  }
+
+  /**
+   * Handles a batch of the primary's replication log on a backup (see ReplicationManager). Entries are
+   * applied with the primary's versions, and the clock is advanced past them so writes accepted after a
+   * promotion get newer versions. A snapshot batch also removes every station it does not list.
+   *
+   * @param request HttpReader - the replication request, with its body still unread.
+   * @param out PrintWriter - the output stream writer to send responses.
+   * @return int - the HTTP status code.
+   */
+  public int handleReplicationRequest(HttpReader request, PrintWriter out) {
+    if (!backup) {
+      // A promoted server must not take writes from a primary that has come back
+      return sendStatus(out, StatusCodes.CONFLICT);
+    }
+    lastReplicationMillis = System.currentTimeMillis();
+    return applyReplicationLog(request, "true".equals(request.getHeader("Replication-Snapshot")), out);
+  }
+
+  /**
+   * Handles stations handed over by another cluster node after a membership change. The entries use the
+   * replication log format and keep the versions they had on the previous owner.
+   *
+   * @param request HttpReader - the handoff request, with its body still unread.
+   * @param out PrintWriter - the output stream writer to send responses.
+   * @return int - the HTTP status code, 404 if this server is not part of a cluster.
+   */
+  public int handleHandoffRequest(HttpReader request, PrintWriter out) {
+    if (clusterRouter == null) {
+      logger.warning("Refused station handoff, as this server is not part of a cluster");
+      return sendStatus(out, StatusCodes.NOT_FOUND);
+    }
+    return applyReplicationLog(request, false, out);
+  }
+
+  private int applyReplicationLog(HttpReader request, boolean snapshot, PrintWriter out) {
+    Set<String> snapshotStations = new HashSet<>();
+    try {
+      lamportClock.processEvent(parseLamportTimestamp(request));
+      BufferedReader body = request.getBodyReader();
+      String line;
+      while ((line = body.readLine()) != null) {
+        if (line.isBlank()) {
+          continue;
+        }
+        String[] entry = line.split(" ", 4);
+        String stationId = URLDecoder.decode(entry[1], StandardCharsets.UTF_8);
+        if ("update".equals(entry[0]) && entry.length == 4) {
+          long version = Long.parseLong(entry[2]);
+          // Versions come from a Lamport clock, so one beyond its range is malformed rather than truncated
+          if (version < 0 || version > Integer.MAX_VALUE) {
+            throw new NumberFormatException("Replicated version out of range: " + entry[2]);
+          }
+          lamportClock.processEvent((int) version);
+          stationStore.addReplicatedWrite(stationId, version, WeatherDataSerializer.extractDataFromJson(entry[3]));
+          snapshotStations.add(stationId);
+        } else if ("remove".equals(entry[0])) {
+          stationStore.removeStation(stationId);
+        } else {
+          logger.warning("Ignored unknown replication entry: " + line);
+        }
+      }
+    } catch (IOException | RuntimeException e) {
+      logger.log(Level.SEVERE, "Failed to read replication batch", e);
+      return sendStatus(out, StatusCodes.BAD_REQUEST);
+    }
+    if (snapshot) {
+      for (String stationId : stationStore.getStationIds("")) {
+        if (!snapshotStations.contains(stationId)) {
+          stationStore.removeStation(stationId);
+        }
+      }
+      logger.info("Applied replication snapshot of " + snapshotStations.size() + " stations");
+    }
+    return sendStatus(out, StatusCodes.OK);
+  }
+
+  /**
+   * Handles a request to promote this backup to primary, for use once the primary has stopped.
+   *
+   * @param out PrintWriter - the output stream writer to send responses.
+   * @return int - the HTTP status code, 409 if the server already was the primary.
+   */
+  public int handlePromoteRequest(PrintWriter out) {
+    return sendStatus(out, promote() ? StatusCodes.OK : StatusCodes.CONFLICT);
+  }
+
+  /**
+   * Handles the cluster member list: a GET returns it as comma-separated "host:port" names, and a PUT
+   * replaces it, handing off the stations this node no longer owns. A PUT from a client is passed on to
+   * every other node, old and new, so the whole cluster switches together.
+   *
+   * @param request HttpReader - the incoming HTTP request.
+   * @param out PrintWriter - the output stream writer to send responses.
+   * @return int - the HTTP status code, 409 if this server is not part of a cluster.
+   */
+  public int handleClusterRequest(HttpReader request, PrintWriter out) {
+    if (clusterRouter == null) {
+      return sendStatus(out, StatusCodes.CONFLICT);
+    }
+    if ("PUT".equals(request.getMethod())) {
+      String body = request.getBody();
+      if (body == null || body.isBlank()) {
+        return sendStatus(out, StatusCodes.BAD_REQUEST);
+      }
+      List<String> members = new ArrayList<>();
+      for (String member : body.split(",")) {
+        members.add(member.trim());
+      }
+      if (request.getHeader(ClusterRouter.FORWARDED_HEADER) == null) {
+        clusterRouter.propagateMembers(members);
+      }
+      clusterRouter.setMembers(members);
+    }
+    sendResponse(out, StatusCodes.OK, StatusCodes.getStatusText(StatusCodes.OK),
+            String.join(",", clusterRouter.getMembers()));
+    return StatusCodes.OK;
+  }
+
+  /**
+   * Forwards a single-station PUT or GET to the cluster node that owns the station, and relays its
+   * response. Requests already forwarded by another node are always handled locally.
+   *
+   * @param request HttpReader - the incoming HTTP request.
+   * @param out PrintWriter - the output stream writer to send responses.
+   * @return boolean - true if the request was forwarded and answered, false if it is handled here.
+   */
+  public boolean forwardToOwner(HttpReader request, PrintWriter out) {
+    if (clusterRouter == null || request.getHeader(ClusterRouter.FORWARDED_HEADER) != null) {
+      return false;
+    }
+    String stationId = request.getQueryParameter("history");
+    if (stationId == null) {
+      stationId = "PUT".equals(request.getMethod())
+              ? request.getHeader("Content-Server-Id")
+              : request.getHeader("Station-Id");
+    }
+    if (stationId == null || clusterRouter.isLocal(stationId)) {
+      return false;
+    }
+    String owner = clusterRouter.ownerOf(stationId);
+    try {
+      ClusterRouter.relay(clusterRouter.forward(owner, request), out);
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Could not forward station " + stationId + " to " + owner, e);
+      sendStatus(out, StatusCodes.BAD_GATEWAY);
+    }
+    return true;
+  }
+
+  private int sendStatus(PrintWriter out, int status) {
+    sendResponse(out, status, StatusCodes.getStatusText(status), StatusCodes.getStatusMessage(status));
+    return status;
   }
 
   /**
    * Handles an incoming GET request.
-   * Retrieves weather data based on the station ID, and sends it back to the client.
+   * Retrieves weather data based on the station ID, and sends it back to the client with the station
+   * version as its ETag. If the client already holds that version (If-None-Match), a bodyless
+   * 304 Not Modified is sent instead. Clients sending Accept-Encoding get the body gzip or deflate
+   * compressed from the response cache, with a weak ETag for the compressed representation. Clients
+   * accepting the binary wire format get the station in it instead of JSON, uncompressed and also with a
+   * weak ETag.
    *
    * @param request HttpReader - the incoming HTTP request with the GET data.
    * @param in BufferedReader - the input stream reader to read data.
@@ -120,36 +906,472 @@ public class AggregationServer implements NetworkNode, Runnable {
    * @return int - the HTTP status code.
    */
   public int handleGetRequest(HttpReader request, BufferedReader in, PrintWriter out) {
+    if (request.getQueryParameter("history") != null) {
+      return handleHistoryRequest(request, out);
+    }
+    if (request.getQueryParameter("acceptors") != null) {
+      return handleAcceptorsRequest(out);
+    }
+    if (request.getQueryParameter("ack-latency") != null) {
+      return handleAckLatencyRequest(out);
+    }
+    if (request.getQueryParameter("rate-limits") != null) {
+      return handleRateLimitsRequest(out);
+    }
+    if (request.getQueryParameter("aggregate") != null) {
+      return handleAggregateRequest(request, out);
+    }
+    if (request.getQueryParameter("filter") != null) {
+      return handleFilterRequest(request, out);
+    }
+    if (request.getQueryParameter("near") != null || request.getQueryParameter("bbox") != null) {
+      return handleSpatialRequest(request, out);
+    }
+    if (request.getQueryParameter("stations") != null || request.getQueryParameter("prefix") != null) {
+      return handleBulkGetRequest(request, in, out);
+    }
     String stationId = request.getHeader("Station-Id");
 
-    try {
-      String weatherData;
-      if (stationId == null) {
-        // If stationId is null, get the most recent file
-        weatherData = fileManager.getMostRecentFile();
-        if (weatherData == null) {
-          logger.severe("No recent file found.");
-          sendResponse(out, 404, "Not Found", "{\"error\":\"No recent data found\"}");
-          return 404; // HTTP 404 Not Found
+    StationRecord record;
+    if (stationId == null) {
+      // If stationId is null, get the most recent station
+      stationId = stationStore.getMostRecentStationId();
+      record = stationId != null ? stationStore.getStationRecord(stationId) : null;
+      if (record == null) {
+        logger.severe("No recent file found.");
+        sendResponse(out, 404, "Not Found", "{\"error\":\"No recent data found\"}");
+        return 404; // HTTP 404 Not Found
+      }
+    } else {
+      // Otherwise, get data for the specific station ID
+      record = stationStore.getStationRecord(stationId);
+      if (record == null) {
+        logger.severe("Data for station ID " + stationId + " not found.");
+        sendResponse(out, 404, "Not Found", "{\"error\":\"Resource not found\"}");
+        return 404; // HTTP 404 Not Found
+      }
+    }
+
+    boolean binary = WeatherDataSerializer.isBinary(request.getHeader("Accept"));
+    EncodedResponseCache.EncodedResponse response = binary ? null : responseCache.get(stationId, record);
+    String coding = ContentEncoding.negotiate(request.getHeader("Accept-Encoding"));
+    String encodedBody = binary ? null : response.body(coding);
+
+    // Versions come from the server's Lamport clock, so they are unique across all stations
+    String etag = "\"" + record.version() + "\"";
+    Map<String, String> headers = new LinkedHashMap<>();
+    headers.put("ETag", encodedBody != null || binary ? "W/" + etag : etag);
+    headers.put("Vary", "Accept, Accept-Encoding");
+    if (matchesETag(request.getHeader("If-None-Match"), etag)) {
+      int status = StatusCodes.NOT_MODIFIED;
+      sendResponse(out, status, "Not Modified", "", headers);
+      return status;
+    }
+
+    if (binary) {
+      headers.put("Content-Type", WeatherDataSerializer.BINARY_CONTENT_TYPE);
+      sendResponse(out, 200, "OK", record.data().toBinary(), headers);
+      return 200;
+    }
+    if (encodedBody != null) {
+      headers.put("Content-Encoding", coding);
+    }
+    sendResponse(out, 200, "OK", encodedBody != null ? encodedBody : response.json(), headers);
+    return 200; // HTTP 200 OK
+  }
+
+  /**
+   * Handles a GET that subscribes to updates instead of reading once, either as an event stream
+   * (Accept: text/event-stream) or as a long-poll (a "wait" query parameter in milliseconds).
+   * A long-poll whose If-None-Match is already out of date is answered immediately as a normal GET.
+   *
+   * In cluster mode only the owner of a station applies its writes, so a subscription to stations another
+   * node owns is redirected there with 307 Temporary Redirect, and one spanning stations of several nodes
+   * is refused with 400, as the client must subscribe to each owner. Prefix subscriptions and long-polls
+   * without a Station-Id are served locally and only cover the stations this node owns.
+   *
+   * @param request HttpReader - the incoming HTTP request with the subscription.
+   * @param clientSocket Socket - the client connection, handed over if the subscription is parked.
+   * @param out PrintWriter - the output stream writer to send responses.
+   * @return boolean - true if the connection now belongs to the subscription and must not be reused or closed.
+   */
+  public boolean handleSubscribeRequest(HttpReader request, Socket clientSocket, PrintWriter out) {
+    if (redirectToOwner(request, out)) {
+      return false;
+    }
+    if (subscriptionManager.subscribe(request, clientSocket, out)) {
+      return true;
+    }
+    handleGetRequest(request, null, out);
+    return false;
+  }
+
+  // Answers a subscription to stations this node does not own, returning false to serve it locally
+  private boolean redirectToOwner(HttpReader request, PrintWriter out) {
+    if (clusterRouter == null) {
+      return false;
+    }
+    String stationList = SubscriptionManager.EVENT_STREAM_TYPE.equals(request.getHeader("Accept"))
+            ? request.getQueryParameter("stations")
+            : request.getHeader("Station-Id");
+    if (stationList == null) {
+      return false;
+    }
+    Set<String> owners = new HashSet<>();
+    for (String stationId : stationList.split(",")) {
+      owners.add(clusterRouter.ownerOf(stationId));
+    }
+    if (owners.size() > 1) {
+      sendResponse(out, StatusCodes.BAD_REQUEST, StatusCodes.getStatusText(StatusCodes.BAD_REQUEST),
+              "Bad Request - Stations are owned by " + owners + ", subscribe to each owner");
+      return true;
+    }
+    String owner = owners.iterator().next();
+    if (owner.equals(clusterRouter.getSelf())) {
+      return false;
+    }
+    int status = StatusCodes.TEMPORARY_REDIRECT;
+    sendResponse(out, status, StatusCodes.getStatusText(status), StatusCodes.getStatusMessage(status),
+            Map.of("Location", "http://" + owner + request.getPath()));
+    return true;
+  }
+
+  // Compares entity tags weakly, so a compressed representation's W/ tag matches its version
+  static boolean matchesETag(String ifNoneMatch, String etag) {
+    if (ifNoneMatch == null) {
+      return false;
+    }
+    for (String candidate : ifNoneMatch.split(",")) {
+      String trimmed = candidate.trim();
+      if (trimmed.startsWith("W/")) {
+        trimmed = trimmed.substring(2);
+      }
+      if (trimmed.equals("*") || trimmed.equals(etag)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Handles a GET for many stations, selected by a comma-separated "stations" query parameter or by a
+   * "prefix" query parameter (an empty prefix selects every station). Stations are streamed one JSON
+   * line per chunk, so the full response is never held in memory. Requested stations
+   * that have no data are left out. If the client accepts gzip, each chunk is the station's cached
+   * gzip member, and the concatenated members form the gzip-encoded body. In a cluster, stations owned
+   * by other nodes are fetched from them and streamed after the local ones.
+   *
+   * @param request HttpReader - the incoming HTTP request with the GET query.
+   * @param in BufferedReader - the input stream reader to read data.
+   * @param out PrintWriter - the output stream writer to send responses.
+   * @return int - the HTTP status code.
+   */
+  public int handleBulkGetRequest(HttpReader request, BufferedReader in, PrintWriter out) {
+    String stationList = request.getQueryParameter("stations");
+    String prefix = request.getQueryParameter("prefix");
+    List<String> stationIds = stationList != null
+            ? new ArrayList<>(Arrays.asList(stationList.split(",")))
+            : stationStore.getStationIds(prefix);
+    // The query to send each other node, which returns the stations it owns
+    Map<String, String> remoteQueries = new LinkedHashMap<>();
+    if (clusterRouter != null && request.getHeader(ClusterRouter.FORWARDED_HEADER) == null) {
+      if (stationList == null) {
+        for (String node : clusterRouter.getMembers()) {
+          if (!node.equals(clusterRouter.getSelf())) {
+            remoteQueries.put(node, "prefix=" + URLEncoder.encode(prefix, StandardCharsets.UTF_8));
+          }
         }
       } else {
-        // Otherwise, get data for the specific station ID
-        weatherData = fileManager.readWeatherData(stationId);
-        if (weatherData == null) {
-          logger.severe("Data for station ID " + stationId + " not found.");
-          sendResponse(out, 404, "Not Found", "{\"error\":\"Resource not found\"}");
-          return 404; // HTTP 404 Not Found
+        Map<String, List<String>> remoteStations = new LinkedHashMap<>();
+        stationIds.removeIf(stationId -> {
+          String owner = clusterRouter.ownerOf(stationId.trim());
+          if (owner.equals(clusterRouter.getSelf())) {
+            return false;
+          }
+          remoteStations.computeIfAbsent(owner, node -> new ArrayList<>()).add(stationId.trim());
+          return true;
+        });
+        remoteStations.forEach((node, ids) ->
+                remoteQueries.put(node, "stations=" + URLEncoder.encode(String.join(",", ids), StandardCharsets.UTF_8)));
+      }
+    }
+    // Deflate streams cannot be concatenated, so only gzip can reuse the per-station cached encodings
+    boolean gzip = ContentEncoding.accepts(request.getHeader("Accept-Encoding"), ContentEncoding.GZIP);
+    ChunkedBodyWriter body = startStream(out, gzip);
+    writeLocalStations(stationIds, gzip, body);
+    for (Map.Entry<String, String> remote : remoteQueries.entrySet()) {
+      writeRemoteStations(remote.getKey(), remote.getValue(), gzip, body);
+    }
+    body.finish();
+    return StatusCodes.OK;
+  }
+
+  /**
+   * Handles a GET for a station's past observations, selected by a "history" query parameter holding the
+   * station ID and optional "from" and "to" bounds on the time each write was applied, in epoch milliseconds.
+   * A negative bound is relative to now, so from=-600000 selects the last ten minutes. Observations are
+   * streamed oldest first, one JSON line per chunk with its "version" and "applied_at" time added, and
+   * gzip encoded per line like bulk GETs if the client accepts it.
+   *
+   * @param request HttpReader - the incoming HTTP request with the history query.
+   * @param out PrintWriter - the output stream writer to send responses.
+   * @return int - the HTTP status code.
+   */
+  public int handleHistoryRequest(HttpReader request, PrintWriter out) {
+    long now = System.currentTimeMillis();
+    List<StationHistory.Observation> observations;
+    try {
+      long from = timeBound(request.getQueryParameter("from"), Long.MIN_VALUE, now);
+      long to = timeBound(request.getQueryParameter("to"), Long.MAX_VALUE, now);
+      observations = history.query(request.getQueryParameter("history"), from, to);
+    } catch (NumberFormatException e) {
+      return sendStatus(out, StatusCodes.BAD_REQUEST);
+    }
+    if (observations == null) {
+      sendResponse(out, 404, "Not Found", "{\"error\":\"No history found\"}");
+      return 404;
+    }
+    boolean gzip = ContentEncoding.accepts(request.getHeader("Accept-Encoding"), ContentEncoding.GZIP);
+    ChunkedBodyWriter body = startStream(out, gzip);
+    for (StationHistory.Observation observation : observations) {
+      String line = observation.line();
+      body.writeChunk(gzip ? ContentEncoding.encode(line, ContentEncoding.GZIP) : line);
+    }
+    body.finish();
+    return StatusCodes.OK;
+  }
+
+  /**
+   * Handles a GET for min, max and mean of air_temp, press and wind_spd_kmh per state, selected by an
+   * "aggregate" query parameter. A "window" parameter picks "current" (the latest value of every station
+   * held, the default) or a configured sliding window in milliseconds, and a "state" parameter limits the
+   * response to one state. The aggregates are kept up to date as writes are applied and stations expire,
+   * so the response is one JSON line per state without reading any station.
+   *
+   * @param request HttpReader - the incoming HTTP request with the aggregate query.
+   * @param out PrintWriter - the output stream writer to send responses.
+   * @return int - the HTTP status code, 400 for a window that is not kept.
+   */
+  public int handleAggregateRequest(HttpReader request, PrintWriter out) {
+    String window = request.getQueryParameter("window");
+    if (window == null || window.isEmpty()) {
+      window = StateAggregates.CURRENT;
+    }
+    if (!aggregates.hasWindow(window)) {
+      int status = StatusCodes.BAD_REQUEST;
+      sendResponse(out, status, StatusCodes.getStatusText(status), "{\"error\":\"Aggregates are kept for windows "
+              + StateAggregates.CURRENT + " and " + aggregates.getWindows() + "\"}");
+      return status;
+    }
+    String state = request.getQueryParameter("state");
+    StringBuilder body = new StringBuilder();
+    for (Map<String, String> stateAggregates : aggregates.query(window, state != null && !state.isEmpty() ? state : null)) {
+      WeatherDataSerializer line = new WeatherDataSerializer();
+      line.setData(stateAggregates);
+      body.append(line.toCompactJson()).append("\n");
+    }
+    sendResponse(out, StatusCodes.OK, StatusCodes.getStatusText(StatusCodes.OK), body.toString());
+    return StatusCodes.OK;
+  }
+
+  /**
+   * Handles a GET for stations by position, using the "lat" and "lon" fields of their latest observation.
+   * A "near=LAT,LON" query parameter selects the "k" stations nearest the point (10 by default), nearest
+   * first, and a "bbox=MINLAT,MINLON,MAXLAT,MAXLON" parameter selects the stations within the box, where
+   * MINLON greater than MAXLON selects a box crossing the antimeridian. Stations are found through the
+   * spatial index and streamed like bulk GETs. In cluster mode the other nodes are asked for their own
+   * matches, and nearest-station results are merged by distance.
+   *
+   * @param request HttpReader - the incoming HTTP request with the spatial query.
+   * @param out PrintWriter - the output stream writer to send responses.
+   * @return int - the HTTP status code, 400 for a malformed query.
+   */
+  public int handleSpatialRequest(HttpReader request, PrintWriter out) {
+    String near = request.getQueryParameter("near");
+    double[] point;
+    int k = 10;
+    try {
+      point = coordinates(near != null ? near : request.getQueryParameter("bbox"), near != null ? 2 : 4);
+      if (near != null && request.getQueryParameter("k") != null) {
+        k = Integer.parseInt(request.getQueryParameter("k"));
+      }
+    } catch (NumberFormatException e) {
+      point = null;
+    }
+    if (point == null || k <= 0 || (near == null && point[0] > point[2])) {
+      return sendStatus(out, StatusCodes.BAD_REQUEST);
+    }
+    boolean gzip = ContentEncoding.accepts(request.getHeader("Accept-Encoding"), ContentEncoding.GZIP);
+    List<String> remoteNodes = new ArrayList<>();
+    if (clusterRouter != null && request.getHeader(ClusterRouter.FORWARDED_HEADER) == null) {
+      for (String node : clusterRouter.getMembers()) {
+        if (!node.equals(clusterRouter.getSelf())) {
+          remoteNodes.add(node);
         }
       }
+    }
+
+    if (near == null) {
+      List<String> stationIds = spatialIndex.within(point[0], point[1], point[2], point[3]);
+      ChunkedBodyWriter body = startStream(out, gzip);
+      writeLocalStations(stationIds, gzip, body);
+      for (String node : remoteNodes) {
+        writeRemoteStations(node, "bbox=" + URLEncoder.encode(request.getQueryParameter("bbox"), StandardCharsets.UTF_8), gzip, body);
+      }
+      body.finish();
+      return StatusCodes.OK;
+    }
 
-      sendResponse(out, 200, "OK", weatherData);
-      return 200; // HTTP 200 OK
+    List<SpatialIndex.Neighbour> nearest = spatialIndex.nearest(point[0], point[1], k);
+    if (remoteNodes.isEmpty()) {
+      ChunkedBodyWriter body = startStream(out, gzip);
+      writeLocalStations(nearest.stream().map(SpatialIndex.Neighbour::stationId).toList(), gzip, body);
+      body.finish();
+      return StatusCodes.OK;
+    }
+    // Every node returns its own k nearest, and the closest k of all of them are kept
+    List<Map.Entry<Double, String>> lines = new ArrayList<>();
+    for (SpatialIndex.Neighbour neighbour : nearest) {
+      StationRecord record = stationStore.getStationRecord(neighbour.stationId());
+      if (record != null) {
+        lines.add(Map.entry(neighbour.distanceKm(), responseCache.get(neighbour.stationId(), record).line()));
+      }
+    }
+    String query = "near=" + URLEncoder.encode(near, StandardCharsets.UTF_8) + "&k=" + k;
+    for (String node : remoteNodes) {
+      for (String line : fetchRemoteLines(node, query)) {
+        Map<String, String> data = WeatherDataSerializer.extractDataFromJson(line).getData();
+        if (data.get("lat") == null || data.get("lon") == null) {
+          continue;
+        }
+        double distance = SpatialIndex.distanceKm(point[0], point[1],
+                Double.parseDouble(data.get("lat")), Double.parseDouble(data.get("lon")));
+        lines.add(Map.entry(distance, line + "\n"));
+      }
+    }
+    lines.sort(Map.Entry.comparingByKey());
+    ChunkedBodyWriter body = startStream(out, gzip);
+    for (Map.Entry<Double, String> line : lines.subList(0, Math.min(k, lines.size()))) {
+      body.writeChunk(gzip ? ContentEncoding.encode(line.getValue(), ContentEncoding.GZIP) : line.getValue());
+    }
+    body.finish();
+    return StatusCodes.OK;
+  }
 
+  /**
+   * Handles a GET for the stations whose fields meet a "filter" query parameter of comma-separated
+   * conditions, such as filter=state=SA,air_temp>=10. A condition compares an indexed field with "=", or a
+   * numeric field with a sorted index with "<", "<=", ">" or ">=" too, and a station must meet them all.
+   * Stations are found through the secondary indexes rather than by reading every station, and streamed
+   * like bulk GETs in station ID order. In cluster mode the other nodes are asked for their own matches.
+   *
+   * @param request HttpReader - the incoming HTTP request with the filter.
+   * @param out PrintWriter - the output stream writer to send responses.
+   * @return int - the HTTP status code, 400 for a malformed filter or a field without a suitable index.
+   */
+  public int handleFilterRequest(HttpReader request, PrintWriter out) {
+    String filter = request.getQueryParameter("filter");
+    List<AttributeIndex.Condition> conditions;
+    try {
+      conditions = attributeIndex.parse(filter);
+    } catch (IllegalArgumentException e) {
+      int status = StatusCodes.BAD_REQUEST;
+      sendResponse(out, status, StatusCodes.getStatusText(status), "{\"error\":\"" + e.getMessage().replace('"', '\'')
+              + "; indexed fields are " + attributeIndex.getFields() + "\"}");
+      return status;
+    }
+    boolean gzip = ContentEncoding.accepts(request.getHeader("Accept-Encoding"), ContentEncoding.GZIP);
+    ChunkedBodyWriter body = startStream(out, gzip);
+    writeLocalStations(attributeIndex.find(conditions), gzip, body);
+    if (clusterRouter != null && request.getHeader(ClusterRouter.FORWARDED_HEADER) == null) {
+      for (String node : clusterRouter.getMembers()) {
+        if (!node.equals(clusterRouter.getSelf())) {
+          writeRemoteStations(node, "filter=" + URLEncoder.encode(filter, StandardCharsets.UTF_8), gzip, body);
+        }
+      }
+    }
+    body.finish();
+    return StatusCodes.OK;
+  }
+
+  // Parses comma-separated latitude and longitude pairs, or returns null if any is missing or out of range
+  private static double[] coordinates(String value, int count) {
+    String[] parts = value.split(",");
+    if (parts.length != count) {
+      return null;
+    }
+    double[] coordinates = new double[count];
+    for (int i = 0; i < count; i++) {
+      coordinates[i] = Double.parseDouble(parts[i].trim());
+      if (!(Math.abs(coordinates[i]) <= (i % 2 == 0 ? 90 : 180))) {
+        return null;
+      }
+    }
+    return coordinates;
+  }
+
+  // Writes the headers of a chunked ndjson response, gzip encoded per line if the client accepts it
+  private ChunkedBodyWriter startStream(PrintWriter out, boolean gzip) {
+    out.println("HTTP/1.1 200 OK");
+    out.println("Content-Type: " + BATCH_CONTENT_TYPE);
+    out.println("Lamport-Timestamp: " + lamportClock.getTime());
+    out.println("Vary: Accept-Encoding");
+    if (gzip) {
+      out.println("Content-Encoding: " + ContentEncoding.GZIP);
+    }
+    out.println("Transfer-Encoding: chunked");
+    out.println();
+    return new ChunkedBodyWriter(out);
+  }
+
+  // Streams the cached encoding of each station still held, one line per chunk
+  private void writeLocalStations(List<String> stationIds, boolean gzip, ChunkedBodyWriter body) {
+    for (String stationId : stationIds) {
+      StationRecord record = stationStore.getStationRecord(stationId.trim());
+      if (record != null) {
+        EncodedResponseCache.EncodedResponse response = responseCache.get(stationId.trim(), record);
+        body.writeChunk(gzip ? response.gzipLine() : response.line());
+      }
+    }
+  }
+
+  // Parses an epoch millisecond bound, where a negative value is relative to now
+  private static long timeBound(String value, long unbounded, long now) {
+    if (value == null || value.isEmpty()) {
+      return unbounded;
+    }
+    long bound = Long.parseLong(value);
+    return bound < 0 ? now + bound : bound;
+  }
+
+  // Streams the stations another node returns for a bulk query, one line per chunk like local stations
+  private void writeRemoteStations(String node, String query, boolean gzip, ChunkedBodyWriter body) {
+    for (String line : fetchRemoteLines(node, query)) {
+      body.writeChunk(gzip ? ContentEncoding.encode(line + "\n", ContentEncoding.GZIP) : line + "\n");
+    }
+  }
+
+  // The station lines another node returns for a query, or none if it cannot be reached
+  private List<String> fetchRemoteLines(String node, String query) {
+    List<String> lines = new ArrayList<>();
+    try {
+      HttpReader response = clusterRouter.send(node, new HttpWriter()
+              .setMethod("GET")
+              .setPath("/weather.json?" + query)
+              .setHttpVersion("HTTP/1.1")
+              .addHeader("Lamport-Timestamp", String.valueOf(lamportClock.getTime())));
+      if (response.getStatusCode() == StatusCodes.OK && response.getBody() != null) {
+        for (String line : response.getBody().split("\n")) {
+          if (!line.isBlank()) {
+            lines.add(line);
+          }
+        }
+      }
     } catch (IOException e) {
-      logger.log(Level.SEVERE, "Error reading data", e);
-      sendResponse(out, 500, "Internal Server Error", "{\"error\":\"Internal server error\"}");
-      return 500; // HTTP 500 Internal Server Error
+      // The response is already underway, so the node's stations are left out like missing ones
+      logger.log(Level.WARNING, "Could not fetch stations from " + node, e);
     }
+    return lines;
   }
 
   /**
@@ -161,11 +1383,41 @@ public class AggregationServer implements NetworkNode, Runnable {
    * @param message String - the body of the response message.
    */
   public void sendResponse(PrintWriter out, int statusCode, String statusText, String message) {
+    sendResponse(out, statusCode, statusText, message, Map.of());
+  }
+
+  /**
+   * Sends an HTTP response to the client with additional headers.
+   *
+   * @param out PrintWriter - the output stream writer to send responses to the client.
+   * @param statusCode int - the HTTP status code
+   * @param statusText String - the status text (200 -> "OK").
+   * @param message String - the body of the response message.
+   * @param headers Map - extra headers to include in the response, where a Content-Type replaces text/plain.
+   */
+  public void sendResponse(PrintWriter out, int statusCode, String statusText, String message,
+                           Map<String, String> headers) {
+    RequestEvents.ResponseSendEvent event = new RequestEvents.ResponseSendEvent();
+    event.begin();
     out.println("HTTP/1.1 " + statusCode + " " + statusText);
-    out.println("Content-Type: text/plain");
+    out.println("Content-Type: " + headers.getOrDefault("Content-Type", "text/plain"));
+    out.println("Lamport-Timestamp: " + lamportClock.getTime());
+    for (Map.Entry<String, String> header : headers.entrySet()) {
+      if (!header.getKey().equals("Content-Type")) {
+        out.println(header.getKey() + ": " + header.getValue());
+      }
+    }
     out.println("Content-Length: " + message.length());
     out.println();
-    out.println(message);
+    // No trailing newline, so the next response on a keep-alive connection starts right after the body
+    out.print(message);
+    out.flush();
+    if (event.shouldCommit()) {
+      event.statusCode = statusCode;
+      event.bodyBytes = message.length();
+      event.lamportTimestamp = lamportClock.getTime();
+      event.commit();
+    }
   }
 
   @Override
@@ -174,43 +1426,212 @@ public class AggregationServer implements NetworkNode, Runnable {
   }
 
   /**
-   * Listens for incoming client connections.
+   * Listens for incoming client connections on every acceptor.
    * Starts a new thread for each client connection and handles it using ClientHandler.
    */
   private void listen() {
     try {
-      serverSocket = new ServerSocket(port);
-      logger.info("Server is listening on port " + port);
+      openServerSockets();
+      listening.countDown();
+      logger.info("Server is listening on port " + port + (acceptors > 1 ? " with " + acceptors + " acceptors on "
+              + serverSockets.size() + (serverSockets.size() > 1 ? " SO_REUSEPORT sockets" : " socket") : ""));
+      if (clusterRouter != null && joinCluster) {
+        // Announced once listening, as the other nodes hand this node its stations straight away
+        new Thread(() -> clusterRouter.propagateMembers(clusterRouter.getMembers()), "cluster-join").start();
+      }
+      for (int i = 1; i < acceptors; i++) {
+        int acceptor = i;
+        new Thread(() -> accept(acceptor, serverSockets.get(acceptor % serverSockets.size())), "acceptor-" + i).start();
+      }
+      accept(0, serverSockets.get(0));
+    } catch (Exception e) {
+      logger.log(Level.SEVERE, "Error while listening for connections", e);
+    }
+  }
+
+  // One socket per acceptor with SO_REUSEPORT, otherwise one socket shared by all of them
+  private void openServerSockets() throws IOException {
+    ServerSocket first = new ServerSocket();
+    boolean reusePort = acceptors > 1 && first.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+    for (int i = 0; i < (reusePort ? acceptors : 1); i++) {
+      ServerSocket serverSocket = i == 0 ? first : new ServerSocket();
+      if (reusePort) {
+        serverSocket.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+      }
+      serverSocket.bind(new InetSocketAddress(port));
+      serverSockets.add(serverSocket);
+    }
+  }
+
+  private void accept(int acceptor, ServerSocket serverSocket) {
+    try {
       while (isRunning) {
         Socket clientSocket = serverSocket.accept();
-        logger.info("New client connected");
+        acceptedConnections.incrementAndGet(acceptor);
+        logger.fine("New client connected");
 
         // Handle each client connection in a new thread
         ClientHandler clientHandler = new ClientHandler(clientSocket, this);
         new Thread(clientHandler).start();
       }
-    } catch (Exception e) {
-      logger.log(Level.SEVERE, "Error while listening for connections", e);
+    } catch (IOException e) {
+      if (isRunning) {
+        logger.log(Level.SEVERE, "Error while accepting connections on acceptor " + acceptor, e);
+      }
+    }
+  }
+
+  /**
+   * Handles a GET for the number of connections each acceptor thread has accepted, selected by an
+   * "acceptors" query parameter, as one JSON line per acceptor.
+   *
+   * @param out PrintWriter - the output stream writer to send responses.
+   * @return int - the HTTP status code.
+   */
+  public int handleAcceptorsRequest(PrintWriter out) {
+    StringBuilder body = new StringBuilder();
+    for (int i = 0; i < acceptedConnections.length(); i++) {
+      WeatherDataSerializer line = new WeatherDataSerializer();
+      line.getData().put("acceptor", String.valueOf(i));
+      line.getData().put("connections", String.valueOf(acceptedConnections.get(i)));
+      body.append(line.toCompactJson()).append("\n");
+    }
+    sendResponse(out, StatusCodes.OK, StatusCodes.getStatusText(StatusCodes.OK), body.toString());
+    return StatusCodes.OK;
+  }
+
+  /**
+   * Handles a GET for the PUT rate limits, selected by a "rate-limits" query parameter, as one JSON line
+   * per Content Server that has sent recently, with its limit and the PUTs refused so far.
+   *
+   * @param out PrintWriter - the output stream writer to send responses.
+   * @return int - the HTTP status code.
+   */
+  public int handleRateLimitsRequest(PrintWriter out) {
+    StringBuilder body = new StringBuilder();
+    for (Map.Entry<String, Long> entry : rateLimiter.getLimitedCounts().entrySet()) {
+      RateLimiter.Limit limit = rateLimiter.getLimit(entry.getKey());
+      WeatherDataSerializer line = new WeatherDataSerializer();
+      line.getData().put("id", entry.getKey());
+      line.getData().put("rate", limit != null ? String.valueOf(limit.rate()) : "");
+      line.getData().put("burst", limit != null ? String.valueOf(limit.burst()) : "");
+      line.getData().put("limited", String.valueOf(entry.getValue()));
+      body.append(line.toCompactJson()).append("\n");
+    }
+    sendResponse(out, StatusCodes.OK, StatusCodes.getStatusText(StatusCodes.OK), body.toString());
+    return StatusCodes.OK;
+  }
+
+  // The history buffer size per station. The older --history-slot-bytes is still accepted, and gives the
+  // buffer the depth x slot bytes that history took per station when observations had fixed-size slots
+  private static int historyBytes(CommandLineOptions options, int depth) {
+    if (options.hasOption("history-bytes") || !options.hasOption("history-slot-bytes")) {
+      return options.getInt("history-bytes", StationHistory.DEFAULT_BUFFER_BYTES);
+    }
+    logger.warning("--history-slot-bytes is deprecated, use --history-bytes for the buffer size per station");
+    long bytes = (long) Math.max(1, depth) * options.getInt("history-slot-bytes", 0);
+    return (int) Math.min(Integer.MAX_VALUE, bytes);
+  }
+
+  // Parses RATE[:BURST] as PUTs per second and bucket size, where the burst defaults to one second of PUTs
+  private static double[] rateLimit(String value) {
+    String[] parts = value.trim().split(":");
+    double rate = Double.parseDouble(parts[0]);
+    int burst = parts.length > 1 ? Integer.parseInt(parts[1]) : (int) Math.max(1, Math.ceil(rate));
+    return new double[] {rate, burst};
+  }
+
+  // Parses a comma-separated list of fields, where an absent option keeps the defaults and an empty one indexes none
+  private static List<String> fieldList(String value, List<String> defaults) {
+    if (value == null) {
+      return defaults;
+    }
+    List<String> fields = new ArrayList<>();
+    for (String field : value.split(",")) {
+      if (!field.isBlank()) {
+        fields.add(field.trim());
+      }
     }
+    return fields;
   }
 
   /**
    * Reads the port from the command-line arguments and starts the server
    * and gracefully stop the server.
    *
-   * @param args String[] - command-line arguments: <port (optional)>
+   * @param args String[] - command-line arguments: <port (optional)> [--max-stations=N] [--data-dir=PATH]
+   *             [--replicas=HOST:PORT,...] [--backup] [--failover-timeout=MS]
+   *             [--cluster=HOST:PORT,...] [--node=HOST:PORT] [--join]
+   *             [--history=N] [--history-bytes=BYTES] [--history-slot-bytes=BYTES (deprecated)]
+   *             [--history-retention=MS] [--aggregate-windows=MS,...]
+   *             [--hash-index=FIELD,...] [--sorted-index=FIELD,...] [--off-heap=MB] [--max-queued-writes=N]
+   *             [--ack=enqueue|applied|durable] [--ack-timeout=MS] [--acceptors=N] [--store=file|memory]
+   *             [--rate-limit=RATE[:BURST]] [--rate-limit-overrides=ID=RATE[:BURST],...]
    */
   public static void main(String[] args) {
+    CommandLineOptions options = new CommandLineOptions(args);
     int port = NetworkNode.DEFAULT_PORT;
-    if (args.length > 0) {
+    if (options.positionalCount() > 0) {
       try {
-        port = Integer.parseInt(args[0]);
+        port = Integer.parseInt(options.getPositional(0));
       } catch (NumberFormatException e) {
         logger.severe("Invalid port number provided. Using default port " + port);
       }
     }
+    int maxStations = options.getInt("max-stations", StationStore.DEFAULT_MAX_ENTRIES);
+    String dataDirectory = options.getString("data-dir", "data/AggregationServerData");
+    String store = options.getString("store", "file");
+    StationStore stationStore;
+    if (store.equals("memory")) {
+      stationStore = new MemoryStationStore(maxStations);
+    } else if (store.equals("file")) {
+      stationStore = new FileManager(dataDirectory, maxStations);
+    } else {
+      throw new IllegalArgumentException("Unknown store: " + store + ", expected file or memory");
+    }
 
-    AggregationServer server = new AggregationServer(NetworkNode.DEFAULT_SERVER_ADDRESS, port);
+    AggregationServer server = new AggregationServer(NetworkNode.DEFAULT_SERVER_ADDRESS, port, stationStore);
+    int historyDepth = options.getInt("history", StationHistory.DEFAULT_DEPTH);
+    server.setHistory(historyDepth, historyBytes(options, historyDepth), options.getLong("history-retention", 0));
+    if (options.hasOption("aggregate-windows")) {
+      List<Long> windows = new ArrayList<>();
+      for (String window : options.getString("aggregate-windows", "").split(",")) {
+        windows.add(Long.parseLong(window.trim()));
+      }
+      server.setAggregateWindows(windows);
+    }
+    server.setMaxQueuedWrites(options.getInt("max-queued-writes", StationStore.DEFAULT_MAX_QUEUED_WRITES));
+    server.setAcceptors(options.getInt("acceptors", 1));
+    if (options.hasOption("rate-limit")) {
+      double[] limit = rateLimit(options.getString("rate-limit", ""));
+      server.setRateLimit(limit[0], (int) limit[1]);
+    }
+    if (options.hasOption("rate-limit-overrides")) {
+      for (String override : options.getString("rate-limit-overrides", "").split(",")) {
+        String[] parts = override.split("=", 2);
+        double[] limit = rateLimit(parts[1]);
+        server.setRateLimitOverride(parts[0].trim(), limit[0], (int) limit[1]);
+      }
+    }
+    server.setAckMode(AckMode.parse(options.getString("ack", AckMode.ENQUEUE.headerValue())));
+    server.setAckTimeout(options.getLong("ack-timeout", DEFAULT_ACK_TIMEOUT));
+    if (options.hasOption("off-heap")) {
+      server.setOffHeap(options.getLong("off-heap", 0) << 20);
+    }
+    if (options.hasOption("hash-index") || options.hasOption("sorted-index")) {
+      server.setIndexedFields(fieldList(options.getString("hash-index", null), AttributeIndex.DEFAULT_HASH_FIELDS),
+              fieldList(options.getString("sorted-index", null), AttributeIndex.DEFAULT_SORTED_FIELDS));
+    }
+    if (options.hasOption("replicas")) {
+      server.setReplicas(Arrays.asList(options.getString("replicas", "").split(",")));
+    }
+    if (options.hasOption("backup")) {
+      server.enableBackupMode(options.getLong("failover-timeout", 0));
+    }
+    if (options.hasOption("cluster")) {
+      String self = options.getString("node", "localhost:" + port);
+      server.enableClusterMode(self, Arrays.asList(options.getString("cluster", "").split(",")), options.hasOption("join"));
+    }
     server.startup();
 
     Thread serverThread = new Thread(server);
@@ -227,4 +1648,4 @@ public class AggregationServer implements NetworkNode, Runnable {
       }
     }));
   }
-}
\ No newline at end of file
+}
@@ -0,0 +1,253 @@
+package aggregationserver;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Secondary indexes over station fields, so filtered queries find matching stations without reading every
+ * station. Categorical fields such as "state" get a hash index from value to stations, and numeric fields
+ * such as "air_temp" get a sorted index that answers ranges. The indexes are updated as writes are applied
+ * and as stations expire or are evicted.
+ */
+class AttributeIndex implements StationUpdateListener {
+
+    public static final List<String> DEFAULT_HASH_FIELDS = List.of("state", "cloud", "wind_dir");
+    public static final List<String> DEFAULT_SORTED_FIELDS = List.of("air_temp", "press", "rel_hum");
+
+    private final Map<String, ConcurrentHashMap<String, Set<String>>> hashIndexes = new HashMap<>();
+    private final Map<String, ConcurrentSkipListMap<Double, Set<String>>> sortedIndexes = new HashMap<>();
+    private final ConcurrentHashMap<String, Map<String, String>> indexedValues = new ConcurrentHashMap<>();
+
+    AttributeIndex() {
+        setFields(DEFAULT_HASH_FIELDS, DEFAULT_SORTED_FIELDS);
+    }
+
+    /**
+     * One condition of a filter, comparing a field with a value.
+     *
+     * @param field String - the field name.
+     * @param operator String - one of "=", "<", "<=", ">" and ">=".
+     * @param value String - the value compared with.
+     */
+    record Condition(String field, String operator, String value) {
+
+        /**
+         * @param actual String - the station's value of the field, or null if it has none.
+         * @return boolean - true if the value meets the condition.
+         */
+        boolean matches(String actual) {
+            if (actual == null) {
+                return false;
+            }
+            if (operator.equals("=")) {
+                return actual.equals(value) || (isNumeric(actual) && isNumeric(value)
+                        && Double.parseDouble(actual) == Double.parseDouble(value));
+            }
+            if (!isNumeric(actual)) {
+                return false;
+            }
+            int comparison = Double.compare(Double.parseDouble(actual), Double.parseDouble(value));
+            return switch (operator) {
+                case "<" -> comparison < 0;
+                case "<=" -> comparison <= 0;
+                case ">" -> comparison > 0;
+                default -> comparison >= 0;
+            };
+        }
+    }
+
+    /**
+     * Sets the indexed fields. Must be called before any station is recorded.
+     *
+     * @param hashFields List - the categorical fields, matched by equality.
+     * @param sortedFields List - the numeric fields, matched by equality or range.
+     */
+    void setFields(List<String> hashFields, List<String> sortedFields) {
+        hashIndexes.clear();
+        sortedIndexes.clear();
+        for (String field : hashFields) {
+            hashIndexes.put(field, new ConcurrentHashMap<>());
+        }
+        for (String field : sortedFields) {
+            sortedIndexes.put(field, new ConcurrentSkipListMap<>());
+        }
+    }
+
+    /**
+     * @return Set - every indexed field, sorted.
+     */
+    Set<String> getFields() {
+        Set<String> fields = new TreeSet<>(hashIndexes.keySet());
+        fields.addAll(sortedIndexes.keySet());
+        return fields;
+    }
+
+    /**
+     * Parses a filter of comma-separated conditions, such as "state=SA,air_temp>=10,air_temp<20".
+     *
+     * @param filter String - the filter.
+     * @return List - the conditions, all of which a station must meet.
+     * @throws IllegalArgumentException if a condition is malformed or its field has no index that answers it.
+     */
+    List<Condition> parse(String filter) {
+        List<Condition> conditions = new ArrayList<>();
+        for (String clause : filter.split(",")) {
+            int at = 0;
+            while (at < clause.length() && "<>=".indexOf(clause.charAt(at)) == -1) {
+                at++;
+            }
+            int end = at + (clause.startsWith("=", at + 1) ? 2 : 1);
+            if (at == 0 || at >= clause.length()) {
+                throw new IllegalArgumentException("Malformed condition " + clause);
+            }
+            Condition condition = new Condition(clause.substring(0, at).trim(), clause.substring(at, end),
+                    clause.substring(end).trim());
+            if (condition.operator().equals("==") || condition.operator().equals("=<")) {
+                throw new IllegalArgumentException("Malformed condition " + clause);
+            }
+            boolean range = !condition.operator().equals("=");
+            if (sortedIndexes.containsKey(condition.field())) {
+                if (!isNumeric(condition.value())) {
+                    throw new IllegalArgumentException(condition.field() + " is compared with numbers");
+                }
+            } else if (!hashIndexes.containsKey(condition.field()) || range) {
+                throw new IllegalArgumentException((range ? "No sorted index on " : "No index on ") + condition.field());
+            }
+            conditions.add(condition);
+        }
+        return conditions;
+    }
+
+    /**
+     * Finds the stations meeting every condition. The most selective equality condition is answered from
+     * its index, or else the first range, and the other conditions are checked against the values indexed
+     * for each candidate, so the work grows with the number of candidates rather than of stations.
+     *
+     * @param conditions List - the parsed conditions.
+     * @return List - the IDs of the matching stations, sorted.
+     */
+    List<String> find(List<Condition> conditions) {
+        Set<String> candidates = null;
+        for (Condition condition : conditions) {
+            if (condition.operator().equals("=") && hashIndexes.containsKey(condition.field())) {
+                Set<String> stations = hashIndexes.get(condition.field()).getOrDefault(condition.value(), Set.of());
+                if (candidates == null || stations.size() < candidates.size()) {
+                    candidates = stations;
+                }
+            }
+        }
+        if (candidates == null) {
+            candidates = new TreeSet<>();
+            for (Set<String> stations : range(conditions.get(0)).values()) {
+                candidates.addAll(stations);
+            }
+        }
+        List<String> matches = new ArrayList<>();
+        for (String stationId : candidates) {
+            Map<String, String> values = indexedValues.get(stationId);
+            if (values != null && conditions.stream().allMatch(condition -> condition.matches(values.get(condition.field())))) {
+                matches.add(stationId);
+            }
+        }
+        matches.sort(null);
+        return matches;
+    }
+
+    // The part of a sorted index a condition selects
+    private NavigableMap<Double, Set<String>> range(Condition condition) {
+        ConcurrentSkipListMap<Double, Set<String>> index = sortedIndexes.get(condition.field());
+        double value = Double.parseDouble(condition.value());
+        return switch (condition.operator()) {
+            case "=" -> index.subMap(value, true, value, true);
+            case "<" -> index.headMap(value, false);
+            case "<=" -> index.headMap(value, true);
+            case ">" -> index.tailMap(value, false);
+            default -> index.tailMap(value, true);
+        };
+    }
+
+    @Override
+    public synchronized void onStationUpdated(String stationId, StationRecord record) {
+        Map<String, String> data = record.data().getData();
+        Map<String, String> values = new HashMap<>();
+        for (String field : hashIndexes.keySet()) {
+            if (data.get(field) != null) {
+                values.put(field, data.get(field));
+            }
+        }
+        for (String field : sortedIndexes.keySet()) {
+            if (isNumeric(data.get(field))) {
+                values.put(field, data.get(field));
+            }
+        }
+        Map<String, String> previous = indexedValues.put(stationId, values);
+        // Only the fields whose value changed move between index entries
+        for (Map.Entry<String, String> entry : values.entrySet()) {
+            if (previous == null || !entry.getValue().equals(previous.get(entry.getKey()))) {
+                if (previous != null) {
+                    remove(entry.getKey(), previous.get(entry.getKey()), stationId);
+                }
+                add(entry.getKey(), entry.getValue(), stationId);
+            }
+        }
+        if (previous != null) {
+            for (Map.Entry<String, String> entry : previous.entrySet()) {
+                if (!values.containsKey(entry.getKey())) {
+                    remove(entry.getKey(), entry.getValue(), stationId);
+                }
+            }
+        }
+    }
+
+    @Override
+    public synchronized void onStationRemoved(String stationId) {
+        Map<String, String> previous = indexedValues.remove(stationId);
+        if (previous != null) {
+            previous.forEach((field, value) -> remove(field, value, stationId));
+        }
+    }
+
+    private void add(String field, String value, String stationId) {
+        if (hashIndexes.containsKey(field)) {
+            hashIndexes.get(field).computeIfAbsent(value, key -> ConcurrentHashMap.newKeySet()).add(stationId);
+        } else {
+            sortedIndexes.get(field).computeIfAbsent(Double.parseDouble(value), key -> ConcurrentHashMap.newKeySet())
+                    .add(stationId);
+        }
+    }
+
+    private void remove(String field, String value, String stationId) {
+        if (value == null) {
+            return;
+        }
+        if (hashIndexes.containsKey(field)) {
+            hashIndexes.get(field).computeIfPresent(value, (key, stations) -> {
+                stations.remove(stationId);
+                return stations.isEmpty() ? null : stations;
+            });
+        } else {
+            sortedIndexes.get(field).computeIfPresent(Double.parseDouble(value), (key, stations) -> {
+                stations.remove(stationId);
+                return stations.isEmpty() ? null : stations;
+            });
+        }
+    }
+
+    private static boolean isNumeric(String value) {
+        if (value == null) {
+            return false;
+        }
+        try {
+            return Double.isFinite(Double.parseDouble(value));
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+}
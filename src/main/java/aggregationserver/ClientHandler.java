@@ -3,6 +3,8 @@ package aggregationserver;
 import common.*;
 import java.io.*;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.CompletableFuture;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -10,9 +12,13 @@ import java.util.logging.Logger;
 class ClientHandler implements Runnable {
 
     private static final Logger logger = Logger.getLogger(ClientHandler.class.getName());
+    private static final int KEEP_ALIVE_TIMEOUT = 60 * 1000; // 60 seconds idle before closing
 
     private final Socket clientSocket;
     private final AggregationServer server;
+    private BufferedReader in;
+    private PrintWriter out;
+    private HttpReader answered; // A PUT answered after this handler let the connection go, set when resuming
 
     public ClientHandler(Socket clientSocket, AggregationServer server) {
         this.clientSocket = clientSocket;
@@ -21,41 +27,129 @@ class ClientHandler implements Runnable {
 
     @Override
     public void run() {
-        try (
-                BufferedReader in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
+        boolean detached = false; // Set once a subscription or a waiting PUT takes over the connection
+        try {
+            if (in == null) {
+                in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream(), ContentEncoding.WIRE_CHARSET));
                 OutputStream os = clientSocket.getOutputStream();
-                PrintWriter out = new PrintWriter(os, true)) {
-
-            HttpReader request = new HttpReader(in);
-
-            // Log the incoming request details
-            logger.info("Request Method: " + request.getMethod());
-            logger.info("Request Path: " + request.getPath());
-            logger.info("Request HTTP Version: " + request.getHttpVersion());
-            logger.info("Request Headers: " + request.getHeaders());
-            logger.info("Request Body: " + request.getBody());
+                // Responses flush once when complete, so each goes out in as few segments as possible
+                out = new PrintWriter(new OutputStreamWriter(os, ContentEncoding.WIRE_CHARSET), false);
+                clientSocket.setTcpNoDelay(true);
+            }
 
-            // Handle PUT or GET requests
-            if ("PUT".equals(request.getMethod())) {
-                server.handlePutRequest(request, in, out);
-            } else if ("GET".equals(request.getMethod())) {
-                server.handleGetRequest(request, in, out);
-            } else {
-                int status = StatusCodes.BAD_REQUEST;
-                // Send bad request response back to the client as http request was invalid
-                String statusText = StatusCodes.getStatusText(status);
-                String statusMessage = StatusCodes.getStatusMessage(status);
-                server.sendResponse(out, status, statusText, statusMessage);
+            // Keep serving requests on this connection for as long as the client asks for keep-alive
+            boolean keepAlive = answered == null || finish(answered);
+            while (keepAlive) {
+                // The body is left on the stream so batch requests can be parsed while they arrive
+                HttpReader request = new HttpReader(in, false);
+                RequestEvents.DispatchEvent dispatch = new RequestEvents.DispatchEvent();
+                dispatch.begin();
+                if ("GET".equals(request.getMethod()) && SubscriptionManager.isSubscription(request)) {
+                    logger.info("Subscription Request Headers: " + request.getHeaders());
+                    detached = server.handleSubscribeRequest(request, clientSocket, out);
+                    if (detached) {
+                        commit(dispatch, request);
+                        return; // The connection is parked, this thread is free for other clients
+                    }
+                } else if (!handleRequest(request, in, out)) {
+                    detached = true;
+                    commit(dispatch, request);
+                    return; // Waiting for the PUT's write, resumed on a new thread once it is answered
+                }
+                commit(dispatch, request);
+                keepAlive = finish(request);
             }
 
+        } catch (EOFException | SocketTimeoutException e) {
+            logger.fine("Client closed or idled out a keep-alive connection");
         } catch (Exception e) {
             logger.log(Level.SEVERE, "Error while handling client request", e);
         } finally {
-            try {
-                clientSocket.close();
-            } catch (IOException e) {
-                logger.log(Level.SEVERE, "Error closing client socket", e);
+            if (!detached) {
+                try {
+                    clientSocket.close();
+                } catch (IOException e) {
+                    logger.log(Level.SEVERE, "Error closing client socket", e);
+                }
+            }
+        }
+    }
+
+    private static void commit(RequestEvents.DispatchEvent dispatch, HttpReader request) {
+        if (dispatch.shouldCommit()) {
+            dispatch.method = request.getMethod();
+            dispatch.path = request.getPath();
+            String stationId = request.getHeader("Station-Id");
+            dispatch.stationId = stationId != null ? stationId : request.getHeader("Content-Server-Id");
+            dispatch.commit();
+        }
+    }
+
+    // Reads past the request's body, and returns whether the connection should serve another request
+    private boolean finish(HttpReader request) throws IOException {
+        request.skipBody();
+        boolean keepAlive = request.isKeepAlive() && server.isRunning();
+        if (keepAlive) {
+            clientSocket.setSoTimeout(KEEP_ALIVE_TIMEOUT);
+        }
+        return keepAlive;
+    }
+
+    // Resumes the connection after a PUT that was answered once its write completed
+    private void resume(HttpReader request) {
+        answered = request;
+        server.resumeConnection(this);
+    }
+
+    // Returns false if the response is sent later, when the connection is resumed
+    private boolean handleRequest(HttpReader request, BufferedReader in, PrintWriter out) {
+        // Log the incoming request details
+        logger.info("Request Method: " + request.getMethod());
+        logger.info("Request Path: " + request.getPath());
+        logger.info("Request HTTP Version: " + request.getHttpVersion());
+        logger.info("Request Headers: " + request.getHeaders());
+
+        boolean isBatch = AggregationServer.BATCH_CONTENT_TYPE.equals(request.getHeader("Content-Type"));
+        boolean isReplication = ReplicationManager.REPLICATION_PATH.equals(request.getPath())
+                || ClusterRouter.HANDOFF_PATH.equals(request.getPath());
+        // Checked before the body is read, so a flooding Content Server costs no body parsing
+        if ("PUT".equals(request.getMethod()) && !isReplication
+                && !AggregationServer.PROMOTE_PATH.equals(request.getPath()) && !server.admitPut(request, out)) {
+            return true;
+        }
+        // Streamed bodies are parsed as they arrive, so they are not read up front for logging
+        if (!isBatch && !isReplication) {
+            logger.info("Request Body: " + request.getBody());
+        }
+
+        // Handle PUT or GET requests
+        if ("PUT".equals(request.getMethod()) && ClusterRouter.HANDOFF_PATH.equals(request.getPath())) {
+            server.handleHandoffRequest(request, out);
+        } else if ("PUT".equals(request.getMethod()) && isReplication) {
+            server.handleReplicationRequest(request, out);
+        } else if (ClusterRouter.CLUSTER_PATH.equals(request.getPath())) {
+            server.handleClusterRequest(request, out);
+        } else if ("PUT".equals(request.getMethod()) && AggregationServer.PROMOTE_PATH.equals(request.getPath())) {
+            server.handlePromoteRequest(out);
+        } else if (!isBatch && server.forwardToOwner(request, out)) {
+            // Answered by the cluster node that owns the station
+        } else if ("PUT".equals(request.getMethod()) && isBatch) {
+            server.handleBatchPutRequest(request, in, out);
+        } else if ("PUT".equals(request.getMethod())) {
+            CompletableFuture<Integer> response = server.handlePutRequest(request, in, out);
+            if (!response.isDone()) {
+                response.whenComplete((status, error) -> resume(request));
+                return false;
             }
+        } else if ("GET".equals(request.getMethod())) {
+            server.handleGetRequest(request, in, out);
+        } else {
+            int status = StatusCodes.BAD_REQUEST;
+            // Send bad request response back to the client as http request was invalid
+            String statusText = StatusCodes.getStatusText(status);
+            String statusMessage = StatusCodes.getStatusMessage(status);
+            server.sendResponse(out, status, statusText, statusMessage);
         }
+        return true;
     }
 }
\ No newline at end of file
@@ -0,0 +1,218 @@
+package aggregationserver;
+
+import common.*;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Partitions stations across the AggregationServers of a cluster with a consistent-hash ring on station ID.
+ * Requests for a station another node owns are forwarded to it over a pool of persistent connections, so
+ * Content Servers and clients can talk to any node. A forwarded request is marked with FORWARDED_HEADER and
+ * always handled by the node that receives it, so nodes that briefly disagree on membership never loop.
+ *
+ * When membership changes, each node hands the stations it no longer owns to their new owners, using the
+ * replication log format, and drops its copies. Only the stations between the changed node's ring points and
+ * their neighbours move.
+ */
+class ClusterRouter {
+
+    private static final Logger logger = Logger.getLogger(ClusterRouter.class.getName());
+    public static final String CLUSTER_PATH = "/cluster";
+    public static final String HANDOFF_PATH = "/cluster/handoff";
+    public static final String FORWARDED_HEADER = "Cluster-Forwarded";
+    private static final int PEER_CONNECTIONS = 8; // Pooled connections to each other node
+    private static final int PEER_TIMEOUT = 5 * 1000; // 5 seconds
+    // Hop-by-hop and framing headers, which are recomputed rather than copied when relaying a message
+    private static final Set<String> UNCOPIED_HEADERS = Set.of("connection", "content-length", "transfer-encoding");
+
+    private final String self;
+    private final StationStore stationStore;
+    private final LamportClock lamportClock;
+    private final Map<String, HttpConnectionPool> peers;
+    private volatile ConsistentHashRing ring;
+
+    /**
+     * @param self String - this node's "host:port" name, as it appears in the member list.
+     * @param members List - every node's "host:port" name, including this node.
+     * @param stationStore StationStore - this node's store, read when handing off stations.
+     * @param lamportClock LamportClock - this node's clock.
+     */
+    ClusterRouter(String self, List<String> members, StationStore stationStore, LamportClock lamportClock) {
+        this.self = self;
+        this.stationStore = stationStore;
+        this.lamportClock = lamportClock;
+        this.peers = new ConcurrentHashMap<>();
+        this.ring = new ConsistentHashRing(members);
+    }
+
+    String getSelf() {
+        return self;
+    }
+
+    List<String> getMembers() {
+        return ring.getNodes();
+    }
+
+    /**
+     * @param stationId String - the station ID.
+     * @return String - the "host:port" of the node owning the station.
+     */
+    String ownerOf(String stationId) {
+        return ring.getNode(stationId);
+    }
+
+    boolean isLocal(String stationId) {
+        return self.equals(ownerOf(stationId));
+    }
+
+    /**
+     * Sends a request to another node, marked as forwarded so that node handles it itself.
+     *
+     * @param node String - the node's "host:port".
+     * @param request HttpWriter - the request to send.
+     * @return HttpReader - the node's response, with its body read.
+     * @throws IOException if the node could not be reached.
+     */
+    HttpReader send(String node, HttpWriter request) throws IOException {
+        HttpConnectionPool pool = peers.computeIfAbsent(node, name -> {
+            String[] parts = name.split(":");
+            return new HttpConnectionPool(parts[0], Integer.parseInt(parts[1]), PEER_CONNECTIONS, PEER_TIMEOUT);
+        });
+        return pool.send(request.addHeader(FORWARDED_HEADER, self));
+    }
+
+    /**
+     * Forwards a client's request unchanged to the node that owns its station.
+     *
+     * @param node String - the owning node's "host:port".
+     * @param request HttpReader - the client's request, with its body unread or read.
+     * @return HttpReader - the owner's response.
+     * @throws IOException if the owner could not be reached.
+     */
+    HttpReader forward(String node, HttpReader request) throws IOException {
+        HttpWriter copy = new HttpWriter()
+                .setMethod(request.getMethod())
+                .setPath(request.getPath())
+                .setHttpVersion("HTTP/1.1");
+        for (Map.Entry<String, String> header : request.getHeaders().entrySet()) {
+            if (!UNCOPIED_HEADERS.contains(header.getKey().toLowerCase())) {
+                copy.addHeader(header.getKey(), header.getValue());
+            }
+        }
+        String body = request.getBody();
+        if (body != null) {
+            String contentType = request.getHeader("Content-Type");
+            copy.setBody(body);
+            if (contentType != null) {
+                copy.addHeader("Content-Type", contentType);
+            }
+        }
+        return send(node, copy);
+    }
+
+    /**
+     * Writes another node's response back to the client, recomputing the framing headers.
+     *
+     * @param response HttpReader - the response to relay.
+     * @param out PrintWriter - the client's output stream writer.
+     */
+    static void relay(HttpReader response, PrintWriter out) {
+        String body = response.getBody() != null ? response.getBody() : "";
+        out.println("HTTP/1.1 " + response.getStatusCode() + " " + response.getStatusText());
+        for (Map.Entry<String, String> header : response.getHeaders().entrySet()) {
+            if (!UNCOPIED_HEADERS.contains(header.getKey().toLowerCase())) {
+                out.println(header.getKey() + ": " + header.getValue());
+            }
+        }
+        out.println("Content-Length: " + body.length());
+        out.println();
+        out.print(body);
+        out.flush();
+    }
+
+    /**
+     * Sends a new member list to every node of the old and new membership, so leaving nodes hand off
+     * their stations as well.
+     *
+     * @param members List - the new member list.
+     */
+    void propagateMembers(List<String> members) {
+        Set<String> notify = new LinkedHashSet<>(ring.getNodes());
+        notify.addAll(members);
+        notify.remove(self);
+        for (String node : notify) {
+            try {
+                HttpWriter request = new HttpWriter()
+                        .setMethod("PUT")
+                        .setPath(CLUSTER_PATH)
+                        .setHttpVersion("HTTP/1.1")
+                        .addHeader("Lamport-Timestamp", String.valueOf(lamportClock.getTime()))
+                        .setBody(String.join(",", members))
+                        .addHeader("Content-Type", "text/plain");
+                send(node, request);
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Could not send the member list to " + node, e);
+            }
+        }
+    }
+
+    /**
+     * Switches to a new member list and hands off every local station that now belongs to another node.
+     *
+     * @param members List - the new member list.
+     */
+    synchronized void setMembers(List<String> members) {
+        ring = new ConsistentHashRing(members);
+        logger.info("Cluster membership is now " + members);
+
+        Map<String, List<String>> handoffs = new HashMap<>();
+        for (String stationId : stationStore.getStationIds("")) {
+            String owner = ownerOf(stationId);
+            if (!self.equals(owner)) {
+                handoffs.computeIfAbsent(owner, node -> new ArrayList<>()).add(stationId);
+            }
+        }
+        for (Map.Entry<String, List<String>> handoff : handoffs.entrySet()) {
+            handOff(handoff.getKey(), handoff.getValue());
+        }
+    }
+
+    // Copies the stations to their new owner with their versions, then drops the local copies
+    private void handOff(String node, List<String> stationIds) {
+        StringBuilder body = new StringBuilder();
+        List<String> sent = new ArrayList<>();
+        for (String stationId : stationIds) {
+            StationRecord record = stationStore.getStationRecord(stationId);
+            if (record != null) {
+                body.append(ReplicationManager.updateEntry(stationId, record)).append("\n");
+                sent.add(stationId);
+            }
+        }
+        try {
+            HttpReader response = send(node, new HttpWriter()
+                    .setMethod("PUT")
+                    .setPath(HANDOFF_PATH)
+                    .setHttpVersion("HTTP/1.1")
+                    .addHeader("Lamport-Timestamp", String.valueOf(lamportClock.getTime()))
+                    .setBody(body.toString())
+                    .addHeader("Content-Type", "text/plain"));
+            if (response.getStatusCode() != StatusCodes.OK) {
+                throw new IOException(response.getStatusCode() + " " + response.getStatusText());
+            }
+            sent.forEach(stationStore::removeStation);
+            logger.info("Handed off " + sent.size() + " stations to " + node);
+        } catch (IOException e) {
+            // The stations stay here until the next membership change, reads forwarded to the new owner miss them
+            logger.log(Level.WARNING, "Failed to hand off " + sent.size() + " stations to " + node, e);
+        }
+    }
+
+    void shutdown() {
+        peers.values().forEach(HttpConnectionPool::close);
+    }
+}
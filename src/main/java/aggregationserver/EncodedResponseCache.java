@@ -0,0 +1,150 @@
+package aggregationserver;
+
+import common.ContentEncoding;
+import common.PayloadArena;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps each station's GET response bodies ready in every supported content coding.
+ * Bodies are compressed once when a station update is applied, rather than on every GET, so a station
+ * read by many clients costs one compression per version however often it is fetched.
+ * With an arena the bodies are held off-heap, all of a version in one block, and copied out per request.
+ */
+class EncodedResponseCache implements StationUpdateListener {
+
+    // The bodies' character sets in the arena: compressed bodies are one byte per char, JSON may be any text
+    private static final Charset[] CHARSETS = {StandardCharsets.UTF_8, StandardCharsets.ISO_8859_1,
+            StandardCharsets.ISO_8859_1, StandardCharsets.UTF_8, StandardCharsets.ISO_8859_1};
+
+    private final ConcurrentHashMap<String, StoredResponse> responses = new ConcurrentHashMap<>();
+    private PayloadArena arena; // Holds the bodies off-heap when set
+
+    // A station's cached bodies, either on the heap or as a handle to their bytes in the arena
+    private record StoredResponse(long version, EncodedResponse response, long payload) {
+    }
+
+    /**
+     * One station version's response bodies. The pretty-printed JSON is served to single-station GETs and the
+     * compact JSON line to bulk GETs. A coding that would not make a single-station body smaller is left null.
+     */
+    record EncodedResponse(long version, String json, String gzip, String deflate, String line, String gzipLine) {
+
+        /**
+         * @param coding String - the negotiated content coding.
+         * @return String - the single-station body in that coding, or null to send it uncompressed.
+         */
+        String body(String coding) {
+            return switch (coding) {
+                case ContentEncoding.GZIP -> gzip;
+                case ContentEncoding.DEFLATE -> deflate;
+                default -> null;
+            };
+        }
+    }
+
+    /**
+     * Holds the cached bodies in an off-heap arena instead of on the heap. Bodies that do not fit in the
+     * arena stay on the heap. Must be called before any station is cached.
+     *
+     * @param arena PayloadArena - the arena to hold bodies in.
+     */
+    void setPayloadArena(PayloadArena arena) {
+        this.arena = arena;
+    }
+
+    /**
+     * @param stationId String - the station ID.
+     * @param record StationRecord - the station's current record.
+     * @return EncodedResponse - the cached bodies for the record's version.
+     */
+    EncodedResponse get(String stationId, StationRecord record) {
+        StoredResponse stored = responses.get(stationId);
+        EncodedResponse response = null;
+        if (stored != null && stored.version() == record.version()) {
+            response = stored.response() != null ? stored.response() : read(stored);
+        }
+        if (response == null) {
+            // The update has not reached the cache yet, or was replaced while it was read, so encode this
+            // version for the current request only
+            response = encode(record);
+        }
+        return response;
+    }
+
+    @Override
+    public void onStationUpdated(String stationId, StationRecord record) {
+        EncodedResponse response = encode(record);
+        StoredResponse stored = new StoredResponse(record.version(), response, PayloadArena.NO_HANDLE);
+        if (arena != null) {
+            long payload = arena.allocate(toBytes(response));
+            if (payload != PayloadArena.NO_HANDLE) {
+                stored = new StoredResponse(record.version(), null, payload);
+            }
+        }
+        release(responses.put(stationId, stored));
+    }
+
+    @Override
+    public void onStationRemoved(String stationId) {
+        release(responses.remove(stationId));
+    }
+
+    private void release(StoredResponse stored) {
+        if (stored != null && stored.response() == null) {
+            arena.free(stored.payload());
+        }
+    }
+
+    // Each body as an int byte length, -1 for none, and its bytes
+    private static byte[] toBytes(EncodedResponse response) {
+        String[] bodies = {response.json(), response.gzip(), response.deflate(), response.line(), response.gzipLine()};
+        byte[][] encoded = new byte[bodies.length][];
+        int length = 0;
+        for (int i = 0; i < bodies.length; i++) {
+            encoded[i] = bodies[i] != null ? bodies[i].getBytes(CHARSETS[i]) : null;
+            length += 4 + (encoded[i] != null ? encoded[i].length : 0);
+        }
+        ByteBuffer bytes = ByteBuffer.allocate(length);
+        for (byte[] body : encoded) {
+            bytes.putInt(body != null ? body.length : -1);
+            if (body != null) {
+                bytes.put(body);
+            }
+        }
+        return bytes.array();
+    }
+
+    private EncodedResponse read(StoredResponse stored) {
+        byte[] payload = arena.read(stored.payload());
+        if (payload == null) {
+            return null;
+        }
+        ByteBuffer bytes = ByteBuffer.wrap(payload);
+        String[] bodies = new String[CHARSETS.length];
+        for (int i = 0; i < bodies.length; i++) {
+            int length = bytes.getInt();
+            if (length >= 0) {
+                bodies[i] = new String(payload, bytes.position(), length, CHARSETS[i]);
+                bytes.position(bytes.position() + length);
+            }
+        }
+        return new EncodedResponse(stored.version(), bodies[0], bodies[1], bodies[2], bodies[3], bodies[4]);
+    }
+
+    private static EncodedResponse encode(StationRecord record) {
+        String json = record.data().toJson();
+        String line = record.data().toCompactJson() + "\n";
+        // Every bulk line is a complete gzip member, and concatenated members form one valid gzip body
+        return new EncodedResponse(record.version(), json, compress(json, ContentEncoding.GZIP),
+                compress(json, ContentEncoding.DEFLATE), line, ContentEncoding.encode(line, ContentEncoding.GZIP));
+    }
+
+    private static String compress(String body, String coding) {
+        String compressed = ContentEncoding.encode(body, coding);
+        return compressed.length() < body.length() ? compressed : null;
+    }
+}
@@ -1,34 +1,96 @@
 package aggregationserver;
 
+import common.RequestEvents;
+import common.WeatherDataSerializer;
+
 import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.LongSupplier;
 import java.util.logging.*;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.PriorityQueue;
 import java.util.Comparator;
 
-public class FileManager {
+/**
+ * The file engine of the StationStore: every applied write is also written to a file per station, from a
+ * single writer thread fed by a bounded queue, and removed stations have their file deleted.
+ */
+public class FileManager extends AbstractStationStore {
 
     private static final Logger logger = Logger.getLogger(FileManager.class.getName());
     private static final long FILE_EXPIRATION_PERIOD = 30 * 1000; // 30 seconds
     private static final long CLEANUP_PERIOD = 1000; // 1 seconds - Activates Cleanup daemon
-    private static final int MAX_ENTRIES = 20; // Max 20 entries at a time
+    private static final int MAX_RETRY_AFTER_SECONDS = 60;
 
-    private final BlockingQueue<WriteRequest> writeQueue;
-    private final ConcurrentHashMap<String, Long> lastUpdateTimestamps; // To track last update time
+    private BlockingQueue<WriteRequest> writeQueue; // Bounded, so a stalled disk cannot fill the heap with writes
+    private int maxQueuedWrites = DEFAULT_MAX_QUEUED_WRITES;
+    private final ConcurrentHashMap<String, Long> stationVersions; // Latest accepted version per station
+    private final Object acceptLock = new Object();
     private final File storageDirectory;
+    private final int maxEntries;
     private volatile boolean isRunning;
+    private volatile double writeNanos; // Moving average of the time to apply one write
+    private volatile long writeStartedNanos; // When the write being applied started, 0 when idle
 
     public FileManager(String storagePath) {
-        this.writeQueue = new LinkedBlockingQueue<>();
-        this.lastUpdateTimestamps = new ConcurrentHashMap<>();
+        this(storagePath, DEFAULT_MAX_ENTRIES);
+    }
+
+    /**
+     * @param storagePath String - the directory station files are written to.
+     * @param maxEntries int - the number of stations kept before the least recently updated is evicted.
+     */
+    public FileManager(String storagePath, int maxEntries) {
+        this.writeQueue = new LinkedBlockingQueue<>(DEFAULT_MAX_QUEUED_WRITES);
+        this.stationVersions = new ConcurrentHashMap<>();
         this.storageDirectory = new File(storagePath);
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * Bounds the writes waiting to be applied. Once that many are queued, new writes are refused until the
+     * writer thread catches up. Must be called before start.
+     *
+     * @param maxQueuedWrites int - the most writes queued at once.
+     */
+    @Override
+    public void setMaxQueuedWrites(int maxQueuedWrites) {
+        this.writeQueue = new LinkedBlockingQueue<>(maxQueuedWrites);
+        this.maxQueuedWrites = maxQueuedWrites;
+    }
+
+    /**
+     * @return int - the write queue's capacity, as a batch is only queued if all of it fits.
+     */
+    @Override
+    public int getMaxBatchSize() {
+        return maxQueuedWrites;
     }
 
+    /**
+     * Estimates how long the queued writes will take to apply, from the recent time per write and from how
+     * long the write being applied has taken so far, so a stalled disk raises the estimate before it recovers.
+     *
+     * @return int - the estimate in whole seconds, from 1 to MAX_RETRY_AFTER_SECONDS.
+     */
+    @Override
+    public int getRetryAfterSeconds() {
+        long started = writeStartedNanos;
+        double stalledNanos = started != 0 ? System.nanoTime() - started : 0;
+        double drainNanos = writeQueue.size() * writeNanos + stalledNanos;
+        return (int) Math.max(1, Math.min(MAX_RETRY_AFTER_SECONDS, Math.ceil(drainNanos / 1e9)));
+    }
+
+    @Override
     public void start() {
         isRunning = true;
+        storageDirectory.mkdirs();
         Thread writeThread = new Thread(this::processWriteRequests);
         writeThread.start();
 
@@ -39,6 +101,7 @@ public class FileManager {
         logger.info("FileManager started with write queue and cleanup daemon.");
     }
 
+    @Override
     public void shutdown() {
         isRunning = false;
         logger.info("FileManager is shutting down...");
@@ -66,6 +129,15 @@ public class FileManager {
     }
 
     public String getMostRecentFile() throws IOException {
+        String stationId = getMostRecentStationId();
+        return stationId != null ? readWeatherData(stationId) : null; // Return the contents of the most recent file
+    }
+
+    /**
+     * @return String - the ID of the most recently updated station, or null if none.
+     */
+    @Override
+    public String getMostRecentStationId() {
         if (lastUpdateTimestamps.isEmpty()) {
             logger.warning("No files available to retrieve.");
             return null;
@@ -84,27 +156,156 @@ public class FileManager {
 
         String stationId = mostRecentEntry.getKey();
         logger.info("Most recent file found for station ID: " + stationId);
-        return readWeatherData(stationId); // Return the contents of the most recent file
+        return stationId;
     }
 
-    public void addWriteRequest(WriteRequest request) {
-        try {
-            writeQueue.put(request);
-            lastUpdateTimestamps.put(request.stationId(), System.currentTimeMillis());
+    /**
+     * Queues a write to be applied by the writer thread.
+     * A patch is only accepted if its base version is still the latest accepted version of the station,
+     * the version check and enqueue happen together so patches are applied onto exactly the data they were
+     * computed against.
+     *
+     * @param request WriteRequest - the full write or patch to queue.
+     * @return WriteResult - STALE_BASE if a patch's base version is out of date, QUEUE_FULL if the write
+     *         queue has no room, otherwise ACCEPTED.
+     */
+    @Override
+    public WriteResult addWriteRequest(WriteRequest request) {
+        RequestEvents.EnqueueEvent event = new RequestEvents.EnqueueEvent();
+        event.begin();
+        WriteResult result = enqueue(request);
+        if (event.shouldCommit()) {
+            event.stationId = request.stationId();
+            event.lamportTimestamp = request.timestamp();
+            event.result = result.name();
+            event.queuedWrites = writeQueue.size();
+            event.commit();
+        }
+        return result;
+    }
 
+    private WriteResult enqueue(WriteRequest request) {
+        try {
+            synchronized (acceptLock) {
+                // Only acceptors add to the queue and they hold acceptLock, so the room cannot shrink before put
+                if (writeQueue.remainingCapacity() == 0) {
+                    logger.warning("Write queue full, refused write for station ID: " + request.stationId());
+                    return WriteResult.QUEUE_FULL;
+                }
+                if (!acceptWriteRequest(request)) {
+                    return WriteResult.STALE_BASE;
+                }
+            }
             logger.info("Added write request for station ID: " + request.stationId());
+            evictOldestEntries();
+        } catch (InterruptedException e) {
+            logger.log(Level.SEVERE, "Failed to add write request to the queue.", e);
+        }
+        return WriteResult.ACCEPTED;
+    }
 
-            // If more than MAX_ENTRIES entries, remove the oldest
-            if (lastUpdateTimestamps.size() > MAX_ENTRIES) {
-                Map.Entry<String, Long> oldestRequest = lastUpdateTimestamps.entrySet()
-                        .stream()
-                        .min(Map.Entry.comparingByValue())
-                        .orElse(null); // Handle case where map is empty
-                String oldestRequestID = oldestRequest.getKey();
-                deleteOldestEntry(oldestRequestID);
+    /**
+     * Queues a batch of full writes as one unit, so no other write is interleaved between them.
+     * The batch is refused whole if the write queue does not have room for all of it. Versions are taken
+     * while the batch is queued, so a refused batch uses none up.
+     *
+     * @param writes List - the writes to queue, in the order they should be applied.
+     * @param versions LongSupplier - the source of each queued write's version.
+     * @return List - the queued writes with their versions, or null if the batch was refused because the
+     *         write queue is full.
+     */
+    @Override
+    public List<WriteRequest> addWriteRequests(List<BatchWrite> writes, LongSupplier versions) {
+        List<WriteRequest> requests = new ArrayList<>(writes.size());
+        try {
+            synchronized (acceptLock) {
+                if (writeQueue.remainingCapacity() < writes.size()) {
+                    logger.warning("Write queue full, refused batch of " + writes.size() + " write requests");
+                    return null;
+                }
+                for (BatchWrite write : writes) {
+                    WriteRequest request = new WriteRequest(versions.getAsLong(), write.stationId(), write.data());
+                    acceptWriteRequest(request);
+                    requests.add(request);
+                }
             }
+            logger.info("Added batch of " + requests.size() + " write requests");
+            evictOldestEntries();
         } catch (InterruptedException e) {
-            logger.log(Level.SEVERE, "Failed to add write request to the queue.", e);
+            logger.log(Level.SEVERE, "Failed to add write request batch to the queue.", e);
+        }
+        return requests;
+    }
+
+    /**
+     * Queues a write replicated from a primary server, keeping the primary's version so every replica
+     * serves the same ETags. A write no newer than the version already held for the station is ignored,
+     * so a record sent both in a snapshot and in the update stream is applied once. A replicated write is
+     * never refused: while the write queue is full it waits, which holds back the primary's replication stream.
+     *
+     * @param stationId String - the station ID.
+     * @param version long - the version the primary assigned to the write.
+     * @param data WeatherDataSerializer - the station's full data at that version.
+     * @return boolean - false if the write was ignored as out of date.
+     */
+    @Override
+    public boolean addReplicatedWrite(String stationId, long version, WeatherDataSerializer data) {
+        try {
+            synchronized (acceptLock) {
+                Long currentVersion = stationVersions.get(stationId);
+                if (currentVersion != null && currentVersion >= version) {
+                    return false;
+                }
+                acceptWriteRequest(new WriteRequest(version, stationId, data));
+            }
+            evictOldestEntries();
+        } catch (InterruptedException e) {
+            logger.log(Level.SEVERE, "Failed to add replicated write to the queue.", e);
+        }
+        return true;
+    }
+
+    /**
+     * Removes a station and its file, as when it expires or is evicted.
+     *
+     * @param stationId String - the station ID.
+     * @return boolean - false if the station's file could not be deleted.
+     */
+    @Override
+    public boolean removeStation(String stationId) {
+        return deleteEntry(stationId, "Removed station ID: ");
+    }
+
+    // Must be called while holding acceptLock
+    private boolean acceptWriteRequest(WriteRequest request) throws InterruptedException {
+        if (request.isPatch()) {
+            Long currentVersion = stationVersions.get(request.stationId());
+            if (currentVersion == null || currentVersion != request.baseVersion()) {
+                logger.warning("Rejected patch for station ID: " + request.stationId() + " based on version "
+                        + request.baseVersion() + ", current version is " + currentVersion);
+                return false;
+            }
+        }
+        // Track the station before queueing, otherwise the writer could skip it as already removed
+        stationVersions.put(request.stationId(), request.timestamp());
+        lastUpdateTimestamps.put(request.stationId(), System.currentTimeMillis());
+        writeQueue.put(request);
+        return true;
+    }
+
+    // If more than maxEntries stations are held, remove the least recently updated ones
+    private void evictOldestEntries() {
+        while (lastUpdateTimestamps.size() > maxEntries) {
+            Map.Entry<String, Long> oldestRequest = lastUpdateTimestamps.entrySet()
+                    .stream()
+                    .min(Map.Entry.comparingByValue())
+                    .orElse(null); // Handle case where map is empty
+            if (oldestRequest == null) {
+                return;
+            }
+            if (!deleteOldestEntry(oldestRequest.getKey())) {
+                return;
+            }
         }
     }
 
@@ -113,7 +314,12 @@ public class FileManager {
             try {
                 // Blocks until a request is available to avoid race conditions
                 WriteRequest request = writeQueue.take();
+                long started = System.nanoTime();
+                writeStartedNanos = started;
                 processWriteRequest(request);
+                writeStartedNanos = 0;
+                long elapsed = System.nanoTime() - started;
+                writeNanos = writeNanos == 0 ? elapsed : 0.9 * writeNanos + 0.1 * elapsed;
             } catch (InterruptedException e) {
                 Thread.currentThread().interrupt();
                 logger.log(Level.SEVERE, "Write request processing interrupted.", e);
@@ -122,15 +328,69 @@ public class FileManager {
     }
 
     private void processWriteRequest(WriteRequest request) {
+        RequestEvents.WriteApplyEvent event = new RequestEvents.WriteApplyEvent();
+        event.begin();
+        applyWriteRequest(request);
+        if (event.shouldCommit()) {
+            event.stationId = request.stationId();
+            event.lamportTimestamp = request.timestamp();
+            event.durable = request.durable();
+            event.commit();
+        }
+    }
+
+    private void applyWriteRequest(WriteRequest request) {
+        // Removal takes the same lock, so a station cannot be evicted between the check and publishing its record
+        synchronized (lockFor(request.stationId())) {
+            applyWriteRequestLocked(request);
+        }
+    }
+
+    // Must be called while holding the station's lock
+    private void applyWriteRequestLocked(WriteRequest request) {
+        if (!stationVersions.containsKey(request.stationId())) {
+            // Evicted or expired while queued, writing it now would leave an untracked file behind
+            logger.info("Skipped write for removed station ID: " + request.stationId());
+            request.completion().complete(null); // Superseded by the removal, which is applied
+            return;
+        }
+        WeatherDataSerializer data = request.data();
+        if (request.isPatch()) {
+            // Writes are applied in queue order, so the applied record is the patch's base version
+            StationRecord base = getStationRecord(request.stationId());
+            data = base != null ? base.data().merge(data) : data;
+        }
         try {
             String filePath = storageDirectory + "/" + request.stationId() + ".json";
             File file = new File(filePath);
-            try (BufferedWriter writer = new BufferedWriter(new FileWriter(file))) {
-                writer.write(request.data().toJson()); // Writing JSON data to the file
+            boolean created = request.durable() && !file.exists();
+            FileOutputStream stream = new FileOutputStream(file);
+            try (BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(stream))) {
+                writer.write(data.toJson()); // Writing JSON data to the file
+                if (request.durable()) {
+                    writer.flush();
+                    stream.getFD().sync();
+                }
                 logger.info("Successfully wrote data for station ID: " + request.stationId());
             }
+            if (created) {
+                syncStorageDirectory(); // A new file is only durable once its directory entry is
+            }
+            StationRecord record = new StationRecord(request.timestamp(), data);
+            publish(request.stationId(), record);
+            request.completion().complete(null);
         } catch (IOException e) {
             logger.log(Level.SEVERE, "Failed to write data for station ID: " + request.stationId(), e);
+            request.completion().completeExceptionally(e);
+        }
+    }
+
+    private void syncStorageDirectory() {
+        try (FileChannel directory = FileChannel.open(storageDirectory.toPath(), StandardOpenOption.READ)) {
+            directory.force(true);
+        } catch (IOException e) {
+            // Not every platform can sync a directory, the file itself is synced regardless
+            logger.log(Level.FINE, "Could not sync storage directory", e);
         }
     }
 
@@ -149,33 +409,65 @@ public class FileManager {
 
     // Remove files that haven't been updated in the last 30 seconds
     private void cleanExpiredData() {
+        RequestEvents.ExpirySweepEvent event = new RequestEvents.ExpirySweepEvent();
+        event.begin();
         long currentTime = System.currentTimeMillis();
         long expirationTime = FILE_EXPIRATION_PERIOD; // 30 seconds rule
         for (Map.Entry<String, Long> entry : lastUpdateTimestamps.entrySet()) {
             String stationId = entry.getKey();
             long lastUpdated = entry.getValue();
-            if (currentTime - lastUpdated > expirationTime) {
-                deleteExpiredEntry(stationId);
+            event.checked++;
+            if (currentTime - lastUpdated > expirationTime && deleteExpiredEntry(stationId, currentTime)) {
+                event.expired++;
             }
         }
+        event.commit();
     }
 
-    private void deleteExpiredEntry(String stationId) {
-        File file = new File(storageDirectory, stationId + ".json");
-        if (file.exists() && file.delete()) {
-            lastUpdateTimestamps.remove(stationId);
-            logger.info("Removed expired file for station ID: " + stationId);
+    private boolean deleteExpiredEntry(String stationId, long currentTime) {
+        synchronized (lockFor(stationId)) {
+            // Checked again under the lock, as the station may have been written since the sweep reached it
+            Long lastUpdated = lastUpdateTimestamps.get(stationId);
+            if (lastUpdated == null || currentTime - lastUpdated <= FILE_EXPIRATION_PERIOD) {
+                return false;
+            }
+            File file = new File(storageDirectory, stationId + ".json");
+            if (file.exists() && file.delete()) {
+                removeEntry(stationId, "Removed expired file for station ID: ");
+                return true;
+            }
+            return false;
         }
     }
 
-    private void deleteOldestEntry(String stationId) {
-        File file = new File(storageDirectory, stationId + ".json");
-        if (file.exists() && file.delete()) {
-            lastUpdateTimestamps.remove(stationId);
-            logger.info("Removed oldest file to maintain entry limit for station ID: " + stationId);
+    private boolean deleteOldestEntry(String stationId) {
+        return deleteEntry(stationId, "Removed oldest file to maintain entry limit for station ID: ");
+    }
+
+    private boolean deleteEntry(String stationId, String logMessage) {
+        synchronized (lockFor(stationId)) {
+            // An acceptor tracks a station in both maps without the lock, so it is held if it is in either
+            if (!stationVersions.containsKey(stationId) && !lastUpdateTimestamps.containsKey(stationId)) {
+                return true; // Already removed by another thread
+            }
+            // The file may not be written yet if the station's first write is still queued
+            File file = new File(storageDirectory, stationId + ".json");
+            if (!file.exists() || file.delete()) {
+                removeEntry(stationId, logMessage);
+                return true;
+            }
+            logger.warning("Failed to remove file for station ID: " + stationId);
+            return false;
         }
     }
 
+    // Must be called while holding the station's lock
+    private void removeEntry(String stationId, String logMessage) {
+        stationVersions.remove(stationId);
+        unpublish(stationId);
+        logger.info(logMessage + stationId);
+    }
+
     // Process remaining requests during shutdown
     private void processRemainingRequests() {
         while (!writeQueue.isEmpty()) {
@@ -0,0 +1,208 @@
+package aggregationserver;
+
+import common.RequestEvents;
+import common.WeatherDataSerializer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.function.LongSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The in-memory engine of the StationStore, for deployments where stations expire too quickly for writing
+ * them to disk to be worth it. Nothing is persisted, so stations do not survive a restart.
+ *
+ * Writes are applied on the calling thread instead of being queued for a writer thread, so a write is
+ * visible to GETs by the time it is accepted and the store is never full. Writes to different stations are
+ * applied concurrently, while writes to one station are serialized by a striped lock so listeners see each
+ * station's changes in order. A durable write is complete once applied, as there is no disk to sync.
+ */
+public class MemoryStationStore extends AbstractStationStore {
+
+    private static final Logger logger = Logger.getLogger(MemoryStationStore.class.getName());
+    private static final long EXPIRATION_PERIOD = 30 * 1000; // 30 seconds
+    private static final long CLEANUP_PERIOD = 1000; // 1 seconds - Activates Cleanup daemon
+
+    private final Object evictionLock = new Object();
+    private final int maxEntries;
+    private volatile boolean isRunning;
+
+    public MemoryStationStore() {
+        this(DEFAULT_MAX_ENTRIES);
+    }
+
+    /**
+     * @param maxEntries int - the number of stations kept before the least recently updated is evicted.
+     */
+    public MemoryStationStore(int maxEntries) {
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * Does nothing, as writes are applied as they are accepted so there is never a queue to bound.
+     */
+    @Override
+    public void setMaxQueuedWrites(int maxQueuedWrites) {
+    }
+
+    @Override
+    public void start() {
+        isRunning = true;
+        Thread cleanupDaemon = new Thread(this::startCleanupDaemon);
+        cleanupDaemon.setDaemon(true); // Background thread
+        cleanupDaemon.start();
+
+        logger.info("MemoryStationStore started with cleanup daemon.");
+    }
+
+    @Override
+    public void shutdown() {
+        isRunning = false;
+        logger.info("MemoryStationStore is shutting down...");
+    }
+
+    @Override
+    public WriteResult addWriteRequest(WriteRequest request) {
+        synchronized (lockFor(request.stationId())) {
+            WeatherDataSerializer data = request.data();
+            if (request.isPatch()) {
+                long currentVersion = appliedVersion(request.stationId());
+                if (currentVersion != request.baseVersion()) {
+                    logger.warning("Rejected patch for station ID: " + request.stationId() + " based on version "
+                            + request.baseVersion() + ", current version is " + currentVersion);
+                    return WriteResult.STALE_BASE;
+                }
+                data = getStationRecord(request.stationId()).data().merge(data);
+            }
+            apply(request, data);
+        }
+        evictOldestEntries();
+        return WriteResult.ACCEPTED;
+    }
+
+    @Override
+    public List<WriteRequest> addWriteRequests(List<BatchWrite> writes, LongSupplier versions) {
+        List<WriteRequest> requests = new ArrayList<>(writes.size());
+        for (BatchWrite write : writes) {
+            WriteRequest request = new WriteRequest(versions.getAsLong(), write.stationId(), write.data());
+            synchronized (lockFor(request.stationId())) {
+                apply(request, request.data());
+            }
+            requests.add(request);
+        }
+        logger.info("Applied batch of " + requests.size() + " write requests");
+        evictOldestEntries();
+        return requests;
+    }
+
+    /**
+     * @return int - no limit, as there is no queue a batch has to fit in.
+     */
+    @Override
+    public int getMaxBatchSize() {
+        return Integer.MAX_VALUE;
+    }
+
+    @Override
+    public boolean addReplicatedWrite(String stationId, long version, WeatherDataSerializer data) {
+        synchronized (lockFor(stationId)) {
+            if (appliedVersion(stationId) >= version) {
+                return false;
+            }
+            apply(new WriteRequest(version, stationId, data), data);
+        }
+        evictOldestEntries();
+        return true;
+    }
+
+    @Override
+    public boolean removeStation(String stationId) {
+        synchronized (lockFor(stationId)) {
+            if (hasAppliedRecord(stationId)) {
+                removeEntry(stationId, "Removed station ID: ");
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return int - always 1, as writes are never refused.
+     */
+    @Override
+    public int getRetryAfterSeconds() {
+        return 1;
+    }
+
+    // Must be called while holding the station's lock
+    private void apply(WriteRequest request, WeatherDataSerializer data) {
+        RequestEvents.WriteApplyEvent event = new RequestEvents.WriteApplyEvent();
+        event.begin();
+        lastUpdateTimestamps.put(request.stationId(), System.currentTimeMillis());
+        publish(request.stationId(), new StationRecord(request.timestamp(), data));
+        request.completion().complete(null);
+        if (event.shouldCommit()) {
+            event.stationId = request.stationId();
+            event.lamportTimestamp = request.timestamp();
+            event.durable = request.durable();
+            event.commit();
+        }
+    }
+
+    // Must be called while holding the station's lock
+    private void removeEntry(String stationId, String logMessage) {
+        unpublish(stationId);
+        logger.fine(logMessage + stationId);
+    }
+
+    // If more than maxEntries stations are held, remove the least recently updated ones
+    private void evictOldestEntries() {
+        synchronized (evictionLock) {
+            while (lastUpdateTimestamps.size() > maxEntries) {
+                Map.Entry<String, Long> oldest = lastUpdateTimestamps.entrySet()
+                        .stream()
+                        .min(Map.Entry.comparingByValue())
+                        .orElse(null);
+                if (oldest == null) {
+                    return;
+                }
+                synchronized (lockFor(oldest.getKey())) {
+                    if (hasAppliedRecord(oldest.getKey())) {
+                        removeEntry(oldest.getKey(), "Removed oldest station to maintain entry limit, station ID: ");
+                    }
+                }
+            }
+        }
+    }
+
+    // Remove stations that haven't been updated in 30 seconds
+    private void startCleanupDaemon() {
+        while (isRunning) {
+            try {
+                Thread.sleep(CLEANUP_PERIOD);
+                cleanExpiredData();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                logger.log(Level.SEVERE, "Cleanup daemon interrupted.", e);
+            }
+        }
+    }
+
+    private void cleanExpiredData() {
+        RequestEvents.ExpirySweepEvent event = new RequestEvents.ExpirySweepEvent();
+        event.begin();
+        for (String stationId : lastUpdateTimestamps.keySet()) {
+            event.checked++;
+            synchronized (lockFor(stationId)) {
+                // Checked under the lock, as the station may be written between the sweep reaching it and locking
+                Long lastUpdated = lastUpdateTimestamps.get(stationId);
+                if (lastUpdated != null && System.currentTimeMillis() - lastUpdated > EXPIRATION_PERIOD) {
+                    removeEntry(stationId, "Removed expired station ID: ");
+                    event.expired++;
+                }
+            }
+        }
+        event.commit();
+    }
+}
@@ -0,0 +1,126 @@
+package aggregationserver;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Limits the rate of PUTs from each Content Server, keyed by its Content-Server-Id, so one misbehaving
+ * feeder cannot starve everyone else's writes. Each Content Server has a token bucket holding up to burst
+ * tokens, refilled at rate tokens per second, and every PUT takes one token, a batch PUT included. A
+ * default limit applies to every Content Server unless it has an override; without a default only
+ * overridden ones are limited.
+ *
+ * A bucket is kept as the single time at which it will next be full (the generic cell rate algorithm), so
+ * taking a token is one compare-and-set and no lock is held. Buckets that have been full for IDLE_PERIOD
+ * are reclaimed by whichever request next finds a sweep due, so the limiter only holds buckets for
+ * Content Servers that have sent recently.
+ */
+class RateLimiter {
+
+    static final long IDLE_PERIOD = 60 * 1000; // Reclaim buckets full for 1 minute
+    private static final long NANOS_PER_SECOND = 1_000_000_000L;
+    private static final long IDLE_NANOS = IDLE_PERIOD * 1_000_000;
+
+    private volatile Limit defaultLimit; // Null to only limit overridden Content Servers
+    private final Map<String, Limit> overrides = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Bucket> buckets = new ConcurrentHashMap<>();
+    private final AtomicLong nextSweepNanos = new AtomicLong(System.nanoTime() + IDLE_NANOS);
+
+    /**
+     * A refill rate and bucket size, held as the nanoseconds one token takes to refill and the nanoseconds
+     * a full bucket takes to refill from empty.
+     */
+    record Limit(double rate, int burst, long intervalNanos, long capacityNanos) {
+
+        /**
+         * @param rate double - tokens refilled per second, more than 0.
+         * @param burst int - the most tokens held, at least 1.
+         * @return Limit - the limit.
+         */
+        static Limit of(double rate, int burst) {
+            if (rate <= 0 || burst < 1) {
+                throw new IllegalArgumentException("Rate limit needs a positive rate and a burst of at least 1");
+            }
+            long interval = Math.max(1, (long) (NANOS_PER_SECOND / rate));
+            return new Limit(rate, burst, interval, interval * burst);
+        }
+    }
+
+    // The time the bucket is next full, and how many PUTs it has refused
+    private record Bucket(AtomicLong fullAtNanos, LongAdder limited) {
+    }
+
+    /**
+     * @param defaultLimit Limit - the limit of Content Servers without an override, null for none.
+     */
+    void setDefaultLimit(Limit defaultLimit) {
+        this.defaultLimit = defaultLimit;
+    }
+
+    /**
+     * @param contentServerId String - the Content Server to give its own limit.
+     * @param limit Limit - its limit, in place of the default.
+     */
+    void setOverride(String contentServerId, Limit limit) {
+        overrides.put(contentServerId, limit);
+    }
+
+    /**
+     * Takes a token from the Content Server's bucket.
+     *
+     * @param contentServerId String - the Content Server sending a PUT.
+     * @return long - 0 if a token was taken, otherwise the nanoseconds until one will be available.
+     */
+    long tryAcquire(String contentServerId) {
+        long now = System.nanoTime();
+        sweepIfDue(now);
+        Limit limit = getLimit(contentServerId);
+        if (limit == null) {
+            return 0;
+        }
+        Bucket bucket = buckets.computeIfAbsent(contentServerId, id -> new Bucket(new AtomicLong(now), new LongAdder()));
+        while (true) {
+            long fullAt = bucket.fullAtNanos().get();
+            long next = Math.max(fullAt, now) + limit.intervalNanos();
+            long wait = next - now - limit.capacityNanos();
+            if (wait > 0) {
+                bucket.limited().increment();
+                return wait;
+            }
+            if (bucket.fullAtNanos().compareAndSet(fullAt, next)) {
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * @param contentServerId String - the Content Server.
+     * @return Limit - its override, else the default limit, or null if it is not limited.
+     */
+    Limit getLimit(String contentServerId) {
+        return overrides.getOrDefault(contentServerId, defaultLimit);
+    }
+
+    /**
+     * @return Map - the PUTs refused so far for each Content Server with a bucket.
+     */
+    Map<String, Long> getLimitedCounts() {
+        Map<String, Long> counts = new TreeMap<>();
+        buckets.forEach((id, bucket) -> counts.put(id, bucket.limited().sum()));
+        return counts;
+    }
+
+    // Removes buckets that have been full for IDLE_PERIOD, at most once per IDLE_PERIOD
+    private void sweepIfDue(long now) {
+        long due = nextSweepNanos.get();
+        if (now - due < 0 || !nextSweepNanos.compareAndSet(due, now + IDLE_NANOS)) {
+            return;
+        }
+        long idleSince = now - IDLE_NANOS;
+        // A token taken from a bucket as it is removed is lost, letting at most one extra PUT through
+        buckets.entrySet().removeIf(entry -> entry.getValue().fullAtNanos().get() - idleSince < 0);
+    }
+}
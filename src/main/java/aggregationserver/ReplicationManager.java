@@ -0,0 +1,205 @@
+package aggregationserver;
+
+import common.*;
+
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Ships a primary server's applied write stream to its backup servers.
+ * Each backup has its own persistent connection and sender thread, so a slow or unreachable backup never
+ * delays writes on the primary or the other backups. Every (re)connection starts with a snapshot of all
+ * stations, after which applied updates and removals are sent in batches as they happen. A heartbeat
+ * (an empty batch) is sent when there is nothing to replicate, so backups can detect a stopped primary.
+ *
+ * The replication log is a PUT to REPLICATION_PATH with one entry per line:
+ *   update STATION_ID VERSION {compact json}
+ *   remove STATION_ID
+ * Station IDs are URL-encoded. A snapshot batch carries a Replication-Snapshot header, and backups drop
+ * every station it does not contain.
+ */
+class ReplicationManager implements StationUpdateListener {
+
+    private static final Logger logger = Logger.getLogger(ReplicationManager.class.getName());
+    public static final String REPLICATION_PATH = "/replication";
+    public static final long HEARTBEAT_PERIOD = 1000; // 1 second between batches when idle
+    private static final int MAX_BATCH = 1000; // Log entries per replication request
+    private static final int MAX_QUEUED = 100_000; // Beyond this a backup is resynchronised with a snapshot
+    private static final int CONNECTION_TIMEOUT = 5 * 1000; // 5 seconds
+    private static final long RECONNECT_DELAY = 1000; // 1 second between attempts to reach a backup
+
+    private final StationStore stationStore;
+    private final LamportClock lamportClock;
+    private final List<BackupLink> links;
+    private volatile boolean isRunning;
+
+    /**
+     * @param stationStore StationStore - the primary's store, read for snapshots.
+     * @param lamportClock LamportClock - the primary's clock, sent with every batch.
+     * @param backups List - "host:port" addresses of the backup servers.
+     */
+    ReplicationManager(StationStore stationStore, LamportClock lamportClock, List<String> backups) {
+        this.stationStore = stationStore;
+        this.lamportClock = lamportClock;
+        this.links = new ArrayList<>();
+        for (String backup : backups) {
+            String[] parts = backup.trim().split(":");
+            links.add(new BackupLink(parts[0], Integer.parseInt(parts[1])));
+        }
+    }
+
+    void start() {
+        isRunning = true;
+        for (BackupLink link : links) {
+            Thread sender = new Thread(link, "replication-" + link.address);
+            sender.setDaemon(true);
+            sender.start();
+        }
+        logger.info("Replicating to " + links.size() + " backup servers");
+    }
+
+    void shutdown() {
+        isRunning = false;
+    }
+
+    @Override
+    public void onStationUpdated(String stationId, StationRecord record) {
+        enqueue(updateEntry(stationId, record));
+    }
+
+    @Override
+    public void onStationRemoved(String stationId) {
+        enqueue("remove " + encode(stationId));
+    }
+
+    private void enqueue(String entry) {
+        for (BackupLink link : links) {
+            link.offer(entry);
+        }
+    }
+
+    /**
+     * @param stationId String - the station ID.
+     * @param record StationRecord - the station's record.
+     * @return String - the replication log entry that recreates the record with its version.
+     */
+    static String updateEntry(String stationId, StationRecord record) {
+        return "update " + encode(stationId) + " " + record.version() + " " + record.data().toCompactJson();
+    }
+
+    private static String encode(String stationId) {
+        return URLEncoder.encode(stationId, StandardCharsets.UTF_8);
+    }
+
+    // The replication stream to one backup server
+    private class BackupLink implements Runnable {
+        final String address;
+        private final HttpConnection connection;
+        private final BlockingQueue<String> pending;
+        // While set, updates are not queued, the snapshot sent on (re)connection will include them
+        private volatile boolean needsSnapshot;
+
+        BackupLink(String host, int port) {
+            this.address = host + ":" + port;
+            this.connection = new HttpConnection(host, port, CONNECTION_TIMEOUT);
+            this.pending = new LinkedBlockingQueue<>(MAX_QUEUED);
+            this.needsSnapshot = true;
+        }
+
+        void offer(String entry) {
+            if (!needsSnapshot && !pending.offer(entry)) {
+                logger.warning("Replication backlog to " + address + " is full, resynchronising with a snapshot");
+                needsSnapshot = true;
+            }
+        }
+
+        @Override
+        public void run() {
+            while (isRunning) {
+                try {
+                    if (needsSnapshot) {
+                        sendSnapshot();
+                    }
+                    List<String> batch = new ArrayList<>();
+                    String first = pending.poll(HEARTBEAT_PERIOD, TimeUnit.MILLISECONDS);
+                    if (first != null) {
+                        batch.add(first);
+                        pending.drainTo(batch, MAX_BATCH - 1);
+                    }
+                    if (needsSnapshot) {
+                        continue; // The backlog overflowed while waiting, this batch is superseded
+                    }
+                    send(batch, false);
+                } catch (IOException e) {
+                    logger.log(Level.WARNING, "Lost replication connection to " + address, e);
+                    connection.close();
+                    needsSnapshot = true;
+                    sleep(RECONNECT_DELAY);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            connection.close();
+        }
+
+        private void sendSnapshot() throws IOException {
+            // Start queueing before reading the store, so nothing applied after the snapshot is missed
+            pending.clear();
+            needsSnapshot = false;
+            List<String> snapshot = new ArrayList<>();
+            for (String stationId : stationStore.getStationIds("")) {
+                StationRecord record = stationStore.getStationRecord(stationId);
+                if (record != null) {
+                    snapshot.add(updateEntry(stationId, record));
+                }
+            }
+            try {
+                send(snapshot, true);
+            } catch (IOException e) {
+                needsSnapshot = true;
+                throw e;
+            }
+            logger.info("Sent snapshot of " + snapshot.size() + " stations to backup " + address);
+        }
+
+        private void send(List<String> entries, boolean snapshot) throws IOException {
+            StringBuilder body = new StringBuilder();
+            for (String entry : entries) {
+                body.append(entry).append("\n");
+            }
+            HttpWriter request = new HttpWriter()
+                    .setMethod("PUT")
+                    .setPath(REPLICATION_PATH)
+                    .setHttpVersion("HTTP/1.1")
+                    .addHeader("Lamport-Timestamp", String.valueOf(lamportClock.getTime()))
+                    .setBody(body.toString())
+                    .addHeader("Content-Type", "text/plain");
+            if (snapshot) {
+                request.addHeader("Replication-Snapshot", "true");
+            }
+            HttpReader response = connection.send(request);
+            if (response.getStatusCode() != StatusCodes.OK) {
+                throw new IOException("Backup " + address + " refused replication: "
+                        + response.getStatusCode() + " " + response.getStatusText());
+            }
+        }
+
+        private void sleep(long millis) {
+            try {
+                Thread.sleep(millis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                isRunning = false;
+            }
+        }
+    }
+}
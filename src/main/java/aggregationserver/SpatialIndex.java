@@ -0,0 +1,222 @@
+package aggregationserver;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Indexes stations by their "lat" and "lon" fields on a grid of CELL_DEGREES cells, so nearest-station
+ * and bounding-box queries only look at the cells around the query instead of every station.
+ * The index is updated as writes are applied and as stations expire or are evicted. Stations without a
+ * valid position are left out.
+ */
+class SpatialIndex implements StationUpdateListener {
+
+    private static final double CELL_DEGREES = 1.0;
+    private static final int LAT_CELLS = (int) Math.ceil(180 / CELL_DEGREES);
+    private static final int LON_CELLS = (int) Math.ceil(360 / CELL_DEGREES);
+    private static final double EARTH_RADIUS_KM = 6371.0;
+    private static final double KM_PER_DEGREE = Math.PI * EARTH_RADIUS_KM / 180;
+
+    private final ConcurrentHashMap<Long, Set<String>> cells = new ConcurrentHashMap<>(); // Non-empty cells only
+    private final ConcurrentHashMap<String, Position> positions = new ConcurrentHashMap<>();
+
+    private record Position(double lat, double lon, long cell) {
+    }
+
+    /**
+     * A station found by a nearest-station query.
+     *
+     * @param stationId String - the station ID.
+     * @param distanceKm double - the great-circle distance from the query point in kilometres.
+     */
+    record Neighbour(String stationId, double distanceKm) {
+    }
+
+    /**
+     * @param lat double - the latitude of the query point.
+     * @param lon double - the longitude of the query point.
+     * @param k int - the number of stations to find.
+     * @return List - the k stations nearest the point, nearest first.
+     */
+    List<Neighbour> nearest(double lat, double lon, int k) {
+        Map<String, Neighbour> found = new HashMap<>();
+        if (k <= 0 || positions.isEmpty()) {
+            return List.of();
+        }
+        int centreLat = latCell(lat);
+        int centreLon = lonCell(lon);
+        // Rings of cells around the point's cell, until no closer station can lie in a further ring
+        for (int ring = 0; ring <= Math.max(LAT_CELLS, LON_CELLS / 2); ring++) {
+            for (int dLat = -ring; dLat <= ring; dLat++) {
+                int rowLat = centreLat + dLat;
+                if (rowLat < 0 || rowLat >= LAT_CELLS) {
+                    continue;
+                }
+                // Inner rows only hold the ring's two edge cells, the first and last rows hold all of it
+                int step = Math.abs(dLat) == ring ? 1 : Math.max(1, 2 * ring);
+                for (int dLon = -ring; dLon <= ring; dLon += step) {
+                    collect(cellKey(rowLat, Math.floorMod(centreLon + dLon, LON_CELLS)), lat, lon, found);
+                }
+            }
+            if (found.size() >= k && kthDistance(found, k) <= ringLowerBoundKm(lat, ring)) {
+                break;
+            }
+        }
+        List<Neighbour> nearest = new ArrayList<>(found.values());
+        nearest.sort(Comparator.comparingDouble(Neighbour::distanceKm).thenComparing(Neighbour::stationId));
+        return nearest.size() > k ? nearest.subList(0, k) : nearest;
+    }
+
+    /**
+     * @param minLat double - the southern edge.
+     * @param minLon double - the western edge, greater than maxLon for a box crossing the antimeridian.
+     * @param maxLat double - the northern edge.
+     * @param maxLon double - the eastern edge.
+     * @return List - the IDs of the stations within the box, sorted.
+     */
+    List<String> within(double minLat, double minLon, double maxLat, double maxLon) {
+        int fromLat = latCell(minLat);
+        int toLat = latCell(maxLat);
+        int fromLon = Math.min(LON_CELLS - 1, (int) Math.floor((minLon + 180) / CELL_DEGREES));
+        int toLon = Math.min(LON_CELLS - 1, (int) Math.floor((maxLon + 180) / CELL_DEGREES));
+        // A box crossing the antimeridian runs from its western edge around to its eastern edge
+        int lonSpan = minLon <= maxLon ? toLon - fromLon + 1 : Math.min(LON_CELLS, LON_CELLS - fromLon + toLon + 1);
+        List<String> stations = new ArrayList<>();
+        long boxCells = (long) (toLat - fromLat + 1) * lonSpan;
+        if (boxCells > cells.size()) {
+            // A large box holds more cells than are in use, so the cells in use are checked instead
+            for (Set<String> cell : cells.values()) {
+                collectWithin(cell, minLat, minLon, maxLat, maxLon, stations);
+            }
+        } else {
+            for (int rowLat = fromLat; rowLat <= toLat; rowLat++) {
+                for (int i = 0; i < lonSpan; i++) {
+                    Set<String> cell = cells.get(cellKey(rowLat, (fromLon + i) % LON_CELLS));
+                    if (cell != null) {
+                        collectWithin(cell, minLat, minLon, maxLat, maxLon, stations);
+                    }
+                }
+            }
+        }
+        stations.sort(null);
+        return stations;
+    }
+
+    @Override
+    public synchronized void onStationUpdated(String stationId, StationRecord record) {
+        Double lat = parse(record.data().getData().get("lat"), 90);
+        Double lon = parse(record.data().getData().get("lon"), 180);
+        if (lat == null || lon == null) {
+            onStationRemoved(stationId);
+            return;
+        }
+        long cell = cellKey(latCell(lat), lonCell(lon));
+        Position previous = positions.put(stationId, new Position(lat, lon, cell));
+        if (previous == null || previous.cell() != cell) {
+            if (previous != null) {
+                removeFromCell(previous.cell(), stationId);
+            }
+            cells.computeIfAbsent(cell, key -> ConcurrentHashMap.newKeySet()).add(stationId);
+        }
+    }
+
+    @Override
+    public synchronized void onStationRemoved(String stationId) {
+        Position previous = positions.remove(stationId);
+        if (previous != null) {
+            removeFromCell(previous.cell(), stationId);
+        }
+    }
+
+    private void removeFromCell(long cell, String stationId) {
+        cells.computeIfPresent(cell, (key, stations) -> {
+            stations.remove(stationId);
+            return stations.isEmpty() ? null : stations;
+        });
+    }
+
+    private void collect(long cell, double lat, double lon, Map<String, Neighbour> found) {
+        Set<String> stations = cells.get(cell);
+        if (stations == null) {
+            return;
+        }
+        for (String stationId : stations) {
+            Position position = positions.get(stationId);
+            if (position != null) {
+                found.put(stationId, new Neighbour(stationId, distanceKm(lat, lon, position.lat(), position.lon())));
+            }
+        }
+    }
+
+    private void collectWithin(Set<String> cell, double minLat, double minLon, double maxLat, double maxLon,
+                               List<String> stations) {
+        for (String stationId : cell) {
+            Position position = positions.get(stationId);
+            boolean inLon = minLon <= maxLon
+                    ? position != null && position.lon() >= minLon && position.lon() <= maxLon
+                    : position != null && (position.lon() >= minLon || position.lon() <= maxLon);
+            if (inLon && position.lat() >= minLat && position.lat() <= maxLat) {
+                stations.add(stationId);
+            }
+        }
+    }
+
+    private static double kthDistance(Map<String, Neighbour> found, int k) {
+        return found.values().stream()
+                .mapToDouble(Neighbour::distanceKm)
+                .sorted()
+                .skip(k - 1)
+                .findFirst()
+                .orElse(Double.MAX_VALUE);
+    }
+
+    // No station outside the first ring + 1 rings of cells can be closer than this
+    private static double ringLowerBoundKm(double lat, int ring) {
+        double degrees = ring * CELL_DEGREES;
+        // Longitude degrees shrink towards the poles, so use the highest latitude the next ring can reach
+        double highestLat = Math.min(90, Math.abs(lat) + degrees + CELL_DEGREES);
+        double lonBound = 2 * EARTH_RADIUS_KM
+                * Math.asin(Math.cos(Math.toRadians(highestLat)) * Math.sin(Math.toRadians(Math.min(degrees, 180)) / 2));
+        return Math.min(degrees * KM_PER_DEGREE, lonBound);
+    }
+
+    /**
+     * @return double - the great-circle (haversine) distance between two points in kilometres.
+     */
+    static double distanceKm(double lat1, double lon1, double lat2, double lon2) {
+        double dLat = Math.toRadians(lat2 - lat1);
+        double dLon = Math.toRadians(lon2 - lon1);
+        double a = Math.sin(dLat / 2) * Math.sin(dLat / 2)
+                + Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2)) * Math.sin(dLon / 2) * Math.sin(dLon / 2);
+        return 2 * EARTH_RADIUS_KM * Math.asin(Math.min(1, Math.sqrt(a)));
+    }
+
+    private static int latCell(double lat) {
+        return Math.min(LAT_CELLS - 1, (int) Math.floor((lat + 90) / CELL_DEGREES));
+    }
+
+    private static int lonCell(double lon) {
+        return Math.floorMod((int) Math.floor((lon + 180) / CELL_DEGREES), LON_CELLS);
+    }
+
+    private static long cellKey(int latCell, int lonCell) {
+        return (long) latCell * LON_CELLS + lonCell;
+    }
+
+    private static Double parse(String value, double limit) {
+        if (value == null) {
+            return null;
+        }
+        try {
+            double parsed = Double.parseDouble(value);
+            return parsed >= -limit && parsed <= limit ? parsed : null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,274 @@
+package aggregationserver;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Maintains min, max and mean of numeric fields per state as writes are applied, so dashboards get them
+ * without fetching every station. Two kinds of window are kept:
+ *   - CURRENT covers the latest value of every station held. A station's previous value is retracted when it
+ *     updates, and its value is retracted when it expires or is evicted.
+ *   - A time window covers every observation applied in the last window milliseconds. It is split into
+ *     BUCKETS buckets that expire as time passes, so the window slides with a precision of window / BUCKETS.
+ * Answering a query merges at most BUCKETS buckets per field, however many stations there are.
+ */
+class StateAggregates implements StationUpdateListener {
+
+    public static final String CURRENT = "current";
+    public static final List<String> FIELDS = List.of("air_temp", "press", "wind_spd_kmh");
+    public static final List<Long> DEFAULT_WINDOWS = List.of(60_000L, 300_000L, 900_000L); // 1, 5 and 15 minutes
+    private static final int BUCKETS = 60;
+
+    private final ConcurrentSkipListMap<String, StateStats> states = new ConcurrentSkipListMap<>();
+    private final ConcurrentHashMap<String, Contribution> contributions = new ConcurrentHashMap<>();
+    private List<Long> windows = DEFAULT_WINDOWS;
+
+    // A station's values in the current window, with the state they were counted under
+    private record Contribution(String state, Double[] values) {
+    }
+
+    /**
+     * Sets the time windows. Must be called before any station is recorded.
+     *
+     * @param windows List - the window lengths in milliseconds.
+     */
+    void setWindows(List<Long> windows) {
+        for (long window : windows) {
+            if (window < BUCKETS) {
+                throw new IllegalArgumentException("Aggregate windows must be at least " + BUCKETS + " ms");
+            }
+        }
+        this.windows = List.copyOf(windows);
+    }
+
+    List<Long> getWindows() {
+        return windows;
+    }
+
+    /**
+     * @param window String - CURRENT, or one of the configured window lengths in milliseconds.
+     * @return boolean - true if aggregates are kept for the window.
+     */
+    boolean hasWindow(String window) {
+        if (CURRENT.equals(window)) {
+            return true;
+        }
+        try {
+            return windows.contains(Long.parseLong(window));
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @param window String - CURRENT, or one of the configured window lengths in milliseconds.
+     * @param state String - the state to report, or null for every state.
+     * @return List - one map of aggregates per state with data in the window, holding "state", "window", and
+     *         FIELD_count, FIELD_min, FIELD_max and FIELD_mean for each field with values.
+     */
+    List<Map<String, String>> query(String window, String state) {
+        long now = System.currentTimeMillis();
+        Map<String, StateStats> selected = state != null
+                ? (states.containsKey(state) ? Map.of(state, states.get(state)) : Map.of())
+                : states;
+        List<Map<String, String>> results = new ArrayList<>();
+        for (Map.Entry<String, StateStats> entry : selected.entrySet()) {
+            Map<String, String> result = new LinkedHashMap<>();
+            result.put("state", entry.getKey());
+            result.put("window", window);
+            boolean hasValues = false;
+            for (int field = 0; field < FIELDS.size(); field++) {
+                Stats stats = CURRENT.equals(window)
+                        ? entry.getValue().current[field].stats()
+                        : entry.getValue().windowed(Long.parseLong(window))[field].stats(now);
+                if (stats.count > 0) {
+                    hasValues = true;
+                    String name = FIELDS.get(field);
+                    result.put(name + "_count", String.valueOf(stats.count));
+                    result.put(name + "_min", String.valueOf(stats.min));
+                    result.put(name + "_max", String.valueOf(stats.max));
+                    result.put(name + "_mean", String.valueOf(Math.round(stats.sum / stats.count * 100) / 100.0));
+                }
+            }
+            if (hasValues) {
+                results.add(result);
+            }
+        }
+        return results;
+    }
+
+    @Override
+    public void onStationUpdated(String stationId, StationRecord record) {
+        Map<String, String> data = record.data().getData();
+        String state = data.get("state");
+        retract(stationId);
+        if (state == null || state.isEmpty()) {
+            return;
+        }
+        Double[] values = new Double[FIELDS.size()];
+        for (int field = 0; field < values.length; field++) {
+            values[field] = parse(data.get(FIELDS.get(field)));
+        }
+        StateStats stats = states.computeIfAbsent(state, name -> new StateStats());
+        stats.add(values, System.currentTimeMillis());
+        contributions.put(stationId, new Contribution(state, values));
+    }
+
+    @Override
+    public void onStationRemoved(String stationId) {
+        retract(stationId);
+    }
+
+    private void retract(String stationId) {
+        Contribution contribution = contributions.remove(stationId);
+        if (contribution != null) {
+            states.get(contribution.state()).retract(contribution.values());
+        }
+    }
+
+    private static Double parse(String value) {
+        if (value == null) {
+            return null;
+        }
+        try {
+            double parsed = Double.parseDouble(value);
+            return Double.isFinite(parsed) ? parsed : null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    // Count, sum, min and max, which merge across buckets without revisiting values
+    private static class Stats {
+        long count;
+        double sum;
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+
+        void add(double value) {
+            count++;
+            sum += value;
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+        }
+
+        void merge(Stats other) {
+            count += other.count;
+            sum += other.sum;
+            min = Math.min(min, other.min);
+            max = Math.max(max, other.max);
+        }
+    }
+
+    // Every aggregate of one state
+    private class StateStats {
+        final CurrentStats[] current = new CurrentStats[FIELDS.size()];
+        private final Map<Long, WindowedStats[]> windowed = new LinkedHashMap<>();
+
+        StateStats() {
+            for (int field = 0; field < current.length; field++) {
+                current[field] = new CurrentStats();
+            }
+            for (long window : windows) {
+                WindowedStats[] fields = new WindowedStats[FIELDS.size()];
+                for (int field = 0; field < fields.length; field++) {
+                    fields[field] = new WindowedStats(window);
+                }
+                windowed.put(window, fields);
+            }
+        }
+
+        WindowedStats[] windowed(long window) {
+            return windowed.get(window);
+        }
+
+        void add(Double[] values, long now) {
+            for (int field = 0; field < values.length; field++) {
+                if (values[field] != null) {
+                    current[field].add(values[field]);
+                    for (WindowedStats[] fields : windowed.values()) {
+                        fields[field].add(values[field], now);
+                    }
+                }
+            }
+        }
+
+        void retract(Double[] values) {
+            for (int field = 0; field < values.length; field++) {
+                if (values[field] != null) {
+                    current[field].remove(values[field]);
+                }
+            }
+        }
+    }
+
+    // The latest value of every station, where values can be removed again, so min and max are kept sorted
+    private static class CurrentStats {
+        private final TreeMap<Double, Integer> values = new TreeMap<>(); // Value to number of stations holding it
+        private long count;
+        private double sum;
+
+        synchronized void add(double value) {
+            values.merge(value, 1, Integer::sum);
+            count++;
+            sum += value;
+        }
+
+        synchronized void remove(double value) {
+            values.computeIfPresent(value, (key, stations) -> stations > 1 ? stations - 1 : null);
+            count--;
+            // Recomputed from scratch once empty, so floating-point error cannot build up forever
+            sum = count == 0 ? 0 : sum - value;
+        }
+
+        synchronized Stats stats() {
+            Stats stats = new Stats();
+            if (count > 0) {
+                stats.count = count;
+                stats.sum = sum;
+                stats.min = values.firstKey();
+                stats.max = values.lastKey();
+            }
+            return stats;
+        }
+    }
+
+    // Observations applied in the last window milliseconds, in a ring of buckets that are reset when reused
+    private static class WindowedStats {
+        private final long bucketMillis;
+        private final long[] bucketIds = new long[BUCKETS];
+        private final Stats[] buckets = new Stats[BUCKETS];
+
+        WindowedStats(long window) {
+            this.bucketMillis = window / BUCKETS;
+            Arrays.fill(bucketIds, -1);
+        }
+
+        synchronized void add(double value, long now) {
+            long bucketId = now / bucketMillis;
+            int index = (int) (bucketId % BUCKETS);
+            if (bucketIds[index] != bucketId) {
+                bucketIds[index] = bucketId;
+                buckets[index] = new Stats();
+            }
+            buckets[index].add(value);
+        }
+
+        synchronized Stats stats(long now) {
+            long oldest = now / bucketMillis - BUCKETS + 1;
+            Stats stats = new Stats();
+            for (int index = 0; index < BUCKETS; index++) {
+                if (bucketIds[index] >= oldest) {
+                    stats.merge(buckets[index]);
+                }
+            }
+            return stats;
+        }
+    }
+}
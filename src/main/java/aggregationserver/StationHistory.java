@@ -0,0 +1,254 @@
+package aggregationserver;
+
+import common.ObservationBlock;
+import common.WeatherDataSerializer;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Logger;
+
+/**
+ * Keeps the last observations of every station, so past values can be queried by time range while the
+ * station file and the response cache only hold the latest one.
+ *
+ * Observations are compressed in blocks of BLOCK_ROWS with ObservationBlock, which stores a typical
+ * observation in tens of bytes. Each station has a direct (off-heap) buffer used as a circular log of its
+ * sealed blocks, while the block still being filled is kept on the heap. Blocks are dropped by rows, once they
+ * only hold observations beyond the depth, so every station always holds its last depth observations. A buffer
+ * too small for them is replaced by one twice the size, so memory is bounded by bufferBytes per station held,
+ * or by what its last depth observations take compressed if that is more. Buffers of removed stations are
+ * reused and never garbage collected.
+ *
+ * Observations are recorded on the thread applying the write after the latest value is already visible, so
+ * history never delays reads of the latest value.
+ */
+class StationHistory implements StationUpdateListener {
+
+    private static final Logger logger = Logger.getLogger(StationHistory.class.getName());
+    public static final int DEFAULT_DEPTH = 32; // Observations kept per station
+    public static final int DEFAULT_BUFFER_BYTES = 8 * 1024; // Room for several blocks of typical observations
+    private static final int BLOCK_ROWS = 16; // Observations compressed together
+
+    private final ConcurrentHashMap<String, Log> logs = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<ByteBuffer> freeBuffers = new ConcurrentLinkedQueue<>();
+    private int depth = DEFAULT_DEPTH;
+    private int bufferBytes = DEFAULT_BUFFER_BYTES;
+    private long retention; // Observations older than this are not returned, 0 to keep them until overwritten
+
+    /**
+     * One observation of a station.
+     *
+     * @param appliedAt long - epoch milliseconds at which the write was applied.
+     * @param version long - the version of the write.
+     * @param data WeatherDataSerializer - the station data.
+     */
+    record Observation(long appliedAt, long version, WeatherDataSerializer data) {
+
+        /**
+         * @return String - the observation as one compact JSON line, with its version and time as extra fields.
+         */
+        String line() {
+            Map<String, String> fields = new LinkedHashMap<>();
+            fields.put("version", String.valueOf(version));
+            fields.put("applied_at", String.valueOf(appliedAt));
+            fields.putAll(data.getData());
+            WeatherDataSerializer line = new WeatherDataSerializer();
+            line.setData(fields);
+            return line.toCompactJson() + "\n";
+        }
+    }
+
+    /**
+     * Sets the history size. Must be called before any station is recorded.
+     *
+     * @param depth int - the observations held per station, 0 to disable history.
+     * @param bufferBytes int - the off-heap bytes each station starts with for compressed observations.
+     * @param retention long - milliseconds an observation stays queryable, 0 for as long as it is held.
+     */
+    void configure(int depth, int bufferBytes, long retention) {
+        if (depth < 0 || bufferBytes <= 0) {
+            throw new IllegalArgumentException("History depth must not be negative and its buffer must not be empty");
+        }
+        this.depth = depth;
+        this.bufferBytes = bufferBytes;
+        this.retention = retention;
+    }
+
+    /**
+     * @param stationId String - the station ID.
+     * @param from long - the earliest application time to return, in epoch milliseconds.
+     * @param to long - the latest application time to return, in epoch milliseconds.
+     * @return List - the station's held observations applied within the range, oldest first, or null if
+     *         no history is held for the station.
+     */
+    List<Observation> query(String stationId, long from, long to) {
+        Log log = logs.get(stationId);
+        if (log == null) {
+            return null;
+        }
+        if (retention > 0) {
+            from = Math.max(from, System.currentTimeMillis() - retention);
+        }
+        return log.query(from, to);
+    }
+
+    @Override
+    public void onStationUpdated(String stationId, StationRecord record) {
+        if (depth == 0) {
+            return;
+        }
+        // Changes to one station are applied one at a time, so a log is never created twice for a station
+        Log log = logs.computeIfAbsent(stationId, id -> new Log(allocate()));
+        log.add(stationId, System.currentTimeMillis(), record.version(), record.data());
+    }
+
+    @Override
+    public void onStationRemoved(String stationId) {
+        Log log = logs.remove(stationId);
+        if (log != null) {
+            freeBuffers.offer(log.release());
+        }
+    }
+
+    private ByteBuffer allocate() {
+        ByteBuffer buffer = freeBuffers.poll();
+        return buffer != null ? buffer : ByteBuffer.allocateDirect(bufferBytes);
+    }
+
+    // Where a sealed block is held in a station's buffer
+    private record SealedBlock(int offset, int length, int rows, long firstTime, long lastTime) {
+    }
+
+    // One station's observations: sealed blocks in a circular off-heap log, oldest first, then the open block
+    private class Log {
+        private ByteBuffer buffer;
+        private final ArrayDeque<SealedBlock> sealed = new ArrayDeque<>();
+        private ObservationBlock.Writer open = new ObservationBlock.Writer();
+        private int writeOffset;
+        private int sealedRows;
+
+        Log(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        synchronized void add(String stationId, long appliedAt, long version, WeatherDataSerializer data) {
+            if (buffer == null) {
+                return; // The station was removed after this log was looked up
+            }
+            open.append(appliedAt, version, data);
+            if (open.rows() == BLOCK_ROWS) {
+                byte[] block = open.toBytes();
+                open = new ObservationBlock.Writer();
+                seal(stationId, block);
+            }
+        }
+
+        private void seal(String stationId, byte[] block) {
+            // Blocks holding only observations beyond the depth, counting the new block, are not needed
+            while (!sealed.isEmpty() && sealedRows - sealed.peekFirst().rows() + BLOCK_ROWS >= depth) {
+                sealedRows -= sealed.removeFirst().rows();
+            }
+            int offset = freeOffset(block.length);
+            if (offset < 0) {
+                grow(stationId, block.length);
+                offset = writeOffset;
+            }
+            buffer.put(offset, block);
+            sealed.addLast(new SealedBlock(offset, block.length, BLOCK_ROWS,
+                    ObservationBlock.firstTime(buffer, offset), ObservationBlock.lastTime(buffer, offset)));
+            sealedRows += BLOCK_ROWS;
+            writeOffset = offset + block.length;
+        }
+
+        // Where a block of length bytes fits without overwriting a held block, or -1 if it does not
+        private int freeOffset(int length) {
+            if (sealed.isEmpty()) {
+                return length <= buffer.capacity() ? 0 : -1;
+            }
+            int oldest = sealed.peekFirst().offset();
+            if (oldest < writeOffset) {
+                // Free after the newest block up to the end of the buffer, then from the start up to the oldest
+                if (writeOffset + length <= buffer.capacity()) {
+                    return writeOffset;
+                }
+                return length <= oldest ? 0 : -1;
+            }
+            return writeOffset + length <= oldest ? writeOffset : -1; // Wrapped, so free only up to the oldest
+        }
+
+        // Moves the held blocks, oldest first, to a buffer with room for another block of length bytes
+        private void grow(String stationId, int length) {
+            int held = 0;
+            for (SealedBlock block : sealed) {
+                held += block.length();
+            }
+            int capacity = buffer.capacity();
+            while (capacity < held + length) {
+                capacity *= 2;
+            }
+            logger.info("History of station ID " + stationId + " needs more than " + buffer.capacity()
+                    + " bytes for its last " + depth + " observations, growing it to " + capacity);
+            ByteBuffer grown = ByteBuffer.allocateDirect(capacity);
+            List<SealedBlock> moved = new ArrayList<>(sealed.size());
+            int offset = 0;
+            for (SealedBlock block : sealed) {
+                grown.put(offset, buffer, block.offset(), block.length());
+                moved.add(new SealedBlock(offset, block.length(), block.rows(), block.firstTime(), block.lastTime()));
+                offset += block.length();
+            }
+            freeBuffers.offer(buffer);
+            buffer = grown;
+            sealed.clear();
+            sealed.addAll(moved);
+            writeOffset = offset;
+        }
+
+        synchronized List<Observation> query(long from, long to) {
+            List<Observation> observations = new ArrayList<>();
+            if (buffer == null) {
+                return observations; // Released while the query was waiting
+            }
+            // Only the newest depth observations are returned, so the oldest rows beyond it are skipped
+            int skip = Math.max(0, sealedRows + open.rows() - depth);
+            for (SealedBlock block : sealed) {
+                if (block.lastTime() < from || block.firstTime() > to) {
+                    skip = Math.max(0, skip - block.rows()); // Outside the range, so it is not decoded at all
+                    continue;
+                }
+                skip = readBlock(buffer, block.offset(), skip, from, to, observations);
+            }
+            if (open.rows() > 0) {
+                readBlock(ByteBuffer.wrap(open.toBytes()), 0, skip, from, to, observations);
+            }
+            return observations;
+        }
+
+        private int readBlock(ByteBuffer source, int offset, int skip, long from, long to,
+                              List<Observation> observations) {
+            ObservationBlock.Reader reader = new ObservationBlock.Reader(source, offset);
+            ObservationBlock.Row row;
+            while ((row = reader.next()) != null) {
+                if (skip > 0) {
+                    skip--;
+                } else if (row.time() >= from && row.time() <= to) {
+                    observations.add(new Observation(row.time(), row.version(), row.data()));
+                }
+            }
+            return skip;
+        }
+
+        // Detaches the buffer for reuse by another station
+        synchronized ByteBuffer release() {
+            ByteBuffer released = buffer;
+            buffer = null;
+            sealed.clear();
+            return released;
+        }
+    }
+}
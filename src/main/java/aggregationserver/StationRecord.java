@@ -0,0 +1,9 @@
+package aggregationserver;
+
+import common.WeatherDataSerializer;
+
+/**
+ * The latest data applied for a station, together with the version (accepted Lamport time) it was written at.
+ */
+public record StationRecord(long version, WeatherDataSerializer data) {
+}
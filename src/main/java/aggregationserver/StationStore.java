@@ -0,0 +1,148 @@
+package aggregationserver;
+
+import common.PayloadArena;
+import common.WeatherDataSerializer;
+
+import java.util.List;
+import java.util.function.LongSupplier;
+
+/**
+ * Where the AggregationServer keeps the latest record of each station. A store versions every write,
+ * merges patches onto the version they were computed against, expires stations not updated for 30 seconds,
+ * evicts the least recently updated station once it holds too many, and notifies its listeners of every
+ * change, in the order the changes are applied to each station.
+ *
+ * FileManager writes every station to a file from a single writer thread; MemoryStationStore keeps stations
+ * in memory only and applies writes on the calling thread. Both keep their applied records and listeners in
+ * an AbstractStationStore.
+ */
+public interface StationStore {
+
+    int DEFAULT_MAX_ENTRIES = 20; // Max 20 entries at a time
+    int DEFAULT_MAX_QUEUED_WRITES = 10000;
+
+    /**
+     * A full write in a batch, which is only given its version once the whole batch is accepted.
+     *
+     * @param stationId The station the data belongs to.
+     * @param data The station's full record.
+     */
+    record BatchWrite(String stationId, WeatherDataSerializer data) {
+    }
+
+    /**
+     * The outcome of accepting a write.
+     */
+    enum WriteResult {
+        ACCEPTED,
+        STALE_BASE, // A patch whose base version is no longer the station's latest version
+        QUEUE_FULL
+    }
+
+    /**
+     * @param listener StationUpdateListener - notified of every applied write and every removed station.
+     */
+    void addListener(StationUpdateListener listener);
+
+    /**
+     * Holds applied station data in an off-heap arena instead of on the heap, so the heap only keeps a
+     * handle per station. Data that does not fit in the arena stays on the heap. Must be called before start.
+     *
+     * @param arena PayloadArena - the arena to hold station data in.
+     */
+    void setPayloadArena(PayloadArena arena);
+
+    /**
+     * Bounds the writes waiting to be applied. Once that many are waiting, new writes are refused with
+     * QUEUE_FULL until the store catches up. A store that applies writes as they are accepted, such as
+     * MemoryStationStore, has nothing waiting and ignores this. Must be called before start.
+     *
+     * @param maxQueuedWrites int - the most writes waiting at once.
+     */
+    void setMaxQueuedWrites(int maxQueuedWrites);
+
+    /**
+     * Starts applying writes and expiring stations.
+     */
+    void start();
+
+    /**
+     * Applies any writes still waiting and stops expiring stations.
+     */
+    void shutdown();
+
+    /**
+     * Accepts a write. A patch is only accepted if its base version is still the latest accepted version of
+     * the station. The write's completion is completed once it has been applied, and once it is on disk too
+     * if it is durable and the store persists data.
+     *
+     * @param request WriteRequest - the full write or patch to accept.
+     * @return WriteResult - STALE_BASE if a patch's base version is out of date, QUEUE_FULL if the store
+     *         has no room for more waiting writes, otherwise ACCEPTED.
+     */
+    WriteResult addWriteRequest(WriteRequest request);
+
+    /**
+     * Accepts a batch of full writes, applied in order. The batch is refused whole if the store does not
+     * have room for all of it. Versions are only taken once the batch is accepted, so a refused batch uses
+     * none up.
+     *
+     * @param writes List - the writes to accept, in the order they should be applied.
+     * @param versions LongSupplier - the source of each accepted write's version, called once per write in order.
+     * @return List - the accepted writes with their versions, or null if the batch was refused because the
+     *         store is full.
+     */
+    List<WriteRequest> addWriteRequests(List<BatchWrite> writes, LongSupplier versions);
+
+    /**
+     * @return int - the most writes a batch may hold, as a larger batch could never be accepted whole.
+     */
+    int getMaxBatchSize();
+
+    /**
+     * Accepts a write replicated from a primary server, keeping the primary's version. A write no newer than
+     * the version already held for the station is ignored. A replicated write is never refused, while the
+     * store is full it waits instead.
+     *
+     * @param stationId String - the station ID.
+     * @param version long - the version the primary assigned to the write.
+     * @param data WeatherDataSerializer - the station's full data at that version.
+     * @return boolean - false if the write was ignored as out of date.
+     */
+    boolean addReplicatedWrite(String stationId, long version, WeatherDataSerializer data);
+
+    /**
+     * Removes a station, as when it expires or is evicted.
+     *
+     * @param stationId String - the station ID.
+     * @return boolean - false if the station could not be removed.
+     */
+    boolean removeStation(String stationId);
+
+    /**
+     * @param stationId String - the station to look up.
+     * @return StationRecord - the data and version last applied for the station, or null if none.
+     */
+    StationRecord getStationRecord(String stationId);
+
+    /**
+     * @return StationRecord - the data and version of the most recently updated station, or null if none.
+     */
+    StationRecord getMostRecentRecord();
+
+    /**
+     * @return String - the ID of the most recently updated station, or null if none.
+     */
+    String getMostRecentStationId();
+
+    /**
+     * @param prefix String - the station ID prefix to match, empty for every station.
+     * @return List - the sorted IDs of stations with applied data that start with the prefix.
+     */
+    List<String> getStationIds(String prefix);
+
+    /**
+     * @return int - how many seconds a refused writer should wait before trying again, at least 1.
+     */
+    int getRetryAfterSeconds();
+}
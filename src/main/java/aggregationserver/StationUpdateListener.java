@@ -0,0 +1,25 @@
+package aggregationserver;
+
+/**
+ * Receives every change applied to the stored stations, in the order they are applied to each station.
+ * Callbacks run on the thread applying the change (the writer or cleanup thread of a FileManager, any
+ * writing thread of a MemoryStationStore), so implementations must be thread-safe, return quickly and
+ * hand any slow work (such as network I/O) to their own thread.
+ */
+public interface StationUpdateListener {
+
+    /**
+     * Called after a write has been applied and is visible to GET requests.
+     *
+     * @param stationId The station that was written.
+     * @param record The full record now stored for the station, including its version.
+     */
+    void onStationUpdated(String stationId, StationRecord record);
+
+    /**
+     * Called after a station has been removed by expiry or eviction.
+     *
+     * @param stationId The station that was removed.
+     */
+    void onStationRemoved(String stationId);
+}
@@ -0,0 +1,426 @@
+package aggregationserver;
+
+import common.HttpReader;
+import common.WeatherDataSerializer;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Pushes applied station updates to clients that subscribed instead of polling.
+ * Two kinds of subscription are supported:
+ * - Server-Sent Events (Accept: text/event-stream): the connection stays open and receives one event per update.
+ * - Long-poll (a "wait" query parameter on a conditional GET): the request is held until the station changes
+ *   from the version in If-None-Match, or the wait expires.
+ *
+ * Subscribed connections are parked rather than given a thread each. Updates from the thread applying a write
+ * are handed to a single fan-out thread, which serialises each update once and queues it for every matching
+ * subscriber, and a single scheduler thread handles long-poll timeouts and event stream heartbeats. Sockets
+ * are only written by a fixed pool of WRITER_THREADS writer threads draining each subscriber's outbound
+ * queue, so a slow subscriber never holds up the fan-out thread, and however many subscribers there are the
+ * thread count stays the same. A socket write that has not finished within WRITE_TIMEOUT, because the client
+ * stopped reading and its buffers are full, is abandoned by closing the subscriber's socket, so a stalled
+ * client holds a writer for at most that long. An event stream subscriber that falls MAX_QUEUED_EVENTS events
+ * behind is dropped too. Either way it can reconnect with Last-Event-ID to catch up.
+ */
+class SubscriptionManager implements StationUpdateListener {
+
+    private static final Logger logger = Logger.getLogger(SubscriptionManager.class.getName());
+    public static final String EVENT_STREAM_TYPE = "text/event-stream";
+    private static final long HEARTBEAT_PERIOD = 15 * 1000; // 15 seconds, detects subscribers that went away
+    private static final long MAX_WAIT = 60 * 1000; // 60 seconds, longest a long-poll may be held
+    private static final int MAX_QUEUED_EVENTS = 1000; // Events an event stream may fall behind by before it is dropped
+    private static final int WRITER_THREADS = 4; // Threads writing to subscriber sockets, however many subscribers there are
+    private static final long WRITE_TIMEOUT = 5 * 1000; // 5 seconds, longest a socket write may block before its subscriber is dropped
+
+    private final AggregationServer server;
+    private final StationStore stationStore;
+    private final ExecutorService fanOut;
+    private final ExecutorService writers; // Drain subscribers' outbound queues
+    private final Set<Subscriber> writing; // Subscribers whose socket a writer thread is writing to
+    private final ScheduledExecutorService scheduler;
+    private final ConcurrentHashMap<String, Set<Subscriber>> stationSubscribers; // Subscribed to specific stations
+    private final Set<Subscriber> prefixSubscribers; // Subscribed to every station with an ID prefix, "" for all
+
+    SubscriptionManager(AggregationServer server, StationStore stationStore) {
+        this.server = server;
+        this.stationStore = stationStore;
+        this.fanOut = Executors.newSingleThreadExecutor(daemonThreads("subscription-fan-out"));
+        this.writers = Executors.newFixedThreadPool(WRITER_THREADS, daemonThreads("subscription-writer"));
+        this.writing = ConcurrentHashMap.newKeySet();
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(daemonThreads("subscription-scheduler"));
+        this.stationSubscribers = new ConcurrentHashMap<>();
+        this.prefixSubscribers = ConcurrentHashMap.newKeySet();
+        scheduler.scheduleAtFixedRate(() -> fanOut.execute(this::sendHeartbeats),
+                HEARTBEAT_PERIOD, HEARTBEAT_PERIOD, TimeUnit.MILLISECONDS);
+        scheduler.scheduleAtFixedRate(this::dropStalledWriters,
+                WRITE_TIMEOUT / 5, WRITE_TIMEOUT / 5, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param request HttpReader - a GET request.
+     * @return boolean - true if the request asks for an event stream or a long-poll.
+     */
+    static boolean isSubscription(HttpReader request) {
+        return EVENT_STREAM_TYPE.equals(request.getHeader("Accept")) || request.getQueryParameter("wait") != null;
+    }
+
+    /**
+     * Takes over a subscription request's connection.
+     *
+     * @param request HttpReader - the subscription request.
+     * @param socket Socket - the client connection, closed by the SubscriptionManager once it is handed over.
+     * @param out PrintWriter - the output stream writer to send responses.
+     * @return boolean - true if the connection was parked, false if the request was answered immediately
+     *         and the connection is still owned by the caller.
+     */
+    boolean subscribe(HttpReader request, Socket socket, PrintWriter out) {
+        if (EVENT_STREAM_TYPE.equals(request.getHeader("Accept"))) {
+            subscribeEventStream(request, socket, out);
+            return true;
+        }
+        return subscribeLongPoll(request, socket, out);
+    }
+
+    private void subscribeEventStream(HttpReader request, Socket socket, PrintWriter out) {
+        String stationList = request.getQueryParameter("stations");
+        String prefix = request.getQueryParameter("prefix");
+        Set<String> stationIds = stationList != null ? new HashSet<>(Arrays.asList(stationList.split(","))) : null;
+        EventStreamSubscriber subscriber = new EventStreamSubscriber(socket, out, stationIds,
+                prefix != null ? prefix : "");
+
+        out.println("HTTP/1.1 200 OK");
+        out.println("Content-Type: " + EVENT_STREAM_TYPE);
+        out.println("Cache-Control: no-cache");
+        out.println("Lamport-Timestamp: " + server.getLamportClock().getTime());
+        out.println();
+        out.flush();
+        // Updates are queued behind the whole snapshot, as the fan-out thread waits for the subscriber's lock
+        synchronized (subscriber) {
+            // Register before queueing the snapshot, an update racing with the snapshot is then sent twice, never lost
+            register(subscriber);
+
+            long lastEventId = parseLong(request.getHeader("Last-Event-ID"), 0);
+            Collection<String> current = stationIds != null ? stationIds : stationStore.getStationIds(subscriber.prefix);
+            for (String stationId : current) {
+                StationRecord record = stationStore.getStationRecord(stationId);
+                if (record != null && record.version() > lastEventId && !subscriber.send(new Update(stationId, record))) {
+                    subscriber.close();
+                    return;
+                }
+            }
+        }
+        logger.info("Event stream subscriber registered for " + (stationIds != null ? stationIds : "prefix '" + subscriber.prefix + "'"));
+    }
+
+    private boolean subscribeLongPoll(HttpReader request, Socket socket, PrintWriter out) {
+        String stationId = request.getHeader("Station-Id");
+        long wait = Math.min(parseLong(request.getQueryParameter("wait"), 0), MAX_WAIT);
+        LongPollSubscriber subscriber = new LongPollSubscriber(socket, out, request, stationId);
+
+        // Register before checking, so an update between the check and registration still wakes the request
+        register(subscriber);
+        StationRecord current = stationId != null ? stationStore.getStationRecord(stationId) : stationStore.getMostRecentRecord();
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        if (wait <= 0 || (current != null && !AggregationServer.matchesETag(ifNoneMatch, "\"" + current.version() + "\""))) {
+            // The client is out of date already, answer as a normal GET on the calling thread,
+            // unless an update has just claimed the request and is answering it on a writer thread
+            if (!subscriber.claim()) {
+                return true;
+            }
+            unregister(subscriber);
+            return false;
+        }
+        subscriber.timeout = scheduler.schedule(() -> writers.execute(subscriber::complete), wait, TimeUnit.MILLISECONDS);
+        return true;
+    }
+
+    @Override
+    public void onStationUpdated(String stationId, StationRecord record) {
+        Set<Subscriber> subscribers = stationSubscribers.get(stationId);
+        if ((subscribers == null || subscribers.isEmpty()) && prefixSubscribers.isEmpty()) {
+            return; // Nobody is listening, skip the hand-off to the fan-out thread
+        }
+        fanOut.execute(() -> deliver(new Update(stationId, record)));
+    }
+
+    @Override
+    public void onStationRemoved(String stationId) {
+        onStationUpdated(stationId, null);
+    }
+
+    // Runs on the fan-out thread
+    private void deliver(Update update) {
+        List<Subscriber> failed = new ArrayList<>();
+        Set<Subscriber> subscribers = stationSubscribers.get(update.stationId);
+        if (subscribers != null) {
+            for (Subscriber subscriber : subscribers) {
+                if (!subscriber.send(update)) {
+                    failed.add(subscriber);
+                }
+            }
+        }
+        for (Subscriber subscriber : prefixSubscribers) {
+            if (update.stationId.startsWith(subscriber.prefix) && !subscriber.send(update)) {
+                failed.add(subscriber);
+            }
+        }
+        failed.forEach(Subscriber::close);
+    }
+
+    // Runs on the fan-out thread
+    private void sendHeartbeats() {
+        Set<Subscriber> all = new HashSet<>(prefixSubscribers);
+        stationSubscribers.values().forEach(all::addAll);
+        for (Subscriber subscriber : all) {
+            if (subscriber instanceof EventStreamSubscriber eventStream && !eventStream.heartbeat()) {
+                eventStream.close();
+            }
+        }
+    }
+
+    // Runs on the scheduler thread. Closing the socket makes the blocked write fail, freeing its writer thread
+    private void dropStalledWriters() {
+        long now = System.nanoTime();
+        for (Subscriber subscriber : writing) {
+            if (subscriber.writingFor(now) > TimeUnit.MILLISECONDS.toNanos(WRITE_TIMEOUT)) {
+                logger.warning("Dropped subscriber whose socket write blocked for over " + WRITE_TIMEOUT + " ms");
+                subscriber.close();
+            }
+        }
+    }
+
+    private void register(Subscriber subscriber) {
+        if (subscriber.stationIds != null) {
+            for (String stationId : subscriber.stationIds) {
+                stationSubscribers.computeIfAbsent(stationId, id -> ConcurrentHashMap.newKeySet()).add(subscriber);
+            }
+        } else {
+            prefixSubscribers.add(subscriber);
+        }
+    }
+
+    private void unregister(Subscriber subscriber) {
+        if (subscriber.stationIds != null) {
+            for (String stationId : subscriber.stationIds) {
+                stationSubscribers.computeIfPresent(stationId, (id, set) -> {
+                    set.remove(subscriber);
+                    return set.isEmpty() ? null : set;
+                });
+            }
+        } else {
+            prefixSubscribers.remove(subscriber);
+        }
+    }
+
+    void shutdown() {
+        scheduler.shutdownNow();
+        fanOut.shutdownNow();
+        writers.shutdownNow();
+        new HashSet<>(prefixSubscribers).forEach(Subscriber::close);
+        stationSubscribers.values().forEach(set -> new HashSet<>(set).forEach(Subscriber::close));
+    }
+
+    private static long parseLong(String value, long defaultValue) {
+        try {
+            return value != null ? Long.parseLong(value.trim()) : defaultValue;
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    private static ThreadFactory daemonThreads(String name) {
+        return runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    // An applied update, serialised at most once however many subscribers receive it
+    private static class Update {
+        final String stationId;
+        final StationRecord record; // null when the station was removed
+        private String event;
+
+        Update(String stationId, StationRecord record) {
+            this.stationId = stationId;
+            this.record = record;
+        }
+
+        String toEvent() {
+            if (event == null) {
+                WeatherDataSerializer data = new WeatherDataSerializer();
+                data.getData().put("station", stationId);
+                if (record == null) {
+                    event = "event: remove\ndata: " + data.toCompactJson() + "\n\n";
+                } else {
+                    data.getData().put("version", String.valueOf(record.version()));
+                    data.getData().putAll(record.data().getData());
+                    event = "id: " + record.version() + "\nevent: update\ndata: " + data.toCompactJson() + "\n\n";
+                }
+            }
+            return event;
+        }
+    }
+
+    private abstract class Subscriber {
+        final Socket socket;
+        final PrintWriter out;
+        final Set<String> stationIds; // null to match by prefix instead
+        final String prefix;
+        private volatile long writeStarted; // System.nanoTime() the current socket write began
+
+        Subscriber(Socket socket, PrintWriter out, Set<String> stationIds, String prefix) {
+            this.socket = socket;
+            this.out = out;
+            this.stationIds = stationIds;
+            this.prefix = prefix;
+        }
+
+        // Called by a writer thread around each write to the socket, so a write that blocks can be timed out
+        void beginWrite() {
+            writeStarted = System.nanoTime();
+            writing.add(this);
+        }
+
+        void endWrite() {
+            writing.remove(this);
+        }
+
+        long writingFor(long now) {
+            return now - writeStarted;
+        }
+
+        /**
+         * Queues an update for the subscriber without waiting for its socket.
+         *
+         * @return boolean - false if the subscriber is finished, broken or too far behind and should be closed.
+         */
+        abstract boolean send(Update update);
+
+        void close() {
+            unregister(this);
+            writing.remove(this);
+            try {
+                socket.close();
+            } catch (IOException e) {
+                logger.log(Level.FINE, "Error closing subscriber socket", e);
+            }
+        }
+    }
+
+    private class EventStreamSubscriber extends Subscriber {
+        private final ArrayDeque<String> outbound; // Events waiting to be written, guarded by this
+        private boolean draining; // Whether a writer thread is draining the queue, guarded by this
+        private boolean closed; // Guarded by this
+
+        EventStreamSubscriber(Socket socket, PrintWriter out, Set<String> stationIds, String prefix) {
+            super(socket, out, stationIds, prefix);
+            this.outbound = new ArrayDeque<>();
+        }
+
+        @Override
+        synchronized boolean send(Update update) {
+            return enqueue(update.toEvent());
+        }
+
+        synchronized boolean heartbeat() {
+            return enqueue(": heartbeat\n\n");
+        }
+
+        // Must be called while holding this subscriber's lock
+        private boolean enqueue(String event) {
+            if (closed) {
+                return false;
+            }
+            if (outbound.size() >= MAX_QUEUED_EVENTS) {
+                logger.warning("Dropped event stream subscriber " + MAX_QUEUED_EVENTS + " events behind");
+                return false;
+            }
+            outbound.add(event);
+            if (!draining) {
+                draining = true;
+                writers.execute(this::drain);
+            }
+            return true;
+        }
+
+        // Runs on a writer thread, writing everything queued so far in one flush until the queue is empty
+        private void drain() {
+            while (true) {
+                StringBuilder events = new StringBuilder();
+                synchronized (this) {
+                    if (outbound.isEmpty()) {
+                        draining = false;
+                        return;
+                    }
+                    while (!outbound.isEmpty()) {
+                        events.append(outbound.poll());
+                    }
+                }
+                beginWrite();
+                out.print(events);
+                out.flush();
+                endWrite();
+                if (out.checkError()) {
+                    close();
+                    return;
+                }
+            }
+        }
+
+        @Override
+        void close() {
+            synchronized (this) {
+                closed = true;
+                outbound.clear();
+            }
+            super.close(); // Also unblocks a writer stuck on the socket
+        }
+    }
+
+    private class LongPollSubscriber extends Subscriber {
+        private final HttpReader request;
+        private final AtomicBoolean completed;
+        private volatile ScheduledFuture<?> timeout;
+
+        LongPollSubscriber(Socket socket, PrintWriter out, HttpReader request, String stationId) {
+            super(socket, out, stationId != null ? Set.of(stationId) : null, "");
+            this.request = request;
+            this.completed = new AtomicBoolean();
+        }
+
+        @Override
+        boolean send(Update update) {
+            if (update.record != null) {
+                writers.execute(this::complete);
+            }
+            return true;
+        }
+
+        boolean claim() {
+            return completed.compareAndSet(false, true);
+        }
+
+        // Answers the held request with whatever is current, on update or when the wait expires
+        void complete() {
+            if (!claim()) {
+                return;
+            }
+            if (timeout != null) {
+                timeout.cancel(false);
+            }
+            beginWrite();
+            server.handleGetRequest(request, null, out);
+            endWrite();
+            close();
+        }
+    }
+}
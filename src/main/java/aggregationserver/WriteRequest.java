@@ -2,5 +2,36 @@ package aggregationserver;
 
 import common.WeatherDataSerializer;
 
-public record WriteRequest(long timestamp, String stationId, WeatherDataSerializer data) {
-}
\ No newline at end of file
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A write accepted by the AggregationServer and waiting to be applied by the FileManager.
+ *
+ * @param timestamp The server Lamport time the write was accepted at, which becomes the station version.
+ * @param stationId The station the data belongs to.
+ * @param data The full record, or only the changed fields when this is a patch.
+ * @param baseVersion The station version a patch was computed against, or NO_BASE_VERSION for a full write.
+ * @param durable Whether the station file must be synced to disk before the write counts as applied.
+ * @param completion Completed by the writer thread once the write is applied, or exceptionally if it fails.
+ */
+public record WriteRequest(long timestamp, String stationId, WeatherDataSerializer data, long baseVersion,
+                           boolean durable, CompletableFuture<Void> completion) {
+
+    public static final long NO_BASE_VERSION = -1;
+
+    public WriteRequest(long timestamp, String stationId, WeatherDataSerializer data) {
+        this(timestamp, stationId, data, NO_BASE_VERSION);
+    }
+
+    public WriteRequest(long timestamp, String stationId, WeatherDataSerializer data, long baseVersion) {
+        this(timestamp, stationId, data, baseVersion, false);
+    }
+
+    public WriteRequest(long timestamp, String stationId, WeatherDataSerializer data, long baseVersion, boolean durable) {
+        this(timestamp, stationId, data, baseVersion, durable, new CompletableFuture<>());
+    }
+
+    public boolean isPatch() {
+        return baseVersion != NO_BASE_VERSION;
+    }
+}
@@ -0,0 +1,89 @@
+package common;
+
+import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Decodes a body sent with "Transfer-Encoding: chunked", exposing only the chunk data.
+ * Reading ends after the terminating zero-length chunk, leaving the connection at the next message.
+ */
+public class ChunkedBodyReader extends Reader {
+
+  private final BufferedReader in;
+  private int chunkRemaining;
+  private boolean started;
+  private boolean finished;
+
+  public ChunkedBodyReader(BufferedReader in) {
+    this.in = in;
+  }
+
+  @Override
+  public int read(char[] buffer, int offset, int length) throws IOException {
+    if (finished) {
+      return -1;
+    }
+    if (chunkRemaining == 0 && !nextChunk()) {
+      return -1;
+    }
+    int read = in.read(buffer, offset, Math.min(length, chunkRemaining));
+    if (read == -1) {
+      throw new EOFException("Stream ended inside a chunk with " + chunkRemaining + " characters unread.");
+    }
+    chunkRemaining -= read;
+    return read;
+  }
+
+  /**
+   * Reads the rest of the current chunk, or the whole next chunk, keeping the sender's chunk boundaries.
+   *
+   * @return String - the chunk data, or null after the last chunk.
+   */
+  public String readChunk() throws IOException {
+    if (finished || (chunkRemaining == 0 && !nextChunk())) {
+      return null;
+    }
+    char[] chunk = new char[chunkRemaining];
+    int offset = 0;
+    while (offset < chunk.length) {
+      int read = read(chunk, offset, chunk.length - offset);
+      if (read == -1) {
+        throw new EOFException("Stream ended inside a chunk.");
+      }
+      offset += read;
+    }
+    return new String(chunk);
+  }
+
+  // Reads the next chunk size line, returning false once the last chunk and trailers have been consumed
+  private boolean nextChunk() throws IOException {
+    if (started) {
+      in.readLine(); // CRLF that ends the previous chunk's data
+    }
+    started = true;
+    String sizeLine = in.readLine();
+    if (sizeLine == null) {
+      throw new EOFException("Stream ended before the last chunk.");
+    }
+    int extensionStart = sizeLine.indexOf(';');
+    String size = extensionStart == -1 ? sizeLine : sizeLine.substring(0, extensionStart);
+    chunkRemaining = Integer.parseInt(size.trim(), 16);
+    if (chunkRemaining == 0) {
+      // Skip any trailer headers up to the blank line that ends the message
+      String trailer;
+      while ((trailer = in.readLine()) != null && !trailer.isEmpty()) {
+        // Trailers are not used
+      }
+      finished = true;
+      return false;
+    }
+    return true;
+  }
+
+  @Override
+  public void close() {
+    // The underlying connection stays open
+  }
+}
@@ -0,0 +1,37 @@
+package common;
+
+import java.io.PrintWriter;
+
+/**
+ * Writes a body with "Transfer-Encoding: chunked", so a response can be streamed as it is produced
+ * without knowing its length up front. Each call to writeChunk is sent and flushed immediately.
+ */
+public class ChunkedBodyWriter {
+
+  private final PrintWriter out;
+
+  public ChunkedBodyWriter(PrintWriter out) {
+    this.out = out;
+  }
+
+  /**
+   * @param data String - the chunk data, skipped if empty since a zero-length chunk ends the body.
+   */
+  public void writeChunk(String data) {
+    if (data.isEmpty()) {
+      return;
+    }
+    out.print(Integer.toHexString(data.length()) + "\r\n");
+    out.print(data);
+    out.print("\r\n");
+    out.flush();
+  }
+
+  /**
+   * Writes the terminating zero-length chunk.
+   */
+  public void finish() {
+    out.print("0\r\n\r\n");
+    out.flush();
+  }
+}
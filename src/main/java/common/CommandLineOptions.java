@@ -0,0 +1,65 @@
+package common;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Splits command-line arguments into positional arguments and "--name=value" options.
+ * A bare "--name" is treated as a boolean flag set to true.
+ */
+public class CommandLineOptions {
+
+  private final List<String> positional;
+  private final Map<String, String> options;
+
+  public CommandLineOptions(String[] args) {
+    this.positional = new ArrayList<>();
+    this.options = new HashMap<>();
+    for (String arg : args) {
+      if (arg.startsWith("--")) {
+        String[] option = arg.substring(2).split("=", 2);
+        options.put(option[0], option.length == 2 ? option[1] : "true");
+      } else {
+        positional.add(arg);
+      }
+    }
+  }
+
+  public int positionalCount() {
+    return positional.size();
+  }
+
+  public String getPositional(int index) {
+    return index < positional.size() ? positional.get(index) : null;
+  }
+
+  public boolean hasOption(String name) {
+    return options.containsKey(name);
+  }
+
+  public String getString(String name, String defaultValue) {
+    return options.getOrDefault(name, defaultValue);
+  }
+
+  public int getInt(String name, int defaultValue) {
+    String value = options.get(name);
+    return value != null ? Integer.parseInt(value) : defaultValue;
+  }
+
+  public long getLong(String name, long defaultValue) {
+    String value = options.get(name);
+    return value != null ? Long.parseLong(value) : defaultValue;
+  }
+
+  public double getDouble(String name, double defaultValue) {
+    String value = options.get(name);
+    return value != null ? Double.parseDouble(value) : defaultValue;
+  }
+
+  public boolean getBoolean(String name, boolean defaultValue) {
+    String value = options.get(name);
+    return value != null ? Boolean.parseBoolean(value) : defaultValue;
+  }
+}
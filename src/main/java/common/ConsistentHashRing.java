@@ -0,0 +1,75 @@
+package common;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Assigns keys (station IDs) to nodes with consistent hashing.
+ * Every node is placed on a hash ring at many pseudo-random points (virtual nodes), and a key belongs to
+ * the node at the first point clockwise from the key's hash. Adding or removing a node only moves the keys
+ * between that node's points and their neighbours, about 1/N of all keys, and the virtual nodes spread the
+ * load evenly. Every node builds the same ring from the same member list, so all agree on ownership.
+ *
+ * Not thread-safe: build a new ring to change membership.
+ */
+public class ConsistentHashRing {
+
+  public static final int DEFAULT_VIRTUAL_NODES = 128;
+
+  private final TreeMap<Long, String> ring;
+  private final List<String> nodes;
+
+  /**
+   * @param nodes Collection - the node names, such as "host:port".
+   * @param virtualNodes int - the number of points each node has on the ring.
+   */
+  public ConsistentHashRing(Collection<String> nodes, int virtualNodes) {
+    this.ring = new TreeMap<>();
+    this.nodes = new ArrayList<>(nodes);
+    for (String node : nodes) {
+      for (int i = 0; i < virtualNodes; i++) {
+        ring.put(hash(node + "#" + i), node);
+      }
+    }
+  }
+
+  public ConsistentHashRing(Collection<String> nodes) {
+    this(nodes, DEFAULT_VIRTUAL_NODES);
+  }
+
+  /**
+   * @param key String - the key to place.
+   * @return String - the node that owns the key, or null if the ring is empty.
+   */
+  public String getNode(String key) {
+    if (ring.isEmpty()) {
+      return null;
+    }
+    Map.Entry<Long, String> owner = ring.ceilingEntry(hash(key));
+    return owner != null ? owner.getValue() : ring.firstEntry().getValue(); // Wrap around the ring
+  }
+
+  public List<String> getNodes() {
+    return nodes;
+  }
+
+  // The first 8 bytes of the MD5 digest, which spreads similar station IDs evenly around the ring
+  private static long hash(String key) {
+    try {
+      byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+      long hash = 0;
+      for (int i = 0; i < 8; i++) {
+        hash = (hash << 8) | (digest[i] & 0xFF);
+      }
+      return hash;
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("MD5 is required on every Java platform", e);
+    }
+  }
+}
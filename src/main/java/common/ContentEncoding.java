@@ -0,0 +1,124 @@
+package common;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * HTTP content codings (Accept-Encoding / Content-Encoding) for message bodies.
+ * Connections are read and written with WIRE_CHARSET, which maps every char to exactly one byte, so a
+ * compressed body travels as a "byte string" (one char per byte) through the same readers and writers
+ * as text bodies, and Content-Length counts bytes.
+ */
+public class ContentEncoding {
+
+  public static final Charset WIRE_CHARSET = StandardCharsets.ISO_8859_1;
+  public static final String GZIP = "gzip";
+  public static final String DEFLATE = "deflate";
+  public static final String IDENTITY = "identity";
+  public static final String SUPPORTED = GZIP + ", " + DEFLATE; // Accept-Encoding value for clients
+
+  private ContentEncoding() {
+  }
+
+  /**
+   * Picks the coding for a response, preferring gzip over deflate over no coding.
+   *
+   * @param acceptEncoding String - the request's Accept-Encoding header, may be null.
+   * @return String - GZIP, DEFLATE or IDENTITY.
+   */
+  public static String negotiate(String acceptEncoding) {
+    if (accepts(acceptEncoding, GZIP)) {
+      return GZIP;
+    }
+    if (accepts(acceptEncoding, DEFLATE)) {
+      return DEFLATE;
+    }
+    return IDENTITY;
+  }
+
+  /**
+   * @param acceptEncoding String - the request's Accept-Encoding header, may be null.
+   * @param coding String - the content coding to check.
+   * @return boolean - true if the coding is listed (or matched by "*") without q=0.
+   */
+  public static boolean accepts(String acceptEncoding, String coding) {
+    if (acceptEncoding == null) {
+      return false;
+    }
+    boolean wildcard = false;
+    for (String entry : acceptEncoding.split(",")) {
+      String[] parts = entry.split(";");
+      String name = parts[0].trim().toLowerCase();
+      if (name.equals(coding)) {
+        return !hasZeroQuality(parts); // An explicit entry overrides "*"
+      }
+      if (name.equals("*")) {
+        wildcard = !hasZeroQuality(parts);
+      }
+    }
+    return wildcard;
+  }
+
+  private static boolean hasZeroQuality(String[] parameters) {
+    for (int i = 1; i < parameters.length; i++) {
+      String parameter = parameters[i].trim();
+      if (parameter.startsWith("q=")) {
+        try {
+          return Double.parseDouble(parameter.substring(2)) == 0;
+        } catch (NumberFormatException e) {
+          return false;
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Compresses a text body into the byte string sent on the wire.
+   *
+   * @param text String - the uncompressed body.
+   * @param coding String - GZIP or DEFLATE.
+   * @return String - the compressed body, one char per byte.
+   */
+  public static String encode(String text, String coding) {
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    try (OutputStream out = GZIP.equals(coding) ? new GZIPOutputStream(compressed) : new DeflaterOutputStream(compressed)) {
+      out.write(text.getBytes(WIRE_CHARSET));
+    } catch (IOException e) {
+      throw new IllegalStateException("In-memory compression failed", e); // Not possible for a byte array
+    }
+    return new String(compressed.toByteArray(), WIRE_CHARSET);
+  }
+
+  /**
+   * Reverses encode. A gzip body may hold several concatenated members, which are decoded in order.
+   *
+   * @param body String - the body as read from the connection.
+   * @param coding String - the Content-Encoding header, null or IDENTITY for an uncompressed body.
+   * @return String - the uncompressed body.
+   * @throws IOException if the body is not valid for the coding.
+   */
+  public static String decode(String body, String coding) throws IOException {
+    if (coding == null || IDENTITY.equalsIgnoreCase(coding.trim())) {
+      return body;
+    }
+    InputStream compressed = new ByteArrayInputStream(body.getBytes(WIRE_CHARSET));
+    String name = coding.trim().toLowerCase();
+    try (InputStream in = switch (name) {
+      case GZIP -> new GZIPInputStream(compressed);
+      case DEFLATE -> new InflaterInputStream(compressed);
+      default -> throw new IOException("Unsupported Content-Encoding: " + coding);
+    }) {
+      return new String(in.readAllBytes(), WIRE_CHARSET);
+    }
+  }
+}
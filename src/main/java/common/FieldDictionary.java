@@ -0,0 +1,115 @@
+package common;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A thread-safe dictionary of the field names and repeated values in weather data, so parsed records share
+ * one canonical String per name and per common value instead of each holding its own copies, and so binary
+ * forms can store a small int code in place of the text.
+ *
+ * Every field name is added, up to maxSymbols in total. The values of a field in the dictionary are added
+ * while it has fewer than maxValuesPerField distinct ones, so categorical fields such as "state", "time_zone" and "wind_dir" are
+ * shared, while fields that take a new value on almost every record, such as "local_date_time_full", stop
+ * being added once they reach the limit and the dictionary stays bounded. Codes are never reused, so a code
+ * stays valid for the lifetime of the process. They are not stable across processes, so binary forms using
+ * them must not be persisted or sent to another server.
+ */
+public final class FieldDictionary {
+
+  public static final int NO_CODE = -1;
+  public static final FieldDictionary SHARED = new FieldDictionary(1 << 16, 256);
+
+  private final int maxSymbols;
+  private final int maxValuesPerField;
+  private final ConcurrentHashMap<String, Integer> codes = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, AtomicInteger> valueCounts = new ConcurrentHashMap<>(); // Values added per field
+  private volatile String[] symbols = new String[64];
+  private int symbolCount;
+
+  /**
+   * @param maxSymbols int - the most names and values held in total.
+   * @param maxValuesPerField int - the most distinct values added for one field.
+   */
+  public FieldDictionary(int maxSymbols, int maxValuesPerField) {
+    this.maxSymbols = maxSymbols;
+    this.maxValuesPerField = maxValuesPerField;
+  }
+
+  /**
+   * @param field String - a field name.
+   * @return String - the canonical instance of the name.
+   */
+  public String field(String field) {
+    int code = fieldCode(field);
+    return code != NO_CODE ? symbols[code] : field;
+  }
+
+  /**
+   * @param field String - the canonical field name, as returned by field.
+   * @param value String - a value of the field.
+   * @return String - the canonical instance of the value, or the value itself if the field has too many.
+   */
+  public String value(String field, String value) {
+    int code = valueCode(field, value);
+    return code != NO_CODE ? symbols[code] : value;
+  }
+
+  /**
+   * @param field String - a field name, added if it is new.
+   * @return int - the name's code, or NO_CODE if the dictionary is full.
+   */
+  public int fieldCode(String field) {
+    Integer code = codes.get(field);
+    return code != null ? code : add(field, null);
+  }
+
+  /**
+   * @param field String - the field name.
+   * @param value String - a value of the field, added if it is new and the field is in the dictionary with
+   *        few enough values.
+   * @return int - the value's code, or NO_CODE if it is not in the dictionary.
+   */
+  public int valueCode(String field, String value) {
+    Integer code = codes.get(value);
+    if (code != null) {
+      return code;
+    }
+    // Counts are only kept for fields with a code, so names left out of a full dictionary add nothing
+    if (!codes.containsKey(field)) {
+      return NO_CODE;
+    }
+    AtomicInteger count = valueCounts.computeIfAbsent(field, key -> new AtomicInteger());
+    return count.get() < maxValuesPerField ? add(value, count) : NO_CODE;
+  }
+
+  /**
+   * @param code int - a code returned by fieldCode or valueCode.
+   * @return String - the name or value with that code.
+   */
+  public String symbol(int code) {
+    return symbols[code];
+  }
+
+  private synchronized int add(String symbol, AtomicInteger fieldValues) {
+    Integer existing = codes.get(symbol);
+    if (existing != null) {
+      return existing;
+    }
+    if (symbolCount == maxSymbols) {
+      return NO_CODE;
+    }
+    String[] current = symbols;
+    if (symbolCount == current.length) {
+      current = Arrays.copyOf(current, current.length * 2);
+    }
+    current[symbolCount] = symbol;
+    symbols = current; // Published before the code, so a reader holding the code finds the symbol
+    codes.put(symbol, symbolCount);
+    if (fieldValues != null) {
+      fieldValues.incrementAndGet();
+    }
+    return symbolCount++;
+  }
+}
@@ -0,0 +1,120 @@
+package common;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+
+/**
+ * A persistent (keep-alive) HTTP connection to a single server.
+ * The socket is opened lazily and reopened after the server or network closes it, so a
+ * long-running node can reuse one connection for many requests instead of reconnecting each time.
+ * Not thread-safe: each connection carries one request at a time.
+ */
+public class HttpConnection implements Closeable {
+
+  private final String serverAddress;
+  private final int port;
+  private final int timeoutMillis;
+  private Socket socket;
+  private BufferedReader in;
+  private PrintWriter out;
+  private boolean reused;
+  private boolean responseStarted; // Whether any of the current request's response has arrived
+
+  /**
+   * @param serverAddress The address of the server to connect to.
+   * @param port The port of the server.
+   * @param timeoutMillis The connect and read timeout in milliseconds.
+   */
+  public HttpConnection(String serverAddress, int port, int timeoutMillis) {
+    this.serverAddress = serverAddress;
+    this.port = port;
+    this.timeoutMillis = timeoutMillis;
+  }
+
+  public boolean isOpen() {
+    return socket != null && !socket.isClosed();
+  }
+
+  /**
+   * Sends a request and reads its response, keeping the connection open afterwards.
+   * If a previously used connection turns out to have been closed by the server while idle, that is it fails
+   * with a reset or end of stream before any of the response arrives, the request is retried once on a new
+   * connection. A request that timed out or failed partway through its response may have been processed, so
+   * it is not sent again, as PUTs are not idempotent.
+   *
+   * @param request HttpWriter - the request to send.
+   * @return HttpReader - the parsed response.
+   * @throws IOException if the request could not be sent or no response was received.
+   */
+  public HttpReader send(HttpWriter request) throws IOException {
+    request.addHeader("Connection", "keep-alive");
+    String httpRequest = request.toString();
+    try {
+      return exchange(httpRequest);
+    } catch (IOException e) {
+      boolean stale = reused && !responseStarted && !(e instanceof SocketTimeoutException);
+      reset();
+      if (!stale) {
+        throw e;
+      }
+      return exchange(httpRequest); // Stale keep-alive connection, retry once on a fresh socket
+    }
+  }
+
+  private HttpReader exchange(String httpRequest) throws IOException {
+    responseStarted = false;
+    if (!isOpen()) {
+      connect();
+    }
+    out.print(httpRequest);
+    out.flush();
+    if (out.checkError()) {
+      throw new IOException("Failed to write request to " + serverAddress + ":" + port);
+    }
+    in.mark(1);
+    if (in.read() < 0) {
+      throw new EOFException("Connection closed by " + serverAddress + ":" + port + " before a response");
+    }
+    in.reset();
+    responseStarted = true;
+    HttpReader response = new HttpReader(in);
+    reused = true;
+    if ("close".equalsIgnoreCase(response.getHeader("Connection"))) {
+      reset();
+    }
+    return response;
+  }
+
+  private void connect() throws IOException {
+    socket = new Socket();
+    socket.connect(new InetSocketAddress(serverAddress, port), timeoutMillis);
+    socket.setSoTimeout(timeoutMillis);
+    socket.setTcpNoDelay(true);
+    in = new BufferedReader(new InputStreamReader(socket.getInputStream(), ContentEncoding.WIRE_CHARSET));
+    out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), ContentEncoding.WIRE_CHARSET), false);
+    reused = false;
+  }
+
+  /**
+   * Drops the current socket, for example after a failed request, without giving up the connection:
+   * the next request opens a new socket.
+   */
+  public void reset() {
+    reused = false;
+    if (socket != null) {
+      try {
+        socket.close();
+      } catch (IOException ignored) {
+        // Nothing useful to do if closing an already broken socket fails
+      }
+      socket = null;
+    }
+  }
+
+  @Override
+  public void close() {
+    reset();
+  }
+}
@@ -0,0 +1,91 @@
+package common;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A bounded pool of keep-alive HttpConnections to a single server, shared by many threads.
+ * At most maxConnections requests are in flight at once; further callers wait up to the request timeout
+ * for a connection to be returned. Connections are opened lazily and reused, and a connection that fails
+ * is closed instead of being returned to the pool.
+ */
+public class HttpConnectionPool implements Closeable {
+
+  private final String serverAddress;
+  private final int port;
+  private final int timeoutMillis;
+  private final Semaphore permits;
+  private final ConcurrentLinkedQueue<HttpConnection> idle;
+  private volatile boolean closed;
+
+  /**
+   * @param serverAddress The address of the server to connect to.
+   * @param port The port of the server.
+   * @param maxConnections The most connections open, and requests in flight, at once.
+   * @param timeoutMillis The per-request timeout in milliseconds, covering the wait for a free connection,
+   *                      connecting, and each read of the response.
+   */
+  public HttpConnectionPool(String serverAddress, int port, int maxConnections, int timeoutMillis) {
+    this.serverAddress = serverAddress;
+    this.port = port;
+    this.timeoutMillis = timeoutMillis;
+    this.permits = new Semaphore(maxConnections, true);
+    this.idle = new ConcurrentLinkedQueue<>();
+  }
+
+  /**
+   * Sends a request on a pooled connection and reads its full response.
+   *
+   * @param request HttpWriter - the request to send.
+   * @return HttpReader - the parsed response.
+   * @throws IOException if no connection became free in time, or the request failed.
+   */
+  public HttpReader send(HttpWriter request) throws IOException {
+    try {
+      if (!permits.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS)) {
+        throw new SocketTimeoutException("No pooled connection to " + serverAddress + ":" + port
+                + " became free within " + timeoutMillis + " ms");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting for a pooled connection", e);
+    }
+
+    HttpConnection connection = idle.poll();
+    if (connection == null) {
+      connection = new HttpConnection(serverAddress, port, timeoutMillis);
+    }
+    try {
+      HttpReader response = connection.send(request);
+      release(connection);
+      return response;
+    } catch (IOException e) {
+      connection.close();
+      throw e;
+    } finally {
+      permits.release();
+    }
+  }
+
+  private void release(HttpConnection connection) {
+    // A connection the server asked to close is simply dropped, a new one is opened when needed
+    if (connection.isOpen() && !closed) {
+      idle.offer(connection);
+    } else {
+      connection.close();
+    }
+  }
+
+  @Override
+  public void close() {
+    closed = true;
+    HttpConnection connection;
+    while ((connection = idle.poll()) != null) {
+      connection.close();
+    }
+  }
+}
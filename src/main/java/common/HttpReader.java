@@ -1,7 +1,12 @@
 package common;
 
 import java.io.BufferedReader;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -10,8 +15,11 @@ public class HttpReader {
   private String method;
   private String path;
   private String httpVersion;
+  private int statusCode;
+  private String statusText;
   private Map<String, String> headers;
   private String body;
+  private Reader bodySource; // Remaining unread body, bounded by Content-Length or chunk framing
 
   // Getters for accessing the parsed data
 
@@ -27,33 +35,120 @@ public class HttpReader {
     return httpVersion;
   }
 
+  /**
+   * @return The status code of a parsed response, or -1 if a request was parsed
+   */
+  public int getStatusCode() {
+    return statusCode;
+  }
+
+  public String getStatusText() {
+    return statusText;
+  }
+
   public String getHeader(String headerName) {
     return headers.get(headerName);
   }
 
+  /**
+   * @return True if the sender asked for the connection to stay open after this message
+   */
+  public boolean isKeepAlive() {
+    return "keep-alive".equalsIgnoreCase(headers.get("Connection"));
+  }
+
+  /**
+   * @param name String - the query parameter name.
+   * @return The URL-decoded value of the query parameter in the request path, or null if absent
+   */
+  public String getQueryParameter(String name) {
+    int queryStart = path != null ? path.indexOf('?') : -1;
+    if (queryStart == -1) {
+      return null;
+    }
+    for (String parameter : path.substring(queryStart + 1).split("&")) {
+      String[] keyValue = parameter.split("=", 2);
+      if (URLDecoder.decode(keyValue[0], StandardCharsets.UTF_8).equals(name)) {
+        return keyValue.length == 2 ? URLDecoder.decode(keyValue[1], StandardCharsets.UTF_8) : "";
+      }
+    }
+    return null;
+  }
+
   public Map<String, String> getHeaders() {
     return headers;
   }
 
+  /**
+   * @return The body as weather data, decompressed per its Content-Encoding and parsed as JSON or the binary
+   *         wire format per its Content-Type, or null if there is no body
+   * @throws IOException if the body cannot be decompressed
+   * @throws IllegalArgumentException if a binary body is malformed
+   */
+  public WeatherDataSerializer getWeatherData() throws IOException {
+    String data = getBody();
+    if (data == null) {
+      return null;
+    }
+    data = ContentEncoding.decode(data, headers.get("Content-Encoding"));
+    return WeatherDataSerializer.extractDataFromBody(data, headers.get("Content-Type"));
+  }
+
+  /**
+   * @return The message body, read from the stream on first use if the body was deferred
+   */
   public String getBody() {
+    if (body == null && bodySource != null) {
+      try {
+        readBody();
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
     return body;
   }
 
   public HttpReader(BufferedReader reader) throws IOException {
+    this(reader, true);
+  }
+
+  /**
+   * @param reader BufferedReader - the stream positioned at the start of an HTTP message.
+   * @param readBody boolean - false to leave the body on the stream until getBody() or getBodyReader()
+   *                 is called, so a large body can be processed while it is still arriving.
+   */
+  public HttpReader(BufferedReader reader, boolean readBody) throws IOException {
     headers = new HashMap<>();
-    parseRequest(reader);
+    statusCode = -1;
+    parseHead(reader);
+    if (readBody) {
+      readBody();
+    }
   }
 
   public void parseRequest(BufferedReader in) throws IOException {
+    parseHead(in);
+    readBody();
+  }
+
+  private void parseHead(BufferedReader in) throws IOException {
     String line = in.readLine();
 
     if (line == null) {
-      throw new IOException("No data in the request. BufferedReader returned null.");
+      throw new EOFException("No data in the request. BufferedReader returned null.");
     }
+    // Timed from the first line, so an idle keep-alive connection is not counted as parsing
+    RequestEvents.ParseEvent event = new RequestEvents.ParseEvent();
+    event.begin();
 
-    // First line should be (method, path, version)
+    // First line should be (method, path, version) for a request or (version, code, text) for a response
     String[] requestLine = line.split(" ");
-    if (requestLine.length == 3) {
+    if (requestLine.length >= 2 && requestLine[0].startsWith("HTTP/")) {
+      String[] statusLine = line.split(" ", 3);
+      httpVersion = statusLine[0];
+      statusCode = Integer.parseInt(statusLine[1]);
+      statusText = statusLine.length == 3 ? statusLine[2] : "";
+    } else if (requestLine.length == 3) {
       method = requestLine[0];
       path = requestLine[1];
       httpVersion = requestLine[2];
@@ -67,12 +162,106 @@ public class HttpReader {
       }
     }
 
-    // If Content-Length is in the header, read the body
-    if (headers.containsKey("Content-Length")) {
-      int contentLength = Integer.parseInt(headers.get("Content-Length"));
-      char[] bodyChars = new char[contentLength];
-      in.read(bodyChars, 0, contentLength);
-      body = new String(bodyChars);
+    // A body follows if Content-Length or chunked Transfer-Encoding is in the header
+    if ("chunked".equalsIgnoreCase(headers.get("Transfer-Encoding"))) {
+      bodySource = new ChunkedBodyReader(in);
+    } else if (headers.containsKey("Content-Length")) {
+      bodySource = new BoundedReader(in, Integer.parseInt(headers.get("Content-Length")));
+    }
+    if (event.shouldCommit()) {
+      event.method = method;
+      event.path = path;
+      event.stationId = headers.containsKey("Station-Id") ? headers.get("Station-Id") : headers.get("Content-Server-Id");
+      try {
+        event.lamportTimestamp = Long.parseLong(headers.getOrDefault("Lamport-Timestamp", "-1").trim());
+      } catch (NumberFormatException e) {
+        event.lamportTimestamp = RequestEvents.NO_TIMESTAMP;
+      }
+      event.commit();
+    }
+  }
+
+  private void readBody() throws IOException {
+    if (bodySource == null) {
+      return;
+    }
+    StringBuilder content = new StringBuilder();
+    char[] buffer = new char[8192];
+    int read;
+    while ((read = bodySource.read(buffer, 0, buffer.length)) != -1) {
+      content.append(buffer, 0, read);
+    }
+    bodySource = null;
+    body = content.toString();
+  }
+
+  /**
+   * Streams the body instead of buffering it. Reading stops at the end of the body, so the next
+   * message on a keep-alive connection is left untouched.
+   *
+   * @return BufferedReader - a reader over the unread part of the body.
+   */
+  public BufferedReader getBodyReader() {
+    return new BufferedReader(bodySource != null ? bodySource : Reader.nullReader());
+  }
+
+  /**
+   * Reads a chunked body one chunk at a time, for senders that frame one self-contained unit per chunk.
+   * A body that is not chunked is returned whole as a single chunk.
+   *
+   * @return String - the next chunk, or null once the body has been read.
+   */
+  public String readChunk() throws IOException {
+    if (bodySource instanceof ChunkedBodyReader chunks) {
+      return chunks.readChunk();
+    }
+    if (bodySource == null) {
+      return null;
+    }
+    readBody();
+    return body;
+  }
+
+  /**
+   * Discards any part of the body that was not read, leaving the stream at the next message.
+   */
+  public void skipBody() throws IOException {
+    if (bodySource != null) {
+      char[] buffer = new char[8192];
+      while (bodySource.read(buffer, 0, buffer.length) != -1) {
+        // Discard
+      }
+      bodySource = null;
+    }
+  }
+
+  // Reads at most a fixed number of characters from the connection, then reports the end of the body
+  private static class BoundedReader extends Reader {
+    private final BufferedReader in;
+    private int remaining;
+
+    BoundedReader(BufferedReader in, int length) {
+      this.in = in;
+      this.remaining = length;
+    }
+
+    @Override
+    public int read(char[] buffer, int offset, int length) throws IOException {
+      if (remaining <= 0) {
+        return -1;
+      }
+      // A single read may return early when the body spans several TCP segments
+      int read = in.read(buffer, offset, Math.min(length, remaining));
+      if (read == -1) {
+        throw new EOFException("Stream ended with " + remaining + " body characters unread.");
+      }
+      remaining -= read;
+      return read;
+    }
+
+    @Override
+    public void close() {
+      // The underlying connection stays open
     }
   }
 
@@ -37,10 +37,19 @@ public class HttpWriter {
   }
 
   public HttpWriter setBody(String body) {
+    return setBody(body, WeatherDataSerializer.JSON_CONTENT_TYPE); // Assuming JSON body
+  }
+
+  /**
+   * @param body String - the body, one char per byte for binary media types.
+   * @param contentType String - the body's media type.
+   * @return HttpWriter - this writer.
+   */
+  public HttpWriter setBody(String body, String contentType) {
     this.body = body;
     if (body != null) {
       this.headers.put("Content-Length", String.valueOf(body.length()));
-      this.headers.put("Content-Type", "application/json"); // Assuming JSON body
+      this.headers.put("Content-Type", contentType);
     }
     return this;
   }
@@ -1,5 +1,6 @@
 package common;
 
+// Shared by every connection thread of a node, so all access is synchronized
 public class LamportClock {
   private int currentTime;
 
@@ -13,7 +14,7 @@ public class LamportClock {
    * @param messageTimestamp a received Message
    * @return the current Lamport Clock Value
    */
-  public int processEvent(int messageTimestamp) {
+  public synchronized int processEvent(int messageTimestamp) {
     // Assuming the message contains a timestamp to compare with the local clock
     currentTime = Math.max(currentTime, messageTimestamp) + 1;
     return currentTime;
@@ -24,7 +25,7 @@ public class LamportClock {
    *
    * @return the current Lamport Clock value
    */
-  public int processEvent() {
+  public synchronized int processEvent() {
     // For internal events not related to message passing
     currentTime += 1;
     return currentTime;
@@ -35,14 +36,14 @@ public class LamportClock {
    *
    * @return the current Lamport clock value
    */
-  public int getTime() {
+  public synchronized int getTime() {
     return currentTime;
   }
 
   /**
    * Synchronizes the clock to a specified time
    */
-  public void synchroniseClock(int timestamp) {
+  public synchronized void synchroniseClock(int timestamp) {
     currentTime = timestamp;
   }
 }
\ No newline at end of file
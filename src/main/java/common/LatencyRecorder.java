@@ -0,0 +1,109 @@
+package common;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+
+/**
+ * Thread-safe log-linear latency histogram in microseconds.
+ * Values below 128 are stored exactly, larger values keep 6 significant bits (under 1.6% error).
+ * Supports coordinated omission correction by back-filling the requests that a stalled
+ * closed-loop worker would have sent while it was blocked.
+ */
+public class LatencyRecorder {
+
+  private static final int SUB_BUCKET_BITS = 7;
+  private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS; // 128
+  private static final int SUB_BUCKET_HALF = SUB_BUCKET_COUNT / 2; // 64
+  private static final int MAX_EXPONENT = 40 - (SUB_BUCKET_BITS - 1); // values up to 2^40 us (~12 days)
+  private static final int BUCKET_COUNT = SUB_BUCKET_COUNT + MAX_EXPONENT * SUB_BUCKET_HALF;
+
+  private final AtomicLongArray counts;
+  private final AtomicLong totalCount;
+  private final LongAccumulator maxValue;
+
+  public LatencyRecorder() {
+    this.counts = new AtomicLongArray(BUCKET_COUNT);
+    this.totalCount = new AtomicLong();
+    this.maxValue = new LongAccumulator(Math::max, 0);
+  }
+
+  /**
+   * Records a single latency sample.
+   *
+   * @param valueMicros long - the measured latency in microseconds.
+   */
+  public void recordValue(long valueMicros) {
+    long value = Math.max(0, valueMicros);
+    counts.incrementAndGet(bucketIndex(value));
+    totalCount.incrementAndGet();
+    maxValue.accumulate(value);
+  }
+
+  /**
+   * Records a latency sample and, if it exceeded the expected interval between requests,
+   * the samples the stalled sender would have observed for the requests it failed to send.
+   *
+   * @param valueMicros long - the measured latency in microseconds.
+   * @param expectedIntervalMicros long - the intended time between requests, or 0 to disable correction.
+   */
+  public void recordValueWithExpectedInterval(long valueMicros, long expectedIntervalMicros) {
+    recordValue(valueMicros);
+    if (expectedIntervalMicros <= 0) {
+      return;
+    }
+    for (long missed = valueMicros - expectedIntervalMicros; missed >= expectedIntervalMicros;
+         missed -= expectedIntervalMicros) {
+      recordValue(missed);
+    }
+  }
+
+  public long getTotalCount() {
+    return totalCount.get();
+  }
+
+  public long getMaxValue() {
+    return maxValue.get();
+  }
+
+  /**
+   * @param percentile double - the percentile in the range 0-100.
+   * @return long - the highest value equivalent to the recorded value at the given percentile.
+   */
+  public long getValueAtPercentile(double percentile) {
+    long total = totalCount.get();
+    if (total == 0) {
+      return 0;
+    }
+    long target = Math.max(1, (long) Math.ceil(percentile / 100.0 * total));
+    long seen = 0;
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      seen += counts.get(i);
+      if (seen >= target) {
+        return Math.min(highestEquivalentValue(i), getMaxValue());
+      }
+    }
+    return getMaxValue();
+  }
+
+  static int bucketIndex(long value) {
+    if (value < SUB_BUCKET_COUNT) {
+      return (int) value;
+    }
+    int exponent = (63 - Long.numberOfLeadingZeros(value)) - (SUB_BUCKET_BITS - 1);
+    if (exponent > MAX_EXPONENT) {
+      return BUCKET_COUNT - 1;
+    }
+    int mantissa = (int) (value >>> exponent); // in [64, 127]
+    return SUB_BUCKET_COUNT + (exponent - 1) * SUB_BUCKET_HALF + (mantissa - SUB_BUCKET_HALF);
+  }
+
+  static long highestEquivalentValue(int index) {
+    if (index < SUB_BUCKET_COUNT) {
+      return index;
+    }
+    int exponent = (index - SUB_BUCKET_COUNT) / SUB_BUCKET_HALF + 1;
+    long mantissa = (index - SUB_BUCKET_COUNT) % SUB_BUCKET_HALF + SUB_BUCKET_HALF;
+    return ((mantissa + 1) << exponent) - 1;
+  }
+}
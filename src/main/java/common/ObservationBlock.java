@@ -0,0 +1,661 @@
+package common;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * A compressed, columnar encoding for a sequence of one station's weather observations.
+ * Consecutive observations change little, so each column is encoded against its previous value:
+ *   - times and versions as delta-of-delta, one bit when they advance at a steady rate;
+ *   - decimal values (air_temp, press, lat, ...) as XOR-compressed doubles, one bit when unchanged,
+ *     with their number of decimal places so the original text is restored exactly;
+ *   - other text (id, name, local_date_time, ...) through a per-column dictionary.
+ * The fields of each observation are stored as one more column listing their column numbers, so a repeated
+ * set costs one bit, and each column is named once in the header by its FieldDictionary.SHARED code. A typical
+ * observation takes tens of bytes, compared to several hundred as JSON, even in a block of only a few rows.
+ * As the codes are only valid in the process that assigned them, blocks must not be persisted or sent to
+ * another server.
+ *
+ * Block layout: first time (8 bytes), last time (8 bytes), row count, then the time, version and field-set
+ * columns and every field's name and column, each column as its byte length followed by its bit stream. A name
+ * is its dictionary code plus one, or 0 and the name's bytes if the dictionary is full. Lengths, counts and
+ * codes are varints. The times in the header let a range scan skip a block without decoding it.
+ */
+public final class ObservationBlock {
+
+  // Decimals that survive a round trip through a double with at most 15 significant digits
+  private static final Pattern DECIMAL = Pattern.compile("-?(0|[1-9][0-9]{0,14})(\\.[0-9]{1,15})?");
+  private static final int MAX_SCALE = 15;
+  private static final double[] POWERS_OF_TEN = new double[MAX_SCALE + 1];
+
+  static {
+    POWERS_OF_TEN[0] = 1;
+    for (int i = 1; i <= MAX_SCALE; i++) {
+      POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+    }
+  }
+
+  private ObservationBlock() {
+  }
+
+  /**
+   * One decoded observation.
+   *
+   * @param time long - the observation time, such as when it was applied in epoch milliseconds.
+   * @param version long - the observation's version.
+   * @param data WeatherDataSerializer - the observation's fields, in their original order.
+   */
+  public record Row(long time, long version, WeatherDataSerializer data) {
+  }
+
+  /**
+   * @param block ByteBuffer - a buffer holding an encoded block.
+   * @param offset int - the block's position in the buffer.
+   * @return long - the time of the block's first row.
+   */
+  public static long firstTime(ByteBuffer block, int offset) {
+    return block.getLong(offset);
+  }
+
+  /**
+   * @param block ByteBuffer - a buffer holding an encoded block.
+   * @param offset int - the block's position in the buffer.
+   * @return long - the time of the block's last row.
+   */
+  public static long lastTime(ByteBuffer block, int offset) {
+    return block.getLong(offset + Long.BYTES);
+  }
+
+  /**
+   * Appends observations to a block. Rows should be appended in time order for the best compression.
+   * Not thread-safe.
+   */
+  public static class Writer {
+    private final DeltaColumnWriter times = new DeltaColumnWriter();
+    private final DeltaColumnWriter versions = new DeltaColumnWriter();
+    private final FieldSetColumnWriter fieldSets = new FieldSetColumnWriter();
+    private final Map<String, Integer> fieldColumns = new LinkedHashMap<>(); // Column number by name, in order
+    private final List<ValueColumnWriter> fields = new ArrayList<>();
+    private long firstTime;
+    private long lastTime;
+    private int rows;
+
+    public void append(long time, long version, WeatherDataSerializer data) {
+      if (rows == 0) {
+        firstTime = time;
+      }
+      lastTime = time;
+      rows++;
+      times.write(time);
+      versions.write(version);
+      int[] columns = new int[data.getData().size()];
+      int i = 0;
+      for (Map.Entry<String, String> field : data.getData().entrySet()) {
+        int column = fieldColumns.computeIfAbsent(field.getKey(), name -> {
+          fields.add(new ValueColumnWriter());
+          return fields.size() - 1;
+        });
+        fields.get(column).write(field.getValue());
+        columns[i++] = column;
+      }
+      fieldSets.write(columns);
+    }
+
+    public int rows() {
+      return rows;
+    }
+
+    /**
+     * @return byte[] - the block holding every row appended so far.
+     */
+    public byte[] toBytes() {
+      ByteOutput out = new ByteOutput();
+      out.writeLong(firstTime);
+      out.writeLong(lastTime);
+      out.writeVarint(rows);
+      out.writeColumn(times.out);
+      out.writeColumn(versions.out);
+      out.writeColumn(fieldSets.out);
+      out.writeVarint(fields.size());
+      for (Map.Entry<String, Integer> field : fieldColumns.entrySet()) {
+        int code = FieldDictionary.SHARED.fieldCode(field.getKey());
+        out.writeVarint(code + 1); // NO_CODE is written as 0
+        if (code == FieldDictionary.NO_CODE) {
+          byte[] name = field.getKey().getBytes(StandardCharsets.UTF_8);
+          out.writeVarint(name.length);
+          out.write(name, name.length);
+        }
+        out.writeColumn(fields.get(field.getValue()).out);
+      }
+      return out.toByteArray();
+    }
+  }
+
+  /**
+   * Decodes a block's rows in order, reading the columns straight from the buffer it is held in.
+   * Not thread-safe, and the buffer must not change while it is read.
+   */
+  public static class Reader {
+    private final DeltaColumnReader times;
+    private final DeltaColumnReader versions;
+    private final FieldSetColumnReader fieldSets;
+    private final String[] fieldNames;
+    private final ValueColumnReader[] fields;
+    private final int rows;
+    private final int length;
+    private int rowsRead;
+
+    /**
+     * @param block ByteBuffer - a buffer holding an encoded block, heap or direct.
+     * @param offset int - the block's position in the buffer.
+     */
+    public Reader(ByteBuffer block, int offset) {
+      ByteInput in = new ByteInput(block, offset + 2 * Long.BYTES);
+      this.rows = in.readVarint();
+      this.times = new DeltaColumnReader(in.readColumn());
+      this.versions = new DeltaColumnReader(in.readColumn());
+      this.fieldSets = new FieldSetColumnReader(in.readColumn());
+      int fieldCount = in.readVarint();
+      this.fieldNames = new String[fieldCount];
+      this.fields = new ValueColumnReader[fieldCount];
+      for (int i = 0; i < fieldCount; i++) {
+        int code = in.readVarint() - 1;
+        if (code == FieldDictionary.NO_CODE) {
+          byte[] name = new byte[in.readVarint()];
+          in.read(name);
+          fieldNames[i] = FieldDictionary.SHARED.field(new String(name, StandardCharsets.UTF_8));
+        } else {
+          fieldNames[i] = FieldDictionary.SHARED.symbol(code);
+        }
+        fields[i] = new ValueColumnReader(in.readColumn());
+      }
+      this.length = in.position - offset;
+    }
+
+    public int rows() {
+      return rows;
+    }
+
+    /**
+     * @return int - the block's encoded size in bytes.
+     */
+    public int length() {
+      return length;
+    }
+
+    /**
+     * @return Row - the next row, or null once every row has been read.
+     */
+    public Row next() {
+      if (rowsRead == rows) {
+        return null;
+      }
+      rowsRead++;
+      long time = times.read();
+      long version = versions.read();
+      WeatherDataSerializer data = new WeatherDataSerializer();
+      for (int column : fieldSets.read()) {
+        data.getData().put(fieldNames[column], fields[column].read());
+      }
+      return new Row(time, version, data);
+    }
+  }
+
+  // Delta-of-delta: a steady interval costs one bit, small changes of interval take a few more
+  private static class DeltaColumnWriter {
+    final BitOutput out = new BitOutput();
+    private long previous;
+    private long previousDelta;
+    private boolean started;
+
+    void write(long value) {
+      if (!started) {
+        out.writeBits(value, 64);
+        started = true;
+      } else {
+        long delta = value - previous;
+        long zigzag = zigzag(delta - previousDelta);
+        if (zigzag == 0) {
+          out.writeBits(0b0, 1);
+        } else if (zigzag >>> 7 == 0) {
+          out.writeBits(0b10, 2);
+          out.writeBits(zigzag, 7);
+        } else if (zigzag >>> 12 == 0) {
+          out.writeBits(0b110, 3);
+          out.writeBits(zigzag, 12);
+        } else if (zigzag >>> 20 == 0) {
+          out.writeBits(0b1110, 4);
+          out.writeBits(zigzag, 20);
+        } else {
+          out.writeBits(0b1111, 4);
+          out.writeBits(zigzag, 64);
+        }
+        previousDelta = delta;
+      }
+      previous = value;
+    }
+  }
+
+  private static class DeltaColumnReader {
+    private final BitInput in;
+    private long previous;
+    private long previousDelta;
+    private boolean started;
+
+    DeltaColumnReader(BitInput in) {
+      this.in = in;
+    }
+
+    long read() {
+      if (!started) {
+        started = true;
+        previous = in.readBits(64);
+        return previous;
+      }
+      long zigzag;
+      if (in.readBit() == 0) {
+        zigzag = 0;
+      } else if (in.readBit() == 0) {
+        zigzag = in.readBits(7);
+      } else if (in.readBit() == 0) {
+        zigzag = in.readBits(12);
+      } else if (in.readBit() == 0) {
+        zigzag = in.readBits(20);
+      } else {
+        zigzag = in.readBits(64);
+      }
+      previousDelta += unzigzag(zigzag);
+      previous += previousDelta;
+      return previous;
+    }
+  }
+
+  // A row's column numbers in field order: one bit set if they repeat the previous row's, else a count and each one
+  private static class FieldSetColumnWriter {
+    final BitOutput out = new BitOutput();
+    private int[] previous;
+
+    void write(int[] columns) {
+      if (Arrays.equals(columns, previous)) {
+        out.writeBits(1, 1);
+        return;
+      }
+      out.writeBits(0, 1);
+      out.writeVarint(columns.length);
+      for (int column : columns) {
+        out.writeVarint(column);
+      }
+      previous = columns;
+    }
+  }
+
+  private static class FieldSetColumnReader {
+    private final BitInput in;
+    private int[] previous;
+
+    FieldSetColumnReader(BitInput in) {
+      this.in = in;
+    }
+
+    int[] read() {
+      if (in.readBit() == 1) {
+        return previous;
+      }
+      previous = new int[(int) in.readVarint()];
+      for (int i = 0; i < previous.length; i++) {
+        previous[i] = (int) in.readVarint();
+      }
+      return previous;
+    }
+  }
+
+  /*
+   * Each value starts with a bit set if it repeats the column's previous value. Otherwise a kind bit follows:
+   * 0 for a decimal, as 4 bits of decimal places and the double XORed with the previous decimal, or 1 for text,
+   * as a 0 and its dictionary index or a 1 and a new literal added to the dictionary. A literal is stored as the
+   * bytes it shares with the start and end of the column's previous value and the bytes in between, so text
+   * that counts up, such as "15/03:00pm" after "15/02:00pm", takes a few bytes.
+   */
+  private static class ValueColumnWriter {
+    final BitOutput out = new BitOutput();
+    private final Map<String, Integer> dictionary = new HashMap<>();
+    private final XorState xor = new XorState();
+    private String previous;
+
+    void write(String value) {
+      if (value.equals(previous)) {
+        out.writeBits(1, 1);
+        return;
+      }
+      out.writeBits(0, 1);
+      String before = previous;
+      previous = value;
+      int scale = decimalScale(value);
+      if (scale >= 0) {
+        out.writeBits(0, 1);
+        out.writeBits(scale, 4);
+        xor.write(out, Double.doubleToRawLongBits(Double.parseDouble(value)));
+        return;
+      }
+      out.writeBits(1, 1);
+      Integer index = dictionary.get(value);
+      if (index != null) {
+        out.writeBits(0, 1);
+        out.writeBits(index, bitsFor(dictionary.size()));
+      } else {
+        out.writeBits(1, 1);
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        int prefix = 0;
+        int suffix = 0;
+        if (before != null) {
+          byte[] previousBytes = before.getBytes(StandardCharsets.UTF_8);
+          int shared = Math.min(bytes.length, previousBytes.length);
+          while (prefix < shared && bytes[prefix] == previousBytes[prefix]) {
+            prefix++;
+          }
+          while (suffix < shared - prefix
+                  && bytes[bytes.length - 1 - suffix] == previousBytes[previousBytes.length - 1 - suffix]) {
+            suffix++;
+          }
+        }
+        out.writeVarint(prefix);
+        out.writeVarint(suffix);
+        out.writeVarint(bytes.length - prefix - suffix);
+        for (int i = prefix; i < bytes.length - suffix; i++) {
+          out.writeBits(bytes[i] & 0xFF, 8);
+        }
+        dictionary.put(value, dictionary.size());
+      }
+    }
+  }
+
+  private static class ValueColumnReader {
+    private final BitInput in;
+    private final List<String> dictionary = new ArrayList<>();
+    private final XorState xor = new XorState();
+    private String previous;
+
+    ValueColumnReader(BitInput in) {
+      this.in = in;
+    }
+
+    String read() {
+      if (in.readBit() == 1) {
+        return previous;
+      }
+      if (in.readBit() == 0) {
+        int scale = (int) in.readBits(4);
+        previous = formatDecimal(Double.longBitsToDouble(xor.read(in)), scale);
+      } else if (in.readBit() == 0) {
+        previous = dictionary.get((int) in.readBits(bitsFor(dictionary.size())));
+      } else {
+        byte[] before = previous != null ? previous.getBytes(StandardCharsets.UTF_8) : new byte[0];
+        int prefix = (int) in.readVarint();
+        int suffix = (int) in.readVarint();
+        byte[] bytes = new byte[prefix + suffix + (int) in.readVarint()];
+        System.arraycopy(before, 0, bytes, 0, prefix);
+        for (int i = prefix; i < bytes.length - suffix; i++) {
+          bytes[i] = (byte) in.readBits(8);
+        }
+        System.arraycopy(before, before.length - suffix, bytes, bytes.length - suffix, suffix);
+        previous = new String(bytes, StandardCharsets.UTF_8);
+        dictionary.add(previous);
+      }
+      return previous;
+    }
+  }
+
+  // XOR of a double with the previous one, storing only the bits that differ (the Gorilla encoding)
+  private static class XorState {
+    private long previous;
+    private int leading = -1;
+    private int trailing;
+
+    void write(BitOutput out, long bits) {
+      long xor = bits ^ previous;
+      previous = bits;
+      if (xor == 0) {
+        out.writeBits(0, 1);
+        return;
+      }
+      out.writeBits(1, 1);
+      int newLeading = Math.min(Long.numberOfLeadingZeros(xor), 31);
+      int newTrailing = Long.numberOfTrailingZeros(xor);
+      if (leading >= 0 && newLeading >= leading && newTrailing >= trailing) {
+        // The differing bits fit in the previous window, so its position is not repeated
+        out.writeBits(0, 1);
+        out.writeBits(xor >>> trailing, 64 - leading - trailing);
+      } else {
+        int significant = 64 - newLeading - newTrailing;
+        out.writeBits(1, 1);
+        out.writeBits(newLeading, 5);
+        out.writeBits(significant - 1, 6);
+        out.writeBits(xor >>> newTrailing, significant);
+        leading = newLeading;
+        trailing = newTrailing;
+      }
+    }
+
+    long read(BitInput in) {
+      if (in.readBit() == 0) {
+        return previous;
+      }
+      if (in.readBit() == 1) {
+        leading = (int) in.readBits(5);
+        int significant = (int) in.readBits(6) + 1;
+        trailing = 64 - leading - significant;
+      }
+      previous ^= in.readBits(64 - leading - trailing) << trailing;
+      return previous;
+    }
+  }
+
+  /**
+   * @param value String - a field value.
+   * @return int - the number of decimal places if the value is a decimal that is restored exactly from a
+   *         double, otherwise -1.
+   */
+  static int decimalScale(String value) {
+    if (value.length() > 2 * MAX_SCALE + 2 || !DECIMAL.matcher(value).matches()) {
+      return -1;
+    }
+    int point = value.indexOf('.');
+    int scale = point < 0 ? 0 : value.length() - point - 1;
+    int digits = value.length() - (point < 0 ? 0 : 1) - (value.startsWith("-") ? 1 : 0);
+    if (digits > MAX_SCALE) {
+      return -1;
+    }
+    return formatDecimal(Double.parseDouble(value), scale).equals(value) ? scale : -1;
+  }
+
+  static String formatDecimal(double value, int scale) {
+    long unscaled = Math.round(Math.abs(value) * POWERS_OF_TEN[scale]);
+    String digits = Long.toString(unscaled);
+    StringBuilder text = new StringBuilder(digits.length() + 3);
+    if (value < 0 || (value == 0 && 1 / value < 0)) {
+      text.append('-');
+    }
+    if (scale == 0) {
+      return text.append(digits).toString();
+    }
+    if (digits.length() <= scale) {
+      char[] zeros = new char[scale - digits.length() + 1];
+      Arrays.fill(zeros, '0');
+      digits = new String(zeros) + digits;
+    }
+    int point = digits.length() - scale;
+    return text.append(digits, 0, point).append('.').append(digits, point, digits.length()).toString();
+  }
+
+  private static int bitsFor(int size) {
+    return size <= 1 ? 0 : 32 - Integer.numberOfLeadingZeros(size - 1);
+  }
+
+  private static long zigzag(long value) {
+    return (value << 1) ^ (value >> 63);
+  }
+
+  private static long unzigzag(long value) {
+    return (value >>> 1) ^ -(value & 1);
+  }
+
+  private static class BitOutput {
+    private byte[] bytes = new byte[32];
+    private long bitLength;
+
+    // Writes the low count bits of value, most significant first, filling a byte at a time
+    void writeBits(long value, int count) {
+      while (count > 0) {
+        int index = (int) (bitLength >>> 3);
+        if (index == bytes.length) {
+          bytes = Arrays.copyOf(bytes, bytes.length * 2);
+        }
+        int free = 8 - (int) (bitLength & 7);
+        int take = Math.min(free, count);
+        int bits = (int) (value >>> (count - take)) & ((1 << take) - 1);
+        bytes[index] |= (byte) (bits << (free - take));
+        bitLength += take;
+        count -= take;
+      }
+    }
+
+    void writeVarint(long value) {
+      while ((value & ~0x7FL) != 0) {
+        writeBits((value & 0x7F) | 0x80, 8);
+        value >>>= 7;
+      }
+      writeBits(value, 8);
+    }
+
+    int byteLength() {
+      return (int) ((bitLength + 7) >>> 3);
+    }
+  }
+
+  private static class BitInput {
+    private final ByteBuffer buffer;
+    private final int start;
+    private long bitPosition;
+
+    BitInput(ByteBuffer buffer, int start) {
+      this.buffer = buffer;
+      this.start = start;
+    }
+
+    int readBit() {
+      int b = buffer.get(start + (int) (bitPosition >>> 3));
+      int bit = (b >>> (7 - (bitPosition & 7))) & 1;
+      bitPosition++;
+      return bit;
+    }
+
+    // Reads count bits, most significant first, taking what is left of a byte at a time
+    long readBits(int count) {
+      long value = 0;
+      while (count > 0) {
+        int b = buffer.get(start + (int) (bitPosition >>> 3)) & 0xFF;
+        int available = 8 - (int) (bitPosition & 7);
+        int take = Math.min(available, count);
+        value = (value << take) | ((b >>> (available - take)) & ((1 << take) - 1));
+        bitPosition += take;
+        count -= take;
+      }
+      return value;
+    }
+
+    long readVarint() {
+      long value = 0;
+      for (int shift = 0; ; shift += 7) {
+        long b = readBits(8);
+        value |= (b & 0x7F) << shift;
+        if ((b & 0x80) == 0) {
+          return value;
+        }
+      }
+    }
+  }
+
+  private static class ByteOutput {
+    private byte[] bytes = new byte[128];
+    private int length;
+
+    void write(byte[] source, int count) {
+      ensure(count);
+      System.arraycopy(source, 0, bytes, length, count);
+      length += count;
+    }
+
+    void writeLong(long value) {
+      for (int shift = 56; shift >= 0; shift -= 8) {
+        ensure(1);
+        bytes[length++] = (byte) (value >>> shift);
+      }
+    }
+
+    void writeVarint(int value) {
+      while ((value & ~0x7F) != 0) {
+        ensure(1);
+        bytes[length++] = (byte) ((value & 0x7F) | 0x80);
+        value >>>= 7;
+      }
+      ensure(1);
+      bytes[length++] = (byte) value;
+    }
+
+    void writeColumn(BitOutput column) {
+      writeVarint(column.byteLength());
+      write(column.bytes, column.byteLength());
+    }
+
+    byte[] toByteArray() {
+      return Arrays.copyOf(bytes, length);
+    }
+
+    private void ensure(int count) {
+      if (length + count > bytes.length) {
+        bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + count));
+      }
+    }
+  }
+
+  private static class ByteInput {
+    private final ByteBuffer buffer;
+    private int position;
+
+    ByteInput(ByteBuffer buffer, int position) {
+      this.buffer = buffer;
+      this.position = position;
+    }
+
+    int readVarint() {
+      int value = 0;
+      for (int shift = 0; ; shift += 7) {
+        int b = buffer.get(position++);
+        value |= (b & 0x7F) << shift;
+        if ((b & 0x80) == 0) {
+          return value;
+        }
+      }
+    }
+
+    void read(byte[] destination) {
+      buffer.get(position, destination);
+      position += destination.length;
+    }
+
+    // The column's bits are read in place, and the position moves past them
+    BitInput readColumn() {
+      int length = readVarint();
+      BitInput column = new BitInput(buffer, position);
+      position += length;
+      return column;
+    }
+  }
+}
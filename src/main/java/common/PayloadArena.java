@@ -0,0 +1,166 @@
+package common;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Holds byte payloads outside the Java heap, so a large number of stored payloads adds nothing for the
+ * garbage collector to trace or copy. The heap side only keeps a long handle per payload.
+ *
+ * Memory is taken from the operating system in direct slabs of SLAB_BYTES. Each slab is carved into blocks
+ * of one power-of-two size class, from MIN_BLOCK_BYTES up to a whole slab, and a payload is stored in the
+ * smallest block that fits it and its header. Freed blocks go on a free list per size class and are reused
+ * before a new block is carved, so a steady set of payloads needs no new memory as it is rewritten.
+ *
+ * Block layout: generation (4 bytes), payload length (4 bytes), payload. Freeing a block advances its
+ * generation, and a handle carries the generation it was allocated at, so a read through a handle whose block
+ * has since been freed returns null instead of another payload. Reads take no lock: a reader copies the
+ * payload and checks the generation again afterwards, which also catches a block freed during the copy.
+ * Allocation and freeing are synchronized.
+ */
+public final class PayloadArena {
+
+  public static final long NO_HANDLE = -1;
+  public static final int SLAB_BYTES = 1 << 20;
+  private static final int MIN_BLOCK_SHIFT = 6;
+  private static final int MIN_BLOCK_BYTES = 1 << MIN_BLOCK_SHIFT;
+  private static final int SIZE_CLASSES = Integer.numberOfTrailingZeros(SLAB_BYTES) - MIN_BLOCK_SHIFT + 1;
+  private static final int HEADER_BYTES = 8;
+  private static final int MAX_SLABS = 1 << 16;
+  // Handle layout: generation (32 bits), slab (16 bits), block within the slab (14 bits)
+  private static final int BLOCK_BITS = Integer.numberOfTrailingZeros(SLAB_BYTES) - MIN_BLOCK_SHIFT;
+  private static final VarHandle INTS = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.nativeOrder());
+
+  private final ByteBuffer[] slabs;
+  private final int[] slabClasses;
+  private final int maxSlabs;
+  private int slabCount;
+  private final int[] carvingSlab = new int[SIZE_CLASSES]; // The slab each size class is carving, -1 for none
+  private final int[] carvedBlocks = new int[SIZE_CLASSES];
+  private final int[][] freeBlocks = new int[SIZE_CLASSES][]; // Stacks of (slab << BLOCK_BITS | block)
+  private final int[] freeCounts = new int[SIZE_CLASSES];
+  private long usedBytes;
+
+  /**
+   * @param maxBytes long - the most off-heap memory to take, rounded up to whole slabs.
+   */
+  public PayloadArena(long maxBytes) {
+    this.maxSlabs = (int) Math.max(1, Math.min(MAX_SLABS, (maxBytes + SLAB_BYTES - 1) / SLAB_BYTES));
+    this.slabs = new ByteBuffer[maxSlabs];
+    this.slabClasses = new int[maxSlabs];
+    Arrays.fill(carvingSlab, -1);
+    for (int sizeClass = 0; sizeClass < SIZE_CLASSES; sizeClass++) {
+      freeBlocks[sizeClass] = new int[16];
+    }
+  }
+
+  /**
+   * Copies a payload into the arena.
+   *
+   * @param payload byte[] - the payload.
+   * @return long - the payload's handle, or NO_HANDLE if it is larger than a slab or the arena is full.
+   */
+  public synchronized long allocate(byte[] payload) {
+    int sizeClass = sizeClass(payload.length + HEADER_BYTES);
+    if (sizeClass >= SIZE_CLASSES) {
+      return NO_HANDLE;
+    }
+    int location;
+    if (freeCounts[sizeClass] > 0) {
+      location = freeBlocks[sizeClass][--freeCounts[sizeClass]];
+    } else {
+      int slab = carvingSlab[sizeClass];
+      if (slab == -1 || carvedBlocks[sizeClass] == SLAB_BYTES >> (sizeClass + MIN_BLOCK_SHIFT)) {
+        if (slabCount == maxSlabs) {
+          return NO_HANDLE;
+        }
+        slab = slabCount++;
+        slabs[slab] = ByteBuffer.allocateDirect(SLAB_BYTES).order(ByteOrder.nativeOrder());
+        slabClasses[slab] = sizeClass;
+        carvingSlab[sizeClass] = slab;
+        carvedBlocks[sizeClass] = 0;
+      }
+      location = slab << BLOCK_BITS | carvedBlocks[sizeClass]++;
+    }
+    ByteBuffer buffer = slabs[location >>> BLOCK_BITS];
+    int offset = offset(location);
+    int generation = (int) INTS.getVolatile(buffer, offset);
+    buffer.putInt(offset + 4, payload.length);
+    buffer.put(offset + HEADER_BYTES, payload);
+    usedBytes += blockBytes(sizeClass);
+    return (long) generation << 32 | location;
+  }
+
+  /**
+   * @param handle long - a handle from allocate.
+   * @return byte[] - a copy of the payload, or null if it has been freed.
+   */
+  public byte[] read(long handle) {
+    int location = (int) handle;
+    ByteBuffer buffer = slabs[location >>> BLOCK_BITS];
+    int offset = offset(location);
+    int generation = (int) (handle >>> 32);
+    if ((int) INTS.getAcquire(buffer, offset) != generation) {
+      return null;
+    }
+    int length = buffer.getInt(offset + 4);
+    byte[] payload = new byte[Math.max(0, Math.min(length, blockBytes(slabClasses[location >>> BLOCK_BITS]) - HEADER_BYTES))];
+    buffer.get(offset + HEADER_BYTES, payload);
+    VarHandle.loadLoadFence();
+    // A changed generation means the block was freed, and may have been reused, during the copy
+    return (int) INTS.getVolatile(buffer, offset) == generation && payload.length == length ? payload : null;
+  }
+
+  /**
+   * Returns a payload's block to the arena. Freeing a handle that was already freed does nothing.
+   *
+   * @param handle long - a handle from allocate.
+   */
+  public synchronized void free(long handle) {
+    int location = (int) handle;
+    ByteBuffer buffer = slabs[location >>> BLOCK_BITS];
+    int offset = offset(location);
+    int generation = (int) (handle >>> 32);
+    if ((int) INTS.getVolatile(buffer, offset) != generation) {
+      return;
+    }
+    INTS.setVolatile(buffer, offset, generation + 1);
+    VarHandle.storeStoreFence(); // Readers must see the new generation before the block is rewritten
+    int sizeClass = slabClasses[location >>> BLOCK_BITS];
+    if (freeCounts[sizeClass] == freeBlocks[sizeClass].length) {
+      freeBlocks[sizeClass] = Arrays.copyOf(freeBlocks[sizeClass], freeCounts[sizeClass] * 2);
+    }
+    freeBlocks[sizeClass][freeCounts[sizeClass]++] = location;
+    usedBytes -= blockBytes(sizeClass);
+  }
+
+  /**
+   * @return long - the bytes of the blocks holding payloads.
+   */
+  public synchronized long usedBytes() {
+    return usedBytes;
+  }
+
+  /**
+   * @return long - the off-heap bytes taken from the operating system so far.
+   */
+  public synchronized long reservedBytes() {
+    return (long) slabCount * SLAB_BYTES;
+  }
+
+  private int offset(int location) {
+    int block = location & ((1 << BLOCK_BITS) - 1);
+    return block * blockBytes(slabClasses[location >>> BLOCK_BITS]);
+  }
+
+  private static int sizeClass(int bytes) {
+    return Math.max(0, 32 - Integer.numberOfLeadingZeros(bytes - 1) - MIN_BLOCK_SHIFT);
+  }
+
+  private static int blockBytes(int sizeClass) {
+    return MIN_BLOCK_BYTES << sizeClass;
+  }
+}
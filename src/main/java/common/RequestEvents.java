@@ -0,0 +1,126 @@
+package common;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Java Flight Recorder events for each stage of a request's life, so a latency spike can be traced to
+ * parsing, dispatch, queueing, disk writes, reads, expiry sweeps or response writing. They cost nothing
+ * unless a recording enables them, and little when one does, so a server can be recorded continuously:
+ * java -XX:StartFlightRecording=filename=server.jfr,settings=profile ...
+ *
+ * Events carry the station ID and Lamport timestamp where they are known, NO_TIMESTAMP otherwise. The
+ * timestamp of a write is its station version, so the enqueue and apply events of one write can be matched.
+ * Stack traces are left out to keep the events small.
+ */
+public final class RequestEvents {
+
+  public static final long NO_TIMESTAMP = -1;
+
+  private RequestEvents() {
+  }
+
+  @Name("weatherserver.Parse")
+  @Label("Request Parse")
+  @Description("Reading and parsing an HTTP message head, from its first line arriving")
+  @Category({"Weather Server", "Request"})
+  @StackTrace(false)
+  public static class ParseEvent extends Event {
+    @Label("Method")
+    public String method;
+    @Label("Path")
+    public String path;
+    @Label("Station ID")
+    public String stationId;
+    @Label("Lamport Timestamp")
+    public long lamportTimestamp = NO_TIMESTAMP;
+  }
+
+  @Name("weatherserver.Dispatch")
+  @Label("Request Dispatch")
+  @Description("Handling one request on a connection, from its head being parsed to its response being sent")
+  @Category({"Weather Server", "Request"})
+  @StackTrace(false)
+  public static class DispatchEvent extends Event {
+    @Label("Method")
+    public String method;
+    @Label("Path")
+    public String path;
+    @Label("Station ID")
+    public String stationId;
+  }
+
+  @Name("weatherserver.Enqueue")
+  @Label("Write Enqueue")
+  @Description("Queueing a write for the writer thread, including waiting for the accept lock")
+  @Category({"Weather Server", "Write"})
+  @StackTrace(false)
+  public static class EnqueueEvent extends Event {
+    @Label("Station ID")
+    public String stationId;
+    @Label("Lamport Timestamp")
+    public long lamportTimestamp = NO_TIMESTAMP;
+    @Label("Result")
+    public String result;
+    @Label("Queued Writes")
+    public int queuedWrites;
+  }
+
+  @Name("weatherserver.WriteApply")
+  @Label("Write Apply")
+  @Description("Applying a queued write: merging, writing the station file and notifying listeners")
+  @Category({"Weather Server", "Write"})
+  @StackTrace(false)
+  public static class WriteApplyEvent extends Event {
+    @Label("Station ID")
+    public String stationId;
+    @Label("Lamport Timestamp")
+    public long lamportTimestamp = NO_TIMESTAMP;
+    @Label("Durable")
+    public boolean durable;
+  }
+
+  @Name("weatherserver.Read")
+  @Label("Station Read")
+  @Description("Reading a station's latest applied record")
+  @Category({"Weather Server", "Read"})
+  @StackTrace(false)
+  public static class ReadEvent extends Event {
+    @Label("Station ID")
+    public String stationId;
+    @Label("Lamport Timestamp")
+    public long lamportTimestamp = NO_TIMESTAMP;
+  }
+
+  @Name("weatherserver.ExpirySweep")
+  @Label("Expiry Sweep")
+  @Description("One pass of the cleanup daemon removing stations not updated within the expiry period")
+  @Category({"Weather Server", "Write"})
+  @StackTrace(false)
+  public static class ExpirySweepEvent extends Event {
+    @Label("Stations Checked")
+    public int checked;
+    @Label("Stations Expired")
+    public int expired;
+  }
+
+  @Name("weatherserver.ResponseSend")
+  @Label("Response Send")
+  @Description("Writing and flushing a response to the client")
+  @Category({"Weather Server", "Request"})
+  @StackTrace(false)
+  public static class ResponseSendEvent extends Event {
+    @Label("Status Code")
+    public int statusCode;
+    @Label("Body Size")
+    @DataAmount
+    public long bodyBytes;
+    @Label("Lamport Timestamp")
+    public long lamportTimestamp = NO_TIMESTAMP;
+  }
+}
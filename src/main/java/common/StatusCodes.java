@@ -4,18 +4,38 @@ public class StatusCodes {
 
   public static final int OK = 200;
   public static final int CREATED = 201;
+  public static final int ACCEPTED = 202;
   public static final int NO_CONTENT = 204;
+  public static final int NOT_MODIFIED = 304;
+  public static final int TEMPORARY_REDIRECT = 307;
   public static final int BAD_REQUEST = 400;
+  public static final int NOT_FOUND = 404;
+  public static final int CONFLICT = 409;
+  public static final int PRECONDITION_FAILED = 412;
+  public static final int PAYLOAD_TOO_LARGE = 413;
+  public static final int TOO_MANY_REQUESTS = 429;
   public static final int INTERNAL_SERVER_ERROR = 500;
+  public static final int BAD_GATEWAY = 502;
+  public static final int SERVICE_UNAVAILABLE = 503;
 
   // Method to get a status code based on the status code
   public static String getStatusText(int statusCode) {
     return switch (statusCode) {
       case OK -> "OK";
       case CREATED -> "CREATED";
+      case ACCEPTED -> "ACCEPTED";
       case NO_CONTENT -> "NO_CONTENT";
+      case NOT_MODIFIED -> "NOT_MODIFIED";
+      case TEMPORARY_REDIRECT -> "TEMPORARY_REDIRECT";
       case BAD_REQUEST -> "BAD_REQUEST";
+      case NOT_FOUND -> "NOT_FOUND";
+      case CONFLICT -> "CONFLICT";
+      case PRECONDITION_FAILED -> "PRECONDITION_FAILED";
+      case PAYLOAD_TOO_LARGE -> "PAYLOAD_TOO_LARGE";
+      case TOO_MANY_REQUESTS -> "TOO_MANY_REQUESTS";
       case INTERNAL_SERVER_ERROR -> "INTERNAL_SERVER_ERROR";
+      case BAD_GATEWAY -> "BAD_GATEWAY";
+      case SERVICE_UNAVAILABLE -> "SERVICE_UNAVAILABLE";
       default -> "UNKNOWN_STATUS_CODE";
     };
   }
@@ -25,9 +45,19 @@ public class StatusCodes {
     return switch (statusCode) {
       case OK -> "OK - Successful PUT/GET request";
       case CREATED -> "Created - First successful PUT from a Content Server";
+      case ACCEPTED -> "Accepted - Write queued but not yet applied";
       case NO_CONTENT -> "No Content - Empty PUT request";
+      case NOT_MODIFIED -> "Not Modified - Cached data is still current";
+      case TEMPORARY_REDIRECT -> "Temporary Redirect - Subscribe to the cluster node that owns the station";
       case BAD_REQUEST -> "Bad Request - Invalid request method";
+      case NOT_FOUND -> "Not Found - No data for the requested station";
+      case CONFLICT -> "Conflict - Request does not match the server's replication role";
+      case PRECONDITION_FAILED -> "Precondition Failed - Patch base version does not match the stored version";
+      case PAYLOAD_TOO_LARGE -> "Payload Too Large - Batch holds more records than the server accepts at once";
+      case TOO_MANY_REQUESTS -> "Too Many Requests - Content Server exceeded its PUT rate limit";
       case INTERNAL_SERVER_ERROR -> "Internal Server Error - Invalid JSON data";
+      case BAD_GATEWAY -> "Bad Gateway - The cluster node owning the station could not be reached";
+      case SERVICE_UNAVAILABLE -> "Service Unavailable - Backup server, send writes to the primary";
       default -> "Unknown Status Code";
     };
   }
@@ -1,9 +1,23 @@
 package common;
 
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.BufferUnderflowException;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 public class WeatherDataSerializer {
+  public static final String JSON_CONTENT_TYPE = "application/json";
+  public static final String BINARY_CONTENT_TYPE = "application/x-weather-binary";
+  // The fields of the assignment's weather data, given fixed one-byte codes in the binary wire format.
+  // Part of the format, so only ever appended to.
+  private static final List<String> WIRE_FIELDS = List.of("id", "name", "state", "time_zone", "lat", "lon",
+          "local_date_time", "local_date_time_full", "air_temp", "apparent_t", "cloud", "dewpt", "press",
+          "rel_hum", "wind_dir", "wind_spd_kmh", "wind_spd_kt");
+  private static final int WIRE_VERSION = 1;
+  private static final FieldDictionary DICTIONARY = FieldDictionary.SHARED;
   private Map<String, String> data;
 
   public WeatherDataSerializer() {
@@ -35,6 +49,18 @@ public class WeatherDataSerializer {
     return jsonBuilder.toString();
   }
 
+  // Convert the data into single-line JSON, one record per line in newline-delimited JSON bodies
+  public String toCompactJson() {
+    StringBuilder jsonBuilder = new StringBuilder("{");
+    for (Map.Entry<String, String> entry : data.entrySet()) {
+      if (jsonBuilder.length() > 1) {
+        jsonBuilder.append(",");
+      }
+      jsonBuilder.append("\"").append(entry.getKey()).append("\":\"").append(entry.getValue()).append("\"");
+    }
+    return jsonBuilder.append("}").toString();
+  }
+
   // Populate the data map from a JSON string
   public static WeatherDataSerializer extractDataFromJson(String jsonString) {
     WeatherDataSerializer weatherDataSerializer = new WeatherDataSerializer();
@@ -43,11 +69,11 @@ public class WeatherDataSerializer {
       jsonString = jsonString.substring(1, jsonString.length() - 1); // Remove the braces
       String[] pairs = jsonString.split(",");
       for (String pair : pairs) {
-        String[] keyValue = pair.split(":");
+        String[] keyValue = pair.split(":", 2); // Values such as local_date_time may contain ':'
         if (keyValue.length == 2) {
-          String key = keyValue[0].replace("\"", "").trim();
+          String key = DICTIONARY.field(keyValue[0].replace("\"", "").trim());
           String value = keyValue[1].replace("\"", "").trim();
-          weatherDataSerializer.data.put(key, value);
+          weatherDataSerializer.data.put(key, DICTIONARY.value(key, value));
         }
       }
     }
@@ -68,13 +94,178 @@ public class WeatherDataSerializer {
     WeatherDataSerializer weatherDataSerializer = new WeatherDataSerializer();
     String[] lines = txtString.split("\n");
     for (String line : lines) {
-      String[] keyValue = line.split(":");
+      String[] keyValue = line.split(":", 2); // Values such as local_date_time may contain ':'
       if (keyValue.length == 2) {
-        String key = keyValue[0].trim();
+        String key = DICTIONARY.field(keyValue[0].trim());
         String value = keyValue[1].trim();
-        weatherDataSerializer.data.put(key, value);
+        weatherDataSerializer.data.put(key, DICTIONARY.value(key, value));
+      }
+    }
+    return weatherDataSerializer;
+  }
+
+  // Convert the data into the binary wire format, one char per byte like every body on the wire: a format
+  // version byte, the field count, then each field as its WIRE_FIELDS index + 1 (or 0 followed by its name)
+  // and its value, where names and values are a varint byte length and their UTF-8 bytes.
+  // A typical observation takes about 150 bytes, compared to about 450 as pretty-printed JSON.
+  public String toBinary() {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    bytes.write(WIRE_VERSION);
+    writeVarint(bytes, data.size());
+    for (Map.Entry<String, String> entry : data.entrySet()) {
+      int field = WIRE_FIELDS.indexOf(entry.getKey());
+      writeVarint(bytes, field + 1);
+      if (field == -1) {
+        writeText(bytes, entry.getKey());
+      }
+      writeText(bytes, entry.getValue());
+    }
+    return new String(bytes.toByteArray(), StandardCharsets.ISO_8859_1);
+  }
+
+  // Populate the data map from the binary wire format, throwing IllegalArgumentException if it is malformed
+  public static WeatherDataSerializer extractDataFromBinary(String binaryString) {
+    WeatherDataSerializer weatherDataSerializer = new WeatherDataSerializer();
+    ByteBuffer buffer = ByteBuffer.wrap(binaryString.getBytes(StandardCharsets.ISO_8859_1));
+    try {
+      if (buffer.get() != WIRE_VERSION) {
+        throw new IllegalArgumentException("Unsupported binary weather data version");
       }
+      int fields = readVarint(buffer);
+      for (int i = 0; i < fields; i++) {
+        int field = readVarint(buffer) - 1;
+        if (field >= WIRE_FIELDS.size()) {
+          throw new IllegalArgumentException("Unknown binary field code " + (field + 1));
+        }
+        String key = field >= 0 ? WIRE_FIELDS.get(field) : DICTIONARY.field(readText(buffer));
+        weatherDataSerializer.data.put(key, DICTIONARY.value(key, readText(buffer)));
+      }
+    } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+      throw new IllegalArgumentException("Truncated binary weather data", e);
     }
     return weatherDataSerializer;
   }
-}
\ No newline at end of file
+
+  // Convert the data into a message body of the given media type, JSON unless it is the binary type
+  public String toBody(String contentType) {
+    return isBinary(contentType) ? toBinary() : toJson();
+  }
+
+  // Populate the data map from a message body of the given media type, JSON unless it is the binary type
+  public static WeatherDataSerializer extractDataFromBody(String body, String contentType) {
+    return isBinary(contentType) ? extractDataFromBinary(body) : extractDataFromJson(body);
+  }
+
+  // Check whether a Content-Type or Accept header names the binary wire format
+  public static boolean isBinary(String mediaTypes) {
+    if (mediaTypes == null) {
+      return false;
+    }
+    for (String mediaType : mediaTypes.split(",")) {
+      if (mediaType.split(";")[0].trim().equalsIgnoreCase(BINARY_CONTENT_TYPE)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static void writeText(ByteArrayOutputStream bytes, String text) {
+    byte[] encoded = text.getBytes(StandardCharsets.UTF_8);
+    writeVarint(bytes, encoded.length);
+    bytes.writeBytes(encoded);
+  }
+
+  private static String readText(ByteBuffer buffer) {
+    int length = readVarint(buffer);
+    if (length < 0 || length > buffer.remaining()) {
+      throw new IllegalArgumentException("Truncated binary weather data");
+    }
+    String text = new String(buffer.array(), buffer.position(), length, StandardCharsets.UTF_8);
+    buffer.position(buffer.position() + length);
+    return text;
+  }
+
+  // Convert the data into a binary form for in-process storage: the field count, then each key and value as
+  // its FieldDictionary code + 1, or 0 followed by a varint byte length and its UTF-8 bytes if it has no code.
+  // A typical record is mostly codes of one or two bytes. Unlike the JSON parser it restores any value exactly.
+  public byte[] toBytes() {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    writeVarint(bytes, data.size());
+    for (Map.Entry<String, String> entry : data.entrySet()) {
+      String key = entry.getKey();
+      writeSymbol(bytes, DICTIONARY.fieldCode(key), key);
+      writeSymbol(bytes, DICTIONARY.valueCode(key, entry.getValue()), entry.getValue());
+    }
+    return bytes.toByteArray();
+  }
+
+  // Populate the data map from the binary form written by toBytes, with the dictionary's canonical strings
+  public static WeatherDataSerializer fromBytes(byte[] bytes) {
+    WeatherDataSerializer weatherDataSerializer = new WeatherDataSerializer();
+    ByteBuffer buffer = ByteBuffer.wrap(bytes);
+    int fields = readVarint(buffer);
+    for (int i = 0; i < fields; i++) {
+      String key = readSymbol(buffer);
+      weatherDataSerializer.data.put(key, readSymbol(buffer));
+    }
+    return weatherDataSerializer;
+  }
+
+  private static void writeSymbol(ByteArrayOutputStream bytes, int code, String value) {
+    writeVarint(bytes, code + 1); // NO_CODE is written as 0
+    if (code == FieldDictionary.NO_CODE) {
+      writeText(bytes, value);
+    }
+  }
+
+  private static String readSymbol(ByteBuffer buffer) {
+    int code = readVarint(buffer) - 1;
+    if (code != FieldDictionary.NO_CODE) {
+      return DICTIONARY.symbol(code);
+    }
+    return readText(buffer);
+  }
+
+  private static void writeVarint(ByteArrayOutputStream bytes, int value) {
+    while ((value & ~0x7F) != 0) {
+      bytes.write((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    bytes.write(value);
+  }
+
+  private static int readVarint(ByteBuffer buffer) {
+    int value = 0;
+    for (int shift = 0; ; shift += 7) {
+      byte next = buffer.get();
+      value |= (next & 0x7F) << shift;
+      if (next >= 0) {
+        return value;
+      }
+    }
+  }
+
+  // Collect the fields that were added or changed since the given base data
+  public WeatherDataSerializer diff(WeatherDataSerializer base) {
+    WeatherDataSerializer delta = new WeatherDataSerializer();
+    for (Map.Entry<String, String> entry : data.entrySet()) {
+      if (!entry.getValue().equals(base.data.get(entry.getKey()))) {
+        delta.data.put(entry.getKey(), entry.getValue());
+      }
+    }
+    return delta;
+  }
+
+  // Check whether every field of the given data is still present in this data
+  public boolean containsAllFieldsOf(WeatherDataSerializer other) {
+    return data.keySet().containsAll(other.data.keySet());
+  }
+
+  // Apply a delta on top of this data, keeping the original field order
+  public WeatherDataSerializer merge(WeatherDataSerializer delta) {
+    WeatherDataSerializer merged = new WeatherDataSerializer();
+    merged.data.putAll(data);
+    merged.data.putAll(delta.data);
+    return merged;
+  }
+}
@@ -6,18 +6,32 @@ import java.io.*;
 import java.net.Socket;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.logging.*;
 
 public class ContentServer implements NetworkNode, Runnable {
 
   private static final Logger logger = Logger.getLogger(ContentServer.class.getName());
+  private static final long DEFAULT_PUSH_INTERVAL = 10 * 1000; // 10 seconds, well inside the 30 second expiry
+  private static final long INITIAL_BACKOFF = 500; // 0.5 seconds
+  private static final long MAX_BACKOFF = 8 * 1000; // 8 seconds
+  private static final int CONNECTION_TIMEOUT = 5 * 1000; // 5 seconds
+  private static final int MAX_PUT_ATTEMPTS = 5; // One-off PUTs refused with Retry-After
 
   private String serverAddress;
   private int port;
   private String filePath;
   private final String contentServerID;
   private LamportClock lamportClock;
-  private boolean isRunning;
+  private volatile boolean isRunning;
+  private boolean daemon;
+  private long pushInterval;
+  private boolean deltaEnabled;
+  private String contentType;
+  private String ackMode; // Sent as the Ack-Mode header, null for the server's default
+  private WeatherDataSerializer lastAcknowledgedData;
+  private long lastAcknowledgedVersion;
+  private long retryAfter; // Milliseconds the server asked to wait before the next PUT, 0 for none
 
   /**
    * Constructor for ContentServer.
@@ -35,9 +49,52 @@ public class ContentServer implements NetworkNode, Runnable {
     this.contentServerID = extractIDFromFilePath(filePath);  // Extract the ID from file path
     this.lamportClock = new LamportClock();
     this.isRunning = false;
+    this.daemon = false;
+    this.pushInterval = DEFAULT_PUSH_INTERVAL;
+    this.deltaEnabled = true;
+    this.contentType = WeatherDataSerializer.JSON_CONTENT_TYPE;
     LoggerSetup.setupLogger(logger, "logs/content-server.log");
   }
 
+  /**
+   * Switches the content server into daemon mode, where it keeps one connection open and re-sends
+   * its weather data every interval until shut down, instead of sending once and exiting.
+   *
+   * @param pushInterval long - milliseconds between successful PUTs. Should stay well below the
+   *                     30 second expiry period of the AggregationServer.
+   */
+  public void enableDaemonMode(long pushInterval) {
+    this.daemon = true;
+    this.pushInterval = pushInterval;
+  }
+
+  /**
+   * @param deltaEnabled boolean - whether daemon mode sends only changed fields after the first acknowledged PUT.
+   */
+  public void setDeltaEnabled(boolean deltaEnabled) {
+    this.deltaEnabled = deltaEnabled;
+  }
+
+  /**
+   * Sends the weather data in the compact binary wire format instead of pretty-printed JSON, which is
+   * smaller and cheaper for the server to parse. The server must support the format.
+   *
+   * @param binary boolean - true to send binary PUTs.
+   */
+  public void setBinary(boolean binary) {
+    this.contentType = binary ? WeatherDataSerializer.BINARY_CONTENT_TYPE : WeatherDataSerializer.JSON_CONTENT_TYPE;
+  }
+
+  /**
+   * Asks the server to acknowledge each PUT on enqueue, once applied, or once durable on disk, instead of
+   * in the server's default mode. Later modes answer more slowly but promise more about the write.
+   *
+   * @param ackMode String - "enqueue", "applied" or "durable", or null for the server's default.
+   */
+  public void setAckMode(String ackMode) {
+    this.ackMode = ackMode;
+  }
+
   /**
    * Extracts the ID from the file path.
    *
@@ -98,31 +155,39 @@ public class ContentServer implements NetworkNode, Runnable {
   /**
    * Builds an HTTP PUT request string.
    *
-   * @param jsonBody String - the JSON body.
+   * @param body String - the body, JSON or binary per the content type.
    * @return String - the HTTP PUT request.
    */
-  private String jsonHttpRequest(String jsonBody) {
+  private String jsonHttpRequest(String body) {
+    return putRequestWriter(body).toString();
+  }
+
+  private HttpWriter putRequestWriter(String body) {
     HttpWriter httpWriter = new HttpWriter();
+    if (ackMode != null) {
+      httpWriter.addHeader("Ack-Mode", ackMode);
+    }
     return httpWriter
             .setMethod("PUT")
             .setPath("/weather.json")
             .setHttpVersion("HTTP/1.1")
             .addHeader("Lamport-Timestamp", String.valueOf(lamportClock.getTime()))
             .addHeader("Content-Server-Id", contentServerID)
-            .setBody(jsonBody)
-            .toString();
+            .setBody(body, contentType);
   }
 
   /**
    * Sends the HTTP PUT request to the AggregationServer.
    *
    * @param httpRequest String - the HTTP PUT request to be sent.
+   * @return long - the milliseconds to wait before retrying if the server refused the PUT with
+   *         503 and Retry-After, otherwise 0.
    */
-  private void sendPutRequest(String httpRequest) {
+  private long sendPutRequest(String httpRequest) {
     logger.info("Sending PUT request to " + serverAddress + ":" + port);
     try (Socket socket = new Socket(serverAddress, port);
-         PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-         BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
+         PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), ContentEncoding.WIRE_CHARSET), true);
+         BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), ContentEncoding.WIRE_CHARSET))) {
 
       // Send the HTTP request
       out.print(httpRequest);
@@ -136,7 +201,7 @@ public class ContentServer implements NetworkNode, Runnable {
         response.append(statusLine).append("\n");
       } else {
         logger.info("No server response.");
-        return;
+        return 0;
       }
 
       // Extract HTTP status code from the status line
@@ -144,37 +209,193 @@ public class ContentServer implements NetworkNode, Runnable {
       int statusCode = Integer.parseInt(statusParts[1]);
 
       // Read and append the rest of the response
+      long retryAfter = 0;
+      boolean inHeaders = true;
       while ((responseLine = in.readLine()) != null) {
         response.append(responseLine).append("\n");
+        inHeaders = inHeaders && !responseLine.isEmpty();
+        if (inHeaders && isRetryLater(statusCode)
+                && responseLine.regionMatches(true, 0, "Retry-After:", 0, "Retry-After:".length())) {
+          retryAfter = parseRetryAfter(responseLine.substring("Retry-After:".length()));
+        }
       }
 
       // Log the server's response
       logger.info("Server response: " + response.toString());
+      return retryAfter;
 
     } catch (Exception e) {
       logger.log(Level.SEVERE, "Error while sending PUT request", e);
+      return 0;
+    }
+  }
+
+  // Overloaded (503) or over this Content Server's rate limit (429), either way worth retrying after Retry-After
+  private static boolean isRetryLater(int statusCode) {
+    return statusCode == StatusCodes.SERVICE_UNAVAILABLE || statusCode == StatusCodes.TOO_MANY_REQUESTS;
+  }
+
+  // Retry-After in seconds as milliseconds, 0 if it is not a number of seconds
+  private static long parseRetryAfter(String value) {
+    try {
+      return Math.max(0, Long.parseLong(value.trim())) * 1000;
+    } catch (NumberFormatException e) {
+      return 0;
     }
   }
 
   /**
-   * Converts the data to JSON format, builds and sends the HTTP request.
+   * Converts the data to JSON (or binary) format, builds and sends the HTTP request.
+   * If the server is overloaded or rate limiting this Content Server and answers 503 or 429 with Retry-After,
+   * the PUT is sent again after waiting that long, up to MAX_PUT_ATTEMPTS times.
    */
   public void makePutRequest() {
     try {
       WeatherDataSerializer weatherDataSerializer = readFileToWeatherData();
-      String jsonString = weatherDataSerializer.toJson();
-      String httpRequest = jsonHttpRequest(jsonString);
-      sendPutRequest(httpRequest);
+      String body = weatherDataSerializer.toBody(contentType);
+      for (int attempt = 1; attempt <= MAX_PUT_ATTEMPTS; attempt++) {
+        long delay = sendPutRequest(jsonHttpRequest(body));
+        if (delay == 0 || attempt == MAX_PUT_ATTEMPTS) {
+          break;
+        }
+        logger.warning("Server refused the PUT for now, retrying in " + delay + " ms");
+        Thread.sleep(delay);
+      }
     } catch (IOException e) {
       logger.log(Level.SEVERE, "Error reading file: " + filePath, e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
     }
   }
 
 
+  /**
+   * Re-sends the weather data over a persistent connection every push interval until shut down.
+   * Failed sends are retried with exponential backoff and full jitter, so that many content servers
+   * recovering from the same outage do not reconnect in lockstep. A send refused with 503 or 429 and
+   * Retry-After is retried after that long instead, plus up to half as long again of jitter, over the same
+   * connection.
+   */
+  private void runDaemon() {
+    logger.info("Content Server pushing every " + pushInterval + " ms");
+    if (pushInterval >= 30 * 1000) {
+      logger.warning("Push interval is not inside the 30 second expiry period, data will expire between sends.");
+    }
+
+    try (HttpConnection connection = new HttpConnection(serverAddress, port, CONNECTION_TIMEOUT)) {
+      int failedAttempts = 0;
+      while (isRunning) {
+        long delay;
+        if (pushOnce(connection)) {
+          failedAttempts = 0;
+          delay = pushInterval;
+        } else if (retryAfter > 0) {
+          delay = retryAfter + ThreadLocalRandom.current().nextLong(retryAfter / 2 + 1);
+          logger.warning("Server refused the PUT for now, retrying in " + delay + " ms");
+        } else {
+          connection.reset(); // Reconnect for the next attempt, the server may have dropped the socket
+          long backoffCap = Math.min(MAX_BACKOFF, INITIAL_BACKOFF << Math.min(failedAttempts, 20));
+          delay = ThreadLocalRandom.current().nextLong(backoffCap + 1);
+          failedAttempts++;
+          logger.warning("PUT attempt " + failedAttempts + " failed, retrying in " + delay + " ms");
+        }
+        sleepWhileRunning(delay);
+      }
+    }
+  }
+
+  /**
+   * Sends the current file contents once over the given connection.
+   * Once the server has acknowledged a full record, later sends are patches holding only the fields
+   * that changed since the last acknowledged version. If the server rejects the patch because it no
+   * longer holds that version (expired, evicted or restarted) the full record is sent instead.
+   *
+   * @param connection HttpConnection - the persistent connection to the AggregationServer.
+   * @return boolean - true if the server acknowledged the PUT.
+   */
+  private boolean pushOnce(HttpConnection connection) {
+    try {
+      WeatherDataSerializer weatherData = readFileToWeatherData();
+      // Removed fields cannot be expressed as a patch, so they force a full send
+      boolean asDelta = deltaEnabled && lastAcknowledgedData != null
+              && weatherData.containsAllFieldsOf(lastAcknowledgedData);
+      HttpReader response = sendWeatherData(connection, weatherData, asDelta);
+      if (asDelta && response.getStatusCode() == StatusCodes.PRECONDITION_FAILED) {
+        logger.info("Server rejected patch against version " + lastAcknowledgedVersion + ", sending full record");
+        response = sendWeatherData(connection, weatherData, false);
+      }
+      logger.info("Server response: " + response.getStatusCode() + " " + response.getStatusText());
+      String retryAfterHeader = response.getHeader("Retry-After");
+      retryAfter = isRetryLater(response.getStatusCode()) && retryAfterHeader != null
+              ? parseRetryAfter(retryAfterHeader) : 0;
+
+      boolean acknowledged = response.getStatusCode() >= 200 && response.getStatusCode() < 300;
+      String version = response.getHeader("Station-Version");
+      if (acknowledged && version != null) {
+        lastAcknowledgedData = weatherData;
+        lastAcknowledgedVersion = Long.parseLong(version);
+      } else if (retryAfter == 0) {
+        lastAcknowledgedData = null; // A refusal for overload or rate leaves the acknowledged version in place
+      }
+      return acknowledged;
+    } catch (IOException | NumberFormatException e) {
+      logger.log(Level.WARNING, "Error while sending PUT request", e);
+      lastAcknowledgedData = null;
+      retryAfter = 0;
+      return false;
+    }
+  }
+
+  /**
+   * Sends the weather data as a full record or as a patch against the last acknowledged version.
+   * The Lamport clock ticks for the send and then merges the server's timestamp from the response,
+   * so ordering is carried forward from one send to the next.
+   *
+   * @param connection HttpConnection - the persistent connection to the AggregationServer.
+   * @param weatherData WeatherDataSerializer - the current weather data.
+   * @param asDelta boolean - true to send only the fields changed since the last acknowledged version.
+   * @return HttpReader - the server's response.
+   */
+  private HttpReader sendWeatherData(HttpConnection connection, WeatherDataSerializer weatherData, boolean asDelta)
+          throws IOException {
+    lamportClock.processEvent();
+    HttpWriter request;
+    if (asDelta) {
+      request = putRequestWriter(weatherData.diff(lastAcknowledgedData).toBody(contentType))
+              .addHeader("Base-Version", String.valueOf(lastAcknowledgedVersion));
+    } else {
+      request = putRequestWriter(weatherData.toBody(contentType));
+    }
+    HttpReader response = connection.send(request);
+
+    String serverTimestamp = response.getHeader("Lamport-Timestamp");
+    if (serverTimestamp != null) {
+      lamportClock.processEvent(Integer.parseInt(serverTimestamp));
+    }
+    return response;
+  }
+
+  private void sleepWhileRunning(long millis) {
+    long end = System.currentTimeMillis() + millis;
+    try {
+      // Sleep in short steps so shutdown is not delayed by a full push interval
+      while (isRunning && System.currentTimeMillis() < end) {
+        Thread.sleep(Math.min(100, end - System.currentTimeMillis()));
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      isRunning = false;
+    }
+  }
+
   @Override
   public void run() {
     startup();
-    makePutRequest();
+    if (daemon) {
+      runDaemon();
+    } else {
+      makePutRequest();
+    }
     shutdown();
   }
 
@@ -182,22 +403,39 @@ public class ContentServer implements NetworkNode, Runnable {
    * Initializes the server with command-line arguments, creates a thread to run it,
    * and starts the server.
    *
-   * @param args String[] - command-line arguments: <server_address:port> <file_path>.
-
+   * @param args String[] - command-line arguments: <server_address:port> <file_path>
+   *             [--daemon] [--interval=MS] [--delta=true|false] [--binary] [--ack=enqueue|applied|durable].
    */
   public static void main(String[] args) {
-    if (args.length < 2) {
-      logger.severe("Usage: <server_address:port> <file_path>");
+    CommandLineOptions options = new CommandLineOptions(args);
+    if (options.positionalCount() < 2) {
+      logger.severe("Usage: <server_address:port> <file_path> [--daemon] [--interval=MS] [--delta=true|false] [--binary] [--ack=enqueue|applied|durable]");
       return;
     }
 
-    String[] serverDetails = args[0].split(":");
+    String[] serverDetails = options.getPositional(0).split(":");
     String serverAddress = serverDetails[0];
     int port = Integer.parseInt(serverDetails[1]);
-    String filePath = args[1];
+    String filePath = options.getPositional(1);
 
     ContentServer contentServer = new ContentServer(serverAddress, port, filePath);
+    contentServer.setBinary(options.hasOption("binary"));
+    contentServer.setAckMode(options.getString("ack", null));
+    if (options.hasOption("daemon")) {
+      contentServer.enableDaemonMode(options.getLong("interval", DEFAULT_PUSH_INTERVAL));
+      contentServer.setDeltaEnabled(options.getBoolean("delta", true));
+    }
     Thread serverThread = new Thread(contentServer);
     serverThread.start();
+
+    // Stop pushing and close the connection when the daemon is terminated (kill signal)
+    Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+      contentServer.shutdown();
+      try {
+        serverThread.join();
+      } catch (InterruptedException e) {
+        logger.log(Level.SEVERE, "Error shutting down content server thread", e);
+      }
+    }));
   }
-}
\ No newline at end of file
+}
@@ -5,19 +5,40 @@ import common.*;
 import java.io.*;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public class GetClient implements NetworkNode, Runnable {
 
     private static final Logger logger = Logger.getLogger(GetClient.class.getName());
+    private static final int CONNECTION_TIMEOUT = 5 * 1000; // 5 seconds
 
     private String serverAddress;
     private int port;
     private String stationID;
     private LamportClock lamportClock;
-    private Boolean isRunning;
+    private volatile Boolean isRunning;
     private ServerSocket serverSocket;
+    private String bulkQuery;
+    private List<String> stationIDs;
+    private int maxConnections; // 0 fetches stationIDs in one bulk GET instead of concurrently
+    private int requestTimeout;
+    private long pollInterval;
+    private long longPollWait;
+    private boolean subscribe;
+    private boolean compression;
+    private boolean binary;
+    private final Map<String, CachedResponse> cache; // Last response body and ETag per station ID
+
+    // A previously received response body, kept so unchanged data can be revalidated instead of refetched
+    private record CachedResponse(String etag, String body, String contentType) {
+    }
 
     /**
      * Constructor for GetClient.
@@ -30,8 +51,11 @@ public class GetClient implements NetworkNode, Runnable {
     public GetClient(String serverAddress, int port, String stationID) {
         this.serverAddress = serverAddress != null ? serverAddress : DEFAULT_SERVER_ADDRESS;
         this.port = port;
+        this.stationID = stationID;
         this.lamportClock = new LamportClock();
         this.isRunning = false;
+        this.cache = new HashMap<>();
+        this.compression = true;
         LoggerSetup.setupLogger(logger, "logs/client-server.log");
     }
 
@@ -69,53 +93,408 @@ public class GetClient implements NetworkNode, Runnable {
         return isRunning;
     }
 
+    /**
+     * Requests several stations in one bulk GET instead of a single station.
+     *
+     * @param stationIDs List - the station IDs to fetch.
+     */
+    public void requestStations(List<String> stationIDs) {
+        this.stationIDs = stationIDs;
+        this.bulkQuery = "stations=" + URLEncoder.encode(String.join(",", stationIDs), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Fetches the stations given to requestStations with one GET each, sent concurrently over a pool of
+     * reused connections, instead of one bulk GET. Prints a latency summary after each round.
+     *
+     * @param maxConnections int - the most connections, and so concurrent requests, to the server.
+     * @param requestTimeout int - the per-request timeout in milliseconds.
+     */
+    public void setConcurrentFetch(int maxConnections, int requestTimeout) {
+        this.maxConnections = maxConnections;
+        this.requestTimeout = requestTimeout;
+    }
+
+    /**
+     * Requests every station whose ID starts with the prefix in one bulk GET.
+     *
+     * @param prefix String - the station ID prefix, empty for all stations.
+     */
+    public void requestPrefix(String prefix) {
+        this.bulkQuery = "prefix=" + URLEncoder.encode(prefix, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Requests every station whose fields meet a filter in one bulk GET.
+     *
+     * @param filter String - comma-separated conditions on indexed fields, such as "state=SA,air_temp>=10".
+     */
+    public void requestFilter(String filter) {
+        this.bulkQuery = "filter=" + URLEncoder.encode(filter, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Requests the stations nearest a point in one bulk GET, nearest first.
+     *
+     * @param point String - the point as "LAT,LON".
+     * @param k int - the number of stations to request, 0 for the server's default.
+     */
+    public void requestNearest(String point, int k) {
+        this.bulkQuery = "near=" + URLEncoder.encode(point, StandardCharsets.UTF_8) + (k > 0 ? "&k=" + k : "");
+    }
+
+    /**
+     * Requests every station within a bounding box in one bulk GET.
+     *
+     * @param box String - the box as "MINLAT,MINLON,MAXLAT,MAXLON", MINLON above MAXLON to cross the antimeridian.
+     */
+    public void requestBoundingBox(String box) {
+        this.bulkQuery = "bbox=" + URLEncoder.encode(box, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Requests the station's past observations applied between two times instead of its latest data.
+     *
+     * @param from String - the earliest time in epoch milliseconds, negative for relative to now, null for no bound.
+     * @param to String - the latest time in epoch milliseconds, negative for relative to now, null for no bound.
+     */
+    public void requestHistory(String from, String to) {
+        StringBuilder query = new StringBuilder("history=" + URLEncoder.encode(stationID, StandardCharsets.UTF_8));
+        if (from != null) {
+            query.append("&from=").append(from);
+        }
+        if (to != null) {
+            query.append("&to=").append(to);
+        }
+        this.bulkQuery = query.toString();
+    }
+
+    /**
+     * Repeats the GET every interval until shut down, over one keep-alive connection.
+     * Unchanged data is revalidated against the local cache rather than fetched again.
+     *
+     * @param pollInterval long - milliseconds between requests.
+     */
+    public void setPollInterval(long pollInterval) {
+        this.pollInterval = pollInterval;
+    }
+
+    /**
+     * Repeats the GET as a long-poll until shut down: each request is held by the server until the
+     * data changes from the cached version or the wait expires, so changes are printed as they happen.
+     *
+     * @param longPollWait long - milliseconds the server may hold each request.
+     */
+    public void setLongPollWait(long longPollWait) {
+        this.longPollWait = longPollWait;
+    }
+
+    /**
+     * Subscribes to an event stream instead of polling, printing every update the server pushes
+     * for the requested station, stations or prefix until shut down.
+     *
+     * @param subscribe boolean - true to subscribe.
+     */
+    public void setSubscribe(boolean subscribe) {
+        this.subscribe = subscribe;
+    }
+
+    /**
+     * Asks the server for gzip or deflate compressed responses, which are decompressed on arrival.
+     * Enabled by default.
+     *
+     * @param compression boolean - false to request uncompressed responses.
+     */
+    public void setCompression(boolean compression) {
+        this.compression = compression;
+    }
+
+    /**
+     * Asks for single-station responses in the compact binary wire format instead of JSON.
+     * Bulk, history and subscription responses stay JSON.
+     *
+     * @param binary boolean - true to accept binary responses.
+     */
+    public void setBinary(boolean binary) {
+        this.binary = binary;
+    }
+
     @Override
     public void run() {
         startup();
-        makeGetRequest();
+        if (subscribe) {
+            subscribeToUpdates();
+        } else if (stationIDs != null && maxConnections > 0) {
+            try (StationFetcher fetcher = new StationFetcher(serverAddress, port, maxConnections, requestTimeout, lamportClock)) {
+                fetchConcurrently(fetcher);
+                while (pollInterval > 0 && isRunning) {
+                    sleepWhileRunning(pollInterval);
+                    if (isRunning) {
+                        fetchConcurrently(fetcher);
+                    }
+                }
+            }
+        } else if (bulkQuery != null) {
+            makeBulkGetRequest();
+        } else {
+            // A held long-poll must not be mistaken for a dead server
+            int timeout = (int) (CONNECTION_TIMEOUT + longPollWait);
+            try (HttpConnection connection = new HttpConnection(serverAddress, port, timeout)) {
+                makeGetRequest(connection);
+                while ((pollInterval > 0 || longPollWait > 0) && isRunning) {
+                    if (longPollWait <= 0) {
+                        sleepWhileRunning(pollInterval);
+                    }
+                    if (isRunning) {
+                        makeGetRequest(connection);
+                    }
+                }
+            }
+        }
         shutdown();  // Ensure shutdown when the loop exits
     }
 
+    /**
+     * Fetches every requested station concurrently and prints each result, then a summary of the
+     * round and the latency distribution of all requests so far.
+     *
+     * @param fetcher StationFetcher - the pooled fetcher shared by every round.
+     */
+    private void fetchConcurrently(StationFetcher fetcher) {
+        logger.info("Fetching " + stationIDs.size() + " stations over up to " + maxConnections + " connections");
+        long start = System.nanoTime();
+        List<StationFetcher.StationResult> results = fetcher.fetch(stationIDs);
+        long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+
+        int updated = 0;
+        int unchanged = 0;
+        int failed = 0;
+        StringBuilder output = new StringBuilder("Data Received from: " + serverAddress + "\n\n");
+        for (StationFetcher.StationResult result : results) {
+            if (!result.isSuccess()) {
+                failed++;
+                output.append("Station ").append(result.stationId()).append(": ")
+                        .append(result.error() != null ? result.error() : "HTTP " + result.statusCode()).append("\n\n");
+                continue;
+            }
+            if (result.statusCode() == StatusCodes.NOT_MODIFIED) {
+                unchanged++;
+            } else {
+                updated++;
+            }
+            output.append(result.data().toTxt()).append("\n");
+        }
+
+        LatencyRecorder latencies = fetcher.getLatencies();
+        output.append(String.format("%d stations in %d ms: %d updated, %d unchanged, %d failed%n",
+                results.size(), elapsedMillis, updated, unchanged, failed));
+        output.append(String.format("Latency over %d requests: p50=%.3f p90=%.3f p99=%.3f max=%.3f (ms)",
+                latencies.getTotalCount(),
+                latencies.getValueAtPercentile(50) / 1000.0,
+                latencies.getValueAtPercentile(90) / 1000.0,
+                latencies.getValueAtPercentile(99) / 1000.0,
+                latencies.getMaxValue() / 1000.0));
+        System.out.println(output);
+    }
+
+    /**
+     * Sends a bulk GET and prints each station as soon as its line of the chunked response arrives,
+     * rather than waiting for the whole response.
+     */
+    private void makeBulkGetRequest() {
+        logger.info("Sending bulk GET request to " + serverAddress + ":" + port + " for " + bulkQuery);
+        HttpWriter httpWriter = new HttpWriter()
+                .setMethod("GET")
+                .setPath("/weather.json?" + bulkQuery)
+                .setHttpVersion("HTTP/1.1")
+                .addHeader("Lamport-Timestamp", String.valueOf(lamportClock.getTime()));
+        if (compression) {
+            httpWriter.addHeader("Accept-Encoding", ContentEncoding.SUPPORTED);
+        }
+        String httpRequest = httpWriter.toString();
+
+        try (Socket socket = new Socket(serverAddress, port);
+             PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), ContentEncoding.WIRE_CHARSET), true);
+             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), ContentEncoding.WIRE_CHARSET))) {
+
+            out.print(httpRequest);
+            out.flush();
+
+            HttpReader response = new HttpReader(in, false);
+            if (response.getStatusCode() != StatusCodes.OK) {
+                System.out.println("Bulk GET failed: " + response.getStatusCode() + " " + response.getStatusText());
+                return;
+            }
+
+            System.out.println("Data Received from: " + serverAddress + "\n");
+            String contentEncoding = response.getHeader("Content-Encoding");
+            int stations = 0;
+            if (contentEncoding == null) {
+                BufferedReader body = response.getBodyReader();
+                String line;
+                while ((line = body.readLine()) != null) {
+                    stations += printStation(line);
+                }
+            } else {
+                // The server sends each station as a complete compressed member in its own chunk
+                String chunk;
+                while ((chunk = response.readChunk()) != null) {
+                    for (String line : ContentEncoding.decode(chunk, contentEncoding).split("\n")) {
+                        stations += printStation(line);
+                    }
+                }
+            }
+            System.out.println(stations + " stations received");
+        } catch (Exception e) {
+            logger.log(Level.SEVERE, "Error while sending bulk GET request", e);
+        }
+    }
+
+    /**
+     * Opens an event stream and prints each update as the server pushes it. The server sends a
+     * heartbeat comment while there are no updates, so the read never times out on a healthy stream.
+     */
+    private void subscribeToUpdates() {
+        String query = bulkQuery != null ? bulkQuery
+                : stationID != null ? "stations=" + URLEncoder.encode(stationID, StandardCharsets.UTF_8)
+                : "prefix=";
+        logger.info("Subscribing to " + serverAddress + ":" + port + " for " + query);
+        String httpRequest = new HttpWriter()
+                .setMethod("GET")
+                .setPath("/weather.json?" + query)
+                .setHttpVersion("HTTP/1.1")
+                .addHeader("Accept", "text/event-stream")
+                .addHeader("Lamport-Timestamp", String.valueOf(lamportClock.getTime()))
+                .toString();
+
+        try (Socket socket = new Socket(serverAddress, port);
+             PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), ContentEncoding.WIRE_CHARSET), true);
+             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), ContentEncoding.WIRE_CHARSET))) {
+
+            out.print(httpRequest);
+            out.flush();
+
+            HttpReader response = new HttpReader(in, false);
+            if (response.getStatusCode() != StatusCodes.OK) {
+                System.out.println("Subscription failed: " + response.getStatusCode() + " " + response.getStatusText());
+                return;
+            }
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> closeQuietly(socket)));
+
+            // Events are blocks of "field: value" lines separated by a blank line
+            String event = "update";
+            String line;
+            while (isRunning && (line = in.readLine()) != null) {
+                if (line.startsWith("event: ")) {
+                    event = line.substring("event: ".length());
+                } else if (line.startsWith("data: ")) {
+                    WeatherDataSerializer data = WeatherDataSerializer.extractDataFromJson(line.substring("data: ".length()));
+                    String station = data.getData().remove("station");
+                    String version = data.getData().remove("version");
+                    if ("remove".equals(event)) {
+                        System.out.println("Station removed: " + station + "\n");
+                    } else {
+                        System.out.println("Update for station " + station + " (version " + version + ")\n" + data.toTxt());
+                    }
+                } else if (line.isEmpty()) {
+                    event = "update";
+                }
+            }
+        } catch (Exception e) {
+            if (isRunning) {
+                logger.log(Level.SEVERE, "Error while reading event stream", e);
+            }
+        }
+    }
+
+    private static int printStation(String line) {
+        if (line.isBlank()) {
+            return 0;
+        }
+        System.out.println(WeatherDataSerializer.extractDataFromJson(line).toTxt());
+        return 1;
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+            // The stream is being abandoned anyway
+        }
+    }
+
     /**
      * Builds an HTTP GET request for weather data in JSON format.
      *
-     * @return String - HTTP GET request
+     * @return HttpWriter - HTTP GET request
      */
-    private String jsonHttpRequest() {
+    private HttpWriter jsonHttpRequest() {
         HttpWriter httpWriter = new HttpWriter();
         if (stationID!=null) {
             httpWriter.addHeader("Station-Id", stationID);
         }
 
+        if (compression) {
+            httpWriter.addHeader("Accept-Encoding", ContentEncoding.SUPPORTED);
+        }
+
+        if (binary) {
+            httpWriter.addHeader("Accept", WeatherDataSerializer.BINARY_CONTENT_TYPE);
+        }
+
         return httpWriter
             .setMethod("GET")
-            .setPath("/weather.json")
+            .setPath(longPollWait > 0 ? "/weather.json?wait=" + longPollWait : "/weather.json")
             .setHttpVersion("HTTP/1.1")
-            .addHeader("Lamport-Timestamp", String.valueOf(lamportClock.getTime()))
-            .toString();
+            .addHeader("Lamport-Timestamp", String.valueOf(lamportClock.getTime()));
     }
 
     /**
      * Sends the GET request to the server and processes the response.
      * Converts the response into a readable format and prints to the command line.
+     * If data for this station is cached, the request revalidates it with If-None-Match and a
+     * 304 Not Modified response is answered from the cache instead of transferring the data again.
+     * Compressed responses are decompressed before being cached and printed.
+     *
+     * @param connection HttpConnection - the connection to the AggregationServer.
      */
-    private void makeGetRequest() {
+    private void makeGetRequest(HttpConnection connection) {
+        String cacheKey = stationID != null ? stationID : "";
         try {
-            // Send the HTTP request
-            String httpRequest = jsonHttpRequest();
-            String httpResponse = sendGetRequest(httpRequest);
+            HttpWriter httpRequest = jsonHttpRequest();
+            CachedResponse cached = cache.get(cacheKey);
+            if (cached != null) {
+                httpRequest.addHeader("If-None-Match", cached.etag());
+            }
 
-            if (httpResponse == null) {
-                return;
+            logger.info("Sending GET request to " + serverAddress + ":" + port + " for Station ID: " + stationID);
+            HttpReader response = connection.send(httpRequest);
+            String serverTimestamp = response.getHeader("Lamport-Timestamp");
+            if (serverTimestamp != null) {
+                lamportClock.processEvent(Integer.parseInt(serverTimestamp));
+            }
+            logger.info("Server response: " + response.getStatusCode() + " " + response.getStatusText());
+
+            String data = null;
+            String contentType = null;
+            if (response.getStatusCode() == StatusCodes.NOT_MODIFIED && cached != null) {
+                data = cached.body();
+                contentType = cached.contentType();
+            } else if (response.getStatusCode() == StatusCodes.OK) {
+                data = ContentEncoding.decode(response.getBody(), response.getHeader("Content-Encoding"));
+                contentType = response.getHeader("Content-Type");
+                String etag = response.getHeader("ETag");
+                if (etag != null) {
+                    cache.put(cacheKey, new CachedResponse(etag, data, contentType));
+                }
+            } else {
+                cache.remove(cacheKey);
             }
-            //  Split the response
-            String[] httpsParts = httpResponse.split("\\{", 2);
-            String data = (httpsParts.length > 1) ? "{" + httpsParts[1] : null; // Ensure the JSON part is correctly formatted
 
             // Display Data
             String outputStr;
             if (data != null) {
-                WeatherDataSerializer weatherData = WeatherDataSerializer.extractDataFromJson(data);
+                WeatherDataSerializer weatherData = WeatherDataSerializer.extractDataFromBody(data, contentType);
                 outputStr = weatherData.toTxt();
             } else {
                 outputStr = "No Data Received";
@@ -129,49 +508,16 @@ public class GetClient implements NetworkNode, Runnable {
         }
     }
 
-    /**
-     * Sends the GET request reads the server's response.
-     *
-     * @param httpRequest String - the HTTP GET request.
-     * @return String - the server's response.
-     */
-    private String sendGetRequest(String httpRequest) {
-        logger.info("Sending GET request to " + serverAddress + ":" + port + " for Station ID: " + stationID);
-        try (Socket socket = new Socket(serverAddress, port);
-             PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
-
-            // Send the HTTP request
-            out.print(httpRequest);
-            out.flush();
-
-            // Read the server's response
-            StringBuilder response = new StringBuilder();
-            String responseLine;
-            String statusLine = in.readLine();  // Read the status line (HTTP/1.1 200 OK)
-            if (statusLine != null) {
-                response.append(statusLine).append("\n");
-            } else {
-                logger.info("No server response.");
-                return null;
-            }
-
-            // Extract HTTP status code from the status line
-            String[] statusParts = statusLine.split(" ");
-            int statusCode = Integer.parseInt(statusParts[1]);  // Status code is the second element
-
-            // Read and append the rest of the response
-            while ((responseLine = in.readLine()) != null) {
-                response.append(responseLine).append("\n");
+    private void sleepWhileRunning(long millis) {
+        long end = System.currentTimeMillis() + millis;
+        try {
+            // Sleep in short steps so shutdown is not delayed by a full poll interval
+            while (isRunning && System.currentTimeMillis() < end) {
+                Thread.sleep(Math.min(100, end - System.currentTimeMillis()));
             }
-
-            // Log the server's response
-            logger.info("Server response: " + response.toString());
-
-            return response.toString();
-        } catch (Exception e) {
-            logger.log(Level.SEVERE, "Error while sending PUT request", e);
-            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            isRunning = false;
         }
     }
 
@@ -179,28 +525,52 @@ public class GetClient implements NetworkNode, Runnable {
      * Initializes the server with command-line arguments, creates a thread to run it,
      * and starts the server.
      *
-     * @param args String[] - command-line arguments: <server:port> <stationID (optional)>.
+     * @param args String[] - command-line arguments: <server:port> <stationID (optional)>
+     *             [--stations=ID,ID,...] [--prefix=PREFIX] [--all] [--poll=MS] [--wait=MS] [--subscribe]
+     *             [--compress=true|false] [--connections=N] [--timeout=MS] [--history [--from=MS] [--to=MS]] [--near=LAT,LON [--k=N]] [--bbox=MINLAT,MINLON,MAXLAT,MAXLON] [--filter=CONDITION,...] [--binary].
      */
     public static void main(String[] args) {
-        if (args.length < 1 || args.length > 2) {
-            System.err.println("Usage: GETClient <server:port stationID>");
+        CommandLineOptions options = new CommandLineOptions(args);
+        if (options.positionalCount() < 1 || options.positionalCount() > 2) {
+            System.err.println("Usage: GETClient <server:port stationID> [--stations=ID,ID,...] [--prefix=PREFIX] [--all] [--poll=MS] [--wait=MS] [--subscribe] [--compress=true|false] [--connections=N] [--timeout=MS] [--history [--from=MS] [--to=MS]] [--near=LAT,LON [--k=N]] [--bbox=MINLAT,MINLON,MAXLAT,MAXLON] [--filter=CONDITION,...] [--binary]");
             System.exit(1);
         }
 
         // Parse the server URL and port from the first argument
-        String[] serverParts = args[0].split(":");
+        String[] serverParts = options.getPositional(0).split(":");
         String serverAddress = serverParts[0];
         int port = Integer.parseInt(serverParts[1]);
 
         // Handle station ID if provided
-        String stationID = null;
-        if (args.length == 2) {
-            stationID = args[1];
-        }
+        String stationID = options.getPositional(1);
 
         // Create a new ContentServerNode with the parsed information
         GetClient node = new GetClient(serverAddress, port, stationID);
+        node.setPollInterval(options.getLong("poll", 0));
+        node.setLongPollWait(options.getLong("wait", 0));
+        node.setSubscribe(options.hasOption("subscribe"));
+        node.setCompression(options.getBoolean("compress", true));
+        node.setBinary(options.hasOption("binary"));
+        node.setConcurrentFetch(options.getInt("connections", 0), options.getInt("timeout", CONNECTION_TIMEOUT));
+        if (options.hasOption("stations")) {
+            node.requestStations(Arrays.asList(options.getString("stations", "").split(",")));
+        } else if (options.hasOption("prefix")) {
+            node.requestPrefix(options.getString("prefix", ""));
+        } else if (options.hasOption("filter")) {
+            node.requestFilter(options.getString("filter", ""));
+        } else if (options.hasOption("near")) {
+            node.requestNearest(options.getString("near", ""), options.getInt("k", 0));
+        } else if (options.hasOption("bbox")) {
+            node.requestBoundingBox(options.getString("bbox", ""));
+        } else if (options.hasOption("all")) {
+            node.requestPrefix("");
+        } else if (options.hasOption("history") && stationID != null) {
+            node.requestHistory(options.getString("from", null), options.getString("to", null));
+        }
         Thread serverThread = new Thread(node);
         serverThread.start();
+
+        // Stop polling when the client is terminated (kill signal)
+        Runtime.getRuntime().addShutdownHook(new Thread(node::shutdown));
     }
-}
\ No newline at end of file
+}
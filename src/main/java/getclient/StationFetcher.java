@@ -0,0 +1,149 @@
+package getclient;
+
+import common.*;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Fetches many stations concurrently, one GET per station, over a bounded pool of reused connections.
+ * Each station's last response is cached by ETag, so repeated fetches only transfer stations that changed.
+ * Request latencies are collected in a histogram across all fetches.
+ *
+ * Thread-safe: fetch may be called from several threads, sharing the pool and cache.
+ */
+public class StationFetcher implements Closeable {
+
+    private final HttpConnectionPool pool;
+    private final ExecutorService executor;
+    private final LamportClock lamportClock;
+    private final LatencyRecorder latencies;
+    private final ConcurrentHashMap<String, StationResult> cache; // Last successful result per station ID
+
+    /**
+     * The outcome of fetching one station.
+     *
+     * @param stationId String - the requested station ID.
+     * @param statusCode int - the HTTP status, 304 when the cached data was still current, -1 if the request failed.
+     * @param data WeatherDataSerializer - the station data, from the cache on a 304, null if there is none.
+     * @param etag String - the version tag of the data, null if there is none.
+     * @param latencyMicros long - time from submitting the request to reading the response.
+     * @param error String - why the request failed, null on success.
+     */
+    public record StationResult(String stationId, int statusCode, WeatherDataSerializer data, String etag,
+                                long latencyMicros, String error) {
+
+        public boolean isSuccess() {
+            return error == null && (statusCode == StatusCodes.OK || statusCode == StatusCodes.NOT_MODIFIED);
+        }
+    }
+
+    /**
+     * @param serverAddress String - the AggregationServer address.
+     * @param port int - the AggregationServer port.
+     * @param maxConnections int - the most connections, and so concurrent requests, to the server.
+     * @param timeoutMillis int - the per-request timeout in milliseconds.
+     * @param lamportClock LamportClock - the client's clock, ticked with each response's timestamp.
+     */
+    public StationFetcher(String serverAddress, int port, int maxConnections, int timeoutMillis, LamportClock lamportClock) {
+        this.pool = new HttpConnectionPool(serverAddress, port, maxConnections, timeoutMillis);
+        this.executor = Executors.newFixedThreadPool(maxConnections, runnable -> {
+            Thread thread = new Thread(runnable, "station-fetcher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.lamportClock = lamportClock;
+        this.latencies = new LatencyRecorder();
+        this.cache = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Fetches every station concurrently and waits for all of them.
+     * A failed or timed out station is reported in its result rather than failing the whole fetch.
+     *
+     * @param stationIds List - the station IDs to fetch.
+     * @return List - one result per station, in the order requested.
+     */
+    public List<StationResult> fetch(List<String> stationIds) {
+        List<Future<StationResult>> futures = new ArrayList<>(stationIds.size());
+        for (String stationId : stationIds) {
+            long submittedNanos = System.nanoTime();
+            futures.add(executor.submit(() -> fetchStation(stationId, submittedNanos)));
+        }
+        List<StationResult> results = new ArrayList<>(stationIds.size());
+        for (int i = 0; i < futures.size(); i++) {
+            try {
+                results.add(futures.get(i).get());
+            } catch (ExecutionException e) {
+                results.add(new StationResult(stationIds.get(i), -1, null, null, 0, String.valueOf(e.getCause())));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                futures.forEach(future -> future.cancel(true));
+                results.add(new StationResult(stationIds.get(i), -1, null, null, 0, "Interrupted"));
+                break;
+            }
+        }
+        return results;
+    }
+
+    private StationResult fetchStation(String stationId, long submittedNanos) {
+        StationResult cached = cache.get(stationId);
+        HttpWriter request = new HttpWriter()
+                .setMethod("GET")
+                .setPath("/weather.json")
+                .setHttpVersion("HTTP/1.1")
+                .addHeader("Station-Id", stationId)
+                .addHeader("Lamport-Timestamp", String.valueOf(lamportClock.getTime()))
+                .addHeader("Accept-Encoding", ContentEncoding.SUPPORTED);
+        if (cached != null) {
+            request.addHeader("If-None-Match", cached.etag());
+        }
+
+        StationResult result;
+        try {
+            HttpReader response = pool.send(request);
+            String serverTimestamp = response.getHeader("Lamport-Timestamp");
+            if (serverTimestamp != null) {
+                lamportClock.processEvent(Integer.parseInt(serverTimestamp));
+            }
+            // Latency counts queueing for a connection as well, which is what the caller waits for
+            long latencyMicros = (System.nanoTime() - submittedNanos) / 1000;
+
+            int status = response.getStatusCode();
+            if (status == StatusCodes.NOT_MODIFIED && cached != null) {
+                result = new StationResult(stationId, status, cached.data(), cached.etag(), latencyMicros, null);
+            } else if (status == StatusCodes.OK) {
+                String body = ContentEncoding.decode(response.getBody(), response.getHeader("Content-Encoding"));
+                result = new StationResult(stationId, status, WeatherDataSerializer.extractDataFromJson(body),
+                        response.getHeader("ETag"), latencyMicros, null);
+                if (result.etag() != null) {
+                    cache.put(stationId, result);
+                }
+            } else {
+                cache.remove(stationId);
+                result = new StationResult(stationId, status, null, null, latencyMicros, null);
+            }
+        } catch (IOException | RuntimeException e) {
+            long latencyMicros = (System.nanoTime() - submittedNanos) / 1000;
+            result = new StationResult(stationId, -1, null, null, latencyMicros, e.toString());
+        }
+        latencies.recordValue(result.latencyMicros());
+        return result;
+    }
+
+    /**
+     * @return LatencyRecorder - latencies of every request made so far, including failed ones.
+     */
+    public LatencyRecorder getLatencies() {
+        return latencies;
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+        pool.close();
+    }
+}
@@ -0,0 +1,321 @@
+package loadgenerator;
+
+import common.*;
+
+import java.io.*;
+import java.net.Socket;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Drives a mix of PUT and GET requests against an AggregationServer to measure its capacity.
+ * Each simulated station behaves like a ContentServer (own Content-Server-Id and Lamport clock),
+ * and readers behave like a GetClient requesting a random station.
+ *
+ * In open-loop mode requests arrive at a fixed rate regardless of how fast the server answers, and
+ * latency is measured from the intended send time. In closed-loop mode each thread waits for its
+ * response before sending again; when a pacing interval is set, requests the thread could not send
+ * while blocked are back-filled so the percentiles are corrected for coordinated omission.
+ */
+public class LoadGenerator implements Runnable {
+
+  private static final Logger logger = Logger.getLogger(LoadGenerator.class.getName());
+  private static final String STATION_PREFIX = "loadgen_station_";
+  private static final int SOCKET_TIMEOUT = 10 * 1000; // 10 seconds
+
+  private final String serverAddress;
+  private final int port;
+  private final boolean openLoop;
+  private final int threads;
+  private final int stations;
+  private final double putRatio;
+  private final int batchSize;
+  private final double rate;
+  private final long intervalMillis;
+  private final long durationMillis;
+
+  private final LatencyRecorder putLatencies;
+  private final LatencyRecorder getLatencies;
+  private final ConcurrentHashMap<Integer, AtomicLong> statusCounts;
+  private final AtomicLong errorCount;
+  private final AtomicIntegerArray stationClocks;
+
+  /**
+   * Constructor for LoadGenerator.
+   *
+   * @param serverAddress The address of the AggregationServer under test.
+   * @param port The port of the AggregationServer under test.
+   * @param openLoop True for a fixed arrival rate, false for closed-loop workers.
+   * @param threads The number of worker threads (concurrent connections).
+   * @param stations The number of simulated content servers / station IDs.
+   * @param putRatio The fraction of requests that are PUTs, between 0 and 1.
+   * @param batchSize The number of station records per PUT, sent as a batch when greater than 1.
+   * @param rate The total arrival rate in requests per second (open loop only).
+   * @param intervalMillis The pacing interval per worker, 0 for back-to-back requests (closed loop only).
+   * @param durationMillis How long to generate load for.
+   */
+  public LoadGenerator(String serverAddress, int port, boolean openLoop, int threads, int stations,
+                       double putRatio, int batchSize, double rate, long intervalMillis, long durationMillis) {
+    this.serverAddress = serverAddress;
+    this.port = port;
+    this.openLoop = openLoop;
+    this.threads = threads;
+    this.stations = stations;
+    this.putRatio = putRatio;
+    this.batchSize = batchSize;
+    this.rate = rate;
+    this.intervalMillis = intervalMillis;
+    this.durationMillis = durationMillis;
+    this.putLatencies = new LatencyRecorder();
+    this.getLatencies = new LatencyRecorder();
+    this.statusCounts = new ConcurrentHashMap<>();
+    this.errorCount = new AtomicLong();
+    this.stationClocks = new AtomicIntegerArray(stations);
+    LoggerSetup.setupLogger(logger, "logs/load-generator.log");
+  }
+
+  public LatencyRecorder getPutLatencies() {
+    return putLatencies;
+  }
+
+  public LatencyRecorder getGetLatencies() {
+    return getLatencies;
+  }
+
+  public long getErrorCount() {
+    return errorCount.get();
+  }
+
+  @Override
+  public void run() {
+    logger.info("Load generator targeting " + serverAddress + ":" + port);
+    long start = System.nanoTime();
+    try {
+      if (openLoop) {
+        runOpenLoop();
+      } else {
+        runClosedLoop();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      logger.log(Level.SEVERE, "Load generation interrupted.", e);
+    }
+    long elapsedNanos = System.nanoTime() - start;
+    System.out.println(buildReport(elapsedNanos));
+  }
+
+  /**
+   * Dispatches requests at a fixed rate to a pool of workers. Latency includes any time the request
+   * spent queued behind a slow server, since it is measured from the intended dispatch time.
+   */
+  private void runOpenLoop() throws InterruptedException {
+    ExecutorService workers = Executors.newFixedThreadPool(threads);
+    long periodNanos = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+    long start = System.nanoTime();
+    long end = start + TimeUnit.MILLISECONDS.toNanos(durationMillis);
+
+    for (long i = 0; ; i++) {
+      long intendedStart = start + i * periodNanos;
+      if (intendedStart >= end) {
+        break;
+      }
+      long wait = intendedStart - System.nanoTime();
+      if (wait > 0) {
+        LockSupport.parkNanos(wait);
+      }
+      workers.execute(() -> {
+        boolean isPut = ThreadLocalRandom.current().nextDouble() < putRatio;
+        sendRequest(isPut);
+        long latencyMicros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - intendedStart);
+        (isPut ? putLatencies : getLatencies).recordValue(latencyMicros);
+      });
+    }
+
+    workers.shutdown();
+    if (!workers.awaitTermination(durationMillis + SOCKET_TIMEOUT, TimeUnit.MILLISECONDS)) {
+      logger.warning("Outstanding requests did not finish, abandoning them.");
+      workers.shutdownNow();
+    }
+  }
+
+  /**
+   * Runs each worker in a send-wait-send loop, optionally paced at a fixed interval.
+   */
+  private void runClosedLoop() throws InterruptedException {
+    long intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+    long expectedIntervalMicros = TimeUnit.MILLISECONDS.toMicros(intervalMillis);
+    long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(durationMillis);
+
+    Thread[] workers = new Thread[threads];
+    for (int t = 0; t < threads; t++) {
+      workers[t] = new Thread(() -> {
+        long nextStart = System.nanoTime();
+        while (nextStart < end) {
+          long wait = nextStart - System.nanoTime();
+          if (wait > 0) {
+            LockSupport.parkNanos(wait);
+          }
+          boolean isPut = ThreadLocalRandom.current().nextDouble() < putRatio;
+          long sendTime = System.nanoTime();
+          sendRequest(isPut);
+          long finishTime = System.nanoTime();
+          long latencyMicros = TimeUnit.NANOSECONDS.toMicros(finishTime - sendTime);
+          (isPut ? putLatencies : getLatencies).recordValueWithExpectedInterval(latencyMicros, expectedIntervalMicros);
+          nextStart = Math.max(sendTime + intervalNanos, finishTime);
+        }
+      });
+      workers[t].start();
+    }
+    for (Thread worker : workers) {
+      worker.join();
+    }
+  }
+
+  /**
+   * Sends one request on a fresh connection, the same way ContentServer and GetClient do.
+   *
+   * @param isPut boolean - true to send a PUT for a random station, false to send a GET.
+   */
+  private void sendRequest(boolean isPut) {
+    int station = ThreadLocalRandom.current().nextInt(stations);
+    String httpRequest = isPut ? buildPutRequest(station) : buildGetRequest(station);
+    try (Socket socket = new Socket(serverAddress, port);
+         PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), ContentEncoding.WIRE_CHARSET), true);
+         BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), ContentEncoding.WIRE_CHARSET))) {
+      socket.setSoTimeout(SOCKET_TIMEOUT);
+      out.print(httpRequest);
+      out.flush();
+
+      HttpReader response = new HttpReader(in);
+      statusCounts.computeIfAbsent(response.getStatusCode(), code -> new AtomicLong()).incrementAndGet();
+    } catch (Exception e) {
+      errorCount.incrementAndGet();
+      logger.log(Level.FINE, "Request failed", e);
+    }
+  }
+
+  private String buildPutRequest(int station) {
+    if (batchSize > 1) {
+      return buildBatchPutRequest();
+    }
+    return new HttpWriter()
+            .setMethod("PUT")
+            .setPath("/weather.json")
+            .addHeader("Lamport-Timestamp", String.valueOf(stationClocks.incrementAndGet(station)))
+            .addHeader("Content-Server-Id", STATION_PREFIX + station)
+            .setBody(buildRecord(station).toJson())
+            .toString();
+  }
+
+  // A feeder sending the records of several random stations as newline-delimited JSON
+  private String buildBatchPutRequest() {
+    StringBuilder body = new StringBuilder();
+    for (int i = 0; i < batchSize; i++) {
+      body.append(buildRecord(ThreadLocalRandom.current().nextInt(stations)).toCompactJson()).append("\n");
+    }
+    return new HttpWriter()
+            .setMethod("PUT")
+            .setPath("/weather.json")
+            .addHeader("Lamport-Timestamp", "0")
+            .setBody(body.toString())
+            .addHeader("Content-Type", "application/x-ndjson")
+            .toString();
+  }
+
+  private WeatherDataSerializer buildRecord(int station) {
+    WeatherDataSerializer weatherData = new WeatherDataSerializer();
+    Map<String, String> data = weatherData.getData();
+    data.put("id", STATION_PREFIX + station);
+    data.put("state", "SA");
+    data.put("air_temp", String.format(Locale.ROOT, "%.1f", ThreadLocalRandom.current().nextDouble(-5, 40)));
+    data.put("press", String.format(Locale.ROOT, "%.1f", ThreadLocalRandom.current().nextDouble(980, 1040)));
+    data.put("rel_hum", String.valueOf(ThreadLocalRandom.current().nextInt(0, 101)));
+    data.put("wind_spd_kmh", String.valueOf(ThreadLocalRandom.current().nextInt(0, 80)));
+    return weatherData;
+  }
+
+  private String buildGetRequest(int station) {
+    return new HttpWriter()
+            .setMethod("GET")
+            .setPath("/weather.json")
+            .addHeader("Station-Id", STATION_PREFIX + station)
+            .addHeader("Lamport-Timestamp", "0")
+            .toString();
+  }
+
+  private String buildReport(long elapsedNanos) {
+    double seconds = elapsedNanos / 1e9;
+    long completed = putLatencies.getTotalCount() + getLatencies.getTotalCount();
+    StringBuilder report = new StringBuilder();
+    report.append(String.format(Locale.ROOT,
+            "Mode: %s, %d threads, %d stations, PUT ratio %.2f, %d records per PUT, %.1f s%n",
+            openLoop ? "open loop at " + rate + " req/s" : "closed loop, interval " + intervalMillis + " ms",
+            threads, stations, putRatio, batchSize, seconds));
+    report.append(String.format(Locale.ROOT, "Completed: %d samples (%.1f req/s), connection errors: %d%n",
+            completed, completed / seconds, errorCount.get()));
+    report.append(formatLatencies("PUT", putLatencies));
+    report.append(formatLatencies("GET", getLatencies));
+    Map<Integer, Long> statuses = new TreeMap<>();
+    statusCounts.forEach((code, count) -> statuses.put(code, count.get()));
+    report.append("Status codes: ").append(statuses);
+    return report.toString();
+  }
+
+  private static String formatLatencies(String label, LatencyRecorder recorder) {
+    return String.format(Locale.ROOT, "%s count=%d p50=%.3f p90=%.3f p99=%.3f p99.9=%.3f max=%.3f (ms)%n", label,
+            recorder.getTotalCount(),
+            recorder.getValueAtPercentile(50) / 1000.0,
+            recorder.getValueAtPercentile(90) / 1000.0,
+            recorder.getValueAtPercentile(99) / 1000.0,
+            recorder.getValueAtPercentile(99.9) / 1000.0,
+            recorder.getMaxValue() / 1000.0);
+  }
+
+  /**
+   * Parses the command-line arguments and runs the load generator until the duration elapses.
+   *
+   * @param args String[] - command-line arguments: <server:port> [--mode=open|closed] [--threads=N]
+   *             [--stations=N] [--put-ratio=R] [--batch-size=N] [--rate=REQ_PER_SEC] [--interval=MS] [--duration=SECONDS]
+   */
+  public static void main(String[] args) {
+    CommandLineOptions options = new CommandLineOptions(args);
+    if (options.positionalCount() < 1) {
+      System.err.println("Usage: LoadGenerator <server:port> [--mode=open|closed] [--threads=N] [--stations=N] "
+              + "[--put-ratio=R] [--batch-size=N] [--rate=REQ_PER_SEC] [--interval=MS] [--duration=SECONDS]");
+      System.exit(1);
+    }
+
+    String[] serverParts = options.getPositional(0).split(":");
+    String serverAddress = serverParts[0];
+    int port = serverParts.length > 1 ? Integer.parseInt(serverParts[1]) : NetworkNode.DEFAULT_PORT;
+
+    boolean openLoop = "open".equals(options.getString("mode", "closed"));
+    double rate = options.getDouble("rate", 1000);
+    // Open loop sends one request every 1/rate seconds, so the rate must be a positive number
+    if (openLoop && !(rate > 0)) {
+      System.err.println("--rate must be a positive number of requests per second, got "
+              + options.getString("rate", ""));
+      System.exit(1);
+    }
+
+    LoadGenerator loadGenerator = new LoadGenerator(
+            serverAddress,
+            port,
+            openLoop,
+            options.getInt("threads", 64),
+            options.getInt("stations", 1000),
+            options.getDouble("put-ratio", 0.5),
+            options.getInt("batch-size", 1),
+            rate,
+            options.getLong("interval", 0),
+            options.getLong("duration", 30) * 1000);
+    loadGenerator.run();
+  }
+}
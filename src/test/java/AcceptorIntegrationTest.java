@@ -0,0 +1,48 @@
+import aggregationserver.AggregationServer;
+import common.HttpConnection;
+import common.HttpReader;
+import common.HttpWriter;
+import common.StatusCodes;
+import common.WeatherDataSerializer;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+
+/// Test file for an AggregationServer on localhost accepting connections on several threads
+public class AcceptorIntegrationTest {
+
+    private static final int PORT = 4700;
+
+    /**
+     * Test that every connection is accepted by one of the acceptors and counted once.
+     */
+    @Test
+    public void testConnectionsAreCountedPerAcceptor() throws IOException, InterruptedException {
+        AggregationServer server = new AggregationServer(TestServer.ADDRESS, PORT, 20, "target/acceptor-test");
+        server.setAcceptors(3);
+
+        try (TestServer running = TestServer.start(server)) {
+            for (int i = 0; i < 30; i++) {
+                try (HttpConnection connection = running.connect()) {
+                    assertEquals(StatusCodes.NOT_FOUND, TestServer.get(connection, "NONE").getStatusCode(),
+                            "Every connection should be served.");
+                }
+            }
+
+            try (HttpConnection connection = running.connect()) {
+                HttpReader response = connection.send(new HttpWriter()
+                        .setMethod("GET")
+                        .setPath("/weather.json?acceptors"));
+                assertEquals(StatusCodes.OK, response.getStatusCode(), "Acceptor counters should be served.");
+                String[] lines = response.getBody().trim().split("\n");
+                assertEquals(3, lines.length, "There should be one line per acceptor.");
+                long total = 0;
+                for (String line : lines) {
+                    total += Long.parseLong(WeatherDataSerializer.extractDataFromJson(line).getData().get("connections"));
+                }
+                assertEquals(31, total, "Every connection, including this one, should be counted once.");
+            }
+        }
+    }
+}
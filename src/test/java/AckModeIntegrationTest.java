@@ -0,0 +1,108 @@
+import aggregationserver.AckMode;
+import aggregationserver.AggregationServer;
+import aggregationserver.FileManager;
+import aggregationserver.StationRecord;
+import aggregationserver.StationUpdateListener;
+import common.HttpConnection;
+import common.HttpReader;
+import common.HttpWriter;
+import common.StatusCodes;
+import common.WeatherDataSerializer;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/// Test file for PUT acknowledgement modes of an AggregationServer on localhost
+public class AckModeIntegrationTest {
+
+    private static final int PORT = 4690;
+    private static final String DATA_DIRECTORY = "target/ack-test";
+
+    private static HttpReader put(HttpConnection connection, String stationId, String ackMode) throws IOException {
+        return connection.send(TestServer.putRequest(stationId, "{\"id\":\"" + stationId + "\",\"air_temp\":\"12.5\"}")
+                .addHeader(AckMode.HEADER, ackMode));
+    }
+
+    /**
+     * Test that a PUT acknowledged once applied or durable is visible to a GET sent straight afterwards
+     * over the same connection, that a durable PUT's file is on disk, and that latencies are kept per mode.
+     */
+    @Test
+    public void testAppliedAndDurableWritesAreVisible() throws IOException, InterruptedException {
+        try (TestServer server = TestServer.start(PORT, 100, DATA_DIRECTORY);
+             HttpConnection connection = server.connect()) {
+            for (int i = 0; i < 20; i++) {
+                String ackMode = i % 2 == 0 ? "applied" : "durable";
+                String stationId = "ACK" + i;
+                HttpReader response = put(connection, stationId, ackMode);
+                assertEquals(StatusCodes.OK, response.getStatusCode(), "The PUT should be acknowledged.");
+                assertEquals(ackMode, response.getHeader(AckMode.HEADER), "The ack mode should be echoed.");
+
+                assertEquals(StatusCodes.OK, TestServer.get(connection, stationId).getStatusCode(),
+                        "An acknowledged write should be readable.");
+                if (ackMode.equals("durable")) {
+                    assertTrue(new File(DATA_DIRECTORY, stationId + ".json").exists(), "A durable write should be on disk.");
+                }
+            }
+
+            assertEquals(StatusCodes.BAD_REQUEST, put(connection, "ACKX", "eventually").getStatusCode(),
+                    "An unknown ack mode should be rejected.");
+
+            HttpReader response = connection.send(new HttpWriter()
+                    .setMethod("GET")
+                    .setPath("/weather.json?ack-latency"));
+            assertEquals(StatusCodes.OK, response.getStatusCode(), "Ack latencies should be served.");
+            Map<String, String> counts = new HashMap<>();
+            for (String line : response.getBody().split("\n")) {
+                Map<String, String> mode = WeatherDataSerializer.extractDataFromJson(line).getData();
+                counts.put(mode.get("mode"), mode.get("count"));
+            }
+            assertEquals("10", counts.get("applied"), "Applied PUTs should be counted under their mode.");
+            assertEquals("10", counts.get("durable"), "Durable PUTs should be counted under their mode.");
+            assertEquals("0", counts.get("enqueue"), "No PUT was acknowledged on enqueue.");
+        }
+    }
+
+    /**
+     * Test that an applied PUT whose write is slower than the ack timeout is answered 202 Accepted well before
+     * the client's timeout, and that the write is still applied afterwards.
+     */
+    @Test
+    public void testSlowWriteIsAcceptedBeforeClientTimeout() throws IOException, InterruptedException {
+        FileManager store = new FileManager(DATA_DIRECTORY, 100);
+        store.addListener(new StationUpdateListener() {
+            @Override
+            public void onStationUpdated(String stationId, StationRecord record) {
+                try {
+                    Thread.sleep(2000); // Holds up the writer thread, as a stalled disk would
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            @Override
+            public void onStationRemoved(String stationId) {
+            }
+        });
+        AggregationServer aggregationServer = new AggregationServer(TestServer.ADDRESS, PORT, store);
+        aggregationServer.setAckTimeout(200);
+
+        try (TestServer server = TestServer.start(aggregationServer);
+             HttpConnection connection = server.connect()) {
+            long started = System.currentTimeMillis();
+            HttpReader response = put(connection, "ACKSLOW", "applied");
+            long elapsed = System.currentTimeMillis() - started;
+            assertEquals(StatusCodes.ACCEPTED, response.getStatusCode(), "A write slower than the ack timeout should be accepted.");
+            assertTrue(elapsed < 2000, "The PUT should be answered before its write is applied, took " + elapsed + " ms.");
+            assertTrue(AggregationServer.DEFAULT_ACK_TIMEOUT < TestServer.TIMEOUT,
+                    "By default a waiting PUT should be answered before a client with the usual timeout gives up.");
+
+            TestServer.await("The accepted write should still be applied.",
+                    () -> TestServer.get(connection, "ACKSLOW").getStatusCode() == StatusCodes.OK);
+        }
+    }
+}
@@ -0,0 +1,59 @@
+import common.HttpConnection;
+import common.HttpReader;
+import common.HttpWriter;
+import common.StatusCodes;
+import common.WeatherDataSerializer;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.util.Map;
+
+/// Test file for per-state aggregates maintained by an AggregationServer on localhost
+public class AggregateIntegrationTest {
+
+    private static final int PORT = 4640;
+
+    private static void put(HttpConnection connection, String stationId, String state, String airTemp) throws IOException {
+        TestServer.put(connection, stationId,
+                "{\"id\":\"" + stationId + "\",\"state\":\"" + state + "\",\"air_temp\":\"" + airTemp + "\"}");
+    }
+
+    private static Map<String, String> aggregate(HttpConnection connection, String query) throws IOException {
+        HttpReader response = connection.send(new HttpWriter()
+                .setMethod("GET")
+                .setPath("/weather.json?aggregate&" + query));
+        assertEquals(StatusCodes.OK, response.getStatusCode(), "Aggregates should be served.");
+        return WeatherDataSerializer.extractDataFromJson(response.getBody().trim()).getData();
+    }
+
+    /**
+     * Test that the current window follows each station's latest value, including updates and evictions,
+     * while a time window keeps every observation applied within it.
+     */
+    @Test
+    public void testAggregatesFollowUpdatesAndEvictions() throws IOException, InterruptedException {
+        try (TestServer server = TestServer.start(PORT, 2, "target/aggregate-test");
+             HttpConnection connection = server.connect()) {
+            put(connection, "AGG1", "SA", "10.0");
+            put(connection, "AGG2", "SA", "20.0");
+            Thread.sleep(20); // Eviction compares update times in milliseconds, so keep AGG2 strictly older
+            put(connection, "AGG1", "SA", "14.0"); // Replaces the first reading of AGG1
+
+            Map<String, String> current = aggregate(connection, "state=SA");
+            assertEquals("2", current.get("air_temp_count"), "Each station should count once.");
+            assertEquals("14.0", current.get("air_temp_min"), "A replaced reading should be retracted.");
+            assertEquals("17.0", current.get("air_temp_mean"), "The mean should cover the latest readings.");
+
+            Map<String, String> windowed = aggregate(connection, "state=SA&window=60000");
+            assertEquals("3", windowed.get("air_temp_count"), "A time window should keep every observation.");
+            assertEquals("10.0", windowed.get("air_temp_min"), "A time window should keep replaced readings.");
+
+            put(connection, "AGG3", "SA", "30.0"); // Evicts AGG2, the least recently updated station
+            current = aggregate(connection, "state=SA");
+            assertEquals("2", current.get("air_temp_count"), "An evicted station should be retracted.");
+            assertEquals("30.0", current.get("air_temp_max"), "The new station should be counted.");
+            assertEquals("14.0", current.get("air_temp_min"), "The evicted station's reading should be gone.");
+        }
+    }
+}
@@ -0,0 +1,59 @@
+import aggregationserver.AggregationServer;
+import common.HttpConnection;
+import common.HttpReader;
+import common.HttpWriter;
+import common.StatusCodes;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+
+/// Test file for the bounded write queue of an AggregationServer on localhost
+public class BackpressureIntegrationTest {
+
+    private static final int PORT = 4680;
+
+    private static HttpReader putBatch(HttpConnection connection, int records) throws IOException {
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; i < records; i++) {
+            body.append("{\"id\":\"BP").append(i).append("\",\"air_temp\":\"").append(i).append("\"}\n");
+        }
+        return connection.send(new HttpWriter()
+                .setMethod("PUT")
+                .setPath("/weather.json")
+                .addHeader("Lamport-Timestamp", "0")
+                .setBody(body.toString())
+                .addHeader("Content-Type", AggregationServer.BATCH_CONTENT_TYPE));
+    }
+
+    /**
+     * Test that a batch larger than the whole write queue is refused with 413 and the most records a batch
+     * may hold, rather than a 503 that retrying could never get past, and that writes which fit are still
+     * accepted.
+     */
+    @Test
+    public void testFullQueueRefusesWrites() throws IOException, InterruptedException {
+        AggregationServer server = new AggregationServer(TestServer.ADDRESS, PORT, 20, "target/backpressure-test");
+        server.setMaxQueuedWrites(2);
+
+        try (TestServer running = TestServer.start(server);
+             HttpConnection connection = running.connect()) {
+            HttpReader response = putBatch(connection, 3);
+            assertEquals(StatusCodes.PAYLOAD_TOO_LARGE, response.getStatusCode(),
+                    "A batch larger than the queue should be refused as too large.");
+            assertEquals("2", response.getHeader("Max-Batch-Records"),
+                    "The refusal should give the most records a batch may hold.");
+
+            response = putBatch(connection, 2);
+            assertEquals(StatusCodes.OK, response.getStatusCode(), "A batch that fits should be accepted.");
+            // Writes are applied in queue order, so once this one is applied the batch is too. It is refused
+            // until the writer has taken the batch from the full queue.
+            TestServer.await("A write behind the batch should be applied.",
+                    () -> TestServer.put(connection, "BPX", "{\"id\":\"BPX\"}").getStatusCode() == StatusCodes.OK);
+
+            assertEquals(StatusCodes.OK, TestServer.get(connection, "BP1").getStatusCode(), "Accepted writes should be applied.");
+            assertEquals(StatusCodes.NOT_FOUND, TestServer.get(connection, "BP2").getStatusCode(),
+                    "A refused batch should not be applied.");
+        }
+    }
+}
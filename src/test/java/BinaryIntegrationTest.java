@@ -0,0 +1,61 @@
+import common.HttpConnection;
+import common.HttpReader;
+import common.HttpWriter;
+import common.StatusCodes;
+import common.WeatherDataSerializer;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+
+/// Test file for the binary wire format on an AggregationServer on localhost
+public class BinaryIntegrationTest {
+
+    private static final int PORT = 4670;
+
+    private static HttpReader get(HttpConnection connection, String accept) throws IOException {
+        HttpWriter request = new HttpWriter()
+                .setMethod("GET")
+                .setPath("/weather.json")
+                .addHeader("Station-Id", "BIN1");
+        if (accept != null) {
+            request.addHeader("Accept", accept);
+        }
+        return connection.send(request);
+    }
+
+    /**
+     * Test that a binary PUT is stored like a JSON one, that GET answers in binary only when asked to,
+     * and that a malformed binary body is rejected.
+     */
+    @Test
+    public void testBinaryPutAndGet() throws IOException, InterruptedException {
+        try (TestServer server = TestServer.start(PORT, 20, "target/binary-test");
+             HttpConnection connection = server.connect()) {
+            WeatherDataSerializer data = new WeatherDataSerializer();
+            data.getData().put("id", "BIN1");
+            data.getData().put("name", "Binary Station");
+            data.getData().put("air_temp", "13.3");
+            HttpReader response = connection.send(TestServer.putRequest("BIN1", "")
+                    .setBody(data.toBinary(), WeatherDataSerializer.BINARY_CONTENT_TYPE));
+            assertTrue(response.getStatusCode() == StatusCodes.OK || response.getStatusCode() == StatusCodes.CREATED,
+                    "A binary PUT should be accepted.");
+
+            response = get(connection, WeatherDataSerializer.BINARY_CONTENT_TYPE);
+            assertEquals(StatusCodes.OK, response.getStatusCode(), "The station should be served.");
+            assertTrue(WeatherDataSerializer.isBinary(response.getHeader("Content-Type")), "The response should be binary.");
+            assertEquals(data.getData(), WeatherDataSerializer.extractDataFromBinary(response.getBody()).getData(),
+                    "The binary response should hold the stored fields.");
+
+            response = get(connection, null);
+            assertFalse(WeatherDataSerializer.isBinary(response.getHeader("Content-Type")),
+                    "A client that does not ask for binary should get JSON.");
+            assertEquals(data.getData(), WeatherDataSerializer.extractDataFromJson(response.getBody()).getData(),
+                    "The JSON response should hold the same fields.");
+
+            response = connection.send(TestServer.putRequest("BIN1", "")
+                    .setBody("\u0001\u0005\u0099", WeatherDataSerializer.BINARY_CONTENT_TYPE));
+            assertEquals(StatusCodes.BAD_REQUEST, response.getStatusCode(), "A malformed body should be rejected.");
+        }
+    }
+}
@@ -0,0 +1,143 @@
+import aggregationserver.AggregationServer;
+import common.ConsistentHashRing;
+import common.HttpConnection;
+import common.HttpReader;
+import common.HttpWriter;
+import common.StatusCodes;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.util.List;
+
+/// Test file for consistent-hash partitioning of stations across clustered AggregationServers on localhost
+public class ClusterIntegrationTest {
+
+    private static final int FIRST_PORT = 4620;
+    private static final int SECOND_PORT = 4621;
+    private static final List<String> MEMBERS =
+            List.of(TestServer.ADDRESS + ":" + FIRST_PORT, TestServer.ADDRESS + ":" + SECOND_PORT);
+
+    private static AggregationServer node(int index, String dataDirectory) {
+        AggregationServer server = new AggregationServer(TestServer.ADDRESS, index == 0 ? FIRST_PORT : SECOND_PORT,
+                20, dataDirectory);
+        server.enableClusterMode(MEMBERS.get(index), MEMBERS, false);
+        return server;
+    }
+
+    // The first station of the form CLUSTERn owned by the node
+    private static String stationOwnedBy(String node) {
+        ConsistentHashRing ring = new ConsistentHashRing(MEMBERS);
+        String stationId = "CLUSTER0";
+        for (int i = 1; !ring.getNode(stationId).equals(node); i++) {
+            stationId = "CLUSTER" + i;
+        }
+        return stationId;
+    }
+
+    /**
+     * Test that adding a node only moves stations onto the new node, never between existing nodes.
+     */
+    @Test
+    public void testRingOnlyMovesKeysToAddedNode() {
+        ConsistentHashRing before = new ConsistentHashRing(List.of("a:1", "b:2", "c:3"));
+        ConsistentHashRing after = new ConsistentHashRing(List.of("a:1", "b:2", "c:3", "d:4"));
+        int moved = 0;
+        for (int i = 0; i < 1000; i++) {
+            String owner = after.getNode("STATION" + i);
+            if (!owner.equals(before.getNode("STATION" + i))) {
+                assertEquals("d:4", owner, "A station should only move to the added node.");
+                moved++;
+            }
+        }
+        assertTrue(moved > 100 && moved < 400, "About a quarter of the stations should move, moved " + moved);
+    }
+
+    /**
+     * Test that a station written through one node is stored on its owner and readable through either node.
+     */
+    @Test
+    public void testRequestsAreForwardedToOwner() throws IOException, InterruptedException {
+        // A station owned by the second node, written through the first
+        String stationId = stationOwnedBy(MEMBERS.get(1));
+
+        try (TestServer firstNode = TestServer.start(node(0, "target/cluster-test/first"));
+             TestServer secondNode = TestServer.start(node(1, "target/cluster-test/second"));
+             HttpConnection toFirst = firstNode.connect();
+             HttpConnection toSecond = secondNode.connect()) {
+            // Acknowledged by the owner once applied, so both nodes serve it straight away
+            HttpReader written = TestServer.put(toFirst, stationId, "{\"id\":\"" + stationId + "\",\"air_temp\":\"13.3\"}");
+            assertEquals(StatusCodes.OK, written.getStatusCode(), "Write should be forwarded to the owner.");
+
+            for (HttpConnection connection : List.of(toFirst, toSecond)) {
+                HttpReader read = TestServer.get(connection, stationId);
+                assertEquals(StatusCodes.OK, read.getStatusCode(), "Either node should serve the station.");
+                assertEquals("\"" + written.getHeader("Station-Version") + "\"", read.getHeader("ETag"),
+                        "Both nodes should serve the owner's version.");
+            }
+        }
+    }
+
+    /**
+     * Test that a subscription to a station another node owns is redirected to the owner, which is the only
+     * node that sees the station's updates, and that one spanning both nodes is refused.
+     */
+    @Test
+    public void testSubscriptionsAreRedirectedToOwner() throws IOException, InterruptedException {
+        String remote = stationOwnedBy(MEMBERS.get(1));
+        String local = stationOwnedBy(MEMBERS.get(0));
+
+        try (TestServer firstNode = TestServer.start(node(0, "target/cluster-test/first"));
+             TestServer secondNode = TestServer.start(node(1, "target/cluster-test/second"));
+             HttpConnection toFirst = firstNode.connect()) {
+            HttpReader longPoll = toFirst.send(new HttpWriter()
+                    .setMethod("GET")
+                    .setPath("/weather.json?wait=1000")
+                    .addHeader("Station-Id", remote));
+            assertEquals(StatusCodes.TEMPORARY_REDIRECT, longPoll.getStatusCode(),
+                    "A long-poll for another node's station should be redirected.");
+            assertEquals("http://" + MEMBERS.get(1) + "/weather.json?wait=1000", longPoll.getHeader("Location"),
+                    "The redirect should point at the owner.");
+
+            HttpReader eventStream = toFirst.send(new HttpWriter()
+                    .setMethod("GET")
+                    .setPath("/weather.json?stations=" + local + "," + remote)
+                    .addHeader("Accept", "text/event-stream"));
+            assertEquals(StatusCodes.BAD_REQUEST, eventStream.getStatusCode(),
+                    "An event stream spanning several owners should be refused.");
+        }
+    }
+
+    /**
+     * Test that a PUT forwarded to its owner is only charged against the rate limit of the node that
+     * received it, and that a client claiming to be a forwarding node is still charged.
+     */
+    @Test
+    public void testForwardedPutsAreChargedOnce() throws IOException, InterruptedException {
+        String stationId = stationOwnedBy(MEMBERS.get(1));
+        String body = "{\"id\":\"" + stationId + "\",\"air_temp\":\"13.3\"}";
+        AggregationServer first = node(0, "target/cluster-test/first");
+        AggregationServer second = node(1, "target/cluster-test/second");
+        first.setRateLimit(0.5, 2);
+        second.setRateLimit(0.5, 2);
+
+        try (TestServer firstNode = TestServer.start(first);
+             TestServer secondNode = TestServer.start(second);
+             HttpConnection toFirst = firstNode.connect();
+             HttpConnection toSecond = secondNode.connect()) {
+            for (int i = 0; i < 2; i++) {
+                assertEquals(StatusCodes.OK, TestServer.put(toFirst, stationId, body).getStatusCode(),
+                        "PUTs within the burst should be forwarded and accepted.");
+            }
+            assertEquals(StatusCodes.TOO_MANY_REQUESTS, TestServer.put(toFirst, stationId, body).getStatusCode(),
+                    "The receiving node should charge forwarded PUTs.");
+
+            HttpWriter spoofed = TestServer.putRequest(stationId, body).addHeader("Cluster-Forwarded", "elsewhere:1");
+            assertEquals(StatusCodes.OK, toSecond.send(spoofed).getStatusCode(),
+                    "The owner should not have charged the forwarded PUTs.");
+            assertEquals(StatusCodes.OK, TestServer.put(toSecond, stationId, body).getStatusCode());
+            assertEquals(StatusCodes.TOO_MANY_REQUESTS, toSecond.send(spoofed).getStatusCode(),
+                    "A PUT claiming to come from a node outside the cluster should be charged.");
+        }
+    }
+}
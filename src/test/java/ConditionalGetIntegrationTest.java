@@ -0,0 +1,120 @@
+import common.HttpConnection;
+import common.HttpReader;
+import common.HttpWriter;
+import common.StatusCodes;
+import getclient.GetClient;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Handler;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+/// Test file for ETag revalidation of GETs against an AggregationServer on localhost
+public class ConditionalGetIntegrationTest {
+
+    private static final int PORT = 4750;
+    private static final int CLIENT_PORT = 4751;
+
+    private static HttpReader get(HttpConnection connection, String etag) throws IOException {
+        return connection.send(new HttpWriter()
+                .setMethod("GET")
+                .setPath("/weather.json")
+                .addHeader("Station-Id", "ETAG1")
+                .addHeader("If-None-Match", etag));
+    }
+
+    /**
+     * Test that a GET is answered with the station version as its ETag, that revalidating with that ETag
+     * gets 304 Not Modified without a body, and that a PUT changes the ETag.
+     */
+    @Test
+    public void testETagRevalidation() throws IOException, InterruptedException {
+        try (TestServer server = TestServer.start(PORT, 20, "target/conditional-get-test");
+             HttpConnection connection = server.connect()) {
+            String version = TestServer.put(connection, "ETAG1", "{\"id\":\"ETAG1\",\"air_temp\":\"12.5\"}")
+                    .getHeader("Station-Version");
+
+            HttpReader response = TestServer.get(connection, "ETAG1");
+            assertEquals(StatusCodes.OK, response.getStatusCode(), "The first GET should be served.");
+            String etag = response.getHeader("ETag");
+            assertEquals("\"" + version + "\"", etag, "The ETag should be the station version.");
+
+            response = get(connection, etag);
+            assertEquals(StatusCodes.NOT_MODIFIED, response.getStatusCode(), "A current ETag should not be modified.");
+            assertTrue(response.getBody() == null || response.getBody().isEmpty(), "A 304 should have no body.");
+
+            TestServer.put(connection, "ETAG1", "{\"id\":\"ETAG1\",\"air_temp\":\"13.0\"}");
+            response = get(connection, etag);
+            assertEquals(StatusCodes.OK, response.getStatusCode(), "A replaced version should be served again.");
+            assertNotEquals(etag, response.getHeader("ETag"), "A PUT should change the ETag.");
+            assertTrue(response.getBody().contains("13.0"), "The new data should be served.");
+        }
+    }
+
+    /**
+     * Test that a polling GetClient revalidates its cached copy, prints the cached data when the server
+     * answers 304, and replaces its cache when the station changes.
+     */
+    @Test
+    public void testGetClientServesNotModifiedFromCache() throws IOException, InterruptedException {
+        List<String> responses = new CopyOnWriteArrayList<>();
+        Handler handler = new Handler() {
+            @Override
+            public void publish(LogRecord record) {
+                if (record.getMessage().startsWith("Server response: ")) {
+                    responses.add(record.getMessage().substring("Server response: ".length()));
+                }
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        Logger clientLogger = Logger.getLogger(GetClient.class.getName());
+        ByteArrayOutputStream printed = new ByteArrayOutputStream();
+        PrintStream stdout = System.out;
+
+        try (TestServer server = TestServer.start(CLIENT_PORT, 20, "target/conditional-get-test");
+             HttpConnection connection = server.connect()) {
+            TestServer.put(connection, "ETAG1", "{\"id\":\"ETAG1\",\"air_temp\":\"12.5\"}");
+
+            GetClient client = new GetClient(TestServer.ADDRESS, CLIENT_PORT, "ETAG1");
+            client.setPollInterval(20);
+            clientLogger.addHandler(handler);
+            System.setOut(new PrintStream(printed, true, StandardCharsets.UTF_8));
+            Thread polling = new Thread(client);
+            polling.start();
+            try {
+                TestServer.await("The client should revalidate its cached copy.",
+                        () -> responses.stream().anyMatch(status -> status.startsWith("304")));
+                TestServer.put(connection, "ETAG1", "{\"id\":\"ETAG1\",\"air_temp\":\"13.0\"}");
+                TestServer.await("The client should fetch the changed station.",
+                        () -> printed.toString(StandardCharsets.UTF_8).contains("air_temp:13.0"));
+            } finally {
+                client.shutdown();
+                polling.join(TestServer.TIMEOUT);
+                System.setOut(stdout);
+                clientLogger.removeHandler(handler);
+            }
+        }
+
+        assertTrue(responses.get(0).startsWith("200"), "The first GET should fetch the station.");
+        String output = printed.toString(StandardCharsets.UTF_8);
+        assertFalse(output.contains("No Data Received"), "A 304 should be printed from the cache.");
+        assertEquals(responses.size(), output.split("Data Received from").length - 1,
+                "Every response should print the station.");
+        assertTrue(responses.stream().filter(status -> status.startsWith("200")).count() >= 2,
+                "The changed station should be fetched in full again.");
+    }
+}
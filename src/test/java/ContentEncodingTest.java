@@ -0,0 +1,46 @@
+import common.ContentEncoding;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+
+/// Test file for HTTP content coding negotiation and compression
+public class ContentEncodingTest {
+
+    /**
+     * Test that Accept-Encoding preferences and q=0 exclusions are honoured.
+     */
+    @Test
+    public void testNegotiate() {
+        assertEquals(ContentEncoding.GZIP, ContentEncoding.negotiate("deflate, gzip"), "gzip should be preferred.");
+        assertEquals(ContentEncoding.DEFLATE, ContentEncoding.negotiate("gzip;q=0, deflate"), "q=0 should exclude gzip.");
+        assertEquals(ContentEncoding.GZIP, ContentEncoding.negotiate("*"), "A wildcard should accept gzip.");
+        assertEquals(ContentEncoding.IDENTITY, ContentEncoding.negotiate(null), "No header should mean no coding.");
+        assertFalse(ContentEncoding.accepts("*, gzip;q=0", ContentEncoding.GZIP), "An explicit entry should override the wildcard.");
+    }
+
+    /**
+     * Test that compressed bodies survive the one-char-per-byte wire representation.
+     */
+    @Test
+    public void testRoundTrip() throws IOException {
+        String json = "{\"id\":\"IDS60901\",\"air_temp\":\"13.3\",\"cloud\":\"Partly cloudy\"}";
+        for (String coding : new String[]{ContentEncoding.GZIP, ContentEncoding.DEFLATE}) {
+            String encoded = ContentEncoding.encode(json, coding);
+            assertEquals(json, ContentEncoding.decode(encoded, coding), coding + " should round trip.");
+        }
+        assertEquals(json, ContentEncoding.decode(json, null), "An uncoded body should be returned unchanged.");
+    }
+
+    /**
+     * Test that separately compressed gzip members decode as one body, as bulk GETs send them.
+     */
+    @Test
+    public void testConcatenatedGzipMembers() throws IOException {
+        String body = ContentEncoding.encode("{\"id\":\"A\"}\n", ContentEncoding.GZIP)
+                + ContentEncoding.encode("{\"id\":\"B\"}\n", ContentEncoding.GZIP);
+
+        assertEquals("{\"id\":\"A\"}\n{\"id\":\"B\"}\n", ContentEncoding.decode(body, ContentEncoding.GZIP),
+                "Concatenated members should decode in order.");
+    }
+}
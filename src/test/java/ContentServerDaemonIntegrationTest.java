@@ -0,0 +1,81 @@
+import common.HttpConnection;
+import common.HttpReader;
+import common.HttpWriter;
+import common.StatusCodes;
+import common.WeatherDataSerializer;
+import contentserver.ContentServer;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+
+/// Test file for a Content Server in daemon mode pushing to an AggregationServer on localhost
+public class ContentServerDaemonIntegrationTest {
+
+    private static final int PORT = 4760;
+    private static final long PUSH_INTERVAL = 50;
+
+    private static File stationFile() throws IOException {
+        File file = new File("target/daemon-test/DAEMON1.txt");
+        file.getParentFile().mkdirs();
+        try (FileWriter writer = new FileWriter(file)) {
+            writer.write("id:DAEMON1\nname:Daemon\nair_temp:12.5\n");
+        }
+        return file;
+    }
+
+    // The total connections the server has accepted across its acceptors
+    private static long acceptedConnections(HttpConnection connection) throws IOException {
+        HttpReader response = connection.send(new HttpWriter()
+                .setMethod("GET")
+                .setPath("/weather.json?acceptors"));
+        long total = 0;
+        for (String line : response.getBody().trim().split("\n")) {
+            total += Long.parseLong(WeatherDataSerializer.extractDataFromJson(line).getData().get("connections"));
+        }
+        return total;
+    }
+
+    /**
+     * Test that a daemon sends every push over one connection, and that it reconnects and carries on once
+     * the server it was connected to goes away and another takes its place.
+     */
+    @Test
+    public void testDaemonReusesConnectionAndRecovers() throws IOException, InterruptedException {
+        ContentServer contentServer = new ContentServer(TestServer.ADDRESS, PORT, stationFile().getPath());
+        contentServer.enableDaemonMode(PUSH_INTERVAL);
+        Thread daemon = new Thread(contentServer);
+
+        try {
+            try (TestServer server = TestServer.start(PORT, 20, "target/daemon-test/first");
+                 HttpConnection connection = server.connect()) {
+                daemon.start();
+                Set<String> versions = new HashSet<>();
+                TestServer.await("The daemon should push repeatedly.", () -> {
+                    HttpReader response = TestServer.get(connection, "DAEMON1");
+                    if (response.getStatusCode() == StatusCodes.OK) {
+                        versions.add(response.getHeader("ETag"));
+                    }
+                    return versions.size() >= 3;
+                });
+                assertEquals(2, acceptedConnections(connection),
+                        "Every push should share the daemon's one connection, besides this test's own.");
+            }
+
+            Thread.sleep(4 * PUSH_INTERVAL); // Leave the daemon without a server for a few pushes
+
+            try (TestServer server = TestServer.start(PORT, 20, "target/daemon-test/second");
+                 HttpConnection connection = server.connect()) {
+                TestServer.await("The daemon should reconnect to the new server.",
+                        () -> TestServer.get(connection, "DAEMON1").getStatusCode() == StatusCodes.OK);
+            }
+        } finally {
+            contentServer.shutdown();
+            daemon.join(TestServer.TIMEOUT);
+        }
+    }
+}
@@ -0,0 +1,70 @@
+import common.FieldDictionary;
+import common.WeatherDataSerializer;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Map;
+
+/// Test file for the dictionary of field names and repeated values shared by parsed weather data
+public class FieldDictionaryTest {
+
+    /**
+     * Test that records parsed separately share one instance of each field name and categorical value.
+     */
+    @Test
+    public void testParsedRecordsShareInstances() {
+        Map<String, String> first = WeatherDataSerializer.extractDataFromJson(
+                "{\"id\":\"IDS60901\",\"state\":\"SA\",\"wind_dir\":\"S\"}").getData();
+        Map<String, String> second = WeatherDataSerializer.extractDataFromTxt("id:IDS60902\nstate:SA\nwind_dir:S\n").getData();
+
+        String firstKey = first.keySet().stream().filter("state"::equals).findFirst().orElseThrow();
+        String secondKey = second.keySet().stream().filter("state"::equals).findFirst().orElseThrow();
+        assertSame(firstKey, secondKey, "Field names should be canonical instances.");
+        assertSame(first.get("state"), second.get("state"), "Repeated values should be canonical instances.");
+        assertSame(first.get("wind_dir"), second.get("wind_dir"), "Repeated values should be canonical instances.");
+    }
+
+    /**
+     * Test that a field stops adding values once it has many distinct ones, while its known values keep
+     * their codes and every code maps back to its text.
+     */
+    @Test
+    public void testHighCardinalityFieldsStayBounded() {
+        FieldDictionary dictionary = new FieldDictionary(100, 3);
+        int field = dictionary.fieldCode("local_date_time_full");
+        assertEquals("local_date_time_full", dictionary.symbol(field), "A field's code should map back to its name.");
+
+        int[] codes = new int[5];
+        for (int i = 0; i < codes.length; i++) {
+            codes[i] = dictionary.valueCode("local_date_time_full", "2023071516000" + i);
+        }
+        assertNotEquals(FieldDictionary.NO_CODE, codes[2], "Values should be added up to the field's limit.");
+        assertEquals(FieldDictionary.NO_CODE, codes[3], "Values beyond the field's limit should not be added.");
+        assertEquals(codes[1], dictionary.valueCode("local_date_time_full", "20230715160001"),
+                "A known value should keep its code.");
+        assertEquals("20230715160001", dictionary.symbol(codes[1]), "A value's code should map back to its text.");
+        dictionary.fieldCode("state");
+        assertNotEquals(FieldDictionary.NO_CODE, dictionary.valueCode("state", "SA"),
+                "Other fields should still add values.");
+    }
+
+    /**
+     * Test that the values of a field left out of a full dictionary are not added, and are returned as they
+     * are instead of as canonical instances.
+     */
+    @Test
+    public void testFieldsWithoutCodeAddNoValues() {
+        FieldDictionary dictionary = new FieldDictionary(2, 3);
+        dictionary.fieldCode("state");
+        dictionary.fieldCode("wind_dir");
+        assertEquals(FieldDictionary.NO_CODE, dictionary.fieldCode("cloud"), "A full dictionary should add no names.");
+
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(FieldDictionary.NO_CODE, dictionary.valueCode("field" + i, "value"),
+                    "A field without a code should add no values.");
+        }
+        String value = new String("Partly cloudy");
+        assertSame(value, dictionary.value("cloud", value), "A value of a field without a code should be returned as is.");
+        assertEquals(FieldDictionary.NO_CODE, dictionary.valueCode("state", "SA"), "The full dictionary should still add nothing.");
+    }
+}
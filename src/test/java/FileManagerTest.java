@@ -0,0 +1,153 @@
+import aggregationserver.FileManager;
+import aggregationserver.StationRecord;
+import aggregationserver.StationStore;
+import aggregationserver.StationUpdateListener;
+import aggregationserver.WriteRequest;
+import common.WeatherDataSerializer;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/// Test file for the file engine of the station store
+public class FileManagerTest {
+
+    private static WeatherDataSerializer data(String stationId) {
+        return WeatherDataSerializer.extractDataFromJson("{\"id\":\"" + stationId + "\",\"air_temp\":\"12.5\"}");
+    }
+
+    // An empty storage directory for one test
+    private static File storage(String name) {
+        File directory = new File("target/file-manager-test/" + name);
+        directory.mkdirs();
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        return directory;
+    }
+
+    // The station IDs of the files in a storage directory
+    private static Set<String> storedIds(File directory) {
+        Set<String> stationIds = new TreeSet<>();
+        for (String name : directory.list()) {
+            stationIds.add(name.substring(0, name.length() - ".json".length()));
+        }
+        return stationIds;
+    }
+
+    /**
+     * Test that a station evicted while its write is still queued is not written when the write comes up,
+     * so it leaves no file, no record and no update behind.
+     */
+    @Test
+    public void testStationEvictedWhileQueuedIsNotWritten() {
+        File directory = storage("queued");
+        FileManager store = new FileManager(directory.getPath(), 1);
+        Set<String> updated = ConcurrentHashMap.newKeySet();
+        store.addListener(new StationUpdateListener() {
+            @Override
+            public void onStationUpdated(String stationId, StationRecord record) {
+                updated.add(stationId);
+            }
+
+            @Override
+            public void onStationRemoved(String stationId) {
+            }
+        });
+
+        // Not started, so both writes wait in the queue until shutdown applies them
+        WriteRequest evicted = new WriteRequest(1, "QUEUED", data("QUEUED"));
+        store.addWriteRequest(evicted);
+        store.addWriteRequest(new WriteRequest(2, "KEPT", data("KEPT"))); // Evicts QUEUED beyond the single entry
+        store.shutdown();
+
+        assertTrue(evicted.completion().isDone(), "The evicted station's write should still be completed.");
+        assertEquals(Set.of("KEPT"), storedIds(directory), "The evicted station should leave no file behind.");
+        assertNull(store.getStationRecord("QUEUED"), "The evicted station should have no record.");
+        assertEquals(Set.of("KEPT"), updated, "Listeners should not be told of the evicted station's write.");
+    }
+
+    /**
+     * Test that while writes are applied and stations are evicted on other threads at the same time, the
+     * stations held, the records served and the files on disk stay the same set.
+     */
+    @Test
+    public void testConcurrentEvictionKeepsStoreAndDiskInStep() throws Exception {
+        File directory = storage("concurrent");
+        int maxEntries = 2;
+        FileManager store = new FileManager(directory.getPath(), maxEntries);
+        store.start();
+
+        ExecutorService acceptors = Executors.newFixedThreadPool(4);
+        List<Future<List<CompletableFuture<Void>>>> accepted = new ArrayList<>();
+        for (int thread = 0; thread < 4; thread++) {
+            int first = thread * 500;
+            accepted.add(acceptors.submit(() -> {
+                List<CompletableFuture<Void>> completions = new ArrayList<>();
+                for (int i = first; i < first + 500; i++) {
+                    String stationId = "RACE" + (i % 16);
+                    WriteRequest request = new WriteRequest(i, stationId, data(stationId));
+                    store.addWriteRequest(request);
+                    completions.add(request.completion());
+                }
+                return completions;
+            }));
+        }
+        for (Future<List<CompletableFuture<Void>>> completions : accepted) {
+            for (CompletableFuture<Void> completion : completions.get()) {
+                completion.get(5, TimeUnit.SECONDS);
+            }
+        }
+        acceptors.shutdown();
+
+        List<String> held = store.getStationIds("");
+        assertTrue(held.size() <= maxEntries, "No more stations than the limit should be held, held " + held);
+        assertEquals(new TreeSet<>(held), storedIds(directory), "Every held station and only those should have a file.");
+        for (String stationId : held) {
+            assertNotNull(store.getStationRecord(stationId), "Every held station should be served.");
+        }
+        store.shutdown();
+    }
+
+    /**
+     * Test that a batch refused because the write queue is full takes no versions, and that a batch which
+     * fits is queued with one version per record, in order.
+     */
+    @Test
+    public void testRefusedBatchTakesNoVersions() {
+        File directory = storage("batch");
+        FileManager store = new FileManager(directory.getPath(), 20);
+        store.setMaxQueuedWrites(3);
+        AtomicLong clock = new AtomicLong();
+
+        // Not started, so queued writes stay in the queue until shutdown applies them
+        assertEquals(StationStore.WriteResult.ACCEPTED,
+                store.addWriteRequest(new WriteRequest(clock.incrementAndGet(), "SINGLE", data("SINGLE"))));
+        List<StationStore.BatchWrite> batch = List.of(
+                new StationStore.BatchWrite("BATCH1", data("BATCH1")),
+                new StationStore.BatchWrite("BATCH2", data("BATCH2")),
+                new StationStore.BatchWrite("BATCH3", data("BATCH3")));
+        assertNull(store.addWriteRequests(batch, clock::incrementAndGet), "A batch without room should be refused.");
+        assertEquals(1, clock.get(), "A refused batch should take no versions.");
+
+        List<WriteRequest> accepted = store.addWriteRequests(batch.subList(0, 2), clock::incrementAndGet);
+        assertNotNull(accepted, "A batch that fits should be queued.");
+        assertEquals(List.of(2L, 3L), accepted.stream().map(WriteRequest::timestamp).toList(),
+                "Each queued record should take the next version, in order.");
+        assertEquals(3, store.getMaxBatchSize(), "The largest batch should be the write queue's capacity.");
+        store.shutdown();
+
+        assertEquals(Set.of("SINGLE", "BATCH1", "BATCH2"), storedIds(directory), "Only queued writes should be stored.");
+    }
+}
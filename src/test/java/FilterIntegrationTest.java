@@ -0,0 +1,78 @@
+import common.HttpConnection;
+import common.HttpReader;
+import common.HttpWriter;
+import common.StatusCodes;
+import common.WeatherDataSerializer;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/// Test file for filtered queries over secondary indexes of an AggregationServer on localhost
+public class FilterIntegrationTest {
+
+    private static final int PORT = 4660;
+
+    private static void put(HttpConnection connection, String stationId, String state, String cloud, String airTemp)
+            throws IOException {
+        TestServer.put(connection, stationId, "{\"id\":\"" + stationId + "\",\"state\":\"" + state + "\",\"cloud\":\""
+                + cloud + "\",\"air_temp\":\"" + airTemp + "\"}");
+    }
+
+    private static HttpReader filter(HttpConnection connection, String filter) throws IOException {
+        return connection.send(new HttpWriter()
+                .setMethod("GET")
+                .setPath("/weather.json?filter=" + URLEncoder.encode(filter, StandardCharsets.UTF_8)));
+    }
+
+    // The IDs of the stations a filter matches, in the order they were sent
+    private static List<String> matches(HttpConnection connection, String filter) throws IOException {
+        HttpReader response = filter(connection, filter);
+        assertEquals(StatusCodes.OK, response.getStatusCode(), "Filters on indexed fields should be served.");
+        List<String> stationIds = new ArrayList<>();
+        for (String line : response.getBody().split("\n")) {
+            if (!line.isBlank()) {
+                stationIds.add(WeatherDataSerializer.extractDataFromJson(line).getData().get("id"));
+            }
+        }
+        return stationIds;
+    }
+
+    /**
+     * Test that equality and range conditions select the matching stations, that updated and evicted
+     * stations leave the index, and that fields without a suitable index are rejected.
+     */
+    @Test
+    public void testFiltersFollowUpdatesAndEvictions() throws IOException, InterruptedException {
+        try (TestServer server = TestServer.start(PORT, 3, "target/filter-test");
+             HttpConnection connection = server.connect()) {
+            put(connection, "FLT1", "SA", "Partly cloudy", "12.5");
+            Thread.sleep(20); // Eviction compares update times in milliseconds, so keep FLT1 strictly oldest
+            put(connection, "FLT2", "SA", "Clear", "18.0");
+            put(connection, "FLT3", "VIC", "Partly cloudy", "25.0");
+
+            assertEquals(List.of("FLT1", "FLT2"), matches(connection, "state=SA"), "Equality should use the hash index.");
+            assertEquals(List.of("FLT1", "FLT3"), matches(connection, "cloud=Partly cloudy"),
+                    "Values with spaces should match.");
+            assertEquals(List.of("FLT2", "FLT3"), matches(connection, "air_temp>=18"), "Ranges should be inclusive.");
+            assertEquals(List.of("FLT2"), matches(connection, "state=SA,air_temp>12.5"),
+                    "Every condition should be met.");
+
+            put(connection, "FLT2", "VIC", "Clear", "18.0"); // Moves FLT2 to another state
+            put(connection, "FLT4", "SA", "Rain", "30.0"); // Evicts FLT1, the least recently updated station
+            assertEquals(List.of("FLT4"), matches(connection, "state=SA"),
+                    "Updated and evicted stations should leave the index.");
+            assertEquals(List.of("FLT3", "FLT4"), matches(connection, "air_temp>20"),
+                    "New stations should be indexed.");
+
+            assertEquals(StatusCodes.BAD_REQUEST, filter(connection, "name=Adelaide").getStatusCode(),
+                    "A field without an index should be rejected.");
+            assertEquals(StatusCodes.BAD_REQUEST, filter(connection, "state>SA").getStatusCode(),
+                    "A range on a hash index should be rejected.");
+        }
+    }
+}
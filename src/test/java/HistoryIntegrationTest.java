@@ -0,0 +1,77 @@
+import aggregationserver.AggregationServer;
+import common.HttpConnection;
+import common.HttpReader;
+import common.HttpWriter;
+import common.StatusCodes;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+
+/// Test file for per-station observation history queries against an AggregationServer on localhost
+public class HistoryIntegrationTest {
+
+    private static final int PORT = 4630;
+
+    private static HttpReader getHistory(HttpConnection connection, String query) throws IOException {
+        return connection.send(new HttpWriter()
+                .setMethod("GET")
+                .setPath("/weather.json?history=" + query));
+    }
+
+    /**
+     * Test that history keeps only the newest observations up to its depth, oldest first, and that time
+     * bounds select observations by when they were applied.
+     */
+    @Test
+    public void testHistoryKeepsNewestObservations() throws IOException, InterruptedException {
+        AggregationServer aggregationServer = new AggregationServer(TestServer.ADDRESS, PORT, 20, "target/history-test");
+        aggregationServer.setHistory(3, 512, 0);
+
+        try (TestServer server = TestServer.start(aggregationServer);
+             HttpConnection connection = server.connect()) {
+            for (int i = 1; i <= 5; i++) {
+                TestServer.put(connection, "HIST1", "{\"id\":\"HIST1\",\"air_temp\":\"" + i + ".0\"}");
+            }
+
+            HttpReader all = getHistory(connection, "HIST1");
+            assertEquals(StatusCodes.OK, all.getStatusCode(), "History should be served for a written station.");
+            String[] lines = all.getBody().trim().split("\n");
+            assertEquals(3, lines.length, "Only the newest observations up to the depth should be kept.");
+            assertTrue(lines[0].contains("\"air_temp\":\"3.0\""), "Observations should be returned oldest first.");
+            assertTrue(lines[2].contains("\"air_temp\":\"5.0\""), "The newest observation should be last.");
+
+            long future = System.currentTimeMillis() + 60_000;
+            assertEquals("", getHistory(connection, "HIST1&from=" + future).getBody().trim(),
+                    "No observation should be applied after the from bound.");
+            assertEquals(3, getHistory(connection, "HIST1&from=-60000").getBody().trim().split("\n").length,
+                    "A negative bound should be relative to now.");
+            assertEquals(StatusCodes.NOT_FOUND, getHistory(connection, "MISSING").getStatusCode(),
+                    "A station without history should not be found.");
+        }
+    }
+
+    /**
+     * Test that a station whose observations do not fit in its history buffer still keeps as many as the depth,
+     * rather than losing the oldest ones to the buffer size.
+     */
+    @Test
+    public void testHistoryKeepsDepthBeyondBufferSize() throws IOException, InterruptedException {
+        AggregationServer aggregationServer = new AggregationServer(TestServer.ADDRESS, PORT, 20, "target/history-test");
+        aggregationServer.setHistory(40, 256, 0);
+
+        try (TestServer server = TestServer.start(aggregationServer);
+             HttpConnection connection = server.connect()) {
+            for (int i = 1; i <= 50; i++) {
+                // A new long name every time, so each block of observations is several times the buffer size
+                TestServer.put(connection, "HIST2", "{\"id\":\"HIST2\",\"name\":\"" + i + "x".repeat(100)
+                        + i + "\",\"air_temp\":\"" + i + ".0\"}");
+            }
+
+            String[] lines = getHistory(connection, "HIST2").getBody().trim().split("\n");
+            assertEquals(40, lines.length, "As many observations as the depth should be kept.");
+            assertTrue(lines[0].contains("\"air_temp\":\"11.0\""), "The oldest kept observation should be the depth back.");
+            assertTrue(lines[39].contains("\"air_temp\":\"50.0\""), "The newest observation should be last.");
+        }
+    }
+}
@@ -0,0 +1,180 @@
+import common.HttpConnectionPool;
+import common.HttpReader;
+import common.HttpWriter;
+import common.LamportClock;
+import common.StatusCodes;
+import getclient.StationFetcher;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/// Test file for pooled keep-alive connections, and for fetching stations concurrently over them
+public class HttpConnectionPoolTest {
+
+    private static final int TIMEOUT = 5000;
+
+    private FakeServer server;
+
+    /// A keep-alive server answering each station GET with the connection's number and the station ID as
+    /// its ETag, counting connections and requests in flight. A request with a Break header has its
+    /// connection closed without an answer.
+    private static class FakeServer implements Runnable {
+        final ServerSocket serverSocket;
+        final AtomicInteger accepted = new AtomicInteger();
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicInteger maxInFlight = new AtomicInteger();
+        volatile long delayMillis;
+
+        FakeServer() throws IOException {
+            serverSocket = new ServerSocket(0);
+            new Thread(this).start();
+        }
+
+        int port() {
+            return serverSocket.getLocalPort();
+        }
+
+        @Override
+        public void run() {
+            while (!serverSocket.isClosed()) {
+                try {
+                    Socket socket = serverSocket.accept();
+                    int connection = accepted.incrementAndGet();
+                    new Thread(() -> serve(socket, connection)).start();
+                } catch (IOException e) {
+                    return; // Closed by the test
+                }
+            }
+        }
+
+        private void serve(Socket socket, int connection) {
+            try (socket) {
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                OutputStream out = socket.getOutputStream();
+                while (true) {
+                    HttpReader request = new HttpReader(in);
+                    if (request.getHeader("Break") != null) {
+                        return;
+                    }
+                    maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+                    Thread.sleep(delayMillis);
+                    inFlight.decrementAndGet();
+                    String etag = "\"" + request.getHeader("Station-Id") + "\"";
+                    String response;
+                    if (etag.equals(request.getHeader("If-None-Match"))) {
+                        response = "HTTP/1.1 304 Not Modified\r\nETag: " + etag + "\r\n\r\n";
+                    } else {
+                        String body = "{\"id\":\"" + request.getHeader("Station-Id") + "\",\"connection\":\"" + connection + "\"}";
+                        response = "HTTP/1.1 200 OK\r\nETag: " + etag + "\r\nContent-Type: application/json\r\nContent-Length: "
+                                + body.length() + "\r\n\r\n" + body;
+                    }
+                    out.write(response.getBytes(StandardCharsets.UTF_8));
+                    out.flush();
+                }
+            } catch (IOException | InterruptedException e) {
+                // The client closed the connection
+            }
+        }
+
+        void close() throws IOException {
+            serverSocket.close();
+        }
+    }
+
+    @AfterEach
+    public void stopServer() throws IOException {
+        if (server != null) {
+            server.close();
+        }
+    }
+
+    private static HttpWriter request(String stationId) {
+        return new HttpWriter()
+                .setMethod("GET")
+                .setPath("/weather.json")
+                .addHeader("Station-Id", stationId);
+    }
+
+    /**
+     * Test that requests sent one after another share a single pooled connection.
+     */
+    @Test
+    public void testSequentialRequestsReuseOneConnection() throws IOException {
+        server = new FakeServer();
+        try (HttpConnectionPool pool = new HttpConnectionPool("localhost", server.port(), 4, TIMEOUT)) {
+            for (int i = 0; i < 10; i++) {
+                HttpReader response = pool.send(request("POOL" + i));
+                assertEquals(StatusCodes.OK, response.getStatusCode());
+                assertTrue(response.getBody().contains("\"connection\":\"1\""), "Every request should use the first connection.");
+            }
+        }
+        assertEquals(1, server.accepted.get(), "Only one connection should be opened.");
+    }
+
+    /**
+     * Test that a connection that fails is dropped instead of being returned to the pool, and that the next
+     * request opens a new one.
+     */
+    @Test
+    public void testBrokenConnectionIsNotReused() throws IOException {
+        server = new FakeServer();
+        try (HttpConnectionPool pool = new HttpConnectionPool("localhost", server.port(), 1, TIMEOUT)) {
+            pool.send(request("POOL1"));
+            assertThrows(IOException.class, () -> pool.send(request("POOL1").addHeader("Break", "true")),
+                    "A request whose connection breaks should fail.");
+            int opened = server.accepted.get();
+
+            HttpReader response = pool.send(request("POOL1"));
+            assertEquals(StatusCodes.OK, response.getStatusCode(), "The pool should recover from a broken connection.");
+            assertEquals(opened + 1, server.accepted.get(), "A new connection should replace the broken one.");
+            assertTrue(response.getBody().contains("\"connection\":\"" + (opened + 1) + "\""),
+                    "The broken connection should not be handed out again.");
+        }
+    }
+
+    /**
+     * Test that a fetch of many stations runs as many requests at once as the pool allows and no more,
+     * returns the results in the order requested, and revalidates cached stations on the next fetch.
+     */
+    @Test
+    public void testFetcherFansOutOverBoundedPool() throws IOException {
+        server = new FakeServer();
+        server.delayMillis = 50;
+        List<String> stationIds = new ArrayList<>();
+        for (int i = 0; i < 16; i++) {
+            stationIds.add("FETCH" + i);
+        }
+
+        try (StationFetcher fetcher = new StationFetcher("localhost", server.port(), 4, TIMEOUT, new LamportClock())) {
+            long started = System.currentTimeMillis();
+            List<StationFetcher.StationResult> results = fetcher.fetch(stationIds);
+            long elapsed = System.currentTimeMillis() - started;
+
+            for (int i = 0; i < stationIds.size(); i++) {
+                StationFetcher.StationResult result = results.get(i);
+                assertEquals(stationIds.get(i), result.stationId(), "Results should be in the order requested.");
+                assertTrue(result.isSuccess(), "Every station should be fetched.");
+                assertEquals(stationIds.get(i), result.data().getData().get("id"));
+            }
+            assertEquals(4, server.maxInFlight.get(), "Requests should run as concurrently as the pool allows.");
+            assertTrue(server.accepted.get() <= 4, "No more connections than the pool size should be opened.");
+            assertTrue(elapsed < 16 * server.delayMillis, "A concurrent fetch should beat fetching one by one.");
+
+            results = fetcher.fetch(stationIds);
+            assertTrue(results.stream().allMatch(StationFetcher.StationResult::isSuccess), "The refetch should succeed.");
+            assertTrue(results.stream().allMatch(result -> result.statusCode() == StatusCodes.NOT_MODIFIED),
+                    "Cached stations should be revalidated instead of fetched again.");
+        }
+    }
+}
@@ -0,0 +1,115 @@
+import common.HttpConnection;
+import common.HttpReader;
+import common.HttpWriter;
+import common.StatusCodes;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/// Test file for retrying requests on a persistent connection whose server has closed it
+public class HttpConnectionTest {
+
+    private static final int TIMEOUT = 500;
+
+    private FakeServer server;
+
+    /// A keep-alive server that answers the first request on each connection and then either closes the
+    /// connection, as a server dropping an idle connection does, or reads the next request without answering
+    /// it and stops listening, so a request sent again could not connect.
+    private static class FakeServer implements Runnable {
+        final ServerSocket serverSocket;
+        final boolean closeIdle;
+        final AtomicInteger requests = new AtomicInteger();
+
+        FakeServer(boolean closeIdle) throws IOException {
+            this.serverSocket = new ServerSocket(0);
+            this.closeIdle = closeIdle;
+            new Thread(this).start();
+        }
+
+        int port() {
+            return serverSocket.getLocalPort();
+        }
+
+        @Override
+        public void run() {
+            while (!serverSocket.isClosed()) {
+                try (Socket socket = serverSocket.accept()) {
+                    BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                    OutputStream out = socket.getOutputStream();
+                    new HttpReader(in);
+                    requests.incrementAndGet();
+                    out.write("HTTP/1.1 200 OK\r\nContent-Length: 0\r\n\r\n".getBytes(StandardCharsets.UTF_8));
+                    out.flush();
+                    if (closeIdle) {
+                        continue;
+                    }
+                    new HttpReader(in);
+                    requests.incrementAndGet();
+                    serverSocket.close();
+                    in.read(); // Holds the connection open until the client gives up on it
+                } catch (IOException e) {
+                    // Closed by the client or the test
+                }
+            }
+        }
+
+        void close() throws IOException {
+            serverSocket.close();
+        }
+    }
+
+    @AfterEach
+    public void stopServer() throws IOException {
+        if (server != null) {
+            server.close();
+        }
+    }
+
+    private static HttpWriter put() {
+        return new HttpWriter()
+                .setMethod("PUT")
+                .setPath("/weather.json")
+                .setBody("{\"id\":\"RETRY1\"}");
+    }
+
+    /**
+     * Test that a request on a connection the server closed while it was idle is sent again on a new connection.
+     */
+    @Test
+    public void testClosedIdleConnectionIsRetried() throws IOException {
+        server = new FakeServer(true);
+        try (HttpConnection connection = new HttpConnection("localhost", server.port(), TIMEOUT)) {
+            assertEquals(StatusCodes.OK, connection.send(put()).getStatusCode());
+            assertEquals(StatusCodes.OK, connection.send(put()).getStatusCode(),
+                    "A request on a connection closed while idle should be retried on a new one.");
+        }
+        assertEquals(2, server.requests.get(), "Each request should reach the server once.");
+    }
+
+    /**
+     * Test that a request that times out waiting for its response is not sent again, as the server may have
+     * processed it.
+     */
+    @Test
+    public void testTimedOutRequestIsNotResent() throws IOException {
+        server = new FakeServer(false);
+        try (HttpConnection connection = new HttpConnection("localhost", server.port(), TIMEOUT)) {
+            assertEquals(StatusCodes.OK, connection.send(put()).getStatusCode());
+            // Sending it again would fail to connect, as the server has stopped listening
+            assertThrows(SocketTimeoutException.class, () -> connection.send(put()),
+                    "A timed out request should fail with its timeout instead of being sent again.");
+        }
+        assertEquals(2, server.requests.get(), "The timed out request should reach the server once.");
+    }
+}
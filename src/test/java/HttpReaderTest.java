@@ -0,0 +1,90 @@
+import common.ChunkedBodyWriter;
+import common.HttpReader;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringReader;
+import java.io.StringWriter;
+
+/// Test file for the HTTP message parser
+public class HttpReaderTest {
+
+    private static final String BATCH_REQUEST = "PUT /weather.json HTTP/1.1\r\n" +
+            "Content-Type: application/x-ndjson\r\n" +
+            "Content-Length: 23\r\n" +
+            "\r\n" +
+            "{\"id\":\"A\"}\n{\"id\":\"B\"}\n\n" +
+            "GET /weather.json HTTP/1.1\r\n" +
+            "Station-Id: A\r\n" +
+            "\r\n";
+
+    /**
+     * Test parsing a response status line with a multi-word status text.
+     */
+    @Test
+    public void testParseResponse() throws IOException {
+        String response = "HTTP/1.1 404 Not Found\r\nContent-Length: 2\r\n\r\n{}";
+        HttpReader reader = new HttpReader(new BufferedReader(new StringReader(response)));
+
+        assertEquals(404, reader.getStatusCode(), "Status code should be parsed.");
+        assertEquals("Not Found", reader.getStatusText(), "Status text should keep its spaces.");
+        assertEquals("{}", reader.getBody(), "Body should be read using Content-Length.");
+    }
+
+    /**
+     * Test streaming a deferred body line by line without reading into the next request.
+     */
+    @Test
+    public void testStreamedBodyStopsAtContentLength() throws IOException {
+        BufferedReader in = new BufferedReader(new StringReader(BATCH_REQUEST));
+        HttpReader batch = new HttpReader(in, false);
+
+        BufferedReader body = batch.getBodyReader();
+        assertEquals("{\"id\":\"A\"}", body.readLine(), "First record should be streamed.");
+        assertEquals("{\"id\":\"B\"}", body.readLine(), "Second record should be streamed.");
+        batch.skipBody();
+
+        HttpReader next = new HttpReader(in, false);
+        assertEquals("GET", next.getMethod(), "Next request on the connection should be intact.");
+        assertEquals("A", next.getHeader("Station-Id"), "Next request headers should be intact.");
+    }
+
+    /**
+     * Test that an unread deferred body is skipped, leaving the stream at the next request.
+     */
+    @Test
+    public void testSkipUnreadBody() throws IOException {
+        BufferedReader in = new BufferedReader(new StringReader(BATCH_REQUEST));
+        new HttpReader(in, false).skipBody();
+
+        assertEquals("GET", new HttpReader(in).getMethod(), "Skipping should consume exactly the body.");
+    }
+
+    /**
+     * Test decoding a chunked body and continuing with the next message on the connection.
+     */
+    @Test
+    public void testChunkedBody() throws IOException {
+        StringWriter written = new StringWriter();
+        PrintWriter out = new PrintWriter(written);
+        out.print("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n");
+        ChunkedBodyWriter chunks = new ChunkedBodyWriter(out);
+        chunks.writeChunk("{\"id\":\"A\"}\n");
+        chunks.writeChunk("{\"id\":\"B\"}\n");
+        chunks.finish();
+        out.print("HTTP/1.1 204 No Content\r\n\r\n");
+        out.flush();
+
+        BufferedReader in = new BufferedReader(new StringReader(written.toString()));
+        HttpReader response = new HttpReader(in, false);
+        BufferedReader body = response.getBodyReader();
+        assertEquals("{\"id\":\"A\"}", body.readLine(), "First chunk should be decoded.");
+        assertEquals("{\"id\":\"B\"}", body.readLine(), "Second chunk should be decoded.");
+        assertNull(body.readLine(), "Body should end at the zero-length chunk.");
+
+        assertEquals(204, new HttpReader(in).getStatusCode(), "Next response should be intact.");
+    }
+}
@@ -0,0 +1,51 @@
+import common.LatencyRecorder;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+/// Test file for the load generator latency histogram
+public class LatencyRecorderTest {
+
+    /**
+     * Test that small values are recorded exactly and percentiles walk the distribution.
+     */
+    @Test
+    public void testPercentiles() {
+        LatencyRecorder recorder = new LatencyRecorder();
+        for (int i = 1; i <= 100; i++) {
+            recorder.recordValue(i);
+        }
+
+        assertEquals(100, recorder.getTotalCount(), "Every sample should be counted.");
+        assertEquals(50, recorder.getValueAtPercentile(50), "Median of 1..100 should be 50.");
+        assertEquals(99, recorder.getValueAtPercentile(99), "p99 of 1..100 should be 99.");
+        assertEquals(100, recorder.getMaxValue(), "Max should be the largest sample.");
+    }
+
+    /**
+     * Test that large values stay within the histogram's relative error.
+     */
+    @Test
+    public void testLargeValuePrecision() {
+        LatencyRecorder recorder = new LatencyRecorder();
+        recorder.recordValue(1_000_000);
+        recorder.recordValue(5_000_000);
+
+        long p50 = recorder.getValueAtPercentile(50);
+        assertTrue(Math.abs(p50 - 1_000_000) <= 1_000_000 * 0.016, "Value should be within 1.6% of 1s.");
+        assertEquals(5_000_000, recorder.getValueAtPercentile(100), "p100 should be capped at the max.");
+    }
+
+    /**
+     * Test that a stall longer than the expected interval back-fills the missed requests.
+     */
+    @Test
+    public void testCoordinatedOmissionCorrection() {
+        LatencyRecorder recorder = new LatencyRecorder();
+        // A 100ms stall with a 10ms send interval hides 9 requests that would have waited 90, 80 ... 10ms
+        recorder.recordValueWithExpectedInterval(100_000, 10_000);
+
+        assertEquals(10, recorder.getTotalCount(), "Stall should record the real sample plus 9 back-filled ones.");
+        long p50 = recorder.getValueAtPercentile(50);
+        assertTrue(p50 >= 49_000 && p50 <= 51_000, "Median of the corrected samples should be about 50ms.");
+    }
+}
@@ -0,0 +1,65 @@
+import aggregationserver.AggregationServer;
+import aggregationserver.MemoryStationStore;
+import common.HttpConnection;
+import common.HttpReader;
+import common.HttpWriter;
+import common.StatusCodes;
+import common.WeatherDataSerializer;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.io.IOException;
+
+/// Test file for an AggregationServer on localhost keeping stations in the in-memory store
+public class MemoryStoreIntegrationTest {
+
+    private static final int PORT = 4720;
+
+    private static HttpReader put(HttpConnection connection, String stationId, String body, String baseVersion) throws IOException {
+        HttpWriter request = new HttpWriter()
+                .setMethod("PUT")
+                .setPath("/weather.json")
+                .addHeader("Lamport-Timestamp", "0")
+                .addHeader("Content-Server-Id", stationId)
+                .setBody(body);
+        if (baseVersion != null) {
+            request.addHeader("Base-Version", baseVersion);
+        }
+        return connection.send(request);
+    }
+
+    /**
+     * Test that a write is readable straight away without asking for it to be applied, that patches are
+     * merged onto and checked against the stored version, that the least recently updated station is
+     * evicted beyond the limit, and that no station is written to disk.
+     */
+    @Test
+    public void testWritesAreServedFromMemory() throws IOException, InterruptedException {
+        try (TestServer server = TestServer.start(new AggregationServer(TestServer.ADDRESS, PORT, new MemoryStationStore(3)));
+             HttpConnection connection = server.connect()) {
+            HttpReader response = put(connection, "MEM0", "{\"id\":\"MEM0\",\"air_temp\":\"12.5\",\"state\":\"SA\"}", null);
+            assertEquals(StatusCodes.OK, response.getStatusCode(), "The PUT should be acknowledged.");
+            String version = response.getHeader("Station-Version");
+            assertEquals(StatusCodes.OK, TestServer.get(connection, "MEM0").getStatusCode(), "A write should be readable straight away.");
+
+            response = put(connection, "MEM0", "{\"air_temp\":\"13.0\"}", version);
+            assertEquals(StatusCodes.OK, response.getStatusCode(), "A patch on the current version should be accepted.");
+            WeatherDataSerializer data = TestServer.get(connection, "MEM0").getWeatherData();
+            assertEquals("13.0", data.getData().get("air_temp"), "The patched field should be updated.");
+            assertEquals("SA", data.getData().get("state"), "Fields missing from the patch should be kept.");
+            assertEquals(StatusCodes.PRECONDITION_FAILED,
+                    put(connection, "MEM0", "{\"air_temp\":\"14.0\"}", version).getStatusCode(),
+                    "A patch on a replaced version should be rejected.");
+
+            for (int i = 1; i <= 3; i++) {
+                Thread.sleep(20); // Give each station a distinct update time
+                put(connection, "MEM" + i, "{\"id\":\"MEM" + i + "\",\"air_temp\":\"" + i + "\"}", null);
+            }
+            assertEquals(StatusCodes.NOT_FOUND, TestServer.get(connection, "MEM0").getStatusCode(),
+                    "The least recently updated station should be evicted.");
+            assertEquals(StatusCodes.OK, TestServer.get(connection, "MEM3").getStatusCode(), "The newest station should be kept.");
+            assertFalse(new File("data/AggregationServerData/MEM3.json").exists(), "Nothing should be written to disk.");
+        }
+    }
+}
@@ -0,0 +1,105 @@
+import common.ObservationBlock;
+import common.WeatherDataSerializer;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/// Test file for the compressed columnar encoding of observation history
+public class ObservationBlockTest {
+
+    private static final int HISTORY_BLOCK_ROWS = 16; // The rows StationHistory compresses together
+
+    // A full observation in the assignment's format, varying like consecutive readings of one station
+    private static WeatherDataSerializer observation(int i, Random random) {
+        WeatherDataSerializer data = new WeatherDataSerializer();
+        data.getData().put("id", "IDS60901");
+        data.getData().put("name", "Adelaide (West Terrace /  ngayirdapira)");
+        data.getData().put("state", "SA");
+        data.getData().put("time_zone", "CST");
+        data.getData().put("lat", "-34.9");
+        data.getData().put("lon", "138.6");
+        data.getData().put("local_date_time", "15/0" + (i % 10) + ":00pm");
+        data.getData().put("local_date_time_full", String.valueOf(20230715160000L + i * 3000L));
+        data.getData().put("air_temp", String.format(Locale.ROOT, "%.1f", 13.3 + random.nextInt(5) / 10.0));
+        data.getData().put("apparent_t", "9.5");
+        data.getData().put("cloud", "Partly cloudy");
+        data.getData().put("dewpt", "5.7");
+        data.getData().put("press", String.format(Locale.ROOT, "%.1f", 1023.9 + random.nextInt(3) / 10.0));
+        data.getData().put("rel_hum", String.valueOf(60 + random.nextInt(3)));
+        data.getData().put("wind_dir", "S");
+        data.getData().put("wind_spd_kmh", "15");
+        data.getData().put("wind_spd_kt", "8");
+        return data;
+    }
+
+    /**
+     * Test that every field, time and version is restored exactly, including decimals that a double
+     * alone would not reproduce as written.
+     */
+    @Test
+    public void testRoundTrip() {
+        List<WeatherDataSerializer> written = new ArrayList<>();
+        ObservationBlock.Writer writer = new ObservationBlock.Writer();
+        String[] awkward = {"13", "13.30", "-0.5", "-0", "0.0", "007", "1e5", "", "99999999999999999", "text, with: punctuation"};
+        for (int i = 0; i < awkward.length; i++) {
+            WeatherDataSerializer data = new WeatherDataSerializer();
+            data.getData().put("id", "X");
+            data.getData().put("value", awkward[i]);
+            if (i % 3 == 0) {
+                data.getData().put("extra", "only sometimes");
+            }
+            written.add(data);
+            writer.append(1000L + i * i * 7, 40 + i, data);
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocateDirect(1024);
+        buffer.put(5, writer.toBytes()); // Read from a non-zero offset of a direct buffer, as the history does
+        ObservationBlock.Reader reader = new ObservationBlock.Reader(buffer, 5);
+        assertEquals(written.size(), reader.rows(), "Every row should be counted.");
+        assertEquals(1000L, ObservationBlock.firstTime(buffer, 5), "The header should hold the first time.");
+        for (int i = 0; i < written.size(); i++) {
+            ObservationBlock.Row row = reader.next();
+            assertEquals(1000L + i * i * 7, row.time(), "Times should round trip.");
+            assertEquals(40 + i, row.version(), "Versions should round trip.");
+            assertEquals(written.get(i).getData(), row.data().getData(), "Fields should round trip exactly.");
+        }
+        assertNull(reader.next(), "No rows should follow the last one.");
+    }
+
+    /**
+     * Test that typical observations take at least ten times fewer bytes than the JSON the server stores,
+     * both in every block of 16 as the history seals them and across a larger block.
+     */
+    @Test
+    public void testCompressionRatio() {
+        Random random = new Random(42);
+        ObservationBlock.Writer all = new ObservationBlock.Writer();
+        ObservationBlock.Writer block = new ObservationBlock.Writer();
+        long jsonBytes = 0;
+        long blockJsonBytes = 0;
+        for (int i = 0; i < 64; i++) {
+            WeatherDataSerializer data = observation(i, random);
+            int json = data.toJson().getBytes(StandardCharsets.UTF_8).length;
+            long time = 1_700_000_000_000L + i * 30_000L + random.nextInt(50);
+            jsonBytes += json;
+            blockJsonBytes += json;
+            all.append(time, i * 3, data);
+            block.append(time, i * 3, data);
+            if (block.rows() == HISTORY_BLOCK_ROWS) {
+                int blockBytes = block.toBytes().length;
+                assertTrue(blockBytes * 10 <= blockJsonBytes,
+                        "Expected 10x fewer bytes than JSON in a history block, got " + blockBytes + " vs " + blockJsonBytes);
+                block = new ObservationBlock.Writer();
+                blockJsonBytes = 0;
+            }
+        }
+        int allBytes = all.toBytes().length;
+        assertTrue(allBytes * 10 <= jsonBytes, "Expected 10x fewer bytes than JSON, got " + allBytes + " vs " + jsonBytes);
+    }
+}
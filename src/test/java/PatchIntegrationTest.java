@@ -0,0 +1,85 @@
+import common.HttpConnection;
+import common.HttpReader;
+import common.HttpWriter;
+import common.StatusCodes;
+import common.WeatherDataSerializer;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+
+/// Test file for patches and malformed PUT headers sent to a file-backed AggregationServer on localhost
+public class PatchIntegrationTest {
+
+    private static final int PORT = 4770;
+
+    private static HttpReader patch(HttpConnection connection, String body, String baseVersion) throws IOException {
+        return connection.send(TestServer.putRequest("PATCH1", body).addHeader("Base-Version", baseVersion));
+    }
+
+    /**
+     * Test that a patch on the current version is merged onto the stored station, keeping the fields it
+     * leaves out, and that a patch on a replaced version is rejected with 412 without changing the station.
+     */
+    @Test
+    public void testPatchIsMergedAndStalePatchIsRejected() throws IOException, InterruptedException {
+        try (TestServer server = TestServer.start(PORT, 20, "target/patch-test");
+             HttpConnection connection = server.connect()) {
+            HttpReader response = TestServer.put(connection, "PATCH1",
+                    "{\"id\":\"PATCH1\",\"air_temp\":\"12.5\",\"state\":\"SA\"}");
+            assertEquals(StatusCodes.OK, response.getStatusCode(), "The full PUT should be acknowledged.");
+            String base = response.getHeader("Station-Version");
+
+            response = patch(connection, "{\"air_temp\":\"13.0\"}", base);
+            assertEquals(StatusCodes.OK, response.getStatusCode(), "A patch on the current version should be accepted.");
+            String patched = response.getHeader("Station-Version");
+            HttpReader get = TestServer.get(connection, "PATCH1");
+            assertEquals("\"" + patched + "\"", get.getHeader("ETag"), "The patch should give the station a new version.");
+            WeatherDataSerializer data = get.getWeatherData();
+            assertEquals("13.0", data.getData().get("air_temp"), "The patched field should be updated.");
+            assertEquals("SA", data.getData().get("state"), "Fields missing from the patch should be kept.");
+            assertEquals("PATCH1", data.getData().get("id"), "The station ID should be kept.");
+
+            assertEquals(StatusCodes.PRECONDITION_FAILED,
+                    patch(connection, "{\"air_temp\":\"14.0\"}", base).getStatusCode(),
+                    "A patch on a replaced version should be rejected.");
+            get = TestServer.get(connection, "PATCH1");
+            assertEquals("\"" + patched + "\"", get.getHeader("ETag"), "A rejected patch should not change the version.");
+            assertEquals("13.0", get.getWeatherData().getData().get("air_temp"), "A rejected patch should not be applied.");
+        }
+    }
+
+    /**
+     * Test that PUTs with a missing or malformed Lamport-Timestamp or Base-Version are answered with 400,
+     * and that the connection keeps serving requests afterwards.
+     */
+    @Test
+    public void testMalformedVersionHeadersAreBadRequests() throws IOException, InterruptedException {
+        try (TestServer server = TestServer.start(PORT, 20, "target/patch-test");
+             HttpConnection connection = server.connect()) {
+            String body = "{\"id\":\"PATCH2\",\"air_temp\":\"12.5\"}";
+            assertEquals(StatusCodes.BAD_REQUEST, patch(connection, body, "abc").getStatusCode(),
+                    "A non-numeric Base-Version should be a bad request.");
+            assertEquals(StatusCodes.BAD_REQUEST, patch(connection, body, "-5").getStatusCode(),
+                    "A negative Base-Version should be a bad request.");
+            assertEquals(StatusCodes.BAD_REQUEST, connection.send(new HttpWriter()
+                            .setMethod("PUT")
+                            .setPath("/weather.json")
+                            .addHeader("Lamport-Timestamp", "later")
+                            .addHeader("Content-Server-Id", "PATCH2")
+                            .setBody(body)).getStatusCode(),
+                    "A non-numeric Lamport-Timestamp should be a bad request.");
+            assertEquals(StatusCodes.BAD_REQUEST, connection.send(new HttpWriter()
+                            .setMethod("PUT")
+                            .setPath("/weather.json")
+                            .addHeader("Content-Server-Id", "PATCH2")
+                            .setBody(body)).getStatusCode(),
+                    "A PUT without a Lamport-Timestamp should be a bad request.");
+            assertEquals(StatusCodes.NOT_FOUND, TestServer.get(connection, "PATCH2").getStatusCode(),
+                    "No malformed PUT should be stored.");
+
+            assertEquals(StatusCodes.OK, TestServer.put(connection, "PATCH2", body).getStatusCode(),
+                    "The connection should keep serving requests.");
+        }
+    }
+}
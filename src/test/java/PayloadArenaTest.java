@@ -0,0 +1,65 @@
+import common.PayloadArena;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.charset.StandardCharsets;
+
+/// Test file for the off-heap arena holding station payloads
+public class PayloadArenaTest {
+
+    private static byte[] payload(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Test that payloads are read back exactly, and that a freed payload's handle reads nothing even after
+     * its block has been reused for another payload.
+     */
+    @Test
+    public void testFreedHandlesReadNothing() {
+        PayloadArena arena = new PayloadArena(4L * PayloadArena.SLAB_BYTES);
+        long first = arena.allocate(payload("first"));
+        long large = arena.allocate(payload("x".repeat(5000)));
+        assertArrayEquals(payload("first"), arena.read(first), "A payload should be read back exactly.");
+        assertArrayEquals(payload("x".repeat(5000)), arena.read(large), "Payloads of any size class should fit.");
+
+        arena.free(first);
+        assertNull(arena.read(first), "A freed payload should not be read.");
+        long second = arena.allocate(payload("second"));
+        assertEquals((int) first, (int) second, "A freed block should be reused for the same size class.");
+        assertNull(arena.read(first), "An old handle should not read the block's new payload.");
+        assertArrayEquals(payload("second"), arena.read(second), "The new handle should read the new payload.");
+
+        arena.free(first); // Already freed, so the reused block must not be freed again
+        assertArrayEquals(payload("second"), arena.read(second), "Freeing a stale handle should do nothing.");
+    }
+
+    /**
+     * Test that a full arena refuses payloads instead of growing, and that rewriting a steady set of
+     * payloads reuses freed blocks without taking more memory.
+     */
+    @Test
+    public void testMemoryIsBounded() {
+        PayloadArena arena = new PayloadArena(PayloadArena.SLAB_BYTES);
+        assertEquals(PayloadArena.NO_HANDLE, arena.allocate(new byte[PayloadArena.SLAB_BYTES]),
+                "A payload larger than a slab should be refused.");
+
+        long[] handles = new long[100];
+        for (int i = 0; i < handles.length; i++) {
+            handles[i] = arena.allocate(payload("station " + i));
+        }
+        long reserved = arena.reservedBytes();
+        for (int round = 0; round < 50; round++) {
+            for (int i = 0; i < handles.length; i++) {
+                arena.free(handles[i]);
+                handles[i] = arena.allocate(payload("station " + i + " round " + round));
+                assertNotEquals(PayloadArena.NO_HANDLE, handles[i], "Freed blocks should be reused.");
+            }
+        }
+        assertEquals(reserved, arena.reservedBytes(), "Rewriting payloads should not take more memory.");
+        assertArrayEquals(payload("station 7 round 49"), arena.read(handles[7]), "The latest payload should be held.");
+
+        assertEquals(PayloadArena.NO_HANDLE, arena.allocate(new byte[PayloadArena.SLAB_BYTES / 4]),
+                "Once every slab is in use, a payload of another size class should be refused.");
+    }
+}
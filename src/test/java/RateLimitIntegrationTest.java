@@ -0,0 +1,67 @@
+import aggregationserver.AggregationServer;
+import common.HttpConnection;
+import common.HttpReader;
+import common.HttpWriter;
+import common.StatusCodes;
+import common.WeatherDataSerializer;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/// Test file for the per Content Server PUT rate limits of an AggregationServer on localhost
+public class RateLimitIntegrationTest {
+
+    private static final int PORT = 4730;
+
+    private static HttpReader put(HttpConnection connection, String contentServerId) throws IOException {
+        return connection.send(new HttpWriter()
+                .setMethod("PUT")
+                .setPath("/weather.json")
+                .addHeader("Lamport-Timestamp", "0")
+                .addHeader("Content-Server-Id", contentServerId)
+                .setBody("{\"id\":\"" + contentServerId + "\",\"air_temp\":\"12.5\"}"));
+    }
+
+    /**
+     * Test that a Content Server is refused with 429 and Retry-After once its burst is spent, that the
+     * connection stays usable, that an overridden Content Server keeps its own limit, and that refusals
+     * are counted per Content Server.
+     */
+    @Test
+    public void testContentServerBeyondItsLimitIsRefused() throws IOException, InterruptedException {
+        AggregationServer aggregationServer = new AggregationServer(TestServer.ADDRESS, PORT, 20, "target/rate-limit-test");
+        aggregationServer.setRateLimit(0.5, 3);
+        aggregationServer.setRateLimitOverride("FAST", 1000, 1000);
+
+        try (TestServer server = TestServer.start(aggregationServer);
+             HttpConnection connection = server.connect()) {
+            for (int i = 0; i < 3; i++) {
+                assertEquals(StatusCodes.OK, put(connection, "SLOW").getStatusCode(), "PUTs within the burst should be accepted.");
+            }
+            HttpReader response = put(connection, "SLOW");
+            assertEquals(StatusCodes.TOO_MANY_REQUESTS, response.getStatusCode(), "A PUT beyond the burst should be refused.");
+            int retryAfter = Integer.parseInt(response.getHeader("Retry-After"));
+            assertTrue(retryAfter >= 1 && retryAfter <= 2, "Retry-After should be the time until the next token.");
+
+            for (int i = 0; i < 20; i++) {
+                assertEquals(StatusCodes.OK, put(connection, "FAST").getStatusCode(),
+                        "An overridden Content Server should keep its own limit.");
+            }
+
+            response = connection.send(new HttpWriter()
+                    .setMethod("GET")
+                    .setPath("/weather.json?rate-limits"));
+            assertEquals(StatusCodes.OK, response.getStatusCode(), "Rate limits should be served on the same connection.");
+            Map<String, String> limited = new HashMap<>();
+            for (String line : response.getBody().trim().split("\n")) {
+                Map<String, String> bucket = WeatherDataSerializer.extractDataFromJson(line).getData();
+                limited.put(bucket.get("id"), bucket.get("limited"));
+            }
+            assertEquals("1", limited.get("SLOW"), "The refused PUT should be counted.");
+            assertEquals("0", limited.get("FAST"), "No PUT of the overridden Content Server should be refused.");
+        }
+    }
+}
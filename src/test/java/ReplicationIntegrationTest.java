@@ -0,0 +1,101 @@
+import aggregationserver.AggregationServer;
+import common.HttpConnection;
+import common.HttpReader;
+import common.HttpWriter;
+import common.StatusCodes;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.util.List;
+
+/// Test file for primary-backup replication between AggregationServers on localhost
+public class ReplicationIntegrationTest {
+
+    private static final int PRIMARY_PORT = 4610;
+    private static final int BACKUP_PORT = 4611;
+
+    private static HttpReader put(HttpConnection connection, String stationId, String airTemp) throws IOException {
+        return connection.send(new HttpWriter()
+                .setMethod("PUT")
+                .setPath("/weather.json")
+                .addHeader("Lamport-Timestamp", "0")
+                .addHeader("Content-Server-Id", stationId)
+                .setBody("{\"id\":\"" + stationId + "\",\"air_temp\":\"" + airTemp + "\"}"));
+    }
+
+    // Sends one replication log entry updating a station to a version
+    private static HttpReader replicate(HttpConnection connection, String path, String stationId, String version)
+            throws IOException {
+        return connection.send(new HttpWriter()
+                .setMethod("PUT")
+                .setPath(path)
+                .addHeader("Lamport-Timestamp", "0")
+                .setBody("update " + stationId + " " + version + " {\"id\":\"" + stationId + "\"}\n"));
+    }
+
+    /**
+     * Test that a backup serves the primary's writes with the same versions, rejects writes until it is
+     * promoted, and continues from the replicated versions once promoted.
+     */
+    @Test
+    public void testReplicationAndPromotion() throws IOException, InterruptedException {
+        AggregationServer backup = new AggregationServer(TestServer.ADDRESS, BACKUP_PORT, 20, "target/replication-test/backup");
+        backup.enableBackupMode(0);
+        AggregationServer primary = new AggregationServer(TestServer.ADDRESS, PRIMARY_PORT, 20, "target/replication-test/primary");
+        primary.setReplicas(List.of(TestServer.ADDRESS + ":" + BACKUP_PORT));
+
+        try (TestServer backupNode = TestServer.start(backup);
+             TestServer primaryNode = TestServer.start(primary);
+             HttpConnection toPrimary = primaryNode.connect();
+             HttpConnection toBackup = backupNode.connect()) {
+            String version = put(toPrimary, "REPL1", "13.3").getHeader("Station-Version");
+            TestServer.await("Backup should serve the replicated station.",
+                    () -> TestServer.get(toBackup, "REPL1").getStatusCode() == StatusCodes.OK);
+
+            HttpReader replicated = TestServer.get(toBackup, "REPL1");
+            assertEquals("\"" + version + "\"", replicated.getHeader("ETag"), "Backup should keep the primary's version.");
+            assertTrue(replicated.getBody().contains("13.3"), "Backup should hold the primary's data.");
+            assertEquals(StatusCodes.SERVICE_UNAVAILABLE, put(toBackup, "REPL1", "20.0").getStatusCode(),
+                    "Backup should reject writes while the primary is in charge.");
+
+            primary.shutdown();
+            assertEquals(StatusCodes.OK, toBackup.send(new HttpWriter().setMethod("PUT").setPath("/promote")).getStatusCode(),
+                    "Backup should accept promotion.");
+
+            HttpReader promotedWrite = put(toBackup, "REPL1", "20.0");
+            assertEquals(StatusCodes.OK, promotedWrite.getStatusCode(), "Promoted backup should accept writes.");
+            assertTrue(Long.parseLong(promotedWrite.getHeader("Station-Version")) > Long.parseLong(version),
+                    "Versions should continue after the replicated ones.");
+        }
+    }
+
+    /**
+     * Test that a replicated version beyond the Lamport clock's range is rejected with 400 instead of being
+     * truncated, and that a server outside a cluster refuses station handoffs with 404.
+     */
+    @Test
+    public void testOutOfRangeVersionAndHandoffWithoutClusterAreRejected() throws IOException, InterruptedException {
+        AggregationServer backup = new AggregationServer(TestServer.ADDRESS, BACKUP_PORT, 20, "target/replication-test/backup");
+        backup.enableBackupMode(0);
+
+        try (TestServer backupNode = TestServer.start(backup);
+             HttpConnection connection = backupNode.connect()) {
+            assertEquals(StatusCodes.BAD_REQUEST, replicate(connection, "/replication", "REPL2", "4294967296").getStatusCode(),
+                    "A version beyond the clock's range should be a bad request.");
+            assertEquals(StatusCodes.NOT_FOUND, TestServer.get(connection, "REPL2").getStatusCode(),
+                    "An entry with an out of range version should not be applied.");
+            assertEquals(StatusCodes.OK, replicate(connection, "/replication", "REPL2", "7").getStatusCode(),
+                    "A version in range should be accepted.");
+            TestServer.await("A version in range should be applied.",
+                    () -> TestServer.get(connection, "REPL2").getStatusCode() == StatusCodes.OK);
+            assertEquals("\"7\"", TestServer.get(connection, "REPL2").getHeader("ETag"),
+                    "The replicated version should be kept.");
+
+            assertEquals(StatusCodes.NOT_FOUND, replicate(connection, "/cluster/handoff", "REPL3", "8").getStatusCode(),
+                    "A server outside a cluster should refuse handoffs.");
+            assertEquals(StatusCodes.NOT_FOUND, TestServer.get(connection, "REPL3").getStatusCode(),
+                    "A refused handoff should not be applied.");
+        }
+    }
+}
@@ -0,0 +1,70 @@
+import aggregationserver.AggregationServer;
+import common.HttpConnection;
+import common.HttpReader;
+import common.StatusCodes;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/// Test file for the Java Flight Recorder events of an AggregationServer on localhost
+public class RequestEventsIntegrationTest {
+
+    private static final int PORT = 4710;
+    private static final String[] EVENTS = {"Parse", "Dispatch", "Enqueue", "WriteApply", "Read", "ExpirySweep", "ResponseSend"};
+
+    /**
+     * Test that a PUT and GET produce an event for every stage, and that a write's enqueue and apply
+     * events carry the same station ID and Lamport timestamp so they can be matched.
+     */
+    @Test
+    public void testRequestStagesAreRecorded() throws IOException, InterruptedException {
+        Path dump = Files.createTempFile("request-events", ".jfr");
+        try (TestServer server = TestServer.start(PORT, 20, "target/events-test");
+             Recording recording = new Recording()) {
+            for (String event : EVENTS) {
+                recording.enable("weatherserver." + event);
+            }
+            recording.start();
+            try (HttpConnection connection = server.connect()) {
+                HttpReader response = TestServer.put(connection, "JFR1", "{\"id\":\"JFR1\",\"air_temp\":\"12.5\"}");
+                assertEquals(StatusCodes.OK, response.getStatusCode(), "The PUT should be acknowledged.");
+                long version = Long.parseLong(response.getHeader("Station-Version"));
+
+                response = TestServer.get(connection, "JFR1");
+                assertEquals(StatusCodes.OK, response.getStatusCode(), "The station should be served.");
+                // The expiry sweep runs once a second, so dump the recording until one shows up
+                TestServer.await("An ExpirySweep event should be recorded.", () -> {
+                    recording.dump(dump);
+                    return RecordingFile.readAllEvents(dump).stream()
+                            .anyMatch(event -> event.getEventType().getName().equals("weatherserver.ExpirySweep"));
+                });
+
+                recording.stop();
+                recording.dump(dump);
+                List<RecordedEvent> events = RecordingFile.readAllEvents(dump);
+                for (String name : EVENTS) {
+                    assertTrue(events.stream().anyMatch(event -> event.getEventType().getName().equals("weatherserver." + name)),
+                            "A " + name + " event should be recorded.");
+                }
+                List<String> writeStages = events.stream()
+                        .filter(event -> event.getEventType().getName().matches("weatherserver\\.(Enqueue|WriteApply)"))
+                        .filter(event -> "JFR1".equals(event.getString("stationId")) && event.getLong("lamportTimestamp") == version)
+                        .map(event -> event.getEventType().getName())
+                        .sorted()
+                        .collect(Collectors.toList());
+                assertEquals(List.of("weatherserver.Enqueue", "weatherserver.WriteApply"), writeStages,
+                        "The write's enqueue and apply should be matched by station ID and Lamport timestamp.");
+            }
+        } finally {
+            Files.deleteIfExists(dump);
+        }
+    }
+}
@@ -0,0 +1,72 @@
+import common.HttpConnection;
+import common.HttpReader;
+import common.HttpWriter;
+import common.StatusCodes;
+import common.WeatherDataSerializer;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/// Test file for nearest-station and bounding-box queries against an AggregationServer on localhost
+public class SpatialIntegrationTest {
+
+    private static final int PORT = 4650;
+
+    private static void put(HttpConnection connection, String stationId, String lat, String lon) throws IOException {
+        TestServer.put(connection, stationId, "{\"id\":\"" + stationId + "\",\"lat\":\"" + lat + "\",\"lon\":\"" + lon + "\"}");
+    }
+
+    // The IDs of the stations in a spatial response, in the order they were sent
+    private static List<String> query(HttpConnection connection, String query) throws IOException {
+        HttpReader response = connection.send(new HttpWriter()
+                .setMethod("GET")
+                .setPath("/weather.json?" + query));
+        assertEquals(StatusCodes.OK, response.getStatusCode(), "Spatial queries should be served.");
+        List<String> stationIds = new ArrayList<>();
+        for (String line : response.getBody().split("\n")) {
+            if (!line.isBlank()) {
+                stationIds.add(WeatherDataSerializer.extractDataFromJson(line).getData().get("id"));
+            }
+        }
+        return stationIds;
+    }
+
+    /**
+     * Test that nearest-station queries return the closest stations first, including across the
+     * antimeridian, that box queries return the stations inside the box, and that moved and evicted
+     * stations are reindexed.
+     */
+    @Test
+    public void testNearestAndBoundingBoxQueries() throws IOException, InterruptedException {
+        try (TestServer server = TestServer.start(PORT, 3, "target/spatial-test");
+             HttpConnection connection = server.connect()) {
+            put(connection, "ADL", "-34.9", "138.6");
+            put(connection, "MEL", "-37.8", "144.9");
+            Thread.sleep(20); // Eviction compares update times in milliseconds, so keep MEL strictly older
+            put(connection, "FIJ", "10.0", "179.9");
+
+            assertEquals(List.of("ADL", "MEL"), query(connection, "near=-35.0,138.5&k=2"),
+                    "The nearest stations should be returned nearest first.");
+            assertEquals(List.of("FIJ"), query(connection, "near=10.0,-179.9&k=1"),
+                    "The nearest station may lie across the antimeridian.");
+            assertEquals(List.of("ADL", "MEL"), query(connection, "bbox=-40,135,-30,150"),
+                    "Stations inside the box should be returned.");
+            assertEquals(List.of("FIJ"), query(connection, "bbox=0,170,20,-170"),
+                    "A box may cross the antimeridian.");
+
+            put(connection, "ADL", "10.0", "-179.5"); // Moves ADL next to FIJ
+            put(connection, "HOB", "-42.9", "147.3"); // Evicts MEL, the least recently updated station
+            assertEquals(List.of("FIJ", "ADL"), query(connection, "near=10.0,-179.9&k=2"),
+                    "A moved station should be found at its new position.");
+            assertEquals(List.of("HOB"), query(connection, "bbox=-45,135,-30,150"),
+                    "Moved and evicted stations should leave the box.");
+            assertEquals(StatusCodes.BAD_REQUEST, connection.send(new HttpWriter()
+                    .setMethod("GET")
+                    .setPath("/weather.json?near=100,0")).getStatusCode(),
+                    "A latitude out of range should be rejected.");
+        }
+    }
+}
@@ -0,0 +1,219 @@
+import common.HttpConnection;
+import common.HttpReader;
+import common.HttpWriter;
+import common.StatusCodes;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/// Test file for event stream and long-poll subscriptions to an AggregationServer on localhost
+public class SubscriptionIntegrationTest {
+
+    private static final int PORT = 4740;
+    private static final int LONG_POLL_PORT = 4741;
+    private static final int STALLED_PORT = 4742;
+    private static final int WRITER_THREADS = 4; // The subscription writer pool's size
+
+    private static String put(HttpConnection connection, String airTemp) throws IOException {
+        HttpReader response = TestServer.put(connection, "SUB1", "{\"id\":\"SUB1\",\"air_temp\":\"" + airTemp + "\"}");
+        assertEquals(StatusCodes.OK, response.getStatusCode(), "The PUT should be acknowledged.");
+        return response.getHeader("Station-Version");
+    }
+
+    // Opens an event stream for SUB1 and reads past the response headers
+    private static Socket subscribe(String lastEventId) throws IOException {
+        Socket socket = new Socket(TestServer.ADDRESS, PORT);
+        socket.setSoTimeout(TestServer.TIMEOUT);
+        sendSubscription(socket, lastEventId);
+        return socket;
+    }
+
+    private static void sendSubscription(Socket socket, String lastEventId) throws IOException {
+        String request = "GET /weather.json?stations=SUB1 HTTP/1.1\r\nAccept: text/event-stream\r\n"
+                + (lastEventId != null ? "Last-Event-ID: " + lastEventId + "\r\n" : "") + "\r\n";
+        OutputStream out = socket.getOutputStream();
+        out.write(request.getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+
+    private static long writerThreads() {
+        return Thread.getAllStackTraces().keySet().stream()
+                .filter(thread -> thread.getName().equals("subscription-writer"))
+                .count();
+    }
+
+    private static BufferedReader reader(Socket socket) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        assertEquals("HTTP/1.1 200 OK", in.readLine(), "The event stream should be accepted.");
+        while (!in.readLine().isEmpty()) {
+            // Skip the response headers
+        }
+        return in;
+    }
+
+    // The fields of the next event, skipping heartbeats
+    private static Map<String, String> readEvent(BufferedReader in) throws IOException {
+        Map<String, String> event = new HashMap<>();
+        for (String line = in.readLine(); !line.isEmpty() || event.isEmpty(); line = in.readLine()) {
+            int colon = line.indexOf(": ");
+            if (colon > 0) {
+                event.put(line.substring(0, colon), line.substring(colon + 2));
+            }
+        }
+        return event;
+    }
+
+    private static CompletableFuture<HttpReader> longPoll(HttpConnection connection, String version, int wait) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return connection.send(new HttpWriter()
+                        .setMethod("GET")
+                        .setPath("/weather.json?wait=" + wait)
+                        .addHeader("Station-Id", "SUB1")
+                        .addHeader("If-None-Match", "\"" + version + "\""));
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+    }
+
+    /**
+     * Test that an event stream sends the current record and then every update, and that a reconnect with
+     * Last-Event-ID only replays what the client has not seen.
+     */
+    @Test
+    public void testEventStreamSendsUpdatesAndReplaysFromLastEventId() throws IOException, InterruptedException {
+        try (TestServer server = TestServer.start(PORT, 20, "target/subscription-test");
+             HttpConnection connection = server.connect()) {
+            String first = put(connection, "10.0");
+
+            try (Socket socket = subscribe(null)) {
+                BufferedReader in = reader(socket);
+                Map<String, String> snapshot = readEvent(in);
+                assertEquals(first, snapshot.get("id"), "The current record should be sent first.");
+                assertEquals("update", snapshot.get("event"));
+
+                String second = put(connection, "11.0");
+                Map<String, String> update = readEvent(in);
+                assertEquals(second, update.get("id"), "The update should be pushed.");
+                assertTrue(update.get("data").contains("\"air_temp\":\"11.0\""), "The event should carry the new data.");
+            }
+
+            String latest = TestServer.get(connection, "SUB1").getHeader("ETag").replace("\"", "");
+            try (Socket socket = subscribe(latest)) {
+                BufferedReader in = reader(socket);
+                String third = put(connection, "12.0");
+                assertEquals(third, readEvent(in).get("id"),
+                        "A record the client has already seen should not be replayed.");
+            }
+
+            try (Socket socket = subscribe(first)) {
+                BufferedReader in = reader(socket);
+                assertTrue(readEvent(in).get("data").contains("\"air_temp\":\"12.0\""),
+                        "The latest record should be replayed to a client behind it.");
+            }
+        }
+    }
+
+    /**
+     * Test that a long-poll is held while the station is unchanged, is woken by a write, and is answered
+     * with 304 once its wait expires without one.
+     */
+    @Test
+    public void testLongPollWakesOnUpdateAndTimesOut() throws Exception {
+        try (TestServer server = TestServer.start(LONG_POLL_PORT, 20, "target/subscription-test");
+             HttpConnection connection = server.connect();
+             HttpConnection waiting = server.connect()) {
+            String version = put(connection, "10.0");
+
+            CompletableFuture<HttpReader> woken = longPoll(waiting, version, 5000);
+            assertThrows(TimeoutException.class, () -> woken.get(200, TimeUnit.MILLISECONDS),
+                    "A long-poll should be held while the station is unchanged.");
+            String updated = put(connection, "11.0");
+            HttpReader response = woken.get(TestServer.TIMEOUT, TimeUnit.MILLISECONDS);
+            assertEquals(StatusCodes.OK, response.getStatusCode(), "A write should wake the long-poll.");
+            assertEquals("\"" + updated + "\"", response.getHeader("ETag"), "The long-poll should return the new version.");
+
+            long started = System.currentTimeMillis();
+            response = longPoll(waiting, updated, 300).get(TestServer.TIMEOUT, TimeUnit.MILLISECONDS);
+            assertEquals(StatusCodes.NOT_MODIFIED, response.getStatusCode(), "An expired long-poll should be not modified.");
+            assertTrue(System.currentTimeMillis() - started >= 300, "The long-poll should be held for its wait.");
+        }
+    }
+
+    /**
+     * Test that subscribers which stop reading do not each take a writer thread, and that they are dropped
+     * once a write to them has blocked for too long, so an event stream that keeps reading is still served.
+     */
+    @Test
+    public void testStalledSubscribersDoNotTakeAThreadEach() throws Exception {
+        // Enough data for each stalled subscriber to outgrow its socket buffers and block its writer
+        String filler = "x".repeat(64 * 1024);
+        int updates = 128;
+        List<Socket> stalled = new ArrayList<>();
+        List<String> received = new CopyOnWriteArrayList<>();
+        try (TestServer server = TestServer.start(STALLED_PORT, 20, "target/subscription-test");
+             HttpConnection connection = server.connect();
+             Socket reading = new Socket(TestServer.ADDRESS, STALLED_PORT)) {
+            for (int i = 0; i < WRITER_THREADS + 2; i++) {
+                Socket socket = new Socket();
+                socket.setReceiveBufferSize(4096);
+                socket.connect(new InetSocketAddress(TestServer.ADDRESS, STALLED_PORT));
+                sendSubscription(socket, null); // And never read from it
+                stalled.add(socket);
+            }
+            reading.setSoTimeout(4 * TestServer.TIMEOUT);
+            sendSubscription(reading, null);
+            BufferedReader in = reader(reading);
+            Thread reader = new Thread(() -> {
+                try {
+                    while (true) {
+                        received.add(readEvent(in).get("id"));
+                    }
+                } catch (IOException | RuntimeException e) {
+                    // Closed at the end of the test
+                }
+            });
+            reader.start();
+
+            long mostWriters = 0;
+            String last = null;
+            for (int i = 0; i < updates; i++) {
+                last = TestServer.put(connection, "SUB1", "{\"id\":\"SUB1\",\"seq\":\"" + i + "\",\"note\":\"" + filler + "\"}")
+                        .getHeader("Station-Version");
+                mostWriters = Math.max(mostWriters, writerThreads());
+            }
+
+            // The writers blocked on stalled subscribers are only freed once those are dropped
+            long deadline = System.currentTimeMillis() + 4 * TestServer.TIMEOUT;
+            while (!received.contains(last) && System.currentTimeMillis() < deadline) {
+                mostWriters = Math.max(mostWriters, writerThreads());
+                Thread.sleep(50);
+            }
+            assertTrue(received.contains(last), "The reading subscriber should receive every update.");
+            assertTrue(mostWriters <= WRITER_THREADS,
+                    "Stalled subscribers should share the writer pool, saw " + mostWriters + " writer threads.");
+        } finally {
+            for (Socket socket : stalled) {
+                socket.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,94 @@
+import aggregationserver.AckMode;
+import aggregationserver.AggregationServer;
+import common.HttpConnection;
+import common.HttpReader;
+import common.HttpWriter;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+
+/// Runs an AggregationServer on localhost for an integration test, and holds the requests tests share
+final class TestServer implements AutoCloseable {
+
+    static final String ADDRESS = "localhost";
+    static final int TIMEOUT = 5000;
+    private static final long POLL_INTERVAL = 10;
+
+    private final AggregationServer server;
+
+    /// A condition polled by await
+    interface Condition {
+        boolean holds() throws IOException;
+    }
+
+    private TestServer(AggregationServer server) {
+        this.server = server;
+    }
+
+    /**
+     * Starts a file-backed server, storing its stations under the data directory.
+     */
+    static TestServer start(int port, int maxStations, String dataDirectory) throws InterruptedException {
+        return start(new AggregationServer(ADDRESS, port, maxStations, dataDirectory));
+    }
+
+    /**
+     * Starts an already configured server and waits for its sockets to be bound.
+     */
+    static TestServer start(AggregationServer server) throws InterruptedException {
+        server.startup();
+        new Thread(server).start();
+        assertTrue(server.awaitListening(TIMEOUT), "The server should start listening.");
+        return new TestServer(server);
+    }
+
+    AggregationServer server() {
+        return server;
+    }
+
+    HttpConnection connect() {
+        return new HttpConnection(ADDRESS, server.getPort(), TIMEOUT);
+    }
+
+    @Override
+    public void close() {
+        server.shutdown();
+    }
+
+    /**
+     * A PUT of a station's JSON, acknowledged once the write is applied so the next request sees it.
+     */
+    static HttpWriter putRequest(String stationId, String json) {
+        return new HttpWriter()
+                .setMethod("PUT")
+                .setPath("/weather.json")
+                .addHeader("Lamport-Timestamp", "0")
+                .addHeader("Content-Server-Id", stationId)
+                .addHeader(AckMode.HEADER, AckMode.APPLIED.headerValue())
+                .setBody(json);
+    }
+
+    static HttpReader put(HttpConnection connection, String stationId, String json) throws IOException {
+        return connection.send(putRequest(stationId, json));
+    }
+
+    static HttpReader get(HttpConnection connection, String stationId) throws IOException {
+        return connection.send(new HttpWriter()
+                .setMethod("GET")
+                .setPath("/weather.json")
+                .addHeader("Station-Id", stationId));
+    }
+
+    /**
+     * Polls a condition until it holds, failing the test if it does not within TIMEOUT.
+     */
+    static void await(String message, Condition condition) throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (!condition.holds()) {
+            if (System.currentTimeMillis() > deadline) {
+                fail(message);
+            }
+            Thread.sleep(POLL_INTERVAL);
+        }
+    }
+}
@@ -91,4 +91,77 @@ public class WeatherDataSerializerTest {
         assertEquals("IDS60901", data.get("id"), "ID should match.");
         assertEquals("13.3", data.get("air_temp"), "Air temperature should match.");
     }
-}
\ No newline at end of file
+
+    /**
+     * Test that values containing ':' (such as local_date_time) are kept whole.
+     */
+    @Test
+    public void testExtractValueContainingColon() {
+        String txtInput = "local_date_time:15/04:00pm\n";
+        String jsonInput = "{\n\t\"local_date_time\" : \"15/04:00pm\"\n}";
+
+        assertEquals("15/04:00pm", WeatherDataSerializer.extractDataFromTxt(txtInput).getData().get("local_date_time"),
+                "Text value should keep its colon.");
+        assertEquals("15/04:00pm", WeatherDataSerializer.extractDataFromJson(jsonInput).getData().get("local_date_time"),
+                "JSON value should keep its colon.");
+    }
+
+    /**
+     * Test computing a delta and merging it back onto the base data.
+     */
+    @Test
+    public void testDiffAndMerge() {
+        WeatherDataSerializer base = WeatherDataSerializer.extractDataFromTxt("id:IDS60901\nair_temp:13.3\nrel_hum:60\n");
+        WeatherDataSerializer current = WeatherDataSerializer.extractDataFromTxt("id:IDS60901\nair_temp:14.1\nrel_hum:60\ncloud:Fine\n");
+
+        WeatherDataSerializer delta = current.diff(base);
+        assertEquals(2, delta.getData().size(), "Delta should only contain the changed and added fields.");
+        assertEquals("14.1", delta.getData().get("air_temp"), "Changed field should be in the delta.");
+        assertEquals("Fine", delta.getData().get("cloud"), "Added field should be in the delta.");
+
+        WeatherDataSerializer merged = base.merge(delta);
+        assertEquals(current.getData(), merged.getData(), "Merging the delta should reproduce the current data.");
+        assertTrue(current.containsAllFieldsOf(base), "Current data should still contain every base field.");
+        assertFalse(base.containsAllFieldsOf(current), "Base data is missing the added field.");
+    }
+
+    /**
+     * Test that the binary form restores keys, values and field order exactly, including values the JSON
+     * parser would split.
+     */
+    @Test
+    public void testBinaryRoundTrip() {
+        WeatherDataSerializer weatherDataSerializer = new WeatherDataSerializer();
+        weatherDataSerializer.getData().put("id", "IDS60901");
+        weatherDataSerializer.getData().put("name", "Adelaide, \"West Terrace\": ngayirdapira \u00e9\u4e2d");
+        weatherDataSerializer.getData().put("empty", "");
+        weatherDataSerializer.getData().put("long", "x".repeat(300));
+
+        WeatherDataSerializer restored = WeatherDataSerializer.fromBytes(weatherDataSerializer.toBytes());
+        assertEquals(new java.util.ArrayList<>(weatherDataSerializer.getData().entrySet()),
+                new java.util.ArrayList<>(restored.getData().entrySet()), "Fields should round trip in order.");
+    }
+
+    /**
+     * Test that the binary wire format round trips standard and unknown fields, is smaller than JSON,
+     * and rejects a truncated body.
+     */
+    @Test
+    public void testBinaryWireRoundTrip() {
+        WeatherDataSerializer weatherDataSerializer = new WeatherDataSerializer();
+        weatherDataSerializer.getData().put("id", "IDS60901");
+        weatherDataSerializer.getData().put("name", "Adelaide (West Terrace /  ngayirdapira) \u00e9");
+        weatherDataSerializer.getData().put("air_temp", "13.3");
+        weatherDataSerializer.getData().put("uv_index", "4"); // Not a standard field, so sent by name
+
+        String body = weatherDataSerializer.toBody(WeatherDataSerializer.BINARY_CONTENT_TYPE);
+        WeatherDataSerializer restored = WeatherDataSerializer.extractDataFromBody(body,
+                WeatherDataSerializer.BINARY_CONTENT_TYPE + "; charset=binary");
+        assertEquals(new java.util.ArrayList<>(weatherDataSerializer.getData().entrySet()),
+                new java.util.ArrayList<>(restored.getData().entrySet()), "Fields should round trip in order.");
+        assertTrue(body.length() < weatherDataSerializer.toJson().length(), "Binary should be smaller than JSON.");
+        assertThrows(IllegalArgumentException.class,
+                () -> WeatherDataSerializer.extractDataFromBinary(body.substring(0, body.length() - 3)),
+                "A truncated body should be rejected.");
+    }
+}